@@ -1,5 +1,6 @@
 package io.github.jameswang777.minimq.config;
 
+import io.github.jameswang777.minimq.model.Compression;
 import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
@@ -27,6 +28,24 @@ public class MiniMqProperties {
      */
     private int connectionTimeout = 5000; // 5 seconds
 
+    /**
+     * Wire protocol used to talk to the broker: text (v1.1) or binary.
+     * The binary protocol sends messages in a length-prefixed format, so their content may contain line breaks
+     * and ":::". It requires a broker that supports it; the handshake fails after the connection timeout otherwise.
+     */
+    private Protocol protocol = Protocol.TEXT;
+
+    /**
+     * Compression of message content: none or deflate. Requires the binary protocol and is negotiated per connection.
+     * Compressed messages are stored compressed by the broker and decompressed by the consuming client.
+     */
+    private Compression compression = Compression.NONE;
+
+    /**
+     * Minimum content length in characters for a message to be compressed; shorter content rarely shrinks.
+     */
+    private int compressionThreshold = 256;
+
     /**
      * Producer specific configurations.
      */
@@ -42,6 +61,11 @@ public class MiniMqProperties {
      */
     private Pool pool = new Pool();
 
+    public enum Protocol {
+        TEXT,
+        BINARY
+    }
+
     @Data
     public static class Producer {
         /**
@@ -53,6 +77,12 @@ public class MiniMqProperties {
          * Delay between retries in milliseconds.
          */
         private long retryDelayMs = 1000; // 1 second
+
+        /**
+         * Maximum number of asynchronous sends awaiting the broker's response on the pipelined connection.
+         * Further sends block until a response arrives.
+         */
+        private int maxInFlight = 1000;
     }
 
     @Data
@@ -64,6 +94,35 @@ public class MiniMqProperties {
         private boolean enabled = true;
 
         private String topic;
+
+        /**
+         * Maximum time in milliseconds the broker holds a CONSUME request open while waiting for a message.
+         * The listener polls again immediately after an empty response.
+         */
+        private long pollTimeoutMs = 30000; // 30 seconds
+
+        /**
+         * Number of messages the broker may push to a listener before they are processed.
+         * Listeners subscribe and receive messages as they arrive; set to 0 to long-poll with CONSUME instead.
+         */
+        private int prefetch = 100;
+
+        /**
+         * Time in milliseconds the listener has to process a message before the broker delivers it again.
+         * 0 uses the broker's default.
+         */
+        private long ackTimeoutMs = 0;
+
+        /**
+         * The number of application instances sharing the partitions of partitioned topics.
+         */
+        private int instanceCount = 1;
+
+        /**
+         * The index of this application instance, from 0 to instance-count - 1. Partitioned listeners consume
+         * every partition whose number modulo instance-count equals this index, each on its own thread.
+         */
+        private int instanceIndex = 0;
     }
 
     @Data
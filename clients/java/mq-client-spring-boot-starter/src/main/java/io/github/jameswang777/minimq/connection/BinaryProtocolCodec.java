@@ -0,0 +1,290 @@
+package io.github.jameswang777.minimq.connection;
+
+import io.github.jameswang777.minimq.model.Compression;
+import io.github.jameswang777.minimq.model.Message;
+import io.github.jameswang777.minimq.protocol.BinaryProtocol;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.StringJoiner;
+
+/**
+ * The length-prefixed binary protocol, see {@link BinaryProtocol}. Messages are sent in their binary
+ * format, so their content may contain any characters. The connection must have completed the
+ * handshake already.
+ * <p>
+ * If the connection negotiated a compression, message content of at least the threshold length is sent
+ * compressed, and received messages are decompressed when their content is first read.
+ */
+@Slf4j
+class BinaryProtocolCodec implements ProtocolCodec {
+
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final Compression compression;
+    private final int compressionThreshold;
+
+    /**
+     * @param compression          The compression the broker accepted for this connection.
+     * @param compressionThreshold The minimum content length in characters for a message to be compressed.
+     */
+    BinaryProtocolCodec(Socket socket, Compression compression, int compressionThreshold) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.compression = compression;
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    @Override
+    public void produce(Message message) throws IOException {
+        byte[] body = encode(message);
+        writeHeader(BinaryProtocol.PRODUCE, body.length);
+        out.write(body);
+    }
+
+    @Override
+    public void produceAt(Message message, long epochMillis) throws IOException {
+        produceScheduled(BinaryProtocol.PRODUCE_AT, message, epochMillis);
+    }
+
+    @Override
+    public void produceDelayed(Message message, long delayMs) throws IOException {
+        produceScheduled(BinaryProtocol.PRODUCE_DELAYED, message, delayMs);
+    }
+
+    private void produceScheduled(byte opcode, Message message, long time) throws IOException {
+        byte[] body = encode(message);
+        writeHeader(opcode, Long.BYTES + body.length);
+        out.writeLong(time);
+        out.write(body);
+    }
+
+    @Override
+    public void produceBatch(List<Message> messages) throws IOException {
+        List<byte[]> bodies = new ArrayList<>(messages.size());
+        int length = Integer.BYTES;
+        for (Message message : messages) {
+            byte[] body = encode(message);
+            bodies.add(body);
+            length += Integer.BYTES + body.length;
+        }
+        writeHeader(BinaryProtocol.PRODUCE_BATCH, length);
+        out.writeInt(bodies.size());
+        for (byte[] body : bodies) {
+            out.writeInt(body.length);
+            out.write(body);
+        }
+    }
+
+    @Override
+    public void consume(String topic, long maxWaitMs) throws IOException {
+        byte[] topicBytes = BinaryProtocol.utf8(topic);
+        writeHeader(BinaryProtocol.CONSUME, Long.BYTES + Integer.BYTES + BinaryProtocol.stringLength(topicBytes));
+        out.writeLong(maxWaitMs);
+        out.writeInt(1);
+        writeString(topicBytes);
+    }
+
+    @Override
+    public void ack(List<String> messageIds) throws IOException {
+        List<byte[]> ids = new ArrayList<>(messageIds.size());
+        int length = Integer.BYTES;
+        for (String messageId : messageIds) {
+            byte[] id = BinaryProtocol.utf8(messageId);
+            ids.add(id);
+            length += BinaryProtocol.stringLength(id);
+        }
+        writeHeader(BinaryProtocol.ACK, length);
+        out.writeInt(ids.size());
+        for (byte[] id : ids) {
+            writeString(id);
+        }
+    }
+
+    @Override
+    public void ackTimeout(long ackTimeoutMs) throws IOException {
+        writeHeader(BinaryProtocol.ACK_TIMEOUT, Long.BYTES);
+        out.writeLong(ackTimeoutMs);
+    }
+
+    @Override
+    public void group(String group) throws IOException {
+        byte[] groupBytes = BinaryProtocol.utf8(group);
+        writeHeader(BinaryProtocol.SET_GROUP, BinaryProtocol.stringLength(groupBytes));
+        writeString(groupBytes);
+    }
+
+    @Override
+    public void subscribe(String topic) throws IOException {
+        byte[] topicBytes = BinaryProtocol.utf8(topic);
+        writeHeader(BinaryProtocol.SUBSCRIBE, BinaryProtocol.stringLength(topicBytes));
+        writeString(topicBytes);
+    }
+
+    @Override
+    public void credit(long credit) throws IOException {
+        writeHeader(BinaryProtocol.CREDIT, Long.BYTES);
+        out.writeLong(credit);
+    }
+
+    @Override
+    public void partitions(String topic) throws IOException {
+        byte[] topicBytes = BinaryProtocol.utf8(topic);
+        writeHeader(BinaryProtocol.PARTITIONS, BinaryProtocol.stringLength(topicBytes));
+        writeString(topicBytes);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public String readReply() throws IOException {
+        ByteBuffer frame = readFrame();
+        if (frame == null) {
+            return null;
+        }
+        byte opcode = frame.get();
+        try {
+            if (opcode == BinaryProtocol.IDS) {
+                int count = frame.getInt();
+                StringJoiner ids = new StringJoiner(",");
+                for (int i = 0; i < count; i++) {
+                    ids.add(BinaryProtocol.getString(frame));
+                }
+                return ids.toString();
+            }
+            if (opcode == BinaryProtocol.ERROR) {
+                int code = frame.getInt();
+                long retryAfterMs = frame.getLong();
+                String description = BinaryProtocol.getString(frame);
+                return "ERROR:" + code + ":" + (retryAfterMs > 0 ? retryAfterMs + ":" : "") + description;
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Malformed response frame from broker", e);
+        }
+        throw new IOException("Unexpected response frame from broker: opcode " + opcode);
+    }
+
+    @Override
+    public List<Message> readConsumed() throws IOException {
+        ByteBuffer frame = readFrame();
+        if (frame == null) {
+            return null;
+        }
+        byte opcode = frame.get();
+        if (opcode != BinaryProtocol.MESSAGES) {
+            throw new IOException("Unexpected response frame from broker: opcode " + opcode);
+        }
+        return readMessages(frame);
+    }
+
+    @Override
+    public int readPartitions() throws IOException {
+        ByteBuffer frame = readFrame();
+        if (frame == null) {
+            throw new EOFException("Broker closed the connection");
+        }
+        byte opcode = frame.get();
+        try {
+            if (opcode == BinaryProtocol.PARTITIONS_COUNT) {
+                return frame.getInt();
+            }
+            // 不支持分区的旧版本 Broker 以 501 回复未知的请求，它的主题都只有一个分区
+            if (opcode == BinaryProtocol.ERROR && frame.getInt() == 501) {
+                return 1;
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Malformed response frame from broker", e);
+        }
+        throw new IOException("Unexpected response frame from broker: opcode " + opcode);
+    }
+
+    @Override
+    public List<Message> readPushed() throws IOException {
+        ByteBuffer frame;
+        while ((frame = readFrame()) != null) {
+            byte opcode = frame.get();
+            if (opcode != BinaryProtocol.PUSH) {
+                log.warn("Unexpected frame from broker on subscription: opcode {}", opcode);
+                continue;
+            }
+            List<Message> messages = readMessages(frame);
+            if (!messages.isEmpty()) {
+                return messages;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean hasBufferedInput() throws IOException {
+        return in.available() > 0;
+    }
+
+    // 只压缩足够长的内容；Broker 未接受压缩时，也不发送已经压缩的内容（例如转发收到的消息）
+    private byte[] encode(Message message) {
+        boolean compress = compression != Compression.NONE && message.getContent().length() >= compressionThreshold;
+        return message.toBinary(compress ? compression : Compression.NONE);
+    }
+
+    private void writeHeader(byte opcode, int bodyLength) throws IOException {
+        out.writeInt(1 + bodyLength);
+        out.writeByte(opcode);
+    }
+
+    private void writeString(byte[] utf8) throws IOException {
+        if (utf8 == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(utf8.length);
+            out.write(utf8);
+        }
+    }
+
+    // 读取一个完整的帧（不含长度前缀），在帧之间遇到连接关闭时返回 null
+    private ByteBuffer readFrame() throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 1) {
+            throw new IOException("Invalid frame length from broker: " + length);
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return ByteBuffer.wrap(frame);
+    }
+
+    private static List<Message> readMessages(ByteBuffer frame) throws IOException {
+        try {
+            int count = frame.getInt();
+            List<Message> messages = new ArrayList<>(Math.min(count, frame.remaining() / Integer.BYTES));
+            for (int i = 0; i < count; i++) {
+                Message message = Message.fromBinary(BinaryProtocol.getSlice(frame));
+                if (message == null) {
+                    log.warn("Received malformed message in frame from broker");
+                    continue;
+                }
+                messages.add(message);
+            }
+            return count == 0 ? Collections.emptyList() : messages;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Malformed message frame from broker", e);
+        }
+    }
+}
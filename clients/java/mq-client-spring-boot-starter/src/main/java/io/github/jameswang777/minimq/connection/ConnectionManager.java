@@ -1,20 +1,28 @@
 package io.github.jameswang777.minimq.connection;
 
 import io.github.jameswang777.minimq.config.MiniMqProperties;
+import io.github.jameswang777.minimq.model.Compression;
 import io.github.jameswang777.minimq.pool.PooledSocketFactory;
 import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.pool2.impl.GenericObjectPool;
 import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
 
+import java.io.IOException;
 import java.net.Socket;
 import java.net.URI;
 import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Slf4j
 public class ConnectionManager {
 
     private final GenericObjectPool<Socket> connectionPool;
+    private final PooledSocketFactory socketFactory;
+    private final MiniMqProperties.Protocol protocol;
+    private final int compressionThreshold;
+    // 主题的分区数由 Broker 配置，查询一次后缓存，直到应用重启
+    private final ConcurrentHashMap<String, Integer> partitionCounts = new ConcurrentHashMap<>();
 
     public ConnectionManager(MiniMqProperties properties) {
         log.info("Initializing MiniMQ ConnectionManager...");
@@ -59,13 +67,22 @@ public class ConnectionManager {
         poolConfig.setTestOnReturn(true); // Also validate when returning
         poolConfig.setTestWhileIdle(true); // Periodically check idle connections
 
-        PooledSocketFactory factory = new PooledSocketFactory(
+        this.protocol = properties.getProtocol();
+        this.compressionThreshold = properties.getCompressionThreshold();
+        Compression compression = properties.getCompression();
+        if (compression != Compression.NONE && protocol != MiniMqProperties.Protocol.BINARY) {
+            log.warn("Compression {} requires the binary protocol and is disabled.", compression);
+            compression = Compression.NONE;
+        }
+        this.socketFactory = new PooledSocketFactory(
                 finalHost,
                 finalPort,
-                properties.getConnectionTimeout()
+                properties.getConnectionTimeout(),
+                protocol == MiniMqProperties.Protocol.BINARY,
+                compression
         );
 
-        this.connectionPool = new GenericObjectPool<>(factory, poolConfig);
+        this.connectionPool = new GenericObjectPool<>(socketFactory, poolConfig);
         log.info("MiniMQ Connection Pool configured with maxTotal={}", poolProps.getMaxTotal());
     }
 
@@ -80,6 +97,59 @@ public class ConnectionManager {
         return connectionPool.borrowObject();
     }
 
+    /**
+     * Opens a new connection that is not part of the pool, for callers that keep it for a long time.
+     * The caller is responsible for closing it.
+     * @return A connected Socket.
+     * @throws IOException if the connection cannot be established.
+     */
+    public Socket openConnection() throws IOException {
+        log.debug("Opening a dedicated connection outside the pool...");
+        return socketFactory.create();
+    }
+
+    /**
+     * Creates a codec for the commands and responses on a connection, in the configured protocol.
+     * Anything the codec buffered is lost with it, so a connection is used through one codec at a time.
+     * @param socket A connection from this manager.
+     * @return A new codec.
+     * @throws IOException if the streams of the socket cannot be opened.
+     */
+    public ProtocolCodec codec(Socket socket) throws IOException {
+        return protocol == MiniMqProperties.Protocol.BINARY
+                ? new BinaryProtocolCodec(socket, socketFactory.compressionOf(socket), compressionThreshold)
+                : new TextProtocolCodec(socket);
+    }
+
+    /**
+     * Returns the number of partitions of a topic, asking the broker the first time.
+     * Requires a broker that supports partitions; over the text protocol an older broker does not answer.
+     * @param topic The topic.
+     * @return The number of partitions, 1 if the topic is not partitioned.
+     * @throws Exception if the broker cannot be asked.
+     */
+    public int partitionCount(String topic) throws Exception {
+        Integer cached = partitionCounts.get(topic);
+        if (cached != null) {
+            return cached;
+        }
+        Socket socket = borrowConnection();
+        int count;
+        try {
+            ProtocolCodec codec = codec(socket);
+            codec.partitions(topic);
+            codec.flush();
+            count = codec.readPartitions();
+        } catch (Exception e) {
+            invalidateConnection(socket);
+            throw e;
+        }
+        returnConnection(socket);
+        partitionCounts.put(topic, count);
+        log.info("Topic [{}] has {} partition(s)", topic, count);
+        return count;
+    }
+
     /**
      * Returns a socket connection to the pool.
      * @param socket The socket to return.
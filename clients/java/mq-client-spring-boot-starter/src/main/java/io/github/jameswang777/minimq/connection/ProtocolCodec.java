@@ -0,0 +1,85 @@
+package io.github.jameswang777.minimq.connection;
+
+import io.github.jameswang777.minimq.model.Message;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Writes commands to and reads responses from one broker connection in the protocol the connection
+ * was opened with, see {@link ConnectionManager#codec(java.net.Socket)}.
+ * <p>
+ * Commands are buffered until {@link #flush()}. Writing and reading may happen on different threads,
+ * but each of them on one thread at a time.
+ */
+public interface ProtocolCodec {
+
+    void produce(Message message) throws IOException;
+
+    void produceAt(Message message, long epochMillis) throws IOException;
+
+    void produceDelayed(Message message, long delayMs) throws IOException;
+
+    void produceBatch(List<Message> messages) throws IOException;
+
+    /**
+     * Requests a single message, which the broker may hold back for up to {@code maxWaitMs}.
+     */
+    void consume(String topic, long maxWaitMs) throws IOException;
+
+    void ack(List<String> messageIds) throws IOException;
+
+    void ackTimeout(long ackTimeoutMs) throws IOException;
+
+    /**
+     * Makes the following consume, subscribe and ack commands act for the given consumer group, null for none.
+     */
+    void group(String group) throws IOException;
+
+    void subscribe(String topic) throws IOException;
+
+    void credit(long credit) throws IOException;
+
+    /**
+     * Asks for the number of partitions of a topic, see {@link #readPartitions()}.
+     */
+    void partitions(String topic) throws IOException;
+
+    void flush() throws IOException;
+
+    /**
+     * Reads the response to a produce command in the form of the text protocol: the message IDs separated
+     * by {@code ','}, or {@code ERROR:<code>:[<retryAfterMs>:]<description>}.
+     *
+     * @return The response, or null if the broker closed the connection.
+     */
+    String readReply() throws IOException;
+
+    /**
+     * Reads the response to a {@link #consume} request.
+     *
+     * @return The message, or an empty list if none arrived in time; null if the broker closed the connection.
+     */
+    List<Message> readConsumed() throws IOException;
+
+    /**
+     * Reads the response to a {@link #partitions} request.
+     *
+     * @return The number of partitions of the topic, 1 if it is not partitioned.
+     * @throws IOException if the broker closed the connection or answered with something else.
+     */
+    int readPartitions() throws IOException;
+
+    /**
+     * Reads the next messages pushed to a subscriber, skipping anything else.
+     *
+     * @return The messages, or null if the broker closed the connection. An empty list stands for one message
+     *         the broker could not push in this protocol, which still used up one credit.
+     */
+    List<Message> readPushed() throws IOException;
+
+    /**
+     * @return true if more input was received and can be read without blocking.
+     */
+    boolean hasBufferedInput() throws IOException;
+}
@@ -0,0 +1,168 @@
+package io.github.jameswang777.minimq.connection;
+
+import io.github.jameswang777.minimq.model.Message;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The line-based text protocol (v1.1). A message is sent as {@code Message.toString()}, so its content
+ * must not contain line breaks or {@code ":::"}.
+ */
+@Slf4j
+class TextProtocolCodec implements ProtocolCodec {
+
+    private static final String NO_MESSAGE_RESPONSE = "NO_MSG";
+    private static final String PUSHED_MESSAGE_PREFIX = "MSG:";
+    private static final String PARTITIONS_RESPONSE_PREFIX = "PARTITIONS:";
+    // Broker 在文本协议无法承载的消息的位置发送 ERROR:415:<id>:<description>
+    private static final String UNSUPPORTED_MESSAGE_PREFIX = "ERROR:415:";
+
+    private final Writer out;
+    private final BufferedReader in;
+
+    TextProtocolCodec(Socket socket) throws IOException {
+        this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void produce(Message message) throws IOException {
+        writeLine("PRODUCE:" + message);
+    }
+
+    @Override
+    public void produceAt(Message message, long epochMillis) throws IOException {
+        writeLine("PRODUCE_AT:" + epochMillis + ":" + message);
+    }
+
+    @Override
+    public void produceDelayed(Message message, long delayMs) throws IOException {
+        writeLine("PRODUCE_DELAYED:" + delayMs + ":" + message);
+    }
+
+    @Override
+    public void produceBatch(List<Message> messages) throws IOException {
+        writeLine("PRODUCE_BATCH:" + messages.size());
+        for (Message message : messages) {
+            writeLine(message.toString());
+        }
+    }
+
+    @Override
+    public void consume(String topic, long maxWaitMs) throws IOException {
+        writeLine("CONSUME:" + topic + ":" + maxWaitMs);
+    }
+
+    @Override
+    public void ack(List<String> messageIds) throws IOException {
+        writeLine("ACK:" + String.join(",", messageIds));
+    }
+
+    @Override
+    public void ackTimeout(long ackTimeoutMs) throws IOException {
+        writeLine("ACK_TIMEOUT:" + ackTimeoutMs);
+    }
+
+    @Override
+    public void group(String group) throws IOException {
+        writeLine("GROUP:" + (group == null ? "" : group));
+    }
+
+    @Override
+    public void subscribe(String topic) throws IOException {
+        writeLine("SUBSCRIBE:" + topic);
+    }
+
+    @Override
+    public void credit(long credit) throws IOException {
+        writeLine("CREDIT:" + credit);
+    }
+
+    @Override
+    public void partitions(String topic) throws IOException {
+        writeLine("PARTITIONS:" + topic);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public String readReply() throws IOException {
+        return in.readLine();
+    }
+
+    @Override
+    public List<Message> readConsumed() throws IOException {
+        String line = in.readLine();
+        if (line == null) {
+            return null;
+        }
+        if (NO_MESSAGE_RESPONSE.equals(line)) {
+            return Collections.emptyList();
+        }
+        Message message = Message.fromString(line);
+        if (message == null) {
+            log.warn("Received malformed message: {}", line);
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(message);
+    }
+
+    @Override
+    public int readPartitions() throws IOException {
+        String line = in.readLine();
+        if (line == null || !line.startsWith(PARTITIONS_RESPONSE_PREFIX)) {
+            throw new IOException("Unexpected response to PARTITIONS from broker: " + line);
+        }
+        try {
+            return Integer.parseInt(line.substring(PARTITIONS_RESPONSE_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed response to PARTITIONS from broker: " + line, e);
+        }
+    }
+
+    @Override
+    public List<Message> readPushed() throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith(UNSUPPORTED_MESSAGE_PREFIX)) {
+                // 这一行代替了一条推送的消息，同样用掉一条额度；不确认它，超时后它会被重新投递，可能交给二进制协议的消费者
+                log.warn("Broker could not push a message over the text protocol: {}", line);
+                return Collections.emptyList();
+            }
+            if (!line.startsWith(PUSHED_MESSAGE_PREFIX)) {
+                log.warn("Unexpected line from broker on subscription: {}", line);
+                continue;
+            }
+            Message message = Message.fromString(line.substring(PUSHED_MESSAGE_PREFIX.length()));
+            if (message == null) {
+                log.warn("Received malformed message: {}", line);
+                continue;
+            }
+            return Collections.singletonList(message);
+        }
+        return null;
+    }
+
+    @Override
+    public boolean hasBufferedInput() throws IOException {
+        return in.ready();
+    }
+
+    private void writeLine(String line) throws IOException {
+        out.write(line);
+        out.write('\n');
+    }
+}
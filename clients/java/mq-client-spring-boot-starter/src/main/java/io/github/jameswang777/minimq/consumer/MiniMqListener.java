@@ -18,4 +18,18 @@ public @interface MiniMqListener {
      * If not specified, a default one will be generated.
      */
     String id() default "";
+
+    /**
+     * The consumer group of this listener. Every group receives every message of the topic, listeners of
+     * the same group share them. A new group starts with the messages produced after it first consumed.
+     * If not specified, the listener shares the messages with the other listeners without a group.
+     */
+    String group() default "";
+
+    /**
+     * Whether the topic is partitioned. The listener then consumes the partitions assigned to this application
+     * instance, see {@code minimq.consumer.instance-index}, each on its own thread, so the messages of one
+     * partition are processed in the order they were produced.
+     */
+    boolean partitioned() default false;
 }
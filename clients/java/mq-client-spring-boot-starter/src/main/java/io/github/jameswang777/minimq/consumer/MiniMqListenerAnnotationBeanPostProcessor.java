@@ -78,7 +78,9 @@ public class MiniMqListenerAnnotationBeanPostProcessor implements BeanPostProces
                     log.info("Found listener on method [{}]. Raw topic: '{}', Resolved topic: '{}'", method.getName(), rawTopic, resolvedTopic);
                 }
 
-                processListenerMethod(bean, method, resolvedTopic);
+                String resolvedGroup = this.beanFactory.resolveEmbeddedValue(annotation.group());
+                processListenerMethod(bean, method, resolvedTopic, StringUtils.hasText(resolvedGroup) ? resolvedGroup : null,
+                        annotation.partitioned());
             }
         }, ReflectionUtils.USER_DECLARED_METHODS);
 
@@ -97,10 +99,11 @@ public class MiniMqListenerAnnotationBeanPostProcessor implements BeanPostProces
         }
     }
 
-    private void processListenerMethod(Object bean, Method method, String resolvedTopic) {
+    private void processListenerMethod(Object bean, Method method, String resolvedTopic, String resolvedGroup, boolean partitioned) {
         validateListenerMethod(method);
 
-        MiniMqListenerContainer container = new MiniMqListenerContainer(connectionManager, objectMapper, bean, method, resolvedTopic);
+        MiniMqListenerContainer container = new MiniMqListenerContainer(connectionManager, objectMapper, bean, method, resolvedTopic,
+                resolvedGroup, partitioned, properties.getConsumer());
         containers.add(container);
         container.start();
     }
@@ -1,18 +1,25 @@
 package io.github.jameswang777.minimq.consumer;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.jameswang777.minimq.config.MiniMqProperties;
 import io.github.jameswang777.minimq.connection.ConnectionManager;
+import io.github.jameswang777.minimq.connection.ProtocolCodec;
 import io.github.jameswang777.minimq.model.Message;
+import io.github.jameswang777.minimq.protocol.Partitions;
 import lombok.extern.slf4j.Slf4j;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.IOException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Parameter;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 @Slf4j
@@ -23,22 +30,61 @@ public class MiniMqListenerContainer {
     private final Object bean;
     private final Method method;
     private final String topic;
+    private final String group;
+    private final boolean partitioned;
+    private final int instanceIndex;
+    private final int instanceCount;
+    private final long pollTimeoutMs;
+    private final int prefetch;
+    private final long ackTimeoutMs;
     private final ExecutorService executorService;
     private final AtomicBoolean running = new AtomicBoolean(false);
+    // 当前用于消费的连接（每个分区一个），停止时关闭它们以唤醒阻塞在读取上的线程
+    private final Set<Socket> currentSockets = ConcurrentHashMap.newKeySet();
 
-    public MiniMqListenerContainer(ConnectionManager connectionManager, ObjectMapper objectMapper, Object bean, Method method, String topic) {
+    public MiniMqListenerContainer(ConnectionManager connectionManager, ObjectMapper objectMapper, Object bean, Method method, String topic,
+                                   MiniMqProperties.Consumer consumerProperties) {
+        this(connectionManager, objectMapper, bean, method, topic, null, consumerProperties);
+    }
+
+    /**
+     * @param group The consumer group to consume as, or null to share the messages with the consumers without a group.
+     */
+    public MiniMqListenerContainer(ConnectionManager connectionManager, ObjectMapper objectMapper, Object bean, Method method, String topic,
+                                   String group, MiniMqProperties.Consumer consumerProperties) {
+        this(connectionManager, objectMapper, bean, method, topic, group, false, consumerProperties);
+    }
+
+    /**
+     * @param partitioned Whether to consume the partitions of the topic assigned to this instance, each on its own thread.
+     */
+    public MiniMqListenerContainer(ConnectionManager connectionManager, ObjectMapper objectMapper, Object bean, Method method, String topic,
+                                   String group, boolean partitioned, MiniMqProperties.Consumer consumerProperties) {
+        if (consumerProperties.getInstanceCount() < 1 || consumerProperties.getInstanceIndex() < 0
+                || consumerProperties.getInstanceIndex() >= consumerProperties.getInstanceCount()) {
+            throw new IllegalArgumentException("Invalid consumer instance " + consumerProperties.getInstanceIndex()
+                    + " of " + consumerProperties.getInstanceCount());
+        }
         this.connectionManager = connectionManager;
         this.objectMapper = objectMapper;
         this.bean = bean;
         this.method = method;
         this.topic = topic;
-        this.executorService = Executors.newSingleThreadExecutor(r -> new Thread(r, "MiniMqListener-" + this.topic));
+        this.group = group;
+        this.partitioned = partitioned;
+        this.instanceIndex = consumerProperties.getInstanceIndex();
+        this.instanceCount = consumerProperties.getInstanceCount();
+        this.pollTimeoutMs = consumerProperties.getPollTimeoutMs();
+        this.prefetch = consumerProperties.getPrefetch();
+        this.ackTimeoutMs = consumerProperties.getAckTimeoutMs();
+        this.executorService = Executors.newCachedThreadPool(r -> new Thread(r, "MiniMqListener-" + this.topic));
     }
 
     public void start() {
         if (running.compareAndSet(false, true)) {
-            log.info("Starting listener for topic [{}] on method [{}]", this.topic, method.getName());
-            executorService.submit(this::runListenerLoop);
+            log.info("Starting listener for topic [{}] on method [{}]{}", this.topic, method.getName(),
+                    group == null ? "" : " in consumer group [" + group + "]");
+            executorService.submit(partitioned ? this::runPartitions : () -> runListenerLoop(this.topic));
         }
     }
 
@@ -46,55 +92,168 @@ public class MiniMqListenerContainer {
         if (running.compareAndSet(true, false)) {
             log.info("Stopping listener for topic [{}]", this.topic);
             executorService.shutdownNow(); // Interrupt the listening thread
+            closeCurrentSockets(); // A blocking read does not react to interrupts
         }
     }
 
-    private void runListenerLoop() {
+    /**
+     * Consumes every partition assigned to this instance on its own thread. Each partition has a single
+     * consumer in the application, so its messages are processed in order unless one times out.
+     */
+    private void runPartitions() {
+        int partitions = lookUpPartitions();
+        if (partitions <= 1) {
+            if (partitions == 1) {
+                runListenerLoop(this.topic); // 主题没有分区，所有实例共同消费它
+            }
+            return;
+        }
+        List<String> assigned = new ArrayList<>();
+        for (int partition = instanceIndex; partition < partitions; partition += instanceCount) {
+            assigned.add(Partitions.topic(this.topic, partition));
+        }
+        if (assigned.isEmpty()) {
+            log.warn("No partition of topic [{}] is assigned to instance {} of {}", this.topic, instanceIndex, instanceCount);
+            return;
+        }
+        log.info("Listener for topic [{}] consumes partitions {}", this.topic, assigned);
+        try {
+            for (String partition : assigned.subList(1, assigned.size())) {
+                executorService.submit(() -> runListenerLoop(partition));
+            }
+        } catch (RejectedExecutionException e) {
+            return; // stop() was called meanwhile
+        }
+        runListenerLoop(assigned.get(0));
+    }
+
+    // 向 Broker 查询分区数，失败时像断线一样稍后重试；停止后返回 -1
+    private int lookUpPartitions() {
+        while (running.get()) {
+            try {
+                return connectionManager.partitionCount(this.topic);
+            } catch (Exception e) {
+                if (!running.get()) {
+                    break;
+                }
+                log.error("Could not look up the partitions of topic [{}]. Retrying in 5 seconds...", this.topic, e);
+                sleepBeforeReconnect();
+            }
+        }
+        return -1;
+    }
+
+    private void runListenerLoop(String topic) {
+        Thread.currentThread().setName("MiniMqListener-" + topic);
         while (running.get()) {
             Socket socket = null;
             try {
                 socket = connectionManager.borrowConnection();
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-                // Main loop for this connection
-                while (running.get() && socket.isConnected()) {
-                    // 1. Send CONSUME request
-                    out.printf("CONSUME:%s%n", this.topic);
-
-                    // 2. Wait for response
-                    String response = in.readLine();
-                    if (response == null) { // Connection closed by broker
-                        break;
-                    }
-
-                    if ("NO_MSG".equals(response)) {
-                        Thread.sleep(1000); // Wait before polling again
-                        continue;
-                    }
+                currentSockets.add(socket);
+                if (!running.get()) {
+                    break; // stop() may have missed this socket
+                }
+                ProtocolCodec codec = connectionManager.codec(socket);
 
-                    // 3. Process the message
-                    processMessage(response, out);
+                // 消费组是连接上的状态，连接用完后会被废弃，不会带到其他使用者
+                if (group != null) {
+                    codec.group(group);
+                }
+                if (ackTimeoutMs > 0) {
+                    codec.ackTimeout(ackTimeoutMs);
+                }
+                if (prefetch > 0) {
+                    receivePushedMessages(socket, codec, topic);
+                } else {
+                    pollMessages(socket, codec, topic);
                 }
             } catch (InterruptedException e) {
-                log.info("Listener for topic [{}] was interrupted. Shutting down.", this.topic);
+                log.info("Listener for topic [{}] was interrupted. Shutting down.", topic);
                 Thread.currentThread().interrupt();
             } catch (Exception e) {
-                log.error("Error in listener loop for topic [{}]. Reconnecting in 5 seconds...", this.topic, e);
+                if (!running.get()) {
+                    break; // The socket was closed by stop()
+                }
+                log.error("Error in listener loop for topic [{}]. Reconnecting in 5 seconds...", topic, e);
                 sleepBeforeReconnect();
             } finally {
                 // Ensure connection is always returned or invalidated
+                if (socket != null) {
+                    currentSockets.remove(socket);
+                }
                 connectionManager.invalidateConnection(socket);
             }
         }
     }
 
-    private void processMessage(String rawMessage, PrintWriter out) {
-        Message message = Message.fromString(rawMessage);
-        if (message == null) {
-            log.warn("Received malformed message: {}", rawMessage);
-            return;
+    private void pollMessages(Socket socket, ProtocolCodec codec, String topic) throws IOException {
+        // Main loop for this connection
+        while (running.get() && socket.isConnected()) {
+            // 1. Send CONSUME request; the broker holds it until a message arrives or the timeout expires
+            codec.consume(topic, pollTimeoutMs);
+            codec.flush();
+
+            // 2. Wait for response
+            List<Message> messages = codec.readConsumed();
+            if (messages == null) { // Connection closed by broker
+                break;
+            }
+
+            if (messages.isEmpty()) {
+                continue; // The broker already waited, poll again right away
+            }
+
+            // 3. Process the message and ACK it
+            String messageId = processMessage(messages.get(0));
+            if (messageId != null) {
+                codec.ack(Collections.singletonList(messageId));
+                codec.flush();
+            }
+        }
+    }
+
+    private void receivePushedMessages(Socket socket, ProtocolCodec codec, String topic) throws IOException {
+        // 订阅后授予 prefetch 条额度，每处理完一半（或暂时没有更多消息时）再补充，
+        // 同时把这期间处理成功的消息合并成一条 ACK 发送
+        int refillThreshold = Math.max(1, prefetch / 2);
+        codec.subscribe(topic);
+        codec.credit(prefetch);
+        codec.flush();
+        int processed = 0;
+        List<String> processedIds = new ArrayList<>();
+        while (running.get() && socket.isConnected()) {
+            List<Message> messages = codec.readPushed();
+            if (messages == null) { // Connection closed by broker
+                break;
+            }
+            if (messages.isEmpty()) {
+                processed++; // 无法读取的消息同样占用了一条额度，需要补回
+            }
+            for (Message message : messages) {
+                String messageId = processMessage(message);
+                if (messageId != null) {
+                    processedIds.add(messageId);
+                }
+                processed++;
+            }
+            if (processed >= refillThreshold || !codec.hasBufferedInput()) {
+                if (!processedIds.isEmpty()) {
+                    codec.ack(processedIds);
+                    processedIds.clear();
+                }
+                codec.credit(processed);
+                codec.flush();
+                processed = 0;
+            }
         }
+    }
+
+    /**
+     * Invokes the listener method with the message.
+     *
+     * @return The ID of the message to acknowledge, or null if it could not be processed.
+     */
+    private String processMessage(Message message) {
         try {
             // 1. 准备参数列表
             Object[] args = prepareArguments(message);
@@ -102,12 +261,13 @@ public class MiniMqListenerContainer {
             // 2. 使用准备好的参数调用用户方法
             method.invoke(bean, args);
 
-            // 3. 发送 ACK
-            out.printf("ACK:%s%n", message.getId());
-            log.trace("Successfully processed and ACKed message [{}]", message.getId());
+            // 3. 由调用方发送 ACK
+            log.trace("Successfully processed message [{}]", message.getId());
+            return message.getId();
         } catch (Exception e) {
             log.error("Error processing message [{}]. It will be re-queued after timeout.", message.getId(), e);
             // No ACK is sent on failure
+            return null;
         }
     }
 
@@ -155,6 +315,16 @@ public class MiniMqListenerContainer {
         return args;
     }
 
+    private void closeCurrentSockets() {
+        for (Socket socket : currentSockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.debug("Failed to close listener socket for topic [{}]", this.topic, e);
+            }
+        }
+    }
+
     private void sleepBeforeReconnect() {
         try {
             Thread.sleep(5000); // Wait 5 seconds before trying to reconnect
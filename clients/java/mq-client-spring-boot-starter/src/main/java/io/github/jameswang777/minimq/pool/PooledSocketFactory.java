@@ -1,13 +1,22 @@
 package io.github.jameswang777.minimq.pool;
 
+import io.github.jameswang777.minimq.model.Compression;
+import io.github.jameswang777.minimq.protocol.BinaryProtocol;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.pool2.BasePooledObjectFactory;
 import org.apache.commons.pool2.PooledObject;
 import org.apache.commons.pool2.impl.DefaultPooledObject;
 
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 /**
  * A factory for creating and managing Socket objects for the connection pool.
@@ -19,11 +28,25 @@ public class PooledSocketFactory extends BasePooledObjectFactory<Socket> {
     private final String host;
     private final int port;
     private final int connectionTimeout;
+    private final boolean binaryProtocol;
+    private final Compression compression;
+    // 每个连接协商出的压缩方式；连接被回收后自动移除
+    private final Map<Socket, Compression> negotiatedCompression = Collections.synchronizedMap(new WeakHashMap<>());
 
     public PooledSocketFactory(String host, int port, int connectionTimeout) {
+        this(host, port, connectionTimeout, false, Compression.NONE);
+    }
+
+    /**
+     * @param binaryProtocol Whether new connections switch to the binary protocol with a handshake.
+     * @param compression    The compression to negotiate on binary connections.
+     */
+    public PooledSocketFactory(String host, int port, int connectionTimeout, boolean binaryProtocol, Compression compression) {
         this.host = host;
         this.port = port;
         this.connectionTimeout = connectionTimeout;
+        this.binaryProtocol = binaryProtocol;
+        this.compression = compression;
     }
 
     /**
@@ -37,9 +60,79 @@ public class PooledSocketFactory extends BasePooledObjectFactory<Socket> {
         socket.setKeepAlive(true); // Important for long-lived connections
         socket.setTcpNoDelay(true); // Often good for request/response protocols
         socket.connect(new InetSocketAddress(host, port), connectionTimeout);
+        if (binaryProtocol) {
+            try {
+                handshake(socket);
+                if (compression != Compression.NONE) {
+                    negotiatedCompression.put(socket, negotiateCompression(socket));
+                }
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
         return socket;
     }
 
+    // 发送握手并等待 Broker 原样返回；只支持文本协议的 Broker 不会回应，在连接超时后失败
+    private void handshake(Socket socket) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(BinaryProtocol.magic());
+        out.flush();
+        byte[] answer = new byte[BinaryProtocol.MAGIC_LENGTH];
+        socket.setSoTimeout(connectionTimeout);
+        try {
+            // 不经过缓冲直接读取，握手之后的字节留给连接的使用者
+            new DataInputStream(socket.getInputStream()).readFully(answer);
+        } catch (SocketTimeoutException e) {
+            throw new IOException("Broker at " + host + ":" + port + " did not answer the binary protocol handshake", e);
+        } finally {
+            socket.setSoTimeout(0);
+        }
+        if (!BinaryProtocol.isMagic(answer, 0)) {
+            throw new IOException("Broker at " + host + ":" + port + " does not support the binary protocol");
+        }
+    }
+
+    /**
+     * @return The compression the broker accepted on a connection created by this factory.
+     */
+    public Compression compressionOf(Socket socket) {
+        return negotiatedCompression.getOrDefault(socket, Compression.NONE);
+    }
+
+    // 请求压缩并等待 Broker 的答复；不认识该请求的 Broker 返回错误，此时不压缩
+    private Compression negotiateCompression(Socket socket) throws IOException {
+        ByteBuffer request = ByteBuffer.allocate(Integer.BYTES + 2);
+        request.putInt(2).put(BinaryProtocol.SET_COMPRESSION).put(compression.id());
+        OutputStream out = socket.getOutputStream();
+        out.write(request.array());
+        out.flush();
+        socket.setSoTimeout(connectionTimeout);
+        try {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            int length = in.readInt();
+            if (length < 1 || length > BinaryProtocol.MAX_FRAME_BYTES) {
+                throw new IOException("Invalid frame length from broker: " + length);
+            }
+            byte[] response = new byte[length];
+            in.readFully(response);
+            Compression accepted = response[0] == BinaryProtocol.COMPRESSION && length == 2
+                    ? Compression.of(response[1])
+                    : Compression.NONE;
+            if (accepted != compression) {
+                log.warn("Broker at {}:{} does not support {} compression; messages are sent uncompressed", host, port, compression);
+            }
+            return accepted;
+        } catch (SocketTimeoutException e) {
+            throw new IOException("Broker at " + host + ":" + port + " did not answer the compression request", e);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Broker at " + host + ":" + port + " accepted an unknown compression", e);
+        } finally {
+            socket.setSoTimeout(0);
+        }
+    }
+
     /**
      * Wraps a Socket instance with a PooledObject. This is required by the factory.
      */
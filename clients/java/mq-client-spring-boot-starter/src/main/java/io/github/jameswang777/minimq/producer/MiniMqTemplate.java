@@ -3,27 +3,47 @@ package io.github.jameswang777.minimq.producer;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.github.jameswang777.minimq.config.MiniMqProperties;
 import io.github.jameswang777.minimq.connection.ConnectionManager;
+import io.github.jameswang777.minimq.connection.ProtocolCodec;
 import io.github.jameswang777.minimq.model.Message;
+import io.github.jameswang777.minimq.protocol.Partitions;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 
-import java.io.PrintWriter;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.IOException;
 import java.net.Socket;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Slf4j
 public class MiniMqTemplate {
 
+    private static final String ID_SEPARATOR = ",";
+    private static final String STORE_FULL_RESPONSE_PREFIX = "ERROR:503:";
+    // 与 Broker 端 PRODUCE_BATCH 的上限一致，更大的批次拆分发送
+    private static final int MAX_BATCH_SIZE = 1000;
+    // 请求-回复中每次 CONSUME 请求 Broker 等待的最长时间
+    private static final long REPLY_POLL_WAIT_MS = 1000;
+
     private final ConnectionManager connectionManager;
     private final ObjectMapper objectMapper;
     private final MiniMqProperties.Producer producerProps;
+    // 异步发送使用的独立连接，第一次发送时才建立
+    private final PipelinedProducer pipelinedProducer;
+    // 没有键的消息轮流发送到各个分区
+    private final AtomicInteger nextPartition = new AtomicInteger();
 
     public MiniMqTemplate(ConnectionManager connectionManager, ObjectMapper objectMapper, MiniMqProperties properties) {
         this.connectionManager = connectionManager;
         this.objectMapper = objectMapper;
         this.producerProps = properties.getProducer();
+        this.pipelinedProducer = new PipelinedProducer(connectionManager, producerProps.getMaxInFlight());
     }
 
     /**
@@ -31,14 +51,7 @@ public class MiniMqTemplate {
      * 它负责将业务对象转换为 Message，然后委托给核心发送方法。
      */
     public String send(String topic, Object payload) {
-        try {
-            String content = objectMapper.writeValueAsString(payload);
-            Message message = new Message(topic, content);
-            return sendProduceCommand(message);
-        } catch (Exception e) {
-            log.error("Failed to serialize payload for topic {}", topic, e);
-            throw new RuntimeException("Payload serialization failed", e);
-        }
+        return sendProduceCommand(toMessage(topic, payload));
     }
 
     /**
@@ -50,34 +63,159 @@ public class MiniMqTemplate {
     }
 
     /**
-     * [私有核心方法] 封装了所有 PRODUCE 命令的发送、重试和连接管理逻辑。
+     * 公共方法 #3: 异步发送一个消息，不等待 Broker 的确认即返回。
+     * 同一连接上可以同时有多个未确认的请求（流水线），Broker 按请求顺序返回响应。
+     *
+     * @return 在消息持久化后以 Message ID 完成的 Future；连接断开或 Broker 拒绝时以异常完成，不会自动重试。
+     */
+    public CompletableFuture<String> sendAsync(String topic, Object payload) {
+        return sendAsync(toMessage(topic, payload));
+    }
+
+    /**
+     * 公共方法 #4: 异步发送一个预先构建好的 Message 对象。
+     */
+    public CompletableFuture<String> sendAsync(Message message) {
+        return pipelinedProducer.send(message);
+    }
+
+    /**
+     * 公共方法 #5: 批量发送多个业务对象到同一个主题，每批只需一次往返。
+     *
+     * @return 与 payloads 顺序一致的 Message ID 列表。
+     */
+    public List<String> sendBatch(String topic, List<?> payloads) {
+        List<Message> messages = new ArrayList<>(payloads.size());
+        for (Object payload : payloads) {
+            messages.add(toMessage(topic, payload));
+        }
+        return sendBatch(messages);
+    }
+
+    /**
+     * 公共方法 #6: 批量发送多个预先构建好的 Message 对象，可以属于不同主题。
+     * 超过单批上限的部分会拆分为多个 PRODUCE_BATCH 命令；失败重试时整批重新发送。
+     *
+     * @return 与 messages 顺序一致的 Message ID 列表。
+     */
+    public List<String> sendBatch(List<Message> messages) {
+        List<String> messageIds = new ArrayList<>(messages.size());
+        for (int from = 0; from < messages.size(); from += MAX_BATCH_SIZE) {
+            List<Message> batch = messages.subList(from, Math.min(from + MAX_BATCH_SIZE, messages.size()));
+            String response = sendWithRetries(codec -> codec.produceBatch(batch), batch.size() + " message(s)");
+            List<String> batchIds = Arrays.asList(response.split(ID_SEPARATOR));
+            if (batchIds.size() != batch.size()) {
+                throw new IllegalStateException("Broker acknowledged " + batchIds.size() + " of " + batch.size() + " messages");
+            }
+            messageIds.addAll(batchIds);
+        }
+        return messageIds;
+    }
+
+    /**
+     * 公共方法 #7: 发送一个延迟消息。消息立即持久化，但在 delay 之后才会投递给消费者。
+     */
+    public String sendDelayed(String topic, Object payload, Duration delay) {
+        Message message = toMessage(topic, payload);
+        long delayMs = Math.max(0, delay.toMillis());
+        return sendWithRetries(codec -> codec.produceDelayed(message, delayMs), "delayed message to topic '" + topic + "'");
+    }
+
+    /**
+     * 公共方法 #8: 发送一个定时消息，在 deliverAt 时刻投递给消费者；时间已过则立即投递。
+     */
+    public String sendAt(String topic, Object payload, Instant deliverAt) {
+        Message message = toMessage(topic, payload);
+        long epochMillis = Math.max(0, deliverAt.toEpochMilli());
+        return sendWithRetries(codec -> codec.produceAt(message, epochMillis), "scheduled message to topic '" + topic + "'");
+    }
+
+    /**
+     * 公共方法 #9: 按键发送到分区主题。键相同的消息进入同一个分区，按发送的顺序存储和投递；
+     * 主题没有分区时与 send(topic, payload) 相同。key 为 null 时轮流发送到各个分区。
+     */
+    public String send(String topic, String key, Object payload) {
+        return sendProduceCommand(toMessage(partitionTopic(topic, key), payload));
+    }
+
+    /**
+     * 公共方法 #10: 按键异步发送到分区主题，见 send(topic, key, payload)。
+     * 同一个模板上异步发送的消息按发送顺序到达 Broker，键相同的消息因此保持顺序。
+     */
+    public CompletableFuture<String> sendAsync(String topic, String key, Object payload) {
+        return sendAsync(toMessage(partitionTopic(topic, key), payload));
+    }
+
+    // 分区数在第一次发送到主题时向 Broker 查询
+    private String partitionTopic(String topic, String key) {
+        int partitions;
+        try {
+            partitions = connectionManager.partitionCount(topic);
+        } catch (Exception e) {
+            throw new RuntimeException("Could not look up the partitions of topic " + topic, e);
+        }
+        if (partitions <= 1) {
+            return topic;
+        }
+        int partition = key != null ? Partitions.partitionFor(key, partitions) : Math.floorMod(nextPartition.getAndIncrement(), partitions);
+        return Partitions.topic(topic, partition);
+    }
+
+    private Message toMessage(String topic, Object payload) {
+        try {
+            String content = objectMapper.writeValueAsString(payload);
+            return new Message(topic, content);
+        } catch (Exception e) {
+            log.error("Failed to serialize payload for topic {}", topic, e);
+            throw new RuntimeException("Payload serialization failed", e);
+        }
+    }
+
+    /**
+     * [私有核心方法] 发送一条 PRODUCE 命令。
      *
      * @param message 要发送的完整 Message 对象。
      * @return Broker 返回的 Message ID。
      */
     private String sendProduceCommand(Message message) {
+        return sendWithRetries(codec -> codec.produce(message), "message to topic '" + message.getTopic() + "'");
+    }
+
+    /**
+     * 封装了命令的发送、重试和连接管理逻辑，命令只有一个响应。
+     *
+     * @param command 写出命令，重试时会再次调用。
+     * @param description 日志中描述发送的内容。
+     * @return Broker 的响应。
+     */
+    private String sendWithRetries(Command command, String description) {
         int attempts = 0;
         Exception lastException = null;
 
         while (attempts < producerProps.getRetries()) {
             attempts++;
             Socket socket = null;
+            long retryDelayMs = producerProps.getRetryDelayMs();
             try {
-                String serializedMessage = message.toString();
-                String command = "PRODUCE:" + serializedMessage + "\n";
-                log.debug("Attempt {} to send command: {}", attempts, command);
+                log.debug("Attempt {} to send {}", attempts, description);
 
                 socket = connectionManager.borrowConnection();
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                ProtocolCodec codec = connectionManager.codec(socket);
 
-                out.print(command);
-                out.flush();
+                command.writeTo(codec);
+                codec.flush();
 
-                String response = in.readLine();
-                if (response != null) {
+                String response = codec.readReply();
+                if (response != null && response.startsWith(STORE_FULL_RESPONSE_PREFIX)) {
+                    // Broker 存储已满，至少等待它建议的时间后再重试
+                    retryDelayMs = Math.max(retryDelayMs, retryAfterMs(response));
+                    throw new IllegalStateException("Broker is applying backpressure: " + response);
+                } else if (response != null && response.startsWith("ERROR:")) {
+                    // Broker 未能持久化消息，视为一次失败并重试
+                    throw new IllegalStateException("Broker rejected the message: " + response);
+                } else if (response != null) {
                     connectionManager.returnConnection(socket);
-                    log.debug("Successfully sent message to topic '{}', received messageId [{}].", message.getTopic(), response);
+                    log.debug("Successfully sent {}, received response [{}].", description, response);
                     return response;
                 } else {
                     // 如果响应格式不正确，也视为一次失败
@@ -85,12 +223,12 @@ public class MiniMqTemplate {
                 }
 
             } catch (Exception e) {
-                log.warn("Failed to send message to topic '{}' on attempt {}.", message.getTopic(), attempts, e);
+                log.warn("Failed to send {} on attempt {}.", description, attempts, e);
                 lastException = e;
                 connectionManager.invalidateConnection(socket);
                 if (attempts < producerProps.getRetries()) {
                     try {
-                        Thread.sleep(producerProps.getRetryDelayMs());
+                        Thread.sleep(retryDelayMs);
                     } catch (InterruptedException ie) {
                         Thread.currentThread().interrupt();
                         throw new RuntimeException("Retry delay was interrupted", ie);
@@ -98,10 +236,28 @@ public class MiniMqTemplate {
                 }
             }
         }
-        log.error("Failed to send message to topic '{}' after {} attempts.", message.getTopic(), producerProps.getRetries());
+        log.error("Failed to send {} after {} attempts.", description, producerProps.getRetries());
         throw new RuntimeException("Failed to send message after all retries", lastException);
     }
 
+    /**
+     * 通过连接的编解码器写出一条命令。
+     */
+    @FunctionalInterface
+    private interface Command {
+        void writeTo(ProtocolCodec codec) throws IOException;
+    }
+
+    // 响应格式为 ERROR:503:<retryAfterMs>:<说明>
+    private static long retryAfterMs(String response) {
+        String[] parts = response.split(":", 4);
+        try {
+            return parts.length > 2 ? Long.parseLong(parts[2]) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     /**
      * 发送一个请求消息，并同步阻塞等待回复。
      *
@@ -124,31 +280,27 @@ public class MiniMqTemplate {
             // 2. 准备请求消息
             String requestContent = objectMapper.writeValueAsString(requestPayload);
             Message requestMessage = new Message(topic, requestContent, correlationId, replyToTopic);
-            String serializedRequest = requestMessage.toString();
-            String produceCommand = "PRODUCE:" + serializedRequest + "\n";
 
             // 3. 建立通信并发送请求
             socket = connectionManager.borrowConnection();
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            ProtocolCodec codec = connectionManager.codec(socket);
 
             log.debug("Sending request with correlationId [{}], replyTo [{}].", correlationId, replyToTopic);
-            out.print(produceCommand);
-            out.flush();
-            in.readLine(); // 读取并忽略 PRODUCE 的 "MessageID" 响应
+            codec.produce(requestMessage);
+            codec.flush();
+            codec.readReply(); // 读取并忽略 PRODUCE 的 "MessageID" 响应
 
             // 4. 循环消费，等待响应
-            String consumeCommand = "CONSUME:" + replyToTopic + "\n";
             long startTime = System.currentTimeMillis();
 
             while (System.currentTimeMillis() - startTime < timeoutMillis) {
-                out.print(consumeCommand);
-                out.flush();
-                String rawResponse = in.readLine();
+                codec.consume(replyToTopic, REPLY_POLL_WAIT_MS);
+                codec.flush();
+                List<Message> consumed = codec.readConsumed();
 
-                if (rawResponse != null && !rawResponse.equals("NO_MSG")) {
-                    log.debug("Received potential reply on [{}]: {}", replyToTopic, rawResponse);
-                    Message responseMessage = Message.fromString(rawResponse); // 使用 Message 的静态 parse 方法
+                if (consumed != null && !consumed.isEmpty()) {
+                    Message responseMessage = consumed.get(0);
+                    log.debug("Received potential reply on [{}]: {}", replyToTopic, responseMessage.getId());
 
                     // 5. 校验 CorrelationID 是否匹配
                     if (correlationId.equals(responseMessage.getCorrelationId())) {
@@ -181,4 +333,12 @@ public class MiniMqTemplate {
             throw new RuntimeException("Request-Reply operation failed", e);
         }
     }
+
+    /**
+     * 关闭异步发送使用的连接，尚未确认的异步发送将以异常完成。
+     */
+    @PreDestroy
+    public void close() {
+        pipelinedProducer.close();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,164 @@
+package io.github.jameswang777.minimq.producer;
+
+import io.github.jameswang777.minimq.connection.ConnectionManager;
+import io.github.jameswang777.minimq.connection.ProtocolCodec;
+import io.github.jameswang777.minimq.model.Message;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends messages over one dedicated connection without waiting for the previous response.
+ * <p>
+ * The broker answers the commands of a connection in order, so every response completes the
+ * oldest outstanding request. At most {@code maxInFlight} requests are outstanding at a time;
+ * further senders wait for a slot. When the connection fails, every outstanding request fails and
+ * the next request opens a new connection.
+ */
+@Slf4j
+class PipelinedProducer implements Closeable {
+
+    private static final String ERROR_RESPONSE_PREFIX = "ERROR:";
+
+    private final ConnectionManager connectionManager;
+    private final Semaphore inFlight;
+    private final ReentrantLock lock = new ReentrantLock();
+    private Pipeline pipeline;
+    private boolean closed;
+
+    PipelinedProducer(ConnectionManager connectionManager, int maxInFlight) {
+        this.connectionManager = connectionManager;
+        this.inFlight = new Semaphore(Math.max(1, maxInFlight));
+    }
+
+    /**
+     * Writes a PRODUCE command for the message and returns without waiting for the broker.
+     *
+     * @return A future of the message ID. It fails if the broker answers with an error or the connection is lost.
+     */
+    CompletableFuture<String> send(Message message) {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<String> response = new CompletableFuture<>();
+        response.whenComplete((id, error) -> inFlight.release());
+        lock.lock();
+        try {
+            if (closed) {
+                response.completeExceptionally(new IllegalStateException("Producer is closed"));
+                return response;
+            }
+            if (pipeline == null || pipeline.failed) {
+                Socket socket = connectionManager.openConnection();
+                pipeline = new Pipeline(socket, connectionManager.codec(socket));
+            }
+            pipeline.write(message, response);
+            // 后面还有发送者在等锁时不刷新，由最后一个发送者把缓冲区中的命令一起写出
+            if (!lock.hasQueuedThreads()) {
+                pipeline.flush();
+            }
+        } catch (IOException e) {
+            log.warn("Failed to send pipelined command.", e);
+            if (pipeline != null) {
+                pipeline.fail(e);
+            }
+            response.completeExceptionally(e);
+        } finally {
+            lock.unlock();
+        }
+        return response;
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            if (pipeline != null) {
+                pipeline.fail(new IOException("Producer closed"));
+                pipeline = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * One connection and the requests still waiting for a response on it.
+     */
+    private static final class Pipeline {
+
+        private final Socket socket;
+        private final ProtocolCodec codec;
+        private final ConcurrentLinkedQueue<CompletableFuture<String>> pending = new ConcurrentLinkedQueue<>();
+        private volatile boolean failed;
+
+        private Pipeline(Socket socket, ProtocolCodec codec) {
+            this.socket = socket;
+            this.codec = codec;
+            Thread reader = new Thread(this::readResponses, "MiniMqProducer-" + socket.getLocalPort());
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        // 调用方持有发送锁，保证命令写出的顺序与 pending 中的顺序一致
+        private void write(Message message, CompletableFuture<String> response) throws IOException {
+            pending.add(response);
+            if (failed) {
+                failPending(new IOException("Connection to broker lost"));
+                return;
+            }
+            codec.produce(message);
+        }
+
+        private void flush() throws IOException {
+            codec.flush();
+        }
+
+        private void readResponses() {
+            try {
+                String reply;
+                while ((reply = codec.readReply()) != null) {
+                    CompletableFuture<String> response = pending.poll();
+                    if (response == null) {
+                        log.warn("Received unexpected response from broker: {}", reply);
+                    } else if (reply.startsWith(ERROR_RESPONSE_PREFIX)) {
+                        response.completeExceptionally(new IllegalStateException("Broker rejected the message: " + reply));
+                    } else {
+                        response.complete(reply);
+                    }
+                }
+                fail(new IOException("Connection closed by broker"));
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void fail(Exception cause) {
+            failed = true;
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // 连接已经不可用，忽略关闭时的错误
+            }
+            failPending(cause);
+        }
+
+        // 写入方在 failed 置位后也会调用，确保没有请求被遗漏
+        private void failPending(Exception cause) {
+            CompletableFuture<String> response;
+            while ((response = pending.poll()) != null) {
+                response.completeExceptionally(cause);
+            }
+        }
+    }
+}
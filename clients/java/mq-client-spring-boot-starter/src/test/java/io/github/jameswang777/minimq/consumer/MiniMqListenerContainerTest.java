@@ -0,0 +1,100 @@
+package io.github.jameswang777.minimq.consumer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.jameswang777.minimq.config.MiniMqProperties;
+import io.github.jameswang777.minimq.connection.ConnectionManager;
+import io.github.jameswang777.minimq.model.Message;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MiniMqListenerContainerTest {
+
+    private static final String TOPIC = "orders";
+
+    private ServerSocket broker;
+    private ConnectionManager connectionManager;
+    private MiniMqListenerContainer container;
+    private final Listener listener = new Listener();
+
+    public static class Listener {
+        final List<String> received = new CopyOnWriteArrayList<>();
+
+        public void onMessage(@Header(MiniMqHeaders.MESSAGE_ID) String messageId) {
+            received.add(messageId);
+        }
+    }
+
+    @BeforeEach
+    void start() throws Exception {
+        broker = new ServerSocket(0);
+        MiniMqProperties properties = new MiniMqProperties();
+        properties.setHost("localhost");
+        properties.setPort(String.valueOf(broker.getLocalPort()));
+        properties.getConsumer().setPrefetch(2);
+        connectionManager = new ConnectionManager(properties);
+        container = new MiniMqListenerContainer(connectionManager, new ObjectMapper(), listener,
+                Listener.class.getMethod("onMessage", String.class), TOPIC, properties.getConsumer());
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        container.stop();
+        connectionManager.close();
+        broker.close();
+    }
+
+    // 读取下一条 CREDIT 命令之前的所有行，返回补充的额度
+    private static long readCredit(BufferedReader in, List<String> commands) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith("CREDIT:")) {
+                return Long.parseLong(line.substring("CREDIT:".length()));
+            }
+            commands.add(line);
+        }
+        throw new IOException("Connection closed before CREDIT");
+    }
+
+    @Test
+    void unsupportedPushedMessageGivesItsCreditBack() throws Exception {
+        container.start();
+        try (Socket connection = broker.accept()) {
+            connection.setSoTimeout(10_000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+            Writer out = new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8);
+            List<String> commands = new CopyOnWriteArrayList<>();
+            assertEquals(2, readCredit(in, commands));
+            assertEquals(List.of("SUBSCRIBE:" + TOPIC), commands);
+            commands.clear();
+
+            Message message = new Message(TOPIC, "hello");
+            message.assignId(1);
+            out.write("MSG:" + message + "\n");
+            out.write("ERROR:415:2:Message fields contain characters the text protocol cannot carry\n");
+            out.flush();
+
+            // 两条推送都用掉了额度，包括无法读取的那一条；只有能读取的消息被处理和确认
+            long credit = readCredit(in, commands);
+            while (credit < 2) {
+                credit += readCredit(in, commands);
+            }
+            assertEquals(2, credit);
+            assertEquals(List.of(message.getId()), listener.received);
+            assertEquals(List.of("ACK:" + message.getId()), commands);
+        }
+    }
+}
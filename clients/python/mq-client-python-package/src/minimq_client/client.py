@@ -52,9 +52,10 @@ class MiniMqProducer:
 class MiniMqConsumer:
     """A client for consuming messages using a decorator-based listener pattern."""
 
-    def __init__(self, host='localhost', port=9999):
+    def __init__(self, host='localhost', port=9999, poll_timeout_ms=30000):
         self.host = host
         self.port = port
+        self.poll_timeout_ms = poll_timeout_ms
         self._listeners = defaultdict(list)
         self._threads = []
         self._running = threading.Event()
@@ -76,7 +77,8 @@ class MiniMqConsumer:
                     with sock.makefile('rwb') as f:
                         print(f"[Listener-{topic}] Connected and listening...")
                         while self._running.is_set():
-                            f.write(f"CONSUME:{topic}\n".encode('utf-8'))
+                            # The broker holds the request until a message arrives or the wait expires
+                            f.write(f"CONSUME:{topic}:{self.poll_timeout_ms}\n".encode('utf-8'))
                             f.flush()
 
                             line = f.readline().decode('utf-8').strip()
@@ -85,8 +87,7 @@ class MiniMqConsumer:
                                 break  # Break inner loop to reconnect
 
                             if line == "NO_MSG":
-                                time.sleep(1)  # Wait before polling again
-                                continue
+                                continue  # The broker already waited, poll again right away
 
                             self._process_message(line, handler, f)
 
@@ -0,0 +1,124 @@
+package io.github.jameswang777.minimq.model;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * How the content of a message is compressed in its binary format.
+ * <p>
+ * A compressed content is {@code [int uncompressed length][compressed UTF-8 bytes]}. It is compressed by the
+ * producing client, stored and forwarded as is, and decompressed by the consuming client.
+ */
+public enum Compression {
+
+    NONE((byte) 0) {
+        @Override
+        public byte[] compress(byte[] content) {
+            return null;
+        }
+
+        @Override
+        public byte[] decompress(ByteBuffer compressed) {
+            throw new UnsupportedOperationException("Content is not compressed");
+        }
+    },
+
+    /**
+     * DEFLATE in the zlib format, as implemented by {@link Deflater} at its fastest level.
+     */
+    DEFLATE((byte) 1) {
+        @Override
+        public byte[] compress(byte[] content) {
+            Deflater deflater = DEFLATER.get();
+            deflater.reset();
+            deflater.setInput(content);
+            deflater.finish();
+            // 输出缓冲区与原文等长，放不下说明压缩没有收益
+            byte[] compressed = new byte[Integer.BYTES + content.length];
+            int length = Integer.BYTES;
+            while (!deflater.finished() && length < compressed.length) {
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            if (!deflater.finished()) {
+                return null;
+            }
+            ByteBuffer.wrap(compressed).putInt(content.length);
+            return Arrays.copyOf(compressed, length);
+        }
+
+        @Override
+        public byte[] decompress(ByteBuffer compressed) {
+            ByteBuffer input = compressed.duplicate();
+            int length = input.getInt();
+            if (length < 0 || length > MAX_CONTENT_BYTES) {
+                throw new IllegalArgumentException("Invalid uncompressed content length " + length);
+            }
+            byte[] content = new byte[length];
+            Inflater inflater = INFLATER.get();
+            inflater.reset();
+            inflater.setInput(input);
+            try {
+                int position = 0;
+                while (!inflater.finished()) {
+                    int inflated = inflater.inflate(content, position, length - position);
+                    if (inflated == 0 && (position == length || inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    position += inflated;
+                }
+                if (!inflater.finished() || position != length) {
+                    throw new IllegalArgumentException("Compressed content is truncated or corrupt");
+                }
+            } catch (DataFormatException e) {
+                throw new IllegalArgumentException("Compressed content is corrupt", e);
+            }
+            return content;
+        }
+    };
+
+    // 解压时按声明的长度分配内存，限制它以免损坏的数据耗尽内存
+    private static final int MAX_CONTENT_BYTES = 256 * 1024 * 1024;
+    // 创建 Deflater/Inflater 需要分配本地内存，每个线程复用一个
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    private final byte id;
+
+    Compression(byte id) {
+        this.id = id;
+    }
+
+    /**
+     * @return The identifier of the algorithm in the binary format.
+     */
+    public byte id() {
+        return id;
+    }
+
+    /**
+     * @throws IllegalArgumentException if no algorithm has the given identifier.
+     */
+    public static Compression of(byte id) {
+        for (Compression compression : values()) {
+            if (compression.id == id) {
+                return compression;
+            }
+        }
+        throw new IllegalArgumentException("Unknown compression " + id);
+    }
+
+    /**
+     * @return The compressed content, or null if compressing does not make it smaller.
+     */
+    public abstract byte[] compress(byte[] content);
+
+    /**
+     * @param compressed The compressed content, which is not consumed.
+     * @return The uncompressed content.
+     * @throws IllegalArgumentException if the content is corrupt.
+     */
+    public abstract byte[] decompress(ByteBuffer compressed);
+}
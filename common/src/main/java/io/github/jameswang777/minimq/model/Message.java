@@ -1,23 +1,49 @@
 package io.github.jameswang777.minimq.model;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.UUID;
 
 @Getter
 public class Message implements Serializable {
     public static final String MESSAGE_SPLITTER = ":::";
-    private final String id;
+    // 数字 ID 最多 19 位十进制数字，即 long 的最大值
+    private static final int MAX_NUMERIC_ID_DIGITS = 19;
+    // Broker 分配的数字 ID，-1 表示消息使用字符串 ID（由客户端生成，或者来自分配数字 ID 之前的 Broker）
+    private long numericId = -1;
+    // 字符串 ID，使用数字 ID 时为 null，避免每条消息都保存一个字符串
+    private String id;
     private final String topic;
-    private final String content;
+    private String content;
+    // 从日志读出的消息，内容在首次使用前只是日志中对应字节的视图，不解码为字符串
+    @Getter(AccessLevel.NONE)
+    private transient ByteBuffer contentView;
+    // 从日志读出的消息的完整二进制格式，二进制协议直接发送它
+    @Getter(AccessLevel.NONE)
+    private transient ByteBuffer binaryView;
+    // 内容的压缩方式；压缩的内容保存在 contentView 中，首次使用时才解压
+    private transient Compression compression = Compression.NONE;
 
     private final String correlationId; // 用于匹配请求和响应
     private final String replyTo;       // 指定响应应该发送到哪个主题
 
     @Setter
-    private long timestamp; // 用于ACK超时检查
+    private long timestamp; // 消息创建时间，作为日志记录的时间戳
+
+    @Setter
+    private long offset = -1; // Broker 持久化后分配的日志偏移量，仅在服务端使用
+
+    @Setter
+    private long deliverAt; // 延迟消息的投递时间（毫秒时间戳），0 表示立即投递；仅在服务端使用，随日志持久化
 
     // 构造器给异步消息使用
     public Message(String topic, String content) {
@@ -36,7 +62,8 @@ public class Message implements Serializable {
 
     // 私有构造器，用于反序列化
     private Message(String id, String topic, String content, String correlationId, String replyTo) {
-        this.id = id;
+        this.numericId = parseNumericId(id);
+        this.id = numericId >= 0 ? null : id;
         this.topic = topic;
         this.content = content;
         this.correlationId = correlationId;
@@ -44,6 +71,67 @@ public class Message implements Serializable {
         this.timestamp = System.currentTimeMillis();
     }
 
+    /**
+     * @return The ID of the message: the decimal form of {@link #getNumericId()} if the broker assigned one.
+     */
+    public String getId() {
+        return numericId >= 0 ? Long.toString(numericId) : id;
+    }
+
+    /**
+     * Replaces the ID the producer chose with one assigned by the broker. Used by the broker when storing the message.
+     */
+    public void assignId(long numericId) {
+        if (numericId < 0) {
+            throw new IllegalArgumentException("Message IDs are not negative: " + numericId);
+        }
+        this.numericId = numericId;
+        this.id = null;
+        this.binaryView = null; // 存储的二进制格式中仍是旧的 ID
+    }
+
+    /**
+     * @return The ID as a number if it is the decimal form of a non-negative long, as the IDs the broker assigns are,
+     *         otherwise -1.
+     */
+    public static long parseNumericId(String id) {
+        if (id == null || id.isEmpty() || id.length() > MAX_NUMERIC_ID_DIGITS || (id.charAt(0) == '0' && id.length() > 1)) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < id.length(); i++) {
+            int digit = id.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    // 直接从缓冲区读取数字形式的 ID 字段，不创建字符串；不是数字 ID 时返回 -1，且不移动 position
+    private static long getNumericIdField(ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.remaining() < Integer.BYTES) {
+            return -1;
+        }
+        int length = buffer.getInt(start);
+        if (length < 1 || length > MAX_NUMERIC_ID_DIGITS || length > buffer.remaining() - Integer.BYTES
+                || (buffer.get(start + Integer.BYTES) == '0' && length > 1)) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            int digit = buffer.get(start + Integer.BYTES + i) - '0';
+            if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        buffer.position(start + Integer.BYTES + length);
+        return value;
+    }
+
     // 从字符串反序列化为Message对象
     public static Message fromString(String str) {
         // 使用 limit -1 来保留末尾的空字符串，以兼容旧格式
@@ -65,13 +153,281 @@ public class Message implements Serializable {
         return new Message(id, topic, content, correlationId, replyTo);
     }
 
+    /**
+     * 序列化为长度前缀的二进制格式，字段顺序与 toString() 相同：
+     * 每个字段为 [int 长度][UTF-8 字节]，长度 -1 表示 null。内容中可以包含换行或 ":::"。
+     * 延迟消息在末尾追加 [long deliverAt]，普通消息的格式保持不变。
+     * 内容压缩时再追加 [byte compression]（此时 deliverAt 总是写出，0 表示立即投递），内容字段为压缩后的字节。
+     */
+    public byte[] toBinary() {
+        if (compression == Compression.NONE) {
+            return toBinary(utf8(getContent()), Compression.NONE);
+        }
+        byte[] compressed = new byte[contentView.remaining()];
+        contentView.duplicate().get(compressed);
+        return toBinary(compressed, compression);
+    }
+
+    /**
+     * Serializes the message with its content compressed by the given algorithm, or uncompressed for
+     * {@link Compression#NONE}. The content stays uncompressed if compressing does not make it smaller.
+     * A compressed content that turns out to be corrupt is replaced with an empty one.
+     */
+    public byte[] toBinary(Compression target) {
+        if (target == compression) {
+            return toBinary();
+        }
+        byte[] contentBytes = utf8(decompressedContent());
+        byte[] compressed = target.compress(contentBytes);
+        return compressed != null ? toBinary(compressed, target) : toBinary(contentBytes, Compression.NONE);
+    }
+
+    private byte[] toBinary(byte[] contentBytes, Compression contentCompression) {
+        byte[] idBytes = utf8(getId());
+        byte[] topicBytes = utf8(topic);
+        byte[] correlationIdBytes = utf8(correlationId);
+        byte[] replyToBytes = utf8(replyTo);
+        boolean compressed = contentCompression != Compression.NONE;
+        ByteBuffer buffer = ByteBuffer.allocate(5 * Integer.BYTES + length(idBytes) + length(topicBytes)
+                + length(contentBytes) + length(correlationIdBytes) + length(replyToBytes)
+                + (deliverAt > 0 || compressed ? Long.BYTES : 0) + (compressed ? 1 : 0));
+        putField(buffer, idBytes);
+        putField(buffer, topicBytes);
+        putField(buffer, contentBytes);
+        putField(buffer, correlationIdBytes);
+        putField(buffer, replyToBytes);
+        if (deliverAt > 0 || compressed) {
+            buffer.putLong(deliverAt);
+        }
+        if (compressed) {
+            buffer.put(contentCompression.id());
+        }
+        return buffer.array();
+    }
+
+    // 从二进制格式反序列化，直接读取 buffer 中的字段，不经过中间字符串
+    public static Message fromBinary(ByteBuffer buffer) {
+        return fromBinary(buffer, false);
+    }
+
+    /**
+     * Deserializes a message in binary format, leaving its content undecoded: the content stays a view
+     * of the given buffer until {@link #getContent()} is called, and {@link #encode} and {@link #toBinaryBuffer()}
+     * return it without copying. A compressed content also stays compressed until then.
+     * The buffer must therefore stay readable, and unchanged, for as long as the message is used.
+     */
+    public static Message viewBinary(ByteBuffer buffer) {
+        return fromBinary(buffer, true);
+    }
+
+    private static Message fromBinary(ByteBuffer buffer, boolean viewContent) {
+        try {
+            ByteBuffer binaryView = viewContent ? buffer.slice() : null;
+            long numericId = getNumericIdField(buffer);
+            String id = numericId >= 0 ? null : getField(buffer);
+            String topic = getField(buffer);
+            int contentPosition = buffer.position();
+            ByteBuffer contentView = getFieldView(buffer);
+            String correlationId = getField(buffer);
+            String replyTo = getField(buffer);
+            if ((numericId < 0 && id == null) || topic == null || contentView == null) {
+                return null;
+            }
+            long deliverAt = buffer.remaining() >= Long.BYTES ? buffer.getLong() : 0;
+            Compression compression = buffer.hasRemaining() ? Compression.of(buffer.get()) : Compression.NONE;
+            String content = null;
+            if (!viewContent) {
+                if (compression == Compression.NONE) {
+                    content = getField(buffer.duplicate().position(contentPosition));
+                    contentView = null;
+                } else {
+                    // 不保留对调用方缓冲区的引用，复制压缩后的内容
+                    byte[] compressed = new byte[contentView.remaining()];
+                    contentView.get(compressed);
+                    contentView = ByteBuffer.wrap(compressed).asReadOnlyBuffer();
+                }
+            }
+            Message message = new Message(id, topic, content, correlationId, replyTo);
+            if (numericId >= 0) {
+                message.numericId = numericId;
+            }
+            message.contentView = contentView;
+            message.binaryView = binaryView;
+            message.compression = compression;
+            message.setDeliverAt(deliverAt);
+            return message;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads only the delivery time of a message in binary format, skipping its fields without decoding them.
+     *
+     * @return The delivery time, or 0 if the message is not delayed or cannot be read.
+     */
+    public static long deliverAtOf(ByteBuffer buffer) {
+        ByteBuffer view = buffer.duplicate();
+        try {
+            for (int field = 0; field < 5; field++) {
+                int length = view.getInt();
+                if (length > 0) {
+                    view.position(view.position() + length);
+                }
+            }
+            return view.remaining() >= Long.BYTES ? view.getLong() : 0;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the content is compressed and corrupt.
+     */
+    public String getContent() {
+        if (content == null && contentView != null) {
+            // 并发调用时可能重复解码，结果相同，无需加锁
+            content = compression == Compression.NONE
+                    ? StandardCharsets.UTF_8.decode(contentView.duplicate()).toString()
+                    : new String(compression.decompress(contentView), StandardCharsets.UTF_8);
+        }
+        return content;
+    }
+
+    // 发给不支持压缩的客户端时由 Broker 解压；无法解压的内容以空字符串代替，避免一条损坏的消息阻塞整个连接
+    private String decompressedContent() {
+        try {
+            return getContent();
+        } catch (IllegalArgumentException e) {
+            return "";
+        }
+    }
+
+    /**
+     * Encodes {@code prefix + toString()} as UTF-8 without copying a content that is still a view of
+     * the buffer the message was read from. A compressed content is decompressed.
+     *
+     * @return The buffers to write in order: the prefix and the fields before the content, the content,
+     *         and the fields after it.
+     */
+    public ByteBuffer[] encode(String prefix) {
+        ByteBuffer head = ByteBuffer.wrap((prefix + getId() + MESSAGE_SPLITTER + topic + MESSAGE_SPLITTER).getBytes(StandardCharsets.UTF_8));
+        ByteBuffer body = content == null && contentView != null && compression == Compression.NONE
+                ? contentView.duplicate()
+                : ByteBuffer.wrap(decompressedContent().getBytes(StandardCharsets.UTF_8));
+        ByteBuffer tail = ByteBuffer.wrap((MESSAGE_SPLITTER + (correlationId == null ? "" : correlationId)
+                + MESSAGE_SPLITTER + (replyTo == null ? "" : replyTo)).getBytes(StandardCharsets.UTF_8));
+        return new ByteBuffer[]{head, body, tail};
+    }
+
+    /**
+     * Messages produced over the binary protocol may contain line breaks or {@code ":::"}, which the
+     * text protocol cannot represent.
+     *
+     * @return Whether {@link #encode} yields a single line that {@link #fromString} splits back into the same fields.
+     */
+    public boolean fitsTextLine() {
+        if (!fitsTextLine(getId()) || !fitsTextLine(topic) || !fitsTextLine(correlationId) || !fitsTextLine(replyTo)) {
+            return false;
+        }
+        if (content == null && contentView != null && compression == Compression.NONE) {
+            // UTF-8 的多字节序列中不会出现 ASCII 字节，可以直接逐字节检查
+            ByteBuffer view = contentView.duplicate();
+            int colons = 0;
+            while (view.hasRemaining()) {
+                byte b = view.get();
+                if (b == '\n' || b == '\r') {
+                    return false;
+                }
+                colons = b == ':' ? colons + 1 : 0;
+                if (colons == MESSAGE_SPLITTER.length()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return fitsTextLine(decompressedContent());
+    }
+
+    private static boolean fitsTextLine(String value) {
+        return value == null || (value.indexOf('\n') < 0 && value.indexOf('\r') < 0 && !value.contains(MESSAGE_SPLITTER));
+    }
+
+    /**
+     * @return The message in binary format, as a view of the buffer it was read from if possible.
+     *         A compressed content stays compressed.
+     */
+    public ByteBuffer toBinaryBuffer() {
+        return binaryView != null ? binaryView.duplicate() : ByteBuffer.wrap(toBinary());
+    }
+
+    private static byte[] utf8(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    private static void putField(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length).put(bytes);
+        }
+    }
+
+    // 返回字段字节的只读视图并跳过该字段，长度 -1 表示 null
+    private static ByteBuffer getFieldView(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new IllegalArgumentException("Field length " + length + " exceeds remaining " + buffer.remaining() + " bytes");
+        }
+        ByteBuffer view = buffer.slice(buffer.position(), length).asReadOnlyBuffer();
+        buffer.position(buffer.position() + length);
+        return view;
+    }
+
+    private static String getField(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new IllegalArgumentException("Field length " + length + " exceeds remaining " + buffer.remaining() + " bytes");
+        }
+        if (buffer.hasArray()) {
+            String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return value;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // 内容视图不能序列化，先解码
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        getContent();
+        out.defaultWriteObject();
+    }
+
+    // 序列化时内容已经解码
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        compression = Compression.NONE;
+    }
+
     @Override
     public String toString() {
         // 升级协议：增加 correlationId 和 replyTo
         // 使用空字符串""表示null，避免传输"null"字符串
-        return id + MESSAGE_SPLITTER +
+        return getId() + MESSAGE_SPLITTER +
                 topic + MESSAGE_SPLITTER +
-                content + MESSAGE_SPLITTER +
+                decompressedContent() + MESSAGE_SPLITTER +
                 (correlationId == null ? "" : correlationId) + MESSAGE_SPLITTER +
                 (replyTo == null ? "" : replyTo);
     }
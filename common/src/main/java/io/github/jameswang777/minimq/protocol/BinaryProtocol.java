@@ -0,0 +1,164 @@
+package io.github.jameswang777.minimq.protocol;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Constants and field encoding of the length-prefixed binary protocol, which a client selects by
+ * sending the {@link #magic() handshake} as the first bytes of a connection. The broker answers with the same
+ * bytes; from then on both sides exchange frames instead of text lines:
+ * <pre>
+ * [int length][byte opcode][body: length - 1 bytes]
+ * </pre>
+ * Integers are big-endian. A string is {@code [int length][UTF-8 bytes]}, with length -1 for null.
+ * A message is in the format of {@code Message.toBinary()}, so messages read from the commit log are
+ * sent as stored, and may contain any bytes, including line breaks and {@code ":::"}.
+ * <p>
+ * Requests and responses correspond to the commands of the text protocol, and responses are sent
+ * in request order. An unknown opcode is answered with {@link #ERROR} 501, so a client can probe
+ * for requests that older brokers do not support.
+ */
+public final class BinaryProtocol {
+
+    /**
+     * The handshake. The first byte is never the first byte of a text command.
+     */
+    private static final byte[] MAGIC = {0, 'M', 'Q', 1};
+
+    public static final int MAGIC_LENGTH = MAGIC.length;
+    public static final int HEADER_LENGTH = Integer.BYTES + 1;
+    // 请求帧的长度上限，超过时 Broker 关闭连接
+    public static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+
+    // 请求
+
+    /** {@code [message]} - answered with {@link #IDS} or {@link #ERROR}. */
+    public static final byte PRODUCE = 0x01;
+    /** {@code [int n] n * ([int length][message])} - answered with {@link #IDS} in message order, or {@link #ERROR}. */
+    public static final byte PRODUCE_BATCH = 0x02;
+    /** {@code [long epochMillis][message]} - answered like {@link #PRODUCE}. */
+    public static final byte PRODUCE_AT = 0x03;
+    /** {@code [long delayMs][message]} - answered like {@link #PRODUCE}. */
+    public static final byte PRODUCE_DELAYED = 0x04;
+    /** {@code [long maxWaitMs][int maxCount][string topic]} - answered with {@link #MESSAGES}, empty once the wait timed out. */
+    public static final byte CONSUME = 0x05;
+    /** {@code [int n] n * [string id]} - no response. */
+    public static final byte ACK = 0x06;
+    /** {@code [string id]} - no response. */
+    public static final byte ACK_UPTO = 0x07;
+    /** {@code [long ackTimeoutMs]} - no response. */
+    public static final byte ACK_TIMEOUT = 0x08;
+    /** {@code [string topic]} - no response; messages are pushed as {@link #PUSH} frames. */
+    public static final byte SUBSCRIBE = 0x09;
+    /** {@code [long credit]} - no response. */
+    public static final byte CREDIT = 0x0A;
+    /**
+     * {@code [byte compression]} - asks the broker to send compressed message content as stored, see
+     * {@code Compression}; answered with {@link #COMPRESSION}. Otherwise the broker decompresses it for the client.
+     */
+    public static final byte SET_COMPRESSION = 0x0B;
+    /** {@code [string group]} - no response; the consumer group of later consumes, subscriptions and ACKs, null for none. */
+    public static final byte SET_GROUP = 0x0C;
+    /** {@code [string topic]} - answered with {@link #PARTITIONS_COUNT}. */
+    public static final byte PARTITIONS = 0x0D;
+    /** {@code [string topic]} - answered with {@link #STATS_RESULT}; the samples of the topic and its partitions, null for all. */
+    public static final byte STATS = 0x0E;
+
+    // 响应
+
+    /** {@code [int n] n * [string id]} */
+    public static final byte IDS = 0x41;
+    /** {@code [int n] n * ([int length][message])} */
+    public static final byte MESSAGES = 0x42;
+    /** Pushed to a subscriber without a request, in the format of {@link #MESSAGES}. */
+    public static final byte PUSH = 0x43;
+    /** {@code [byte compression]} - the compression the broker accepted, none if it does not support the requested one. */
+    public static final byte COMPRESSION = 0x44;
+    /** {@code [int count]} - the number of partitions of the topic, 1 if it is not partitioned. */
+    public static final byte PARTITIONS_COUNT = 0x45;
+    /** {@code [int n] n * [string sample]} - metric samples in the Prometheus text format. */
+    public static final byte STATS_RESULT = 0x46;
+    /** {@code [int code][long retryAfterMs][string description]}, with the codes of the text protocol. */
+    public static final byte ERROR = 0x7F;
+
+    private BinaryProtocol() {
+    }
+
+    public static byte[] magic() {
+        return MAGIC.clone();
+    }
+
+    /**
+     * @return true if the bytes are the handshake of a protocol version this side understands.
+     */
+    public static boolean isMagic(byte[] bytes, int offset) {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (bytes[offset + i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the byte starts a handshake rather than a text command.
+     */
+    public static boolean startsHandshake(byte first) {
+        return first == MAGIC[0];
+    }
+
+    public static int stringLength(byte[] utf8) {
+        return Integer.BYTES + (utf8 == null ? 0 : utf8.length);
+    }
+
+    public static byte[] utf8(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static void putString(ByteBuffer buffer, byte[] utf8) {
+        if (utf8 == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(utf8.length).put(utf8);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the length exceeds the remaining bytes.
+     */
+    public static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new IllegalArgumentException("String length " + length + " exceeds remaining " + buffer.remaining() + " bytes");
+        }
+        String value;
+        if (buffer.hasArray()) {
+            value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    /**
+     * Reads a {@code [int length][bytes]} field as a view of the buffer and skips it.
+     *
+     * @throws BufferUnderflowException if the length exceeds the remaining bytes.
+     */
+    public static ByteBuffer getSlice(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        ByteBuffer slice = buffer.slice(buffer.position(), length);
+        buffer.position(buffer.position() + length);
+        return slice;
+    }
+}
@@ -0,0 +1,54 @@
+package io.github.jameswang777.minimq.protocol;
+
+/**
+ * Naming and key hashing of partitioned topics.
+ * <p>
+ * Partition {@code p} of a topic split into n partitions is stored and consumed as an ordinary topic named
+ * {@code <topic>#<p>}, with its own log, queue and lock on the broker, so producers and consumers of different
+ * partitions do not contend with each other. Messages with the same key are sent to the same partition, and
+ * therefore stored and delivered in the order they were produced.
+ */
+public final class Partitions {
+
+    public static final char SEPARATOR = '#';
+
+    private Partitions() {
+    }
+
+    /**
+     * @return The name of the given partition of the topic.
+     */
+    public static String topic(String topic, int partition) {
+        return topic + SEPARATOR + partition;
+    }
+
+    /**
+     * @return The partition of a topic with {@code partitionCount} partitions that messages with the key are sent to.
+     */
+    public static int partitionFor(String key, int partitionCount) {
+        // String.hashCode 在所有 JVM 上都相同；再混合一次，让只有末尾几个字符不同的键也能均匀分布
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return Math.floorMod(hash, partitionCount);
+    }
+
+    /**
+     * @return The topic the given partition belongs to, or the topic itself if it is not a partition name.
+     */
+    public static String baseTopic(String topic) {
+        int separator = topic.lastIndexOf(SEPARATOR);
+        if (separator <= 0 || separator == topic.length() - 1) {
+            return topic;
+        }
+        for (int i = separator + 1; i < topic.length(); i++) {
+            if (!Character.isDigit(topic.charAt(i))) {
+                return topic;
+            }
+        }
+        return topic.substring(0, separator);
+    }
+}
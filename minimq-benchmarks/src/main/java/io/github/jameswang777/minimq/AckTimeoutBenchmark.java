@@ -0,0 +1,88 @@
+package io.github.jameswang777.minimq;
+
+import io.github.jameswang777.minimq.model.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracking ACK timeouts with a backlog of {@code backlog} delivered messages that are not acknowledged yet.
+ * <p>
+ * Delivering and acknowledging a message should cost the same whatever the backlog; only the scan that
+ * retention runs after deleting log segments visits every unacknowledged message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class AckTimeoutBenchmark {
+
+    private static final String TOPIC = "benchmark";
+    private static final long TICK_MS = 100;
+    // 远大于运行时间，积压的消息在测量期间不会到期
+    private static final long ACK_TIMEOUT_MS = TimeUnit.HOURS.toMillis(1);
+    // 确认后即可复用的消息，避免在测量中创建消息时生成随机 UUID
+    private static final int REUSED_MESSAGES = 1024;
+
+    @Param({"1000", "100000", "1000000"})
+    private int backlog;
+
+    private TimingWheel<Message> ackTimeouts;
+    private UnackedMessages unackedMessages;
+    private final AtomicLong nextId = new AtomicLong();
+    private final Message[] reused = new Message[REUSED_MESSAGES];
+
+    @Setup
+    public void fillBacklog() {
+        ackTimeouts = new TimingWheel<>(TICK_MS, timeout -> {
+        });
+        unackedMessages = new UnackedMessages();
+        String content = Benchmarks.content(128);
+        for (int i = 0; i < backlog; i++) {
+            deliver(new Message(TOPIC, content), nextId.getAndIncrement());
+        }
+        for (int i = 0; i < reused.length; i++) {
+            reused[i] = new Message(TOPIC, content);
+        }
+    }
+
+    /**
+     * Delivers a message and acknowledges it by the ID a consumer sends back, as the broker does.
+     */
+    @Benchmark
+    public TimingWheel.Timeout<Message> deliverAndAcknowledge() {
+        long id = nextId.getAndIncrement();
+        String messageId = deliver(reused[(int) (id % REUSED_MESSAGES)], id).getId();
+        TimingWheel.Timeout<Message> timeout = unackedMessages.remove(messageId);
+        ackTimeouts.cancel(timeout);
+        return timeout;
+    }
+
+    /**
+     * Checks every unacknowledged message against a retention cutoff that none of them is below.
+     */
+    @Benchmark
+    public int evictionScan() {
+        return unackedMessages.removeIf(timeout -> timeout.getItem().getOffset() < 0);
+    }
+
+    private Message deliver(Message message, long id) {
+        message.assignId(id);
+        message.setOffset(id);
+        unackedMessages.put(ackTimeouts.schedule(message, ACK_TIMEOUT_MS));
+        return message;
+    }
+}
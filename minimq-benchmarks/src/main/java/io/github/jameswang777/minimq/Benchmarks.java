@@ -0,0 +1,56 @@
+package io.github.jameswang777.minimq;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Helpers shared by the benchmarks.
+ */
+final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    /**
+     * @return Text of the given length, varied enough that it is not trivially compressible.
+     */
+    static String content(int length) {
+        StringBuilder content = new StringBuilder(length);
+        long seed = 42;
+        while (content.length() < length) {
+            seed = seed * 6364136223846793005L + 1442695040888963407L;
+            content.append((char) ('a' + (int) ((seed >>> 33) % 26)));
+            if ((seed & 7) == 0) {
+                content.append(' ');
+            }
+        }
+        content.setLength(length);
+        return content.toString();
+    }
+
+    /**
+     * @return A new empty directory for the message logs of a benchmark.
+     */
+    static Path createDataDir() {
+        try {
+            return Files.createTempDirectory("minimq-benchmark-");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static void deleteRecursively(Path dir) {
+        if (dir == null || !Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package io.github.jameswang777.minimq;
+
+import io.github.jameswang777.minimq.model.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The broker's produce, consume and acknowledge paths, called directly on an embedded broker without the
+ * network layer. Messages are stored in a temporary directory without fsync, the broker's default.
+ * <p>
+ * Run with {@code -t <threads>} to measure producers and consumers contending for the same topic.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BrokerBenchmark {
+
+    private static final String TOPIC = "benchmark";
+    private static final int BATCH_SIZE = 100;
+
+    @Param({"128", "1024"})
+    private int contentLength;
+
+    private Path dataDir;
+    private BrokerServer broker;
+    private String content;
+
+    @Setup(Level.Trial)
+    public void startBroker() throws Exception {
+        dataDir = Benchmarks.createDataDir();
+        broker = new BrokerServer(dataDir.toFile());
+        content = Benchmarks.content(contentLength);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopBroker() throws Exception {
+        broker.shutdown();
+        Benchmarks.deleteRecursively(dataDir);
+    }
+
+    // 只生产的基准测试会不断积压消息，每轮结束后全部确认，让日志分段可以被回收
+    @TearDown(Level.Iteration)
+    public void drain() {
+        List<Message> messages;
+        while (!(messages = broker.consume(TOPIC, 0, BrokerServer.MAX_CONSUME_BATCH, 0).join()).isEmpty()) {
+            broker.acknowledge(ids(messages));
+        }
+    }
+
+    @Benchmark
+    public void produce() {
+        broker.produce(new Message(TOPIC, content)).join();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void produceBatch() {
+        broker.produce(batch()).join();
+    }
+
+    /**
+     * Produces a message, consumes it and acknowledges it. With several threads a consumer may take
+     * another thread's message, or none.
+     */
+    @Benchmark
+    public void produceConsumeAcknowledge() {
+        broker.produce(new Message(TOPIC, content)).join();
+        List<Message> messages = broker.consume(TOPIC, 0, 1, 0).join();
+        if (!messages.isEmpty()) {
+            broker.acknowledge(messages.get(0).getId());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void produceConsumeAcknowledgeBatch() {
+        broker.produce(batch()).join();
+        List<Message> messages = broker.consume(TOPIC, 0, BATCH_SIZE, 0).join();
+        broker.acknowledge(ids(messages));
+    }
+
+    private List<Message> batch() {
+        List<Message> messages = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            messages.add(new Message(TOPIC, content));
+        }
+        return messages;
+    }
+
+    private static List<String> ids(List<Message> messages) {
+        List<String> ids = new ArrayList<>(messages.size());
+        messages.forEach(message -> ids.add(message.getId()));
+        return ids;
+    }
+}
@@ -0,0 +1,152 @@
+package io.github.jameswang777.minimq;
+
+import io.github.jameswang777.minimq.model.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An embedded broker serving {@code connections} open text protocol connections in each
+ * {@code MINIMQ_CONNECTION_MODE}. The connections are split between the benchmark threads; every operation
+ * sends one request on each of the thread's connections and then reads every response, so all connections
+ * are busy at the same time.
+ * <p>
+ * The broker listens on its usual port 5677, which must be free. Every connection takes a file descriptor on
+ * both ends, and in the thread modes a thread in the broker; raise {@code ulimit -n} for more connections.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ConnectionModeBenchmark {
+
+    private static final String TOPIC = "benchmark";
+    private static final String EMPTY_TOPIC = "benchmark-empty";
+
+    @Param({"nio", "virtual-threads", "platform-threads"})
+    private String connectionMode;
+
+    @Param({"100", "1000"})
+    private int connections;
+
+    private Path dataDir;
+    private BrokerServer broker;
+    private String produceCommand;
+
+    @Setup(Level.Trial)
+    public void startBroker() throws Exception {
+        dataDir = Benchmarks.createDataDir();
+        broker = new BrokerServer(dataDir.toFile());
+        broker.start(connectionMode);
+        produceCommand = "PRODUCE:" + new Message(TOPIC, Benchmarks.content(128));
+    }
+
+    @TearDown(Level.Trial)
+    public void stopBroker() throws Exception {
+        broker.shutdown();
+        Benchmarks.deleteRecursively(dataDir);
+    }
+
+    // 只生产的基准测试会不断积压消息，每轮结束后全部确认，让日志分段可以被回收
+    @TearDown(Level.Iteration)
+    public void drain() {
+        List<Message> messages;
+        while (!(messages = broker.consume(TOPIC, 0, BrokerServer.MAX_CONSUME_BATCH, 0).join()).isEmpty()) {
+            List<String> ids = new ArrayList<>(messages.size());
+            messages.forEach(message -> ids.add(message.getId()));
+            broker.acknowledge(ids);
+        }
+    }
+
+    /**
+     * The connections of one benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Clients {
+
+        private final List<Socket> sockets = new ArrayList<>();
+        private final List<BufferedWriter> writers = new ArrayList<>();
+        private final List<BufferedReader> readers = new ArrayList<>();
+
+        @Setup(Level.Trial)
+        public void connect(ConnectionModeBenchmark benchmark, BenchmarkParams params) throws IOException {
+            int count = Math.max(1, benchmark.connections / params.getThreads());
+            for (int i = 0; i < count; i++) {
+                Socket socket = new Socket("localhost", BrokerServer.PLAIN_PORT);
+                socket.setTcpNoDelay(true);
+                sockets.add(socket);
+                writers.add(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)));
+                readers.add(new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)));
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+
+        // 先在每个连接上发出请求，再依次读取响应
+        int roundTrip(String command) throws IOException {
+            for (BufferedWriter writer : writers) {
+                writer.write(command);
+                writer.write('\n');
+                writer.flush();
+            }
+            int answered = 0;
+            for (BufferedReader reader : readers) {
+                String line = reader.readLine();
+                if (line == null) {
+                    throw new IOException("Broker closed the connection");
+                }
+                answered++;
+            }
+            return answered;
+        }
+    }
+
+    /**
+     * Asks every connection for a message of a topic that has none, so that only the network layer and
+     * the command dispatch are measured.
+     */
+    @Benchmark
+    public int consumeEmpty(Clients clients) throws IOException {
+        return clients.roundTrip("CONSUME:" + EMPTY_TOPIC + ":0");
+    }
+
+    /**
+     * Produces one message on every connection.
+     */
+    @Benchmark
+    public int produce(Clients clients) throws IOException {
+        return clients.roundTrip(produceCommand);
+    }
+}
@@ -0,0 +1,65 @@
+package io.github.jameswang777.minimq;
+
+import io.github.jameswang777.minimq.model.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding a message in the text format of the protocol and in the binary format of the
+ * protocol and the log.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageCodecBenchmark {
+
+    @Param({"64", "1024", "16384"})
+    private int contentLength;
+
+    private Message message;
+    private String text;
+    private byte[] binary;
+
+    @Setup
+    public void setUp() {
+        message = new Message("orders", Benchmarks.content(contentLength), "correlation-1", "replies");
+        message.assignId(1L << 40);
+        text = message.toString();
+        binary = message.toBinary();
+    }
+
+    @Benchmark
+    public String toText() {
+        return message.toString();
+    }
+
+    @Benchmark
+    public Message fromText() {
+        return Message.fromString(text);
+    }
+
+    @Benchmark
+    public byte[] toBinary() {
+        return message.toBinary();
+    }
+
+    @Benchmark
+    public Message fromBinary() {
+        return Message.fromBinary(ByteBuffer.wrap(binary));
+    }
+}
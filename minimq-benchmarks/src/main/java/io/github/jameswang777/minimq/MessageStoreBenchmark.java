@@ -0,0 +1,134 @@
+package io.github.jameswang777.minimq;
+
+import io.github.jameswang777.minimq.model.Message;
+import io.github.jameswang777.minimq.store.LogCheckpoint;
+import io.github.jameswang777.minimq.store.MessageStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Appending to the commit log and recovering from it, on the same segment layout as the broker.
+ */
+@Fork(1)
+public class MessageStoreBenchmark {
+
+    private static final int SEGMENT_BYTES = 64 * 1024 * 1024;
+    private static final int INDEX_INTERVAL_BYTES = 4096;
+    private static final String TOPIC = "benchmark";
+
+    /**
+     * A new, empty store for every iteration, so the log does not grow across the whole run.
+     */
+    @State(Scope.Thread)
+    public static class AppendState {
+
+        @Param({"128", "1024"})
+        private int contentLength;
+
+        private Path dataDir;
+        private MessageStore store;
+        private Message message;
+
+        @Setup(Level.Iteration)
+        public void open() throws IOException {
+            dataDir = Benchmarks.createDataDir();
+            store = new MessageStore(dataDir.toFile(), SEGMENT_BYTES, INDEX_INTERVAL_BYTES);
+            message = new Message(TOPIC, Benchmarks.content(contentLength));
+            message.assignId(1L << 40);
+        }
+
+        @TearDown(Level.Iteration)
+        public void close() throws IOException {
+            store.close();
+            Benchmarks.deleteRecursively(dataDir);
+        }
+    }
+
+    /**
+     * A log of {@code messageCount} unacknowledged messages, reopened and replayed by every invocation.
+     * Without a checkpoint every segment is scanned to find where it ends, as after a crash.
+     */
+    @State(Scope.Thread)
+    public static class RecoveryState {
+
+        @Param({"10000", "100000"})
+        private int messageCount;
+
+        @Param({"true", "false"})
+        private boolean checkpoint;
+
+        private Path dataDir;
+
+        @Setup(Level.Trial)
+        public void write() throws IOException {
+            dataDir = Benchmarks.createDataDir();
+            String content = Benchmarks.content(1024);
+            try (MessageStore store = new MessageStore(dataDir.toFile(), SEGMENT_BYTES, INDEX_INTERVAL_BYTES)) {
+                for (int i = 0; i < messageCount; i++) {
+                    Message message = new Message(TOPIC, content);
+                    message.assignId(i);
+                    store.append(message);
+                }
+            }
+        }
+
+        // 关闭存储时会写检查点，每次恢复前按需要删除
+        @Setup(Level.Invocation)
+        public void removeCheckpoints() throws IOException {
+            if (checkpoint) {
+                return;
+            }
+            try (Stream<Path> paths = Files.walk(dataDir)) {
+                for (Path path : (Iterable<Path>) paths::iterator) {
+                    if (path.getFileName().toString().equals(LogCheckpoint.FILE_NAME)) {
+                        Files.delete(path);
+                    }
+                }
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() {
+            Benchmarks.deleteRecursively(dataDir);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    public int append(AppendState state) throws IOException {
+        return state.store.append(state.message);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3, time = 5)
+    @Measurement(iterations = 5, time = 5)
+    public int recover(RecoveryState state, Blackhole blackhole) throws IOException {
+        try (MessageStore store = new MessageStore(state.dataDir.toFile(), SEGMENT_BYTES, INDEX_INTERVAL_BYTES,
+                Runtime.getRuntime().availableProcessors())) {
+            return store.recover(blackhole::consume);
+        }
+    }
+}
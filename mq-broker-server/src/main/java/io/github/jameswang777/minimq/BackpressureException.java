@@ -0,0 +1,23 @@
+package io.github.jameswang777.minimq;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the broker refuses a message because its storage limit is reached.
+ * The producer should retry after {@link #getRetryAfterMs()}.
+ */
+class BackpressureException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfterMs;
+
+    BackpressureException(String message, long retryAfterMs) {
+        super(message);
+        this.retryAfterMs = retryAfterMs;
+    }
+
+    long getRetryAfterMs() {
+        return retryAfterMs;
+    }
+}
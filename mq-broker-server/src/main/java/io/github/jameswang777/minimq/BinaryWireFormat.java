@@ -0,0 +1,113 @@
+package io.github.jameswang777.minimq;
+
+import io.github.jameswang777.minimq.model.Compression;
+import io.github.jameswang777.minimq.model.Message;
+import io.github.jameswang777.minimq.network.Response;
+import io.github.jameswang777.minimq.protocol.BinaryProtocol;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * The length-prefixed binary protocol. Messages read from the commit log are sent in their stored
+ * binary format, as views of the mapped segment, unless their content is compressed in a way the
+ * client did not accept.
+ */
+class BinaryWireFormat implements WireFormat {
+
+    private final Compression accepted;
+
+    /**
+     * @param accepted The compression the client negotiated; other compressed content is decompressed for it.
+     */
+    BinaryWireFormat(Compression accepted) {
+        this.accepted = accepted;
+    }
+
+    /**
+     * The answer to a compression request.
+     */
+    Response compression() {
+        ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + 2);
+        frame.putInt(2).put(BinaryProtocol.COMPRESSION).put(accepted.id());
+        return new Response().add(frame.flip());
+    }
+
+    @Override
+    public Response ids(List<String> messageIds) {
+        byte[][] ids = new byte[messageIds.size()][];
+        int length = 1 + Integer.BYTES;
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = BinaryProtocol.utf8(messageIds.get(i));
+            length += BinaryProtocol.stringLength(ids[i]);
+        }
+        ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + length);
+        frame.putInt(length).put(BinaryProtocol.IDS).putInt(ids.length);
+        for (byte[] id : ids) {
+            BinaryProtocol.putString(frame, id);
+        }
+        return new Response().add(frame.flip());
+    }
+
+    @Override
+    public Response error(int code, long retryAfterMs, String description) {
+        byte[] text = BinaryProtocol.utf8(description);
+        int length = 1 + Integer.BYTES + Long.BYTES + BinaryProtocol.stringLength(text);
+        ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + length);
+        frame.putInt(length).put(BinaryProtocol.ERROR).putInt(code).putLong(retryAfterMs);
+        BinaryProtocol.putString(frame, text);
+        return new Response().add(frame.flip());
+    }
+
+    @Override
+    public Response partitions(int count) {
+        ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + 1 + Integer.BYTES);
+        frame.putInt(1 + Integer.BYTES).put(BinaryProtocol.PARTITIONS_COUNT).putInt(count);
+        return new Response().add(frame.flip());
+    }
+
+    @Override
+    public Response stats(List<String> samples) {
+        byte[][] lines = new byte[samples.size()][];
+        int length = 1 + Integer.BYTES;
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = BinaryProtocol.utf8(samples.get(i));
+            length += BinaryProtocol.stringLength(lines[i]);
+        }
+        ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + length);
+        frame.putInt(length).put(BinaryProtocol.STATS_RESULT).putInt(lines.length);
+        for (byte[] line : lines) {
+            BinaryProtocol.putString(frame, line);
+        }
+        return new Response().add(frame.flip());
+    }
+
+    @Override
+    public Response messages(List<Message> messages, boolean batch) {
+        return frame(BinaryProtocol.MESSAGES, messages);
+    }
+
+    @Override
+    public Response push(List<Message> messages) {
+        return frame(BinaryProtocol.PUSH, messages);
+    }
+
+    // [int 长度][操作码][int 消息数]，之后每条消息为 [int 长度][二进制格式]
+    private Response frame(byte opcode, List<Message> messages) {
+        ByteBuffer[] parts = new ByteBuffer[1 + 2 * messages.size()];
+        long length = 1 + Integer.BYTES;
+        for (int i = 0; i < messages.size(); i++) {
+            Message message = messages.get(i);
+            Compression compression = message.getCompression();
+            ByteBuffer binary = compression == Compression.NONE || compression == accepted
+                    ? message.toBinaryBuffer()
+                    : ByteBuffer.wrap(message.toBinary(Compression.NONE));
+            parts[1 + 2 * i] = ByteBuffer.allocate(Integer.BYTES).putInt(0, binary.remaining());
+            parts[2 + 2 * i] = binary;
+            length += Integer.BYTES + binary.remaining();
+        }
+        parts[0] = ByteBuffer.allocate(Integer.BYTES + 1 + Integer.BYTES)
+                .putInt((int) length).put(opcode).putInt(messages.size()).flip();
+        return new Response().add(parts);
+    }
+}
@@ -1,45 +1,251 @@
 package io.github.jameswang777.minimq;
 
+import io.github.jameswang777.minimq.metrics.BrokerMetrics;
+import io.github.jameswang777.minimq.metrics.MetricsHttpServer;
+import io.github.jameswang777.minimq.metrics.TopicMetrics;
 import io.github.jameswang777.minimq.model.Message;
+import io.github.jameswang777.minimq.network.BlockingServer;
+import io.github.jameswang777.minimq.network.NetworkServer;
+import io.github.jameswang777.minimq.network.NioServer;
+import io.github.jameswang777.minimq.protocol.Partitions;
+import io.github.jameswang777.minimq.store.FlushPolicy;
+import io.github.jameswang777.minimq.store.GroupCommitService;
+import io.github.jameswang777.minimq.store.MessageStore;
+import io.github.jameswang777.minimq.store.RetentionPolicy;
 import lombok.extern.slf4j.Slf4j;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLServerSocketFactory;
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Slf4j
 public class BrokerServer {
     // --- 1. 修改端口定义 ---
-    private static final int PLAIN_PORT = 5677; // 非加密端口
+    static final int PLAIN_PORT = 5677; // 非加密端口
     private static final int TLS_PORT = 5678;   // 加密端口
 
-    private static final String LOG_FILE_PATH = "data/minimq-broker.log";
-    private static final long ACK_TIMEOUT_MS = 30000; // 30秒超时
+    private static final String DATA_DIR = "data";
+    private static final String LEGACY_LOG_FILE_NAME = "minimq-broker.log";
+    private static final int SEGMENT_BYTES = 64 * 1024 * 1024; // 每个日志分段 64MB
+    private static final int INDEX_INTERVAL_BYTES = 4096; // 每 4KB 记录一条稀疏索引
+    // 未指定 ACK 超时的消费者使用的默认值，可以用环境变量覆盖
+    private static final String ACK_TIMEOUT_ENV = "MINIMQ_ACK_TIMEOUT_MS";
+    private static final long DEFAULT_ACK_TIMEOUT_MS = 30000; // 30秒超时
+    // 消费者可以设置的 ACK 超时范围
+    static final long MIN_ACK_TIMEOUT_MS = 100;
+    static final long MAX_ACK_TIMEOUT_MS = TimeUnit.HOURS.toMillis(24);
+    private static final long TIMER_TICK_MS = 100; // ACK 超时和延迟投递的精度
+    // CONSUME 未指定等待时间时的默认值（与旧版本行为一致），以及允许的最长等待时间
+    static final long DEFAULT_CONSUME_WAIT_MS = 1000;
+    static final long MAX_CONSUME_WAIT_MS = 60000;
+    // 一次 CONSUME 最多返回的消息数
+    static final int MAX_CONSUME_BATCH = 1000;
+    // 一次 PRODUCE_BATCH 最多包含的消息数
+    static final int MAX_PRODUCE_BATCH = 1000;
+    // 刷盘策略：none | interval:<ms> | every-batch
+    private static final String FLUSH_MODE_ENV = "MINIMQ_FLUSH_MODE";
+    private static final long COMPACTION_INTERVAL_SECONDS = 30; // 后台回收已确认分段的周期
+    // 空队列在这么长时间没有生产和消费后，连同主题的指标一起回收
+    private static final long TOPIC_IDLE_MS = TimeUnit.MINUTES.toMillis(5);
+    // 写恢复检查点的周期（秒），重启时只需扫描检查点之后写入的部分
+    private static final String CHECKPOINT_INTERVAL_ENV = "MINIMQ_CHECKPOINT_INTERVAL_SECONDS";
+    private static final long DEFAULT_CHECKPOINT_INTERVAL_SECONDS = 60;
+    // 启动恢复时并行读取分段的线程数，默认为 CPU 核数
+    private static final String RECOVERY_THREADS_ENV = "MINIMQ_RECOVERY_THREADS";
+    // 保留策略：默认策略对所有主题生效，按主题配置的策略会覆盖默认策略
+    private static final String RETENTION_ENV = "MINIMQ_RETENTION";
+    private static final String TOPIC_RETENTION_ENV = "MINIMQ_TOPIC_RETENTION";
+    // 分区主题：<topic>=<分区数>;<topic>=<分区数>，每个分区作为名为 <topic>#<p> 的独立主题存储
+    private static final String TOPIC_PARTITIONS_ENV = "MINIMQ_TOPIC_PARTITIONS";
+    static final int MAX_PARTITIONS = 1024;
+    // 网络层线程数：I/O 线程负责读写 socket，命令线程负责执行命令（等待消息的 CONSUME 不占用线程）
+    private static final String IO_THREADS_ENV = "MINIMQ_IO_THREADS";
+    private static final String WORKER_THREADS_ENV = "MINIMQ_WORKER_THREADS";
+    private static final int DEFAULT_WORKER_THREADS = 64;
+    // 连接处理模式：nio（默认，Selector + 命令线程池）| virtual-threads | platform-threads（每个连接一个线程）
+    private static final String CONNECTION_MODE_ENV = "MINIMQ_CONNECTION_MODE";
+    // 内存中排队消息的上限：所有主题共享的总量（默认为最大堆的四分之一）和单个主题的上限，超出部分只保留在磁盘上
+    private static final String QUEUE_MEMORY_ENV = "MINIMQ_QUEUE_MEMORY";
+    private static final String TOPIC_QUEUE_MEMORY_ENV = "MINIMQ_TOPIC_QUEUE_MEMORY";
+    private static final long DEFAULT_TOPIC_QUEUE_MEMORY = 64L * 1024 * 1024;
+    // 日志占用磁盘的上限，达到后拒绝生产，直到消费者确认的分段被回收（默认不限制）
+    private static final String MAX_STORE_BYTES_ENV = "MINIMQ_MAX_STORE_BYTES";
+    // 存储已满时建议生产者等待的时间
+    static final long STORE_FULL_RETRY_AFTER_MS = 1000;
+    // 消息 ID = 毫秒时间戳 << 20 + 序号：每毫秒可分配约一百万个 ID，重启后仍然递增（只要时钟不回拨）
+    private static final int MESSAGE_ID_SEQUENCE_BITS = 20;
+    // Prometheus 格式的指标通过 HTTP 提供：未设置端口时不启动；默认只监听本机
+    private static final String METRICS_PORT_ENV = "MINIMQ_METRICS_PORT";
+    private static final String METRICS_HOST_ENV = "MINIMQ_METRICS_HOST";
+    private static final String DEFAULT_METRICS_HOST = "127.0.0.1";
 
     // In-memory message queues, keyed by topic
-    private final ConcurrentHashMap<String, BlockingQueue<Message>> messageQueues = new ConcurrentHashMap<>();
-    // Messages sent to consumers but not yet acknowledged, keyed by message ID
-    private final ConcurrentHashMap<String, Message> unackedMessages = new ConcurrentHashMap<>();
-    // Scheduled executor for background tasks like ACK timeout scanning
+    private final ConcurrentHashMap<String, TopicQueue> messageQueues = new ConcurrentHashMap<>();
+    // Serializes producers of the same topic. A ReentrantLock rather than synchronized, so that
+    // virtual threads waiting for it do not pin their carrier thread. Taken with lockTopic.
+    private final ConcurrentHashMap<String, ReentrantLock> topicLocks = new ConcurrentHashMap<>();
+    // Named consumer groups, keyed by group name and then by topic. Each group receives every message of the topic.
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, ConsumerGroup>> consumerGroups = new ConcurrentHashMap<>();
+    // 每个主题的消费组，生产时逐个追加；消费组很少变化，遍历时不加锁
+    private final ConcurrentHashMap<String, List<ConsumerGroup>> topicGroups = new ConcurrentHashMap<>();
+    // Messages sent to consumers but not yet acknowledged, keyed by message ID, with their pending ACK timeout
+    private final UnackedMessages unackedMessages = new UnackedMessages();
+    // 最后分配的消息 ID
+    private final AtomicLong lastMessageId = new AtomicLong();
+    // ACK 超时按到期时间放在时间轮中，确认时直接取消，不需要定期扫描所有未确认消息
+    private final TimingWheel<Message> ackTimeouts = new TimingWheel<>(TIMER_TICK_MS, this::requeueExpired);
+    // 延迟消息按投递时间放在时间轮中，到期后才进入主题队列
+    // 延迟消息只记录日志位置，到期后再从日志读取
+    private final TimingWheel<ScheduledDelivery> scheduledDeliveries = new TimingWheel<>(TIMER_TICK_MS, this::releaseScheduled);
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "minimq-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final long defaultAckTimeoutMs;
+    // Scheduled executor for background tasks like log compaction
     private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    // 长轮询 CONSUME 的超时定时器，与可能耗时较长的后台任务分开
+    private final ScheduledThreadPoolExecutor consumeTimer = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "minimq-consume-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    // --- 2. 新增线程池用于管理两个监听器 ---
-    private final ExecutorService listenerExecutor = Executors.newFixedThreadPool(2);
+    // --- 2. 网络层，同时服务普通端口和加密端口 ---
+    private volatile NetworkServer networkServer;
+    private volatile MetricsHttpServer metricsServer;
+    private final BrokerMetrics metrics = new BrokerMetrics();
+    private ExecutorService commandExecutor;
 
-    public BrokerServer() {
+    // 按主题分段存储的持久化日志
+    private final File dataDir;
+    private final MessageStore messageStore;
+    private final Thread shutdownHook = new Thread(this::shutdownStore, "minimq-store-shutdown");
+    // 合并多个生产者的刷盘请求
+    private final GroupCommitService groupCommit;
+    private final RetentionPolicy defaultRetention;
+    private final Map<String, RetentionPolicy> topicRetention;
+    private final Map<String, Integer> topicPartitions;
+    private final MemoryBudget queueMemory;
+    private final long maxTopicQueueBytes;
+    private final long maxStoreBytes;
+    // 存储已满时只触发一次提前回收
+    private final AtomicBoolean compactionRequested = new AtomicBoolean();
+    // 只被消费组消费、又没有保留策略的主题，每个只警告一次
+    private final Set<String> unreclaimedTopics = ConcurrentHashMap.newKeySet();
+
+    public BrokerServer() throws IOException {
+        this(new File(DATA_DIR));
+    }
+
+    /**
+     * Creates a broker that stores its logs in the given directory, e.g. one embedded in the benchmarks.
+     */
+    BrokerServer(File dataDir) throws IOException {
         log.info("Initializing MiniMQ Broker Server...");
+        this.dataDir = dataDir;
+        long startedAt = System.nanoTime();
+        consumeTimer.setRemoveOnCancelPolicy(true); // 等待者收到消息后取消的定时任务立即移除
+        defaultAckTimeoutMs = clampAckTimeout(intFromEnv(ACK_TIMEOUT_ENV, (int) DEFAULT_ACK_TIMEOUT_MS));
+        defaultRetention = RetentionPolicy.parse(System.getenv(RETENTION_ENV));
+        topicRetention = RetentionPolicy.parseTopicPolicies(System.getenv(TOPIC_RETENTION_ENV));
+        topicPartitions = parseTopicPartitions(System.getenv(TOPIC_PARTITIONS_ENV));
+        if (!topicPartitions.isEmpty()) {
+            log.info("Partitioned topics: {}", topicPartitions);
+        }
+        queueMemory = new MemoryBudget(sizeFromEnv(QUEUE_MEMORY_ENV, Runtime.getRuntime().maxMemory() / 4));
+        maxTopicQueueBytes = sizeFromEnv(TOPIC_QUEUE_MEMORY_ENV, DEFAULT_TOPIC_QUEUE_MEMORY);
+        maxStoreBytes = sizeFromEnv(MAX_STORE_BYTES_ENV, -1);
+        log.info("Queued messages may use {} bytes of memory, {} per topic. Store limit: {}", queueMemory.getLimitBytes(),
+                maxTopicQueueBytes, maxStoreBytes < 0 ? "unlimited" : maxStoreBytes + " bytes");
+        int recoveryThreads = intFromEnv(RECOVERY_THREADS_ENV, Runtime.getRuntime().availableProcessors());
+        messageStore = new MessageStore(dataDir, SEGMENT_BYTES, INDEX_INTERVAL_BYTES, recoveryThreads);
+        groupCommit = new GroupCommitService(messageStore, FlushPolicy.parse(System.getenv(FLUSH_MODE_ENV)));
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
         // 启动时从日志恢复消息
         loadMessagesFromLog();
-        // 启动一个后台线程，用于检查超时的ACK
-        startAckTimeoutScanner();
+        log.info("Message store recovered in {} ms using {} thread(s).",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt), recoveryThreads);
+        // 启动一个后台线程，处理超时的ACK和到期的延迟消息
+        startTimer();
+        // 定期回收所有消息都已确认的日志分段
+        startLogCompactor();
+        // 定期写恢复检查点
+        startCheckpointWriter();
+        registerGauges();
+    }
+
+    private static int intFromEnv(String name, int defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring invalid value [{}] for {}, using {}", value, name, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private static long sizeFromEnv(String name, long defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return RetentionPolicy.parseSize(value.trim().toLowerCase());
+        } catch (IllegalArgumentException e) {
+            log.warn("Ignoring invalid value [{}] for {}, using {}", value, name, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Parses partition counts of the form {@code <topic>=<count>;<topic>=<count>}, e.g. {@code orders=8;clicks=4}.
+     */
+    static Map<String, Integer> parseTopicPartitions(String value) {
+        Map<String, Integer> partitions = new HashMap<>();
+        if (value == null || value.isBlank()) {
+            return partitions;
+        }
+        for (String entry : value.split(";")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            int separator = entry.lastIndexOf('=');
+            int count;
+            try {
+                count = separator > 0 ? Integer.parseInt(entry.substring(separator + 1).trim()) : -1;
+            } catch (NumberFormatException e) {
+                count = -1;
+            }
+            if (count < 1 || count > MAX_PARTITIONS) {
+                throw new IllegalArgumentException("Invalid topic partitions '" + entry.trim()
+                        + "'. Expected <topic>=<count> with a count between 1 and " + MAX_PARTITIONS);
+            }
+            partitions.put(entry.substring(0, separator).trim(), count);
+        }
+        return partitions;
     }
 
     public static void main(String[] args) {
@@ -52,10 +258,19 @@ public class BrokerServer {
 
     // --- 3. 重写 start() 方法以支持双端口 ---
     public void start() throws IOException {
+        start(System.getenv(CONNECTION_MODE_ENV));
+    }
+
+    /**
+     * Starts the broker with the given connection mode instead of the one in {@value #CONNECTION_MODE_ENV},
+     * e.g. to compare the modes on a broker embedded in the benchmarks.
+     */
+    void start(String connectionMode) throws IOException {
+        networkServer = createNetworkServer(connectionMode);
+
         // 启动非加密端口监听器
         try {
-            ServerSocket plainSocket = new ServerSocket(PLAIN_PORT);
-            listenerExecutor.submit(() -> startListenerLoop(plainSocket, "Plain TCP"));
+            networkServer.listen(PLAIN_PORT, null, "Plain TCP");
             log.info("Broker Server is running (Plain TCP) on port {}", PLAIN_PORT);
         } catch (IOException e) {
             log.error("Could not start plain listener on port {}", PLAIN_PORT, e);
@@ -69,9 +284,7 @@ public class BrokerServer {
         if (keyStorePath != null && !keyStorePath.isEmpty() && keyStorePassword != null) {
             try {
                 SSLContext sslContext = createSslContext(keyStorePath, keyStorePassword);
-                SSLServerSocketFactory factory = sslContext.getServerSocketFactory();
-                ServerSocket tlsSocket = factory.createServerSocket(TLS_PORT);
-                listenerExecutor.submit(() -> startListenerLoop(tlsSocket, "TLS Encrypted"));
+                networkServer.listen(TLS_PORT, sslContext, "TLS Encrypted");
                 log.info("Broker Server is running (TLS Encrypted) on port {}", TLS_PORT);
             } catch (Exception e) {
                 // 加密端口启动失败只记录错误，不影响非加密服务的运行
@@ -80,21 +293,71 @@ public class BrokerServer {
         } else {
             log.warn("KEYSTORE_PATH or KEYSTORE_PASSWORD not set. TLS listener will not be started.");
         }
+        // 4. 两个端口共用同一组 I/O 线程
+        networkServer.start();
+        startMetricsServer();
+    }
+
+    // 队列深度等指标在读取时才计算，不增加生产和消费的开销
+    private void registerGauges() {
+        metrics.gauge("minimq_store_bytes", "Bytes of the messages stored in the logs.", messageStore::sizeInBytes);
+        metrics.gauge("minimq_queue_memory_bytes", "Memory used by queued messages of all topics.", queueMemory::getUsedBytes);
+        metrics.topicGauge("minimq_topic_depth", "Messages waiting to be consumed by consumers without a group.", topic -> {
+            TopicQueue queue = messageQueues.get(topic);
+            return queue == null ? 0 : queue.depth();
+        });
+    }
+
+    // 指标端口启动失败只记录错误，不影响消息服务
+    private void startMetricsServer() {
+        int port = intFromEnv(METRICS_PORT_ENV, 0);
+        if (port <= 0) {
+            log.info("{} not set. Metrics are only available through the STATS command.", METRICS_PORT_ENV);
+            return;
+        }
+        String host = System.getenv(METRICS_HOST_ENV);
+        InetSocketAddress address = new InetSocketAddress(host == null || host.isBlank() ? DEFAULT_METRICS_HOST : host.trim(), port);
+        try {
+            metricsServer = new MetricsHttpServer(address, metrics);
+            log.info("Serving Prometheus metrics on http://{}:{}/metrics", address.getHostString(), port);
+        } catch (IOException e) {
+            log.error("Could not start metrics endpoint on {}", address, e);
+        }
+    }
+
+    BrokerMetrics getMetrics() {
+        return metrics;
     }
 
     /**
-     * 4. 统一的监听循环，可以接受普通和SSL的ServerSocket
+     * Creates the network layer for the given connection mode: the selector based {@link NioServer}
+     * by default, or a {@link BlockingServer} running every connection on its own virtual or platform thread.
      */
-    private void startListenerLoop(ServerSocket serverSocket, String type) {
-        while (true) {
-            try {
-                Socket clientSocket = serverSocket.accept();
-                log.info("Accepted new {} client connection from {}", type, clientSocket.getRemoteSocketAddress());
-                new Thread(new ClientHandler(clientSocket, this)).start();
-            } catch (IOException e) {
-                log.error("Error accepting new {} connection", type, e);
-            }
+    private NetworkServer createNetworkServer(String mode) throws IOException {
+        String normalized = mode == null || mode.isBlank() ? "nio" : mode.trim().toLowerCase();
+        switch (normalized) {
+            case "virtual-threads":
+                log.info("Serving every client connection on its own virtual thread.");
+                return new BlockingServer(Thread.ofVirtual().name("minimq-conn-", 0).factory(),
+                        connection -> new ClientHandler(connection, this));
+            case "platform-threads":
+                log.info("Serving every client connection on its own platform thread.");
+                return new BlockingServer(Thread.ofPlatform().name("minimq-conn-", 0).daemon().factory(),
+                        connection -> new ClientHandler(connection, this));
+            case "nio":
+                break;
+            default:
+                log.warn("Unknown connection mode [{}] for {}, using nio", mode, CONNECTION_MODE_ENV);
         }
+        int workerThreads = intFromEnv(WORKER_THREADS_ENV, DEFAULT_WORKER_THREADS);
+        AtomicInteger workerIndex = new AtomicInteger();
+        commandExecutor = Executors.newFixedThreadPool(workerThreads, runnable -> {
+            Thread thread = new Thread(runnable, "minimq-worker-" + workerIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        return new NioServer(intFromEnv(IO_THREADS_ENV, Runtime.getRuntime().availableProcessors()),
+                commandExecutor, connection -> new ClientHandler(connection, this));
     }
 
     /**
@@ -112,111 +375,566 @@ public class BrokerServer {
         return sslContext;
     }
 
-    // 核心方法：生产消息
-    public synchronized void produce(Message message) {
-        log.info("PRODUCE request for topic [{}], message ID [{}]", message.getTopic(), message.getId());
-        // 1. 持久化到日志
-        logMessage(message);
-        // 2. 放入内存队列
-        messageQueues.computeIfAbsent(message.getTopic(), k -> new LinkedBlockingQueue<>()).offer(message);
+    /**
+     * 核心方法：生产消息
+     * <p>
+     * Only producers of the same topic are serialized, so that the queue order matches the log order.
+     * Different topics append to their own logs in parallel.
+     *
+     * @return A future that completes once the message is durable according to the configured flush policy,
+     *         or fails with a {@link BackpressureException} if the store is full.
+     */
+    public CompletableFuture<Void> produce(Message message) {
+        log.debug("PRODUCE request for topic [{}], message ID [{}]", message.getTopic(), message.getId());
+        if (isStoreFull()) {
+            return CompletableFuture.failedFuture(storeFullError());
+        }
+        long startedAt = System.nanoTime();
+        TopicMetrics topicMetrics;
+        // 按主题加锁：同一主题内追加日志和入队的顺序保持一致
+        ReentrantLock topicLock = lockTopic(message.getTopic());
+        try {
+            // 回收空闲主题时也持有主题锁，在锁内取到的队列和指标不会被回收
+            topicMetrics = metrics.topic(message.getTopic());
+            TopicQueue queue = queueFor(message.getTopic());
+            // 1. 持久化到日志
+            if (!logMessage(message, topicMetrics)) {
+                return CompletableFuture.failedFuture(new IOException("Could not persist message " + message.getId()));
+            }
+            // 2. 放入主题队列，有消费者在等待时直接交给它；延迟消息等到投递时间再放入
+            if (!scheduleIfDelayed(message)) {
+                queue.append(message);
+                appendToGroups(message, false);
+            } else {
+                appendToGroups(message, true);
+            }
+        } finally {
+            topicLock.unlock();
+        }
+        // 3. 加入下一次批量刷盘
+        return recordLatency(groupCommit.commit(), startedAt, Collections.singletonList(topicMetrics));
+    }
+
+    private static CompletableFuture<Void> recordLatency(CompletableFuture<Void> commit, long startedAt, List<TopicMetrics> topics) {
+        return commit.whenComplete((ignored, error) -> {
+            if (error == null) {
+                long latency = System.nanoTime() - startedAt;
+                topics.forEach(topicMetrics -> topicMetrics.recordProduceLatency(latency));
+            }
+        });
+    }
+
+    /**
+     * Produces many messages at once. Each topic lock is taken once for all messages of that topic,
+     * and one flush covers the whole batch.
+     * <p>
+     * Messages are persisted in order. If one of them cannot be persisted, the ones before it have
+     * already been accepted; producers retry the whole batch, which at-least-once delivery allows.
+     *
+     * @return A future that completes once every message is durable, or fails if any could not be persisted.
+     *         It fails with a {@link BackpressureException}, without storing any message, if the store is full.
+     */
+    public CompletableFuture<Void> produce(List<Message> messages) {
+        if (isStoreFull()) {
+            return CompletableFuture.failedFuture(storeFullError());
+        }
+        long startedAt = System.nanoTime();
+        Map<String, List<Message>> byTopic = new LinkedHashMap<>();
+        for (Message message : messages) {
+            byTopic.computeIfAbsent(message.getTopic(), k -> new ArrayList<>()).add(message);
+        }
+        List<TopicMetrics> topics = new ArrayList<>(byTopic.size());
+        for (Map.Entry<String, List<Message>> entry : byTopic.entrySet()) {
+            ReentrantLock topicLock = lockTopic(entry.getKey());
+            try {
+                TopicMetrics topicMetrics = metrics.topic(entry.getKey());
+                topics.add(topicMetrics);
+                TopicQueue queue = queueFor(entry.getKey());
+                for (Message message : entry.getValue()) {
+                    if (!logMessage(message, topicMetrics)) {
+                        return CompletableFuture.failedFuture(new IOException("Could not persist message " + message.getId()));
+                    }
+                    if (!scheduleIfDelayed(message)) {
+                        queue.append(message);
+                        appendToGroups(message, false);
+                    } else {
+                        appendToGroups(message, true);
+                    }
+                }
+            } finally {
+                topicLock.unlock();
+            }
+        }
+        log.debug("PRODUCE_BATCH of {} message(s) to {} topic(s)", messages.size(), byTopic.size());
+        return recordLatency(groupCommit.commit(), startedAt, topics);
+    }
+
+    /**
+     * 核心方法：消费消息
+     * <p>
+     * Takes up to {@code maxCount} messages of the topic, waiting up to {@code maxWaitMs} for the first one,
+     * even if nothing was ever produced to the topic yet. No thread is blocked while waiting.
+     * Cancelling the returned future gives up the wait; it then completes with an empty list.
+     *
+     * @param ackTimeoutMs How long the consumer has to acknowledge each message before it is re-queued,
+     *                     or 0 for the broker default.
+     * @return A future completed with the messages, or with an empty list if none arrived in time.
+     */
+    public CompletableFuture<List<Message>> consume(String topic, long maxWaitMs, int maxCount, long ackTimeoutMs) {
+        long timeoutMs = ackTimeoutMs > 0 ? clampAckTimeout(ackTimeoutMs) : defaultAckTimeoutMs;
+        CompletableFuture<List<Message>> consumed;
+        do {
+            // 队列刚被回收时换用新建的队列；先取队列再取指标，回收时先移除指标再移除队列
+            TopicQueue queue = queueFor(topic);
+            TopicMetrics topicMetrics = metrics.topic(topic);
+            consumed = queue.poll(Math.max(1, Math.min(maxCount, MAX_CONSUME_BATCH)), Math.min(maxWaitMs, MAX_CONSUME_WAIT_MS),
+                    message -> markInFlight(message, timeoutMs, topicMetrics));
+        } while (consumed == null);
+        return consumed;
+    }
+
+    /**
+     * Like {@link #consume(String, long, int, long)}, but takes the messages of the topic for a consumer of the
+     * named group. A group that did not exist yet starts with the messages produced from now on.
+     *
+     * @param group The consumer group, or null to consume like the consumers without a group.
+     * @return A future completed with the messages, with an empty list if none arrived in time, or failed if
+     *         the group could not be created.
+     */
+    public CompletableFuture<List<Message>> consume(String topic, String group, long maxWaitMs, int maxCount, long ackTimeoutMs) {
+        if (group == null) {
+            return consume(topic, maxWaitMs, maxCount, ackTimeoutMs);
+        }
+        ConsumerGroup consumerGroup;
+        try {
+            consumerGroup = groupFor(topic, group);
+        } catch (IOException e) {
+            log.error("Could not create consumer group [{}] of topic [{}]", group, topic, e);
+            return CompletableFuture.failedFuture(e);
+        }
+        long timeoutMs = ackTimeoutMs > 0 ? clampAckTimeout(ackTimeoutMs) : defaultAckTimeoutMs;
+        return consumerGroup.poll(Math.max(1, Math.min(maxCount, MAX_CONSUME_BATCH)), Math.min(maxWaitMs, MAX_CONSUME_WAIT_MS), timeoutMs);
+    }
+
+    static long clampAckTimeout(long ackTimeoutMs) {
+        return Math.max(MIN_ACK_TIMEOUT_MS, Math.min(ackTimeoutMs, MAX_ACK_TIMEOUT_MS));
+    }
+
+    private TopicQueue queueFor(String topic) {
+        TopicQueue queue = messageQueues.get(topic);
+        if (queue != null) {
+            return queue;
+        }
+        metrics.topic(topic); // 恢复出来但还没有活动的主题也报告队列深度
+        return messageQueues.computeIfAbsent(topic, k -> new TopicQueue(k, consumeTimer, messageStore, queueMemory, maxTopicQueueBytes));
+    }
+
+    // 回收空闲主题时会移除它的锁；拿到的锁已被移除时重新获取，保证同一主题只有一把锁在使用
+    private ReentrantLock lockTopic(String topic) {
+        while (true) {
+            ReentrantLock topicLock = topicLocks.computeIfAbsent(topic, k -> new ReentrantLock());
+            topicLock.lock();
+            if (topicLocks.get(topic) == topicLock) {
+                return topicLock;
+            }
+            topicLock.unlock();
+        }
+    }
+
+    // 在主题锁内创建消费组，它的起始范围与之后追加给它的消息正好衔接
+    private ConsumerGroup groupFor(String topic, String group) throws IOException {
+        ConcurrentHashMap<String, ConsumerGroup> byTopic = consumerGroups.computeIfAbsent(group, k -> new ConcurrentHashMap<>());
+        ConsumerGroup consumerGroup = byTopic.get(topic);
+        if (consumerGroup != null) {
+            return consumerGroup;
+        }
+        ReentrantLock topicLock = lockTopic(topic);
+        try {
+            consumerGroup = byTopic.get(topic);
+            if (consumerGroup == null) {
+                // 已被保留策略删除的部分不再属于这个消费组
+                long committed = Math.max(messageStore.joinGroup(topic, group), messageStore.startOffset(topic));
+                messageStore.commitGroup(topic, group, committed);
+                consumerGroup = new ConsumerGroup(topic, group, committed, messageStore.endOffset(topic), TIMER_TICK_MS,
+                        consumeTimer, messageStore, queueMemory, metrics.topic(topic));
+                byTopic.put(topic, consumerGroup);
+                topicGroups.computeIfAbsent(topic, k -> new CopyOnWriteArrayList<>()).add(consumerGroup);
+                log.info("Consumer group [{}] of topic [{}] starts at offset {}", group, topic, committed);
+            }
+            return consumerGroup;
+        } finally {
+            topicLock.unlock();
+        }
+    }
+
+    // 调用方持有主题锁，保证每个消费组按日志顺序收到消息
+    private void appendToGroups(Message message, boolean delayed) {
+        List<ConsumerGroup> groups = topicGroups.get(message.getTopic());
+        if (groups == null) {
+            return;
+        }
+        for (ConsumerGroup group : groups) {
+            if (delayed) {
+                group.schedule(message);
+            } else {
+                group.append(message);
+            }
+        }
+    }
+
+    /**
+     * @return The number of partitions the topic is split into, 1 if it is not partitioned. A partitioned topic
+     *         is only produced to and consumed from through its partitions, see {@link Partitions}.
+     */
+    public int partitionCount(String topic) {
+        return topicPartitions.getOrDefault(topic, 1);
     }
 
-    // 核心方法：消费消息
-    public Message consume(String topic) throws InterruptedException {
-        BlockingQueue<Message> queue = messageQueues.get(topic);
-        if (queue == null) {
-            return null; // 或者可以阻塞等待，这里为简化返回null
+    // 放入待确认集合，并在时间轮中登记它的 ACK 超时
+    private void markInFlight(Message message, long ackTimeoutMs, TopicMetrics topicMetrics) {
+        TimingWheel.Timeout<Message> previous = unackedMessages.put(ackTimeouts.schedule(message, ackTimeoutMs));
+        topicMetrics.recordDelivered(message.getTimestamp());
+        if (previous != null) {
+            ackTimeouts.cancel(previous); // 同一ID的消息被重复投递时只跟踪最新的一次
+            topicMetrics.recordForgotten(1);
         }
-        Message message = queue.poll(1, TimeUnit.SECONDS); // Use poll to avoid blocking the handler thread indefinitely
-        // 放入待确认集合
-        if (message != null) {
-            message.setTimestamp(System.currentTimeMillis());
-            unackedMessages.put(message.getId(), message);
-            log.info("CONSUME request: Dispatched message [{}] from topic [{}]", message.getId(), topic);
+        log.debug("CONSUME request: Dispatched message [{}] from topic [{}]", message.getId(), message.getTopic());
+    }
+
+    // 核心方法：确认消息。unackedMessages.remove 是原子的，同一条消息只会被确认一次，无需额外加锁
+    public void acknowledge(String messageId) {
+        TimingWheel.Timeout<Message> timeout = unackedMessages.remove(messageId);
+        if (timeout != null) {
+            ackTimeouts.cancel(timeout);
+            metrics.topic(timeout.getItem().getTopic()).recordAcknowledged(1);
+            // 在持久化日志中追加一条确认记录（tombstone），由后台任务回收已全部确认的分段
+            logAcknowledgement(timeout.getItem());
+            log.debug("ACK received for message [{}]", messageId);
         }
-        return message;
     }
 
-    // 核心方法：确认消息
-    public synchronized void acknowledge(String messageId) {
-        if (unackedMessages.remove(messageId) != null) {
-            // 从持久化日志中移除（简化实现：重写日志文件）
-            removeMessageFromLog(messageId);
-            log.info("ACK received for message [{}]", messageId);
+    /**
+     * Acknowledges messages delivered to consumers of the named group. The group commits the offset
+     * below which it acknowledged everything instead of writing tombstones.
+     *
+     * @param group The consumer group, or null for messages delivered to consumers without a group.
+     */
+    public void acknowledge(String group, Collection<String> messageIds) {
+        if (group == null) {
+            acknowledge(messageIds);
+            return;
+        }
+        Map<String, ConsumerGroup> byTopic = consumerGroups.get(group);
+        if (byTopic != null) {
+            byTopic.values().forEach(consumerGroup -> consumerGroup.acknowledge(messageIds));
         }
     }
 
+    /**
+     * Acknowledges many messages at once. Their tombstones are written with one storage operation
+     * per topic segment instead of one per message.
+     */
+    public void acknowledge(Collection<String> messageIds) {
+        List<Message> messages = new ArrayList<>(messageIds.size());
+        for (String messageId : messageIds) {
+            TimingWheel.Timeout<Message> timeout = unackedMessages.remove(messageId);
+            if (timeout != null) {
+                ackTimeouts.cancel(timeout);
+                messages.add(timeout.getItem());
+                metrics.topic(timeout.getItem().getTopic()).recordAcknowledged(1);
+            }
+        }
+        if (messages.isEmpty()) {
+            return;
+        }
+        try {
+            messageStore.acknowledge(messages);
+        } catch (IOException e) {
+            log.error("Could not record ACK for {} message(s) in log file!", messages.size(), e);
+        }
+        log.debug("Batch ACK received for {} message(s)", messages.size());
+    }
+
     // --- 持久化相关 ---
-    private synchronized void logMessage(Message message) {
-        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(LOG_FILE_PATH, true)))) {
-            out.println(message.toString());
+    private boolean isStoreFull() {
+        return maxStoreBytes >= 0 && messageStore.sizeInBytes() >= maxStoreBytes;
+    }
+
+    // 拒绝生产的同时提前回收已确认的分段，不必等到下一个回收周期
+    private BackpressureException storeFullError() {
+        if (compactionRequested.compareAndSet(false, true)) {
+            log.warn("Message store reached its limit of {} bytes. Rejecting producers until segments are reclaimed.", maxStoreBytes);
+            scheduler.execute(this::compactLog);
+        }
+        return new BackpressureException("Message store is full", STORE_FULL_RETRY_AFTER_MS);
+    }
+
+    private boolean logMessage(Message message, TopicMetrics topicMetrics) {
+        try {
+            // 生产者生成的 ID 换成 Broker 分配的数字 ID，确认时按 long 查找
+            message.assignId(nextMessageId());
+            topicMetrics.recordStored(messageStore.append(message));
+            return true;
         } catch (IOException e) {
             log.error("FATAL: Could not write message [{}] to log file!", message.getId(), e);
+            return false;
         }
     }
 
-    private synchronized void removeMessageFromLog(String messageId) {
-        File inputFile = new File(LOG_FILE_PATH);
-        File tempFile = new File(LOG_FILE_PATH + ".tmp");
+    private long nextMessageId() {
+        long now = System.currentTimeMillis() << MESSAGE_ID_SEQUENCE_BITS;
+        return lastMessageId.updateAndGet(last -> Math.max(last + 1, now));
+    }
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(inputFile));
-             BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // 如果当前行不是要删除的消息，则将其写入临时文件
-                if (!line.startsWith(messageId + ":")) {
-                    writer.write(line + System.lineSeparator());
-                }
+    private void logAcknowledgement(Message message) {
+        try {
+            messageStore.acknowledge(message);
+        } catch (IOException e) {
+            log.error("Could not record ACK for message [{}] in log file!", message.getId(), e);
+        }
+    }
+
+    private void loadMessagesFromLog() throws IOException {
+        File legacyLog = new File(dataDir, LEGACY_LOG_FILE_NAME);
+        try {
+            int imported = messageStore.importLegacyLog(legacyLog);
+            if (imported > 0) {
+                log.info("Imported {} messages from legacy log file {}", imported, legacyLog);
             }
         } catch (IOException e) {
-            log.error("Error while rewriting log file to remove message [{}]", messageId, e);
-            return;
+            log.error("Failed to import legacy log file {}", legacyLog, e);
         }
 
-        // 删除原文件并重命名临时文件
-        if (!inputFile.delete() || !tempFile.renameTo(inputFile)) {
-            log.error("CRITICAL: Failed to replace log file after removing message [{}]", messageId);
+        // 先应用保留策略，避免把已过期的消息加载到内存中
+        messageStore.enforceRetention(this::retentionFor, System.currentTimeMillis());
+        AtomicInteger scheduled = new AtomicInteger();
+        // 解码中的分段与排队的消息共用内存上限，积压较多时不会在恢复期间耗尽堆内存
+        int count = messageStore.recover(message -> {
+            if (scheduleIfDelayed(message)) {
+                scheduled.incrementAndGet();
+            } else {
+                queueFor(message.getTopic()).append(message);
+            }
+        }, queueMemory.getLimitBytes());
+        if (count == 0) {
+            log.info("No stored messages found. Starting with a clean state.");
+        } else {
+            log.info("Successfully loaded {} unacknowledged messages from log, {} of them scheduled for later delivery.", count, scheduled.get());
         }
+        recoverConsumerGroups();
     }
 
-    private void loadMessagesFromLog() {
-        File logFile = new File(LOG_FILE_PATH);
-        if (!logFile.exists()) {
-            log.info("Log file not found. Starting with a clean state.");
-            return;
+    // 消费组从提交位置继续读取日志；读取日志时跳过的延迟消息在这里重新安排投递
+    private void recoverConsumerGroups() throws IOException {
+        for (Map.Entry<String, Map<String, Long>> entry : messageStore.groupOffsets().entrySet()) {
+            String topic = entry.getKey();
+            for (String group : entry.getValue().keySet()) {
+                ConsumerGroup consumerGroup = groupFor(topic, group);
+                messageStore.readDelayed(topic, entry.getValue().get(group), messageStore.endOffset(topic), consumerGroup::schedule);
+            }
+        }
+    }
+
+    // --- 日志回收 ---
+    private void startLogCompactor() {
+        scheduler.scheduleWithFixedDelay(this::compactLog, COMPACTION_INTERVAL_SECONDS, COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        log.info("Log compactor started. Will run every {} seconds. Default retention: [{}], topic overrides: {}",
+                COMPACTION_INTERVAL_SECONDS, defaultRetention, topicRetention);
+    }
+
+    private void compactLog() {
+        compactionRequested.set(false);
+        int deleted = messageStore.compact();
+        if (deleted > 0) {
+            log.info("Log compaction reclaimed {} fully acknowledged segment(s).", deleted);
+        }
+        // 没有组的消费者确认之前，消费组已确认的分段也不会被回收
+        for (String topic : messageStore.topicsHeldForUngroupedConsumers()) {
+            if (retentionFor(topic).isUnlimited() && unreclaimedTopics.add(topic)) {
+                log.warn("Segments of topic [{}] acknowledged by all its consumer groups are kept until consumers without a group "
+                        + "acknowledge them too. If the topic is only consumed by groups, set a retention policy for it in {}.",
+                        topic, TOPIC_RETENTION_ENV);
+            }
         }
+        messageStore.enforceRetention(this::retentionFor, System.currentTimeMillis()).forEach(this::evictBefore);
+        dropIdleTopics();
+    }
 
-        AtomicInteger count = new AtomicInteger(0);
-        try (BufferedReader reader = new BufferedReader(new FileReader(logFile))) {
-            reader.lines().forEach(line -> {
-                Message message = Message.fromString(line);
-                if (message != null) {
-                    messageQueues.computeIfAbsent(message.getTopic(), k -> new LinkedBlockingQueue<>()).offer(message);
-                    count.incrementAndGet();
+    // 回收长时间不用、消息都已确认的主题：移除空队列、指标和锁，关闭并删除日志，例如只被长轮询过的主题和按请求新建的回复主题
+    private void dropIdleTopics() {
+        long idleSince = System.currentTimeMillis() - TOPIC_IDLE_MS;
+        Set<String> topics = new HashSet<>(messageQueues.keySet());
+        topics.addAll(messageStore.topics());
+        int dropped = 0;
+        int deleted = 0;
+        for (String topic : topics) {
+            ReentrantLock topicLock = lockTopic(topic);
+            try {
+                // 还有消息未确认或等待投递时保留队列，超时重投和到期的延迟消息都会回到这里
+                if (topicGroups.containsKey(topic) || !messageStore.isDrained(topic)) {
+                    continue;
                 }
-            });
-            log.info("Successfully loaded {} unacknowledged messages from log file.", count.get());
-        } catch (IOException e) {
-            log.error("Failed to load messages from log file", e);
-        }
-    }
-
-    // --- ACK超时检查 ---
-    private void startAckTimeoutScanner() {
-        scheduler.scheduleAtFixedRate(() -> {
-            log.trace("Running ACK timeout scan...");
-            long now = System.currentTimeMillis();
-            unackedMessages.forEach((messageId, message) -> {
-                if (now - message.getTimestamp() > ACK_TIMEOUT_MS) {
-                    log.warn("Message timeout for ID [{}]. Re-queuing...", messageId);
-                    // 从待确认集合中移除
-                    unackedMessages.remove(messageId);
-                    // 重新放回队列头部，优先处理
-                    messageQueues.computeIfAbsent(message.getTopic(), k -> new LinkedBlockingQueue<>()).offer(message);
+                TopicQueue queue = messageQueues.get(topic);
+                if (queue != null) {
+                    if (!queue.retireIfIdle(idleSince)) {
+                        continue;
+                    }
+                    // 先移除指标再移除队列，在新队列上消费的请求拿到的一定是新的指标
+                    metrics.removeTopic(topic);
+                    messageQueues.remove(topic, queue);
+                    dropped++;
                 }
-            });
-        }, 5, 5, TimeUnit.SECONDS);
-        log.info("ACK timeout scanner started. Will check every 5 seconds.");
+                try {
+                    if (messageStore.deleteIfDrained(topic, idleSince)) {
+                        deleted++;
+                    }
+                } catch (IOException e) {
+                    log.error("Failed to delete the log of idle topic {}", topic, e);
+                }
+                topicLocks.remove(topic, topicLock);
+            } finally {
+                topicLock.unlock();
+            }
+        }
+        if (dropped > 0 || deleted > 0) {
+            log.info("Dropped the queues of {} and deleted the logs of {} idle topic(s).", dropped, deleted);
+        }
+    }
+
+    // 分区使用所属主题的保留策略，除非为这个分区单独配置了策略
+    private RetentionPolicy retentionFor(String topic) {
+        RetentionPolicy policy = topicRetention.get(topic);
+        return policy != null ? policy : topicRetention.getOrDefault(Partitions.baseTopic(topic), defaultRetention);
+    }
+
+    // 日志分段被保留策略删除后，同步移除内存队列和待确认列表中对应的消息
+    private void evictBefore(String topic, long startOffset) {
+        TopicQueue queue = messageQueues.get(topic);
+        int evicted = queue == null ? 0 : queue.evictBefore(startOffset);
+        int forgotten = unackedMessages.removeIf(timeout -> {
+            Message message = timeout.getItem();
+            if (!message.getTopic().equals(topic) || message.getOffset() >= startOffset) {
+                return false;
+            }
+            ackTimeouts.cancel(timeout);
+            return true;
+        });
+        metrics.topic(topic).recordForgotten(forgotten);
+        List<ConsumerGroup> groups = topicGroups.get(topic);
+        if (groups != null) {
+            groups.forEach(group -> group.evictBefore(startOffset));
+        }
+        log.info("Evicted {} expired message(s) of topic [{}] below offset {}.", evicted, topic, startOffset);
+    }
+
+    // --- 恢复检查点 ---
+    private void startCheckpointWriter() {
+        long interval = intFromEnv(CHECKPOINT_INTERVAL_ENV, (int) DEFAULT_CHECKPOINT_INTERVAL_SECONDS);
+        if (interval <= 0) {
+            log.info("Periodic checkpoints are disabled. A checkpoint is still written on shutdown.");
+            return;
+        }
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                messageStore.checkpoint();
+                log.debug("Wrote recovery checkpoint.");
+            } catch (IOException e) {
+                log.error("Failed to write recovery checkpoint", e);
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+        log.info("Checkpoint writer started. Will run every {} seconds.", interval);
+    }
+
+    /**
+     * Stops the background tasks and closes the broker, for brokers that are not stopped with their process.
+     */
+    void shutdown() throws InterruptedException {
+        Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        for (ExecutorService executor : List.of(timer, scheduler, consumeTimer)) {
+            executor.shutdownNow();
+        }
+        // 等待正在运行的回收等任务结束，再关闭存储
+        for (ExecutorService executor : List.of(timer, scheduler, consumeTimer)) {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        shutdownStore();
+    }
+
+    private void shutdownStore() {
+        if (metricsServer != null) {
+            metricsServer.close();
+        }
+        // 先停止接收新命令，再刷盘并关闭存储
+        if (networkServer != null) {
+            try {
+                networkServer.close();
+            } catch (IOException e) {
+                log.warn("Failed to close network server cleanly", e);
+            }
+        }
+        groupCommit.close();
+        try {
+            messageStore.close();
+            log.info("Message store flushed and closed.");
+        } catch (IOException e) {
+            log.error("Failed to close message store cleanly", e);
+        }
+    }
+
+    // --- ACK 超时和延迟投递 ---
+    private void startTimer() {
+        timer.scheduleAtFixedRate(() -> {
+            try {
+                ackTimeouts.advance();
+                scheduledDeliveries.advance();
+                topicGroups.values().forEach(groups -> groups.forEach(ConsumerGroup::advanceTimers));
+            } catch (RuntimeException e) {
+                log.error("Timer processing failed", e); // 不能让异常终止定时任务
+            }
+        }, TIMER_TICK_MS, TIMER_TICK_MS, TimeUnit.MILLISECONDS);
+        log.info("Timer started. Default ACK timeout: {} ms, tick: {} ms.", defaultAckTimeoutMs, TIMER_TICK_MS);
+    }
+
+    // 投递时间未到的消息放入时间轮；返回 false 表示应立即投递
+    private boolean scheduleIfDelayed(Message message) {
+        long delayMs = message.getDeliverAt() - System.currentTimeMillis();
+        if (delayMs <= 0) {
+            return false;
+        }
+        scheduledDeliveries.schedule(new ScheduledDelivery(message), delayMs);
+        log.debug("Message [{}] of topic [{}] scheduled for delivery in {} ms", message.getId(), message.getTopic(), delayMs);
+        return true;
+    }
+
+    private void releaseScheduled(TimingWheel.Timeout<ScheduledDelivery> timeout) {
+        ScheduledDelivery delivery = timeout.getItem();
+        // 超出时间轮范围的延迟会提前到期，再等待剩余的时间
+        long delayMs = delivery.remainingMs();
+        if (delayMs > 0) {
+            scheduledDeliveries.schedule(delivery, delayMs);
+            return;
+        }
+        // 等待期间所在的日志分段可能已被保留策略删除
+        if (delivery.getOffset() < messageStore.startOffset(delivery.getTopic())) {
+            log.info("Dropping scheduled message at offset {} of topic [{}]: it was removed by retention.",
+                    delivery.getOffset(), delivery.getTopic());
+            return;
+        }
+        if (!queueFor(delivery.getTopic()).release(delivery.getOffset())) {
+            log.warn("Dropping scheduled message at offset {} of topic [{}]: it could not be read from the log.",
+                    delivery.getOffset(), delivery.getTopic());
+        }
+    }
+
+    // ACK 可能与超时同时到达，只有仍在待确认集合中的消息才重新入队
+    private void requeueExpired(TimingWheel.Timeout<Message> timeout) {
+        Message message = timeout.getItem();
+        if (unackedMessages.remove(timeout)) {
+            log.warn("Message timeout for ID [{}]. Re-queuing...", message.getId());
+            metrics.topic(message.getTopic()).recordRedelivered();
+            // 重新放回队列，有消费者在等待时直接交给它
+            queueFor(message.getTopic()).offer(message);
+        }
     }
 
 }
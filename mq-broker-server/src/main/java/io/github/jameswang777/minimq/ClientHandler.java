@@ -1,103 +1,634 @@
 package io.github.jameswang777.minimq;
 
+import io.github.jameswang777.minimq.model.Compression;
 import io.github.jameswang777.minimq.model.Message;
+import io.github.jameswang777.minimq.network.CommandHandler;
+import io.github.jameswang777.minimq.network.Connection;
+import io.github.jameswang777.minimq.network.Response;
+import io.github.jameswang777.minimq.protocol.BinaryProtocol;
+import io.github.jameswang777.minimq.protocol.Partitions;
 import lombok.extern.slf4j.Slf4j;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.net.SocketException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Handles all communication with a single connected client in a dedicated thread.
- * It parses commands, interacts with the Broker, and sends responses.
+ * Handles all commands of a single connected client.
+ * It parses commands, interacts with the Broker, and produces the responses.
+ * Socket I/O is done by the network layer, which calls {@link #handle(String)} for every received line,
+ * or {@link #handleFrame(ByteBuffer)} for every frame once the client negotiated the binary protocol.
  */
 @Slf4j
-public class ClientHandler implements Runnable {
+public class ClientHandler implements CommandHandler {
 
     // Protocol command constants
     private static final String PRODUCE_COMMAND = "PRODUCE";
+    private static final String PRODUCE_BATCH_COMMAND = "PRODUCE_BATCH";
+    private static final String PRODUCE_AT_COMMAND = "PRODUCE_AT";
+    private static final String PRODUCE_DELAYED_COMMAND = "PRODUCE_DELAYED";
     private static final String CONSUME_COMMAND = "CONSUME";
     private static final String ACK_COMMAND = "ACK";
-    private static final String NO_MSG_RESPONSE = "NO_MSG";
+    private static final String ACK_UPTO_COMMAND = "ACK_UPTO";
+    private static final String ACK_TIMEOUT_COMMAND = "ACK_TIMEOUT";
+    private static final String SUBSCRIBE_COMMAND = "SUBSCRIBE";
+    private static final String CREDIT_COMMAND = "CREDIT";
+    private static final String GROUP_COMMAND = "GROUP";
+    private static final String PARTITIONS_COMMAND = "PARTITIONS";
+    private static final String STATS_COMMAND = "STATS";
+    private static final String ID_SEPARATOR = ",";
+    // 为累积确认记录的已投递消息数上限，超出时丢弃最早的记录（它们早已超时重投）
+    private static final int MAX_TRACKED_DELIVERIES = 65536;
+    private static final CompletableFuture<Response> NO_RESPONSE = CompletableFuture.completedFuture(null);
 
-    private final Socket clientSocket;
     private final BrokerServer broker;
+    private final Connection connection;
     private final String clientAddress;
+    // 响应的编码方式，收到第一个二进制帧时切换，协商压缩后换成接受压缩内容的二进制格式
+    private volatile WireFormat wireFormat = WireFormat.TEXT;
+    // 每个连接最多订阅一个主题；只在命令线程中按顺序修改
+    private volatile Subscription subscription;
+    // 正在等待消息的 CONSUME，连接关闭时取消，让消息交给其他消费者
+    private final Set<CompletableFuture<List<Message>>> pendingConsumes = ConcurrentHashMap.newKeySet();
+    // 本连接上已投递但尚未确认的消息ID，按投递顺序排列，供 ACK_UPTO 使用
+    private final LinkedHashSet<String> deliveries = new LinkedHashSet<>();
+    private final ReentrantLock deliveriesLock = new ReentrantLock();
+    // 本连接上投递的消息的 ACK 超时，0 表示使用 Broker 的默认值
+    private volatile long ackTimeoutMs;
+    // 之后的 CONSUME、SUBSCRIBE 和 ACK 所属的消费组，null 表示不属于任何消费组
+    private volatile String consumerGroup;
+    // 正在接收的 PRODUCE_BATCH：已读到的消息（格式错误的行为 null）和还需读取的行数；只在命令线程中按顺序访问
+    private List<Message> produceBatch;
+    private int produceBatchRemaining;
 
-    public ClientHandler(Socket socket, BrokerServer broker) {
-        this.clientSocket = socket;
+    public ClientHandler(Connection connection, BrokerServer broker) {
         this.broker = broker;
-        this.clientAddress = socket.getRemoteSocketAddress().toString();
+        this.connection = connection;
+        this.clientAddress = connection.getRemoteAddress();
+        broker.getMetrics().addConnection(connection);
     }
 
     @Override
-    public void run() {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-             PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true)) {
-
-            String inputLine;
-            while ((inputLine = in.readLine()) != null) {
-                log.trace("Received raw command from [{}]: {}", clientAddress, inputLine);
-
-                // 协议改为 COMMAND:<payload>
-                String[] parts = inputLine.split(":", 2);
-                if (parts.length < 2) {
-                    log.warn("Received malformed command from [{}]: {}", clientAddress, inputLine);
-                    continue;
+    public CompletableFuture<Response> handle(String inputLine) {
+        log.trace("Received raw command from [{}]: {}", clientAddress, inputLine);
+
+        if (produceBatch != null) {
+            return collectBatchLine(inputLine);
+        }
+
+        // 协议改为 COMMAND:<payload>
+        String[] parts = inputLine.split(":", 2);
+        if (parts.length < 2) {
+            log.warn("Received malformed command from [{}]: {}", clientAddress, inputLine);
+            return NO_RESPONSE;
+        }
+
+        String command = parts[0];
+        String payload = parts[1];
+
+        switch (command) {
+            case PRODUCE_COMMAND:
+                return produceText(payload, 0);
+
+            case PRODUCE_AT_COMMAND:
+            case PRODUCE_DELAYED_COMMAND:
+                return produceScheduled(command, payload);
+
+            case PRODUCE_BATCH_COMMAND:
+                return startProduceBatch(payload);
+
+            case CONSUME_COMMAND:
+                return consumeText(payload);
+
+            case ACK_COMMAND:
+                acknowledge(Arrays.asList(payload.split(ID_SEPARATOR))); // messageId[,messageId...]
+                return NO_RESPONSE;
+
+            case ACK_UPTO_COMMAND:
+                acknowledgeUpTo(payload); // messageId
+                return NO_RESPONSE;
+
+            case ACK_TIMEOUT_COMMAND:
+                long timeout = parseNumber(payload);
+                if (timeout < 0) {
+                    log.warn("Malformed ACK_TIMEOUT payload from [{}]: {}", clientAddress, payload);
+                } else {
+                    setAckTimeout(timeout);
                 }
+                return NO_RESPONSE;
+
+            case SUBSCRIBE_COMMAND:
+                subscribe(payload);
+                return NO_RESPONSE;
+
+            case GROUP_COMMAND:
+                setConsumerGroup(payload);
+                return NO_RESPONSE;
 
-                String command = parts[0];
-                String payload = parts[1];
-
-                switch (command) {
-                    case PRODUCE_COMMAND:
-                        // PRODUCE 命令的 payload 就是 Message.toString() 的结果
-                        Message messageToProduce = Message.fromString(payload);
-                        if (messageToProduce != null) {
-                            broker.produce(messageToProduce);
-                            // 对于普通PRODUCE，仍然返回ID作为确认
-                            out.println(messageToProduce.getId());
-                        } else {
-                            log.warn("Malformed PRODUCE payload from [{}]: {}", clientAddress, payload);
-                        }
-                        break;
-
-                    case CONSUME_COMMAND:
-                        Message consumedMessage = broker.consume(payload); // topic
-                        if (consumedMessage != null) {
-                            out.println(consumedMessage); // 返回完整的消息字符串
-                        } else {
-                            out.println(NO_MSG_RESPONSE);
-                        }
-                        break;
-
-                    case ACK_COMMAND:
-                        broker.acknowledge(payload); // messageId
-                        break;
-
-                    default:
-                        log.warn("Received unknown command '{}' from [{}]", command, clientAddress);
+            case PARTITIONS_COMMAND:
+                return partitions(payload);
+
+            case STATS_COMMAND:
+                return stats(payload.isEmpty() ? null : payload);
+
+            case CREDIT_COMMAND:
+                try {
+                    grantCredit(Long.parseLong(payload));
+                } catch (NumberFormatException e) {
+                    log.warn("Malformed CREDIT payload from [{}]: {}", clientAddress, payload);
                 }
+                return NO_RESPONSE;
+
+            default:
+                log.warn("Received unknown command '{}' from [{}]", command, clientAddress);
+                return NO_RESPONSE;
+        }
+    }
+
+    /**
+     * Handles a frame of the {@link BinaryProtocol}. Every command maps to the text command of the same
+     * name; only the encoding differs.
+     */
+    @Override
+    public CompletableFuture<Response> handleFrame(ByteBuffer frame) {
+        if (wireFormat == WireFormat.TEXT) {
+            wireFormat = WireFormat.BINARY;
+        }
+        byte opcode = frame.get();
+        try {
+            switch (opcode) {
+                case BinaryProtocol.PRODUCE:
+                    return produce(Message.fromBinary(frame), 0);
+
+                case BinaryProtocol.PRODUCE_AT:
+                    long deliverAt = frame.getLong();
+                    return produce(Message.fromBinary(frame), Math.max(0, deliverAt));
+
+                case BinaryProtocol.PRODUCE_DELAYED:
+                    long delayMs = frame.getLong();
+                    return produce(Message.fromBinary(frame), System.currentTimeMillis() + Math.max(0, delayMs));
+
+                case BinaryProtocol.PRODUCE_BATCH:
+                    int count = frame.getInt();
+                    if (count < 1 || count > BrokerServer.MAX_PRODUCE_BATCH) {
+                        return invalidBatchSize(String.valueOf(count));
+                    }
+                    List<Message> messages = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        messages.add(Message.fromBinary(BinaryProtocol.getSlice(frame)));
+                    }
+                    return produceBatch(messages);
+
+                case BinaryProtocol.CONSUME:
+                    long maxWaitMs = frame.getLong();
+                    int maxCount = frame.getInt();
+                    return consume(requireString(frame), Math.max(0, maxWaitMs), maxCount, true);
+
+                case BinaryProtocol.ACK:
+                    int ids = frame.getInt();
+                    List<String> messageIds = new ArrayList<>(Math.min(ids, frame.remaining() / Integer.BYTES));
+                    for (int i = 0; i < ids; i++) {
+                        messageIds.add(requireString(frame));
+                    }
+                    acknowledge(messageIds);
+                    return NO_RESPONSE;
+
+                case BinaryProtocol.ACK_UPTO:
+                    acknowledgeUpTo(requireString(frame));
+                    return NO_RESPONSE;
+
+                case BinaryProtocol.ACK_TIMEOUT:
+                    setAckTimeout(Math.max(0, frame.getLong()));
+                    return NO_RESPONSE;
+
+                case BinaryProtocol.SUBSCRIBE:
+                    subscribe(requireString(frame));
+                    return NO_RESPONSE;
+
+                case BinaryProtocol.CREDIT:
+                    grantCredit(frame.getLong());
+                    return NO_RESPONSE;
+
+                case BinaryProtocol.SET_COMPRESSION:
+                    return negotiateCompression(frame.get());
+
+                case BinaryProtocol.SET_GROUP:
+                    setConsumerGroup(BinaryProtocol.getString(frame));
+                    return NO_RESPONSE;
+
+                case BinaryProtocol.PARTITIONS:
+                    return partitions(requireString(frame));
+
+                case BinaryProtocol.STATS:
+                    return stats(BinaryProtocol.getString(frame));
+
+                default:
+                    log.warn("Received unknown opcode {} from [{}]", opcode, clientAddress);
+                    return error(501, "Unknown opcode " + opcode);
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            log.warn("Malformed frame with opcode {} from [{}]: {}", opcode, clientAddress, e.toString());
+            // 有响应的命令仍然返回错误，流水线中的客户端按顺序匹配响应
+            return hasResponse(opcode) ? error(400, "Malformed frame") : NO_RESPONSE;
+        }
+    }
+
+    /**
+     * Accepts the requested compression if it is supported. Messages whose content is compressed that way are
+     * then sent as stored, and only the client decompresses them; other content is still sent uncompressed.
+     * A subscription keeps the format it was created with.
+     */
+    private CompletableFuture<Response> negotiateCompression(byte requested) {
+        Compression accepted;
+        try {
+            accepted = Compression.of(requested);
+        } catch (IllegalArgumentException e) {
+            accepted = Compression.NONE;
+        }
+        BinaryWireFormat format = new BinaryWireFormat(accepted);
+        wireFormat = format;
+        log.debug("Client [{}] accepts {} compressed content", clientAddress, accepted);
+        return CompletableFuture.completedFuture(format.compression());
+    }
+
+    private static String requireString(ByteBuffer frame) {
+        String value = BinaryProtocol.getString(frame);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing string field");
+        }
+        return value;
+    }
+
+    private static boolean hasResponse(byte opcode) {
+        return opcode == BinaryProtocol.PRODUCE || opcode == BinaryProtocol.PRODUCE_AT || opcode == BinaryProtocol.PRODUCE_DELAYED
+                || opcode == BinaryProtocol.PRODUCE_BATCH || opcode == BinaryProtocol.CONSUME || opcode == BinaryProtocol.SET_COMPRESSION
+                || opcode == BinaryProtocol.PARTITIONS || opcode == BinaryProtocol.STATS;
+    }
+
+    private CompletableFuture<Response> error(int code, String description) {
+        return CompletableFuture.completedFuture(wireFormat.error(code, 0, description));
+    }
+
+    /**
+     * {@code PARTITIONS:<topic>} is answered with {@code PARTITIONS:<count>}, 1 if the topic is not partitioned.
+     */
+    private CompletableFuture<Response> partitions(String topic) {
+        return CompletableFuture.completedFuture(wireFormat.partitions(broker.partitionCount(topic)));
+    }
+
+    /**
+     * {@code STATS:[topic]} is answered with {@code STATS:<n>} and n lines of metric samples in the Prometheus text format,
+     * of the topic and its partitions, or of the whole broker if no topic is given.
+     */
+    private CompletableFuture<Response> stats(String topic) {
+        return CompletableFuture.completedFuture(wireFormat.stats(broker.getMetrics().samples(topic)));
+    }
+
+    /**
+     * @return The partitioned topic that the given topic names without being one of its partitions, or null if the
+     * topic can be used as is.
+     */
+    private String partitionedTopicOf(String topic) {
+        if (broker.partitionCount(topic) > 1) {
+            return topic;
+        }
+        String base = Partitions.baseTopic(topic);
+        int partitionCount = broker.partitionCount(base);
+        if (partitionCount == 1) {
+            return null;
+        }
+        // 只接受与 Partitions.topic 完全一致的名字，"orders#07" 这样的写法也是一个没有人消费的主题
+        try {
+            int partition = Integer.parseInt(topic.substring(base.length() + 1));
+            return partition < partitionCount && Partitions.topic(base, partition).equals(topic) ? null : base;
+        } catch (NumberFormatException e) {
+            return base;
+        }
+    }
+
+    // 分区主题只能通过它已有的分区生产和消费，直接使用主题名或不存在的分区的请求被拒绝，而不是悄悄地存到一个没有人消费的主题
+    private CompletableFuture<Response> partitionedTopicError(String topic, String partitionedTopic) {
+        int partitionCount = broker.partitionCount(partitionedTopic);
+        log.warn("Client [{}] used [{}], which is not one of the {} partitions of topic [{}]",
+                clientAddress, topic, partitionCount, partitionedTopic);
+        return error(400, "Topic " + partitionedTopic + " has " + partitionCount + " partitions, use "
+                + Partitions.topic(partitionedTopic, 0) + " through " + Partitions.topic(partitionedTopic, partitionCount - 1));
+    }
+
+    // 空主题名对应的日志目录就是数据根目录本身
+    private CompletableFuture<Response> emptyTopicError() {
+        log.warn("Client [{}] produced a message without a topic", clientAddress);
+        return error(400, "Topic must not be empty");
+    }
+
+    private CompletableFuture<Response> produceText(String payload, long deliverAt) {
+        // PRODUCE 命令的 payload 就是 Message.toString() 的结果
+        Message messageToProduce = Message.fromString(payload);
+        if (messageToProduce == null) {
+            log.warn("Malformed PRODUCE payload from [{}]: {}", clientAddress, payload);
+        }
+        return produce(messageToProduce, deliverAt);
+    }
+
+    private CompletableFuture<Response> produce(Message messageToProduce, long deliverAt) {
+        if (messageToProduce == null) {
+            // 仍然返回响应，流水线中的客户端按顺序匹配响应
+            return error(400, "Malformed message");
+        }
+        if (messageToProduce.getTopic().isEmpty()) {
+            return emptyTopicError();
+        }
+        String partitionedTopic = partitionedTopicOf(messageToProduce.getTopic());
+        if (partitionedTopic != null) {
+            return partitionedTopicError(messageToProduce.getTopic(), partitionedTopic);
+        }
+        messageToProduce.setDeliverAt(deliverAt);
+        // 消息按刷盘策略落盘后，才返回ID作为确认；等待期间不占用任何线程
+        return broker.produce(messageToProduce).handle((ignored, error) -> {
+            if (error != null) {
+                return produceError(error, "Message could not be persisted", "message [" + messageToProduce.getId() + "]");
+            }
+            return wireFormat.ids(Collections.singletonList(messageToProduce.getId()));
+        });
+    }
+
+    /**
+     * {@code PRODUCE_AT:<epochMillis>:<message>} delivers the message at the given time,
+     * {@code PRODUCE_DELAYED:<delayMs>:<message>} after the given delay. The message is persisted right away.
+     */
+    private CompletableFuture<Response> produceScheduled(String command, String payload) {
+        String[] parts = payload.split(":", 2);
+        long time = parseNumber(parts[0]);
+        if (parts.length < 2 || time < 0) {
+            log.warn("Malformed {} payload from [{}]: {}", command, clientAddress, payload);
+            return error(400, "Malformed delivery time");
+        }
+        long deliverAt = PRODUCE_AT_COMMAND.equals(command) ? time : System.currentTimeMillis() + time;
+        return produceText(parts[1], deliverAt);
+    }
+
+    // 存储已满时返回 503 和建议的重试等待时间（毫秒），生产者稍后重试即可；其余错误返回 500
+    private Response produceError(Throwable error, String response, String description) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof BackpressureException) {
+            log.debug("Rejected {} from [{}]: {}", description, clientAddress, cause.getMessage());
+            return wireFormat.error(503, ((BackpressureException) cause).getRetryAfterMs(), cause.getMessage());
+        }
+        log.error("Failed to persist {} from [{}]", description, clientAddress, error);
+        return wireFormat.error(500, 0, response);
+    }
+
+    /**
+     * {@code PRODUCE_BATCH:<n>} is followed by n lines, one serialized message each. The whole batch is
+     * answered with one line: the IDs of all messages separated by {@code ','}, once all of them are durable.
+     */
+    private CompletableFuture<Response> startProduceBatch(String payload) {
+        long count = parseNumber(payload);
+        if (count < 1 || count > BrokerServer.MAX_PRODUCE_BATCH) {
+            return invalidBatchSize(payload);
+        }
+        produceBatch = new ArrayList<>((int) count);
+        produceBatchRemaining = (int) count;
+        return NO_RESPONSE;
+    }
+
+    private CompletableFuture<Response> invalidBatchSize(String size) {
+        log.warn("Invalid PRODUCE_BATCH size from [{}]: {}", clientAddress, size);
+        return error(400, "Batch size must be between 1 and " + BrokerServer.MAX_PRODUCE_BATCH);
+    }
+
+    private CompletableFuture<Response> collectBatchLine(String line) {
+        produceBatch.add(Message.fromString(line));
+        if (--produceBatchRemaining > 0) {
+            return NO_RESPONSE;
+        }
+        List<Message> messages = produceBatch;
+        produceBatch = null;
+        return produceBatch(messages);
+    }
+
+    private CompletableFuture<Response> produceBatch(List<Message> messages) {
+        // 批次中有任何一条消息格式错误时整批拒绝，客户端不会收到部分成功的结果
+        if (messages.contains(null)) {
+            log.warn("Malformed message in PRODUCE_BATCH from [{}]", clientAddress);
+            return error(400, "Malformed message in batch");
+        }
+        for (Message message : messages) {
+            if (message.getTopic().isEmpty()) {
+                return emptyTopicError();
+            }
+            String partitionedTopic = partitionedTopicOf(message.getTopic());
+            if (partitionedTopic != null) {
+                return partitionedTopicError(message.getTopic(), partitionedTopic);
+            }
+        }
+        return broker.produce(messages).handle((ignored, error) -> {
+            if (error != null) {
+                return produceError(error, "Batch could not be persisted", "batch of " + messages.size() + " message(s)");
+            }
+            List<String> ids = new ArrayList<>(messages.size());
+            messages.forEach(message -> ids.add(message.getId()));
+            return wireFormat.ids(ids);
+        });
+    }
+
+    /**
+     * {@code CONSUME:<topic>[:<maxWaitMs>[:<maxCount>]]} waits up to maxWaitMs for a message before answering NO_MSG.
+     * With a maxCount, up to that many messages are returned as {@code BATCH:<n>} followed by one line per message.
+     */
+    private CompletableFuture<Response> consumeText(String payload) {
+        String topic = payload;
+        long maxWaitMs = BrokerServer.DEFAULT_CONSUME_WAIT_MS;
+        int maxCount = 1;
+        boolean batch = false;
+        // 主题名本身也可能包含冒号，只有末尾的数字字段才当作参数
+        int separator = payload.lastIndexOf(':');
+        long last = separator > 0 ? parseNumber(payload.substring(separator + 1)) : -1;
+        if (last >= 0) {
+            topic = payload.substring(0, separator);
+            int previous = topic.lastIndexOf(':');
+            long wait = previous > 0 ? parseNumber(topic.substring(previous + 1)) : -1;
+            if (wait >= 0) {
+                topic = topic.substring(0, previous);
+                maxWaitMs = wait;
+                maxCount = (int) Math.min(last, BrokerServer.MAX_CONSUME_BATCH);
+                batch = true;
+            } else {
+                maxWaitMs = last;
+            }
+        }
+        return consume(topic, maxWaitMs, maxCount, batch);
+    }
+
+    private CompletableFuture<Response> consume(String topic, long maxWaitMs, int maxCount, boolean batch) {
+        String partitionedTopic = partitionedTopicOf(topic);
+        if (partitionedTopic != null) {
+            return partitionedTopicError(topic, partitionedTopic);
+        }
+        CompletableFuture<List<Message>> consumed = broker.consume(topic, consumerGroup, maxWaitMs, maxCount, ackTimeoutMs);
+        if (!consumed.isDone()) {
+            pendingConsumes.add(consumed);
+            consumed.whenComplete((messages, error) -> pendingConsumes.remove(consumed));
+        }
+        return consumed.handle((messages, error) -> {
+            if (error != null) {
+                return wireFormat.error(500, 0, "Consumer group could not be created");
+            }
+            recordDeliveries(messages);
+            Response response = wireFormat.messages(messages, batch);
+            if (!messages.isEmpty()) {
+                broker.getMetrics().topic(topic).recordSent(response.size());
+            }
+            return response;
+        });
+    }
+
+    private static long parseNumber(String value) {
+        if (value.isEmpty() || value.length() > 18) {
+            return -1;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isDigit(value.charAt(i))) {
+                return -1;
+            }
+        }
+        return Long.parseLong(value);
+    }
+
+    private void recordDeliveries(List<Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        deliveriesLock.lock();
+        try {
+            for (Message message : messages) {
+                deliveries.add(message.getId());
+            }
+            Iterator<String> eldest = deliveries.iterator();
+            while (deliveries.size() > MAX_TRACKED_DELIVERIES) {
+                eldest.next();
+                eldest.remove();
             }
-        } catch (SocketException e) {
-            // This is a common exception when a client abruptly disconnects. Log as INFO.
-            log.info("Client [{}] disconnected abruptly: {}", clientAddress, e.getMessage());
-        } catch (IOException e) {
-            log.error("An I/O error occurred while handling client [{}]:", clientAddress, e);
-        } catch (InterruptedException e) {
-            log.warn("Client handler thread for [{}] was interrupted.", clientAddress);
-            // Restore the interrupted status
-            Thread.currentThread().interrupt();
         } finally {
-            try {
-                clientSocket.close();
-            } catch (IOException e) {
-                log.error("Error while closing socket for client [{}]:", clientAddress, e);
+            deliveriesLock.unlock();
+        }
+    }
+
+    private void acknowledge(List<String> messageIds) {
+        forgetDeliveries(messageIds);
+        String group = consumerGroup;
+        if (group != null) {
+            broker.acknowledge(group, messageIds);
+            return;
+        }
+        if (messageIds.size() == 1) {
+            broker.acknowledge(messageIds.get(0));
+            return;
+        }
+        // 多个ID在存储层作为一次操作写入
+        broker.acknowledge(messageIds);
+    }
+
+    private void forgetDeliveries(List<String> messageIds) {
+        deliveriesLock.lock();
+        try {
+            messageIds.forEach(deliveries::remove);
+        } finally {
+            deliveriesLock.unlock();
+        }
+    }
+
+    /**
+     * Acknowledges every message delivered on this connection up to and including the given one.
+     */
+    private void acknowledgeUpTo(String messageId) {
+        List<String> messageIds = new ArrayList<>();
+        deliveriesLock.lock();
+        try {
+            if (deliveries.contains(messageId)) {
+                Iterator<String> it = deliveries.iterator();
+                String id;
+                do {
+                    id = it.next();
+                    it.remove();
+                    messageIds.add(id);
+                } while (!id.equals(messageId));
             }
-            log.info("Connection with client [{}] closed.", clientAddress);
+        } finally {
+            deliveriesLock.unlock();
+        }
+        if (messageIds.isEmpty()) {
+            // 不是本连接投递的消息（或记录已被丢弃），只确认它自己
+            messageIds.add(messageId);
+        }
+        broker.acknowledge(consumerGroup, messageIds);
+    }
+
+    /**
+     * {@code ACK_TIMEOUT:<ms>} sets how long this consumer has to acknowledge the messages delivered from now on.
+     */
+    private void setAckTimeout(long timeout) {
+        ackTimeoutMs = timeout == 0 ? 0 : BrokerServer.clampAckTimeout(timeout);
+        log.debug("Client [{}] set its ACK timeout to {} ms", clientAddress, ackTimeoutMs);
+    }
+
+    /**
+     * {@code GROUP:<name>} makes the CONSUME, SUBSCRIBE and ACK commands sent after it act for the named consumer group,
+     * {@code GROUP:} without a name for the consumers without a group again.
+     */
+    private void setConsumerGroup(String group) {
+        consumerGroup = group == null || group.isEmpty() ? null : group;
+        log.debug("Client [{}] consumes as consumer group [{}]", clientAddress, consumerGroup);
+    }
+
+    private void subscribe(String topic) {
+        if (subscription != null) {
+            log.warn("Client [{}] is already subscribed to [{}], ignoring SUBSCRIBE to [{}]",
+                    clientAddress, subscription.getTopic(), topic);
+            return;
+        }
+        String partitionedTopic = partitionedTopicOf(topic);
+        if (partitionedTopic != null) {
+            // SUBSCRIBE 没有响应，无法返回错误
+            log.warn("Client [{}] subscribed to [{}], which is not a partition of topic [{}], ignoring",
+                    clientAddress, topic, partitionedTopic);
+            return;
+        }
+        // 订阅后不会推送任何消息，直到客户端通过 CREDIT 授予额度
+        WireFormat format = wireFormat;
+        String group = consumerGroup;
+        subscription = new Subscription(topic, group, connection, broker, this::recordDeliveries, () -> ackTimeoutMs, format::push);
+        log.info("Client [{}] subscribed to topic [{}]{}", clientAddress, topic, group == null ? "" : " as consumer group [" + group + "]");
+    }
+
+    private void grantCredit(long credit) {
+        Subscription current = subscription;
+        if (current == null) {
+            log.warn("Received CREDIT from [{}] without a subscription", clientAddress);
+            return;
+        }
+        if (credit > 0) {
+            current.addCredit(credit);
+        }
+    }
+
+    @Override
+    public void onClose() {
+        broker.getMetrics().removeConnection(connection);
+        pendingConsumes.forEach(consumed -> consumed.cancel(false));
+        Subscription current = subscription;
+        if (current != null) {
+            current.close();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,243 @@
+package io.github.jameswang777.minimq;
+
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * A concurrent map from primitive long keys to values, for indexes with many short-lived entries.
+ * <p>
+ * Keys are spread over {@value #SEGMENTS} segments, each an open-addressing hash table of a {@code long[]}
+ * and an {@code Object[]} behind its own lock. An entry costs no object of its own and its key is never
+ * boxed, so the garbage collector has only the values to trace. Null values are not allowed.
+ *
+ * @param <V> The type of the values.
+ */
+class ConcurrentLongMap<V> {
+
+    private static final int SEGMENT_BITS = 6;
+    private static final int SEGMENTS = 1 << SEGMENT_BITS; // 64 个分段，各自加锁
+    private static final int MIN_CAPACITY = 16;
+
+    private final Segment<V>[] segments;
+
+    ConcurrentLongMap() {
+        segments = newSegments();
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment<>();
+        }
+    }
+
+    // 不能直接创建泛型数组，这里的转换是安全的：数组只在本类中使用，且只存放 Segment<V>
+    @SuppressWarnings("unchecked")
+    private static <V> Segment<V>[] newSegments() {
+        return (Segment<V>[]) new Segment<?>[SEGMENTS];
+    }
+
+    /**
+     * @return The previous value of the key, or null if there was none.
+     */
+    V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+        long hash = hash(key);
+        return segmentFor(hash).put(key, hash, value);
+    }
+
+    V get(long key) {
+        long hash = hash(key);
+        return segmentFor(hash).get(key, hash);
+    }
+
+    /**
+     * @return The removed value, or null if the key was absent.
+     */
+    V remove(long key) {
+        long hash = hash(key);
+        return segmentFor(hash).remove(key, hash, null);
+    }
+
+    /**
+     * Removes the key only if it still maps to the given value, compared by identity.
+     *
+     * @return true if the entry was removed.
+     */
+    boolean remove(long key, V value) {
+        long hash = hash(key);
+        return segmentFor(hash).remove(key, hash, value) != null;
+    }
+
+    /**
+     * Removes every entry whose value matches the filter. As with {@link java.util.concurrent.ConcurrentHashMap},
+     * the filter is called without holding any lock, and an entry that changed meanwhile is kept.
+     *
+     * @return The number of entries removed.
+     */
+    int removeIf(Predicate<? super V> filter) {
+        int removed = 0;
+        for (Segment<V> segment : segments) {
+            long[] keys;
+            Object[] values;
+            int count = 0;
+            segment.lock.lock();
+            try {
+                keys = new long[segment.size];
+                values = new Object[segment.size];
+                for (int i = 0; i < segment.values.length; i++) {
+                    if (segment.values[i] != null) {
+                        keys[count] = segment.keys[i];
+                        values[count++] = segment.values[i];
+                    }
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+            for (int i = 0; i < count; i++) {
+                @SuppressWarnings("unchecked")
+                V value = (V) values[i];
+                if (filter.test(value) && remove(keys[i], value)) {
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return The number of entries, without locking: concurrent updates may or may not be counted.
+     */
+    int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    // MurmurHash3 的 fmix64：连续的键（如按时间递增的消息 ID）也能均匀分散。高位选分段，低位选槽
+    private static long hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private Segment<V> segmentFor(long hash) {
+        return segments[(int) (hash >>> (Long.SIZE - SEGMENT_BITS))];
+    }
+
+    // 线性探测的开放寻址表，value 为 null 的槽是空槽；删除时把后面的条目前移，不留墓碑
+    private static final class Segment<V> {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private long[] keys = new long[MIN_CAPACITY];
+        private Object[] values = new Object[MIN_CAPACITY];
+        private volatile int size;
+
+        @SuppressWarnings("unchecked")
+        V put(long key, long hash, V value) {
+            lock.lock();
+            try {
+                int mask = values.length - 1;
+                for (int i = (int) hash & mask; ; i = (i + 1) & mask) {
+                    if (values[i] == null) {
+                        keys[i] = key;
+                        values[i] = value;
+                        size++;
+                        // 负载超过 3/4 时扩容，保持探测序列短
+                        if (size > values.length - values.length / 4) {
+                            resize(values.length * 2);
+                        }
+                        return null;
+                    }
+                    if (keys[i] == key) {
+                        V previous = (V) values[i];
+                        values[i] = value;
+                        return previous;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        V get(long key, long hash) {
+            lock.lock();
+            try {
+                int i = indexOf(key, hash);
+                return i < 0 ? null : (V) values[i];
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // expected 不为 null 时，只有键仍映射到同一个对象才删除
+        @SuppressWarnings("unchecked")
+        V remove(long key, long hash, V expected) {
+            lock.lock();
+            try {
+                int i = indexOf(key, hash);
+                if (i < 0 || (expected != null && values[i] != expected)) {
+                    return null;
+                }
+                V removed = (V) values[i];
+                delete(i);
+                size--;
+                // 大量消息确认后释放大数组
+                if (values.length > MIN_CAPACITY && size < values.length / 8) {
+                    resize(values.length / 2);
+                }
+                return removed;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // 调用方持有锁
+        private int indexOf(long key, long hash) {
+            int mask = values.length - 1;
+            for (int i = (int) hash & mask; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // 调用方持有锁。空出槽 gap 后，把探测序列上能放进 gap 的后续条目前移，查找时不会在空槽处提前停止
+        private void delete(int gap) {
+            int mask = values.length - 1;
+            for (int i = (gap + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+                int home = (int) hash(keys[i]) & mask;
+                if (((i - home) & mask) >= ((i - gap) & mask)) {
+                    keys[gap] = keys[i];
+                    values[gap] = values[i];
+                    gap = i;
+                }
+            }
+            values[gap] = null;
+        }
+
+        // 调用方持有锁
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new long[capacity];
+            values = new Object[capacity];
+            int mask = capacity - 1;
+            for (int j = 0; j < oldValues.length; j++) {
+                if (oldValues[j] != null) {
+                    int i = (int) hash(oldKeys[j]) & mask;
+                    while (values[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package io.github.jameswang777.minimq;
+
+import io.github.jameswang777.minimq.metrics.TopicMetrics;
+import io.github.jameswang777.minimq.model.Message;
+import io.github.jameswang777.minimq.store.MessageStore;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A named consumer group of one topic. The group receives every message of the topic, independently of
+ * the consumers without a group and of other groups, while each message is stored only once.
+ * <p>
+ * Consumers of the same group compete for its messages as consumers without a group do. The group reads
+ * the topic log through its own {@link TopicQueue}, which only covers the range of the log ahead of it,
+ * so a group costs a cursor rather than a copy of the topic.
+ * <p>
+ * The offset below which the group acknowledged every message is committed to the {@link MessageStore}.
+ * After a restart the group continues from there; messages it acknowledged above that offset are
+ * delivered again. Delayed messages are skipped when reading the log and reach the group through its
+ * own timer, so an undelivered delayed message holds the committed offset back until it is acknowledged.
+ */
+@Slf4j
+class ConsumerGroup {
+
+    private final String topic;
+    private final String name;
+    private final MessageStore messageStore;
+    private final TopicQueue queue;
+    private final TopicMetrics metrics;
+    // 已投递但尚未确认的消息，按消息ID索引，带有它们的 ACK 超时
+    private final UnackedMessages unackedMessages = new UnackedMessages();
+    private final TimingWheel<Message> ackTimeouts;
+    // 延迟消息只记录日志位置，到期后再从日志读取
+    private final TimingWheel<ScheduledDelivery> scheduledDeliveries;
+    private final ReentrantLock ackLock = new ReentrantLock();
+    // 提交位置之上已确认的消息，第 i 位对应 committedOffset + i；只在持有 ackLock 时访问
+    private BitSet acked = new BitSet();
+    private long committedOffset;
+
+    /**
+     * @param committedOffset The offset the group continues from.
+     * @param endOffset       The offset of the next message the topic will store.
+     */
+    ConsumerGroup(String topic, String name, long committedOffset, long endOffset, long timerTickMs,
+                  ScheduledExecutorService consumeTimer, MessageStore messageStore, MemoryBudget memoryBudget,
+                  TopicMetrics metrics) {
+        this.topic = topic;
+        this.name = name;
+        this.metrics = metrics;
+        this.messageStore = messageStore;
+        this.committedOffset = committedOffset;
+        this.queue = new TopicQueue(topic, consumeTimer, messageStore, memoryBudget, committedOffset, endOffset, this::skip);
+        this.ackTimeouts = new TimingWheel<>(timerTickMs, this::requeueExpired);
+        this.scheduledDeliveries = new TimingWheel<>(timerTickMs, this::releaseScheduled);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Adds a message that was just stored and is due, in log order.
+     */
+    void append(Message message) {
+        queue.append(message);
+    }
+
+    /**
+     * Delivers a delayed message to the group once it is due.
+     */
+    void schedule(Message message) {
+        long delayMs = message.getDeliverAt() - System.currentTimeMillis();
+        if (delayMs > 0) {
+            scheduledDeliveries.schedule(new ScheduledDelivery(message), delayMs);
+        } else {
+            queue.offer(message);
+        }
+    }
+
+    /**
+     * Takes up to {@code maxCount} messages for a consumer of the group, see {@link TopicQueue#poll}.
+     */
+    CompletableFuture<List<Message>> poll(int maxCount, long maxWaitMs, long ackTimeoutMs) {
+        return queue.poll(maxCount, maxWaitMs, message -> markInFlight(message, ackTimeoutMs));
+    }
+
+    private void markInFlight(Message message, long ackTimeoutMs) {
+        TimingWheel.Timeout<Message> previous = unackedMessages.put(ackTimeouts.schedule(message, ackTimeoutMs));
+        metrics.recordDelivered(message.getTimestamp());
+        if (previous != null) {
+            ackTimeouts.cancel(previous);
+            metrics.recordForgotten(1);
+        }
+    }
+
+    /**
+     * Acknowledges the messages with the given IDs that were delivered to this group, ignoring the others.
+     */
+    void acknowledge(Collection<String> messageIds) {
+        long[] offsets = new long[messageIds.size()];
+        int count = 0;
+        for (String messageId : messageIds) {
+            TimingWheel.Timeout<Message> timeout = unackedMessages.remove(messageId);
+            if (timeout != null) {
+                ackTimeouts.cancel(timeout);
+                offsets[count++] = timeout.getItem().getOffset();
+            }
+        }
+        if (count > 0) {
+            metrics.recordAcknowledged(count);
+            commit(offsets, count);
+        }
+    }
+
+    // 取出后已无法读回的消息不会再投递，当作已确认，否则提交位置会停在它前面
+    private void skip(long offset) {
+        commit(new long[]{offset}, 1);
+    }
+
+    private void commit(long[] offsets, int count) {
+        long committed;
+        ackLock.lock();
+        try {
+            for (int i = 0; i < count; i++) {
+                long relative = offsets[i] - committedOffset;
+                // 超出窗口的确认只保存在重启之前，重启后这条消息会再次投递
+                if (relative >= 0 && relative < Integer.MAX_VALUE) {
+                    acked.set((int) relative);
+                }
+            }
+            if (!advance(acked.nextClearBit(0))) {
+                return;
+            }
+            committed = committedOffset;
+        } finally {
+            ackLock.unlock();
+        }
+        store(committed);
+    }
+
+    // 调用方持有 ackLock。把提交位置前移 distance，同时移动窗口，窗口只覆盖尚未提交的部分
+    private boolean advance(long distance) {
+        if (distance <= 0) {
+            return false;
+        }
+        int length = acked.length();
+        acked = distance >= length ? new BitSet() : acked.get((int) distance, length);
+        committedOffset += distance;
+        return true;
+    }
+
+    // 提交位置只会前移，并发调用时较小的值会被存储层忽略
+    private void store(long committed) {
+        try {
+            messageStore.commitGroup(topic, name, committed);
+        } catch (IOException e) {
+            log.error("Could not commit offset {} of consumer group [{}] on topic [{}]", committed, name, topic, e);
+        }
+    }
+
+    /**
+     * Drops every message below the given offset, after retention deleted their log segments.
+     */
+    void evictBefore(long startOffset) {
+        queue.evictBefore(startOffset);
+        metrics.recordForgotten(unackedMessages.removeIf(timeout -> {
+            if (timeout.getItem().getOffset() >= startOffset) {
+                return false;
+            }
+            ackTimeouts.cancel(timeout);
+            return true;
+        }));
+        long committed;
+        ackLock.lock();
+        try {
+            if (!advance(startOffset - committedOffset)) {
+                return;
+            }
+            advance(acked.nextClearBit(0));
+            committed = committedOffset;
+        } finally {
+            ackLock.unlock();
+        }
+        store(committed);
+    }
+
+    /**
+     * Expires ACK timeouts and releases delayed messages. Called on every tick of the broker timer.
+     */
+    void advanceTimers() {
+        ackTimeouts.advance();
+        scheduledDeliveries.advance();
+    }
+
+    private void releaseScheduled(TimingWheel.Timeout<ScheduledDelivery> timeout) {
+        ScheduledDelivery delivery = timeout.getItem();
+        if (delivery.getOffset() < messageStore.startOffset(topic)) {
+            return; // 等待期间所在的日志分段已被保留策略删除
+        }
+        // 超出时间轮范围的延迟会提前到期，再等待剩余的时间
+        long delayMs = delivery.remainingMs();
+        if (delayMs > 0) {
+            scheduledDeliveries.schedule(delivery, delayMs);
+        } else if (!queue.release(delivery.getOffset())) {
+            skip(delivery.getOffset());
+        }
+    }
+
+    // ACK 可能与超时同时到达，只有仍在待确认集合中的消息才重新入队
+    private void requeueExpired(TimingWheel.Timeout<Message> timeout) {
+        Message message = timeout.getItem();
+        if (unackedMessages.remove(timeout)) {
+            log.warn("Message timeout for ID [{}] in consumer group [{}]. Re-queuing...", message.getId(), name);
+            metrics.recordRedelivered();
+            queue.offer(message);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package io.github.jameswang777.minimq;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A memory limit shared by the queues of all topics.
+ * <p>
+ * Sizes are estimates; the budget only decides whether a queue keeps a new message in memory
+ * or leaves it on disk until consumers catch up.
+ */
+class MemoryBudget {
+
+    private final long limitBytes;
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    MemoryBudget(long limitBytes) {
+        this.limitBytes = limitBytes;
+    }
+
+    /**
+     * @return true if the bytes fit into the budget and were reserved.
+     */
+    boolean tryReserve(long bytes) {
+        long used;
+        do {
+            used = usedBytes.get();
+            if (used + bytes > limitBytes) {
+                return false;
+            }
+        } while (!usedBytes.compareAndSet(used, used + bytes));
+        return true;
+    }
+
+    /**
+     * Reserves the bytes even if that exceeds the budget, for messages that must be kept in memory.
+     */
+    void reserve(long bytes) {
+        usedBytes.addAndGet(bytes);
+    }
+
+    void release(long bytes) {
+        usedBytes.addAndGet(-bytes);
+    }
+
+    long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    long getLimitBytes() {
+        return limitBytes;
+    }
+}
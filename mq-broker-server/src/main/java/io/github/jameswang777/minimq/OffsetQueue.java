@@ -0,0 +1,77 @@
+package io.github.jameswang777.minimq;
+
+import java.util.NoSuchElementException;
+
+/**
+ * A FIFO queue of log offsets in a growable ring buffer of primitive longs.
+ * <p>
+ * A queued message costs 8 bytes and no object of its own, so the garbage collector has nothing
+ * to trace however deep the backlog is. Not thread-safe.
+ */
+class OffsetQueue {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] elements = new long[MIN_CAPACITY];
+    private int head;
+    private int size;
+
+    void add(long offset) {
+        if (size == elements.length) {
+            resize(elements.length * 2);
+        }
+        elements[(head + size) & (elements.length - 1)] = offset;
+        size++;
+    }
+
+    long poll() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        long offset = elements[head];
+        head = (head + 1) & (elements.length - 1);
+        size--;
+        // 积压消费完后释放大数组
+        if (elements.length > MIN_CAPACITY && size < elements.length / 4) {
+            resize(elements.length / 2);
+        }
+        return offset;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Removes every offset below the given one, keeping the order of the others.
+     *
+     * @return The number of offsets removed.
+     */
+    int removeBelow(long offset) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            long element = elements[(head + i) & (elements.length - 1)];
+            if (element >= offset) {
+                elements[(head + kept) & (elements.length - 1)] = element;
+                kept++;
+            }
+        }
+        int removed = size - kept;
+        size = kept;
+        return removed;
+    }
+
+    // 容量始终为 2 的幂，下标可以用掩码计算
+    private void resize(int capacity) {
+        long[] resized = new long[Math.max(MIN_CAPACITY, capacity)];
+        for (int i = 0; i < size; i++) {
+            resized[i] = elements[(head + i) & (elements.length - 1)];
+        }
+        elements = resized;
+        head = 0;
+    }
+}
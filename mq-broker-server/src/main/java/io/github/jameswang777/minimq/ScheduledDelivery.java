@@ -0,0 +1,29 @@
+package io.github.jameswang777.minimq;
+
+import io.github.jameswang777.minimq.model.Message;
+import lombok.Getter;
+
+/**
+ * A delayed message waiting for its delivery time, by its place in the topic log. The message is read
+ * back from the log once it is due, so a backlog of delayed messages does not keep their content on the heap.
+ */
+@Getter
+class ScheduledDelivery {
+
+    private final String topic;
+    private final long offset;
+    private final long deliverAt;
+
+    ScheduledDelivery(Message message) {
+        this.topic = message.getTopic();
+        this.offset = message.getOffset();
+        this.deliverAt = message.getDeliverAt();
+    }
+
+    /**
+     * @return The time left until the message is due, 0 or less if it is due.
+     */
+    long remainingMs() {
+        return deliverAt - System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,156 @@
+package io.github.jameswang777.minimq;
+
+import io.github.jameswang777.minimq.model.Message;
+import io.github.jameswang777.minimq.network.Connection;
+import io.github.jameswang777.minimq.network.Response;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Pushes the messages of one topic down a connection as they arrive.
+ * <p>
+ * The consumer grants credit with {@code CREDIT:n}; every pushed message uses up one credit, and
+ * nothing is pushed while no credit is left. Credit therefore bounds how many messages can be in
+ * flight to a consumer. At most one consume is outstanding per subscription, so subscribers of the
+ * same topic are served round-robin. A subscription of a consumer group receives the messages of that group.
+ */
+@Slf4j
+class Subscription {
+
+    private final String topic;
+    private final String group;
+    private final Connection connection;
+    private final BrokerServer broker;
+    private final Consumer<List<Message>> pushListener;
+    private final LongSupplier ackTimeoutMs;
+    private final Function<List<Message>, Response> encoder;
+    private final ReentrantLock lock = new ReentrantLock();
+    private long credit;
+    private CompletableFuture<List<Message>> pending;
+    private boolean closed;
+
+    /**
+     * @param group        The consumer group, or null to receive messages like the consumers without a group.
+     * @param pushListener Called with every batch of messages before it is pushed.
+     * @param ackTimeoutMs The consumer's current ACK timeout, 0 for the broker default.
+     * @param encoder      Encodes a batch of pushed messages in the protocol of the connection.
+     */
+    Subscription(String topic, String group, Connection connection, BrokerServer broker, Consumer<List<Message>> pushListener,
+                 LongSupplier ackTimeoutMs, Function<List<Message>, Response> encoder) {
+        this.topic = topic;
+        this.group = group;
+        this.connection = connection;
+        this.broker = broker;
+        this.pushListener = pushListener;
+        this.ackTimeoutMs = ackTimeoutMs;
+        this.encoder = encoder;
+    }
+
+    String getTopic() {
+        return topic;
+    }
+
+    void addCredit(long amount) {
+        lock.lock();
+        try {
+            credit = Math.min(credit + amount, Integer.MAX_VALUE); // 防止溢出
+        } finally {
+            lock.unlock();
+        }
+        fetchNext();
+    }
+
+    // 队列中已有消息时直接循环推送，而不是递归，避免大量 credit 时栈溢出
+    private void fetchNext() {
+        while (true) {
+            CompletableFuture<List<Message>> next;
+            int reserved;
+            lock.lock();
+            try {
+                if (closed || pending != null || credit <= 0 || connection.isClosed()) {
+                    return;
+                }
+                // 在锁内预留全部额度，一次取出额度内已经排队的所有消息；未用完的额度在推送后归还
+                reserved = (int) credit;
+                credit = 0;
+                next = broker.consume(topic, group, BrokerServer.MAX_CONSUME_WAIT_MS, reserved, ackTimeoutMs.getAsLong());
+                // 推送完成之前一直占用，同一时间只有一批消息在取出和推送，批次之间不会乱序
+                pending = next;
+            } finally {
+                lock.unlock();
+            }
+            if (!next.isDone()) {
+                next.whenComplete((messages, error) -> {
+                    if (onDelivery(messages, error, reserved)) {
+                        fetchNext();
+                    }
+                });
+                return;
+            }
+            if (!next.handle((messages, error) -> onDelivery(messages, error, reserved)).join()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Pushes a batch consumed with {@code reserved} credit and returns the credit it did not use.
+     *
+     * @return false if pushing stopped, because the consume failed or the subscription was closed.
+     */
+    private boolean onDelivery(List<Message> messages, Throwable error, int reserved) {
+        if (error != null) {
+            log.warn("Stopped pushing messages of topic [{}] to [{}]: {}", topic, connection.getRemoteAddress(), error.toString());
+        }
+        boolean pushed = error == null && push(messages);
+        int used = error == null ? messages.size() : 0;
+        lock.lock();
+        try {
+            pending = null;
+            credit = Math.min(credit + reserved - used, Integer.MAX_VALUE);
+        } finally {
+            lock.unlock();
+        }
+        return pushed;
+    }
+
+    /**
+     * @return false if the subscription was closed in the meantime.
+     */
+    private boolean push(List<Message> messages) {
+        if (messages.isEmpty()) {
+            return !connection.isClosed(); // 等待超时，继续等待
+        }
+        pushListener.accept(messages);
+        Response response = encoder.apply(messages);
+        // 每次重新取主题的指标，主题空闲时它的指标会被回收
+        broker.getMetrics().topic(topic).recordSent(response.size());
+        connection.send(response);
+        log.debug("Pushed {} message(s) of topic [{}] to [{}]", messages.size(), topic, connection.getRemoteAddress());
+        return !connection.isClosed();
+    }
+
+    /**
+     * Stops pushing. Messages already pushed but not acknowledged are re-queued after the ACK timeout.
+     */
+    void close() {
+        CompletableFuture<List<Message>> toCancel;
+        lock.lock();
+        try {
+            closed = true;
+            toCancel = pending;
+            pending = null;
+        } finally {
+            lock.unlock();
+        }
+        if (toCancel != null) {
+            toCancel.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package io.github.jameswang777.minimq;
+
+import io.github.jameswang777.minimq.model.Message;
+import io.github.jameswang777.minimq.network.Response;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * The newline-delimited text protocol (v1.1).
+ * <p>
+ * A message whose fields contain a line break or {@code ":::"}, which only the binary protocol can produce,
+ * is sent as {@code ERROR:415:<id>:<description>} in its place, so the lines of the response stay intact.
+ * The message remains delivered: the consumer may ACK it, or it is delivered again after the ACK timeout.
+ */
+@Slf4j
+class TextWireFormat implements WireFormat {
+
+    private static final String NO_MSG_RESPONSE = "NO_MSG";
+    private static final String BATCH_RESPONSE_PREFIX = "BATCH:";
+    private static final String PUSHED_MESSAGE_PREFIX = "MSG:";
+    private static final String ERROR_RESPONSE_PREFIX = "ERROR:";
+    private static final String PARTITIONS_RESPONSE_PREFIX = "PARTITIONS:";
+    private static final String STATS_RESPONSE_PREFIX = "STATS:";
+    private static final String ID_SEPARATOR = ",";
+    private static final int UNSUPPORTED_CONTENT_CODE = 415;
+
+    @Override
+    public Response ids(List<String> messageIds) {
+        return Response.of(String.join(ID_SEPARATOR, messageIds));
+    }
+
+    @Override
+    public Response error(int code, long retryAfterMs, String description) {
+        // 503 在说明前附带建议的重试等待时间（毫秒）
+        return Response.of(ERROR_RESPONSE_PREFIX + code + ":" + (code == 503 ? retryAfterMs + ":" : "") + description);
+    }
+
+    @Override
+    public Response messages(List<Message> messages, boolean batch) {
+        if (!batch) {
+            // 返回完整的消息，内容直接从日志写出
+            return messages.isEmpty() ? Response.of(NO_MSG_RESPONSE) : new Response().addLine(encode(messages.get(0), ""));
+        }
+        // 一个批次作为多行响应一次写出
+        Response response = new Response().addLine(BATCH_RESPONSE_PREFIX + messages.size());
+        for (Message message : messages) {
+            response.addLine(encode(message, ""));
+        }
+        return response;
+    }
+
+    @Override
+    public Response push(List<Message> messages) {
+        Response response = new Response();
+        for (Message message : messages) {
+            response.addLine(encode(message, PUSHED_MESSAGE_PREFIX));
+        }
+        return response;
+    }
+
+    // 无法放在一行中的消息以错误行代替，一条消息仍然只占一行
+    private static ByteBuffer[] encode(Message message, String prefix) {
+        if (message.fitsTextLine()) {
+            return message.encode(prefix);
+        }
+        log.warn("Message [{}] of topic [{}] contains a line break or '{}' and cannot be sent over the text protocol",
+                message.getId(), message.getTopic(), Message.MESSAGE_SPLITTER);
+        String error = ERROR_RESPONSE_PREFIX + UNSUPPORTED_CONTENT_CODE + ":" + message.getId()
+                + ":Message contains a line break or the field separator, consume it over the binary protocol";
+        return new ByteBuffer[]{ByteBuffer.wrap(error.getBytes(StandardCharsets.UTF_8))};
+    }
+
+    @Override
+    public Response partitions(int count) {
+        return Response.of(PARTITIONS_RESPONSE_PREFIX + count);
+    }
+
+    @Override
+    public Response stats(List<String> samples) {
+        Response response = new Response().addLine(STATS_RESPONSE_PREFIX + samples.size());
+        for (String sample : samples) {
+            response.addLine(sample);
+        }
+        return response;
+    }
+}
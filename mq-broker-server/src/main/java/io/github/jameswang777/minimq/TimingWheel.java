@@ -0,0 +1,208 @@
+package io.github.jameswang777.minimq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A hierarchical timing wheel for large numbers of timeouts that are mostly cancelled before they expire.
+ * <p>
+ * Time advances in ticks. The lowest wheel has one slot per tick; every higher wheel has one slot per
+ * full turn of the wheel below it. A timeout sits in the lowest wheel that can reach its deadline and
+ * moves down a level each time the wheel below completes a turn, so advancing only touches timeouts
+ * that are about to expire. Scheduling and cancelling are O(1).
+ * <p>
+ * Deadlines are rounded up to the next tick. {@link #advance} must be called regularly, at least once
+ * per tick, and runs the expiry handler outside the lock.
+ *
+ * @param <T> The item carried by a timeout.
+ */
+class TimingWheel<T> {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS; // 每层 64 个槽
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    private static final long MAX_TICKS = (1L << (SLOT_BITS * LEVELS)) - 1; // 100ms 一个 tick 时约 19 天
+
+    private final long tickNanos;
+    private final long startNanos;
+    private final Consumer<Timeout<T>> expiryHandler;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Slot<T>[][] wheels;
+    // 已经处理过的最后一个 tick
+    private long currentTick;
+
+    /**
+     * @param tickMs        The resolution of the wheel.
+     * @param expiryHandler Called with every timeout that expires.
+     */
+    TimingWheel(long tickMs, Consumer<Timeout<T>> expiryHandler) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMs));
+        this.startNanos = System.nanoTime();
+        this.expiryHandler = expiryHandler;
+        this.wheels = newWheels();
+        for (Slot<T>[] wheel : wheels) {
+            for (int i = 0; i < SLOTS; i++) {
+                wheel[i] = new Slot<>();
+            }
+        }
+    }
+
+    // 不能直接创建泛型数组，这里的转换是安全的：数组只在本类中使用，且只存放 Slot<T>
+    @SuppressWarnings("unchecked")
+    private static <T> Slot<T>[][] newWheels() {
+        return (Slot<T>[][]) new Slot<?>[LEVELS][SLOTS];
+    }
+
+    /**
+     * Schedules the item to expire after the given delay. Delays beyond the range of the wheel
+     * (about 19 days at a 100 ms tick) are shortened to it.
+     *
+     * @return A handle to {@link #cancel} the timeout.
+     */
+    Timeout<T> schedule(T item, long delayMs) {
+        long delayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMs));
+        Timeout<T> timeout = new Timeout<>(item);
+        lock.lock();
+        try {
+            // 从当前时间（而不是最后处理的 tick）算起并向上取整，advance 稍有延迟时也不会提前到期
+            long deadline = (System.nanoTime() - startNanos + delayNanos + tickNanos - 1) / tickNanos;
+            timeout.deadline = Math.max(currentTick + 1, Math.min(deadline, currentTick + MAX_TICKS));
+            place(timeout);
+        } finally {
+            lock.unlock();
+        }
+        return timeout;
+    }
+
+    /**
+     * @return true if the timeout was cancelled, false if it already expired or was cancelled before.
+     */
+    boolean cancel(Timeout<T> timeout) {
+        lock.lock();
+        try {
+            if (timeout.slot == null) {
+                return false;
+            }
+            timeout.slot.remove(timeout);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Expires every timeout whose deadline has passed.
+     *
+     * @return The number of expired timeouts.
+     */
+    int advance() {
+        List<Timeout<T>> expired = new ArrayList<>();
+        lock.lock();
+        try {
+            long targetTick = elapsedTicks();
+            while (currentTick < targetTick) {
+                currentTick++;
+                cascade();
+                Slot<T> slot = wheels[0][(int) (currentTick & SLOT_MASK)];
+                for (Timeout<T> timeout = slot.head; timeout != null; timeout = timeout.next) {
+                    timeout.slot = null;
+                    expired.add(timeout);
+                }
+                slot.clear();
+            }
+        } finally {
+            lock.unlock();
+        }
+        // 在锁外回调，回调中可以再次 schedule
+        expired.forEach(expiryHandler);
+        return expired.size();
+    }
+
+    // 低层转完一圈时，把上一层当前槽中的超时重新放到更低的层
+    private void cascade() {
+        for (int level = 1; level < LEVELS; level++) {
+            if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                return;
+            }
+            Slot<T> slot = wheels[level][(int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK)];
+            Timeout<T> timeout = slot.head;
+            slot.clear();
+            while (timeout != null) {
+                Timeout<T> next = timeout.next;
+                place(timeout);
+                timeout = next;
+            }
+        }
+    }
+
+    private void place(Timeout<T> timeout) {
+        long remaining = timeout.deadline - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && remaining >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        wheels[level][(int) ((timeout.deadline >>> (SLOT_BITS * level)) & SLOT_MASK)].add(timeout);
+    }
+
+    private long elapsedTicks() {
+        return (System.nanoTime() - startNanos) / tickNanos;
+    }
+
+    /**
+     * A scheduled timeout, linked into the slot that holds it.
+     */
+    static final class Timeout<T> {
+
+        private final T item;
+        private long deadline;
+        private Slot<T> slot;
+        private Timeout<T> prev;
+        private Timeout<T> next;
+
+        private Timeout(T item) {
+            this.item = item;
+        }
+
+        T getItem() {
+            return item;
+        }
+    }
+
+    private static final class Slot<T> {
+
+        private Timeout<T> head;
+
+        private void add(Timeout<T> timeout) {
+            timeout.slot = this;
+            timeout.prev = null;
+            timeout.next = head;
+            if (head != null) {
+                head.prev = timeout;
+            }
+            head = timeout;
+        }
+
+        private void remove(Timeout<T> timeout) {
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.slot = null;
+            timeout.prev = null;
+            timeout.next = null;
+        }
+
+        // 只清空槽本身，调用方仍可沿着原来的链表遍历
+        private void clear() {
+            head = null;
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package io.github.jameswang777.minimq;
+
+import io.github.jameswang777.minimq.model.Message;
+import io.github.jameswang777.minimq.store.MessageStore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * The in-memory queue of a single topic, together with the consumers waiting for its next message.
+ * <p>
+ * A consumer that finds the queue empty parks a future instead of a thread. The next offered
+ * message completes the longest waiting consumer directly and never enters the queue.
+ * <p>
+ * Every message handed out is passed to the consumer's dispatch listener before the consumer sees it.
+ * A waiting consumer is only ever completed by this queue, so a message taken from the queue
+ * always reaches the consumer it was dispatched to.
+ * <p>
+ * Every queued message is already in the memory-mapped commit log, so the queue only holds its
+ * offset and decodes the message again when it is handed out. A message offered while a consumer is
+ * waiting is handed over directly, without being decoded again.
+ * <p>
+ * Queued offsets are bounded by a per-topic limit and a {@link MemoryBudget} shared by all topics.
+ * Once either is exhausted, the queue stops recording the offsets of newly stored messages and only
+ * remembers the range of the log they occupy, collecting their offsets again in batches as consumers
+ * drain the queue.
+ * <p>
+ * The queue of a {@link ConsumerGroup} reads the log regardless of tombstones, which belong to the
+ * consumers without a group, and never records the offsets of new messages: it only covers the range
+ * of the log ahead of the group, like a cursor.
+ * <p>
+ * The broker drops queues that stay empty and unused, see {@link #retireIfIdle}.
+ */
+class TopicQueue {
+
+    // 每次从日志读回的最大偏移量数
+    private static final int PAGE_IN_BATCH = 1000;
+    // 每条排队的消息在堆上只占一个 long
+    private static final int ENTRY_BYTES = Long.BYTES;
+
+    private final String topic;
+    private final ScheduledExecutorService timer;
+    private final MessageStore messageStore;
+    private final MemoryBudget memoryBudget;
+    private final long maxBytes;
+    private final boolean includeAcknowledged;
+    // 取出后已无法从日志读回的偏移量（分段已被删除或记录无法解码），为 null 时不报告
+    private final LongConsumer skippedListener;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final OffsetQueue offsets = new OffsetQueue();
+    // 按到达顺序排队的等待者；超时或取消时把自己移除
+    private final LinkedHashSet<Waiter> waiters = new LinkedHashSet<>();
+    // 尚未记录偏移量的消息所在的日志范围 [spillStart, spillEnd)
+    private long spillStart;
+    private long spillEnd;
+    // 最后一次追加或取出消息的时间，用于回收长时间不用的空队列
+    private long lastUsedAt = System.currentTimeMillis();
+    // 已被回收：不再接受消费者，调用方换用这个主题新建的队列
+    private boolean retired;
+
+    /**
+     * @param timer        Expires waiting consumers.
+     * @param messageStore Where queued messages are read from.
+     * @param memoryBudget The memory shared by the queues of all topics.
+     * @param maxBytes     The memory this topic may use on its own.
+     */
+    TopicQueue(String topic, ScheduledExecutorService timer, MessageStore messageStore, MemoryBudget memoryBudget, long maxBytes) {
+        this.topic = topic;
+        this.timer = timer;
+        this.messageStore = messageStore;
+        this.memoryBudget = memoryBudget;
+        this.maxBytes = maxBytes;
+        this.includeAcknowledged = false;
+        this.skippedListener = null;
+    }
+
+    /**
+     * Creates the queue of a consumer group, covering the messages already stored in {@code [fromOffset, toOffset)}.
+     *
+     * @param skippedListener Called with every offset taken from the queue whose message could not be read
+     *                        from the log anymore.
+     */
+    TopicQueue(String topic, ScheduledExecutorService timer, MessageStore messageStore, MemoryBudget memoryBudget,
+               long fromOffset, long toOffset, LongConsumer skippedListener) {
+        this.topic = topic;
+        this.timer = timer;
+        this.messageStore = messageStore;
+        this.memoryBudget = memoryBudget;
+        this.maxBytes = 0;
+        this.includeAcknowledged = true;
+        this.skippedListener = skippedListener;
+        this.spillStart = fromOffset;
+        this.spillEnd = Math.max(fromOffset, toOffset);
+    }
+
+    /**
+     * Adds a message that was just stored, in log order. It is handed to the longest waiting consumer,
+     * queued, or only covered by the spilled range if memory is exhausted or the range is not drained yet.
+     * <p>
+     * Delayed messages are always queued; collecting offsets from the spilled range skips them.
+     */
+    void append(Message message) {
+        Waiter waiter;
+        lock.lock();
+        try {
+            lastUsedAt = System.currentTimeMillis();
+            waiter = nextWaiter();
+            if (waiter == null) {
+                boolean spilling = spillStart < spillEnd;
+                if (message.getDeliverAt() > 0) {
+                    enqueue(message.getOffset());
+                } else if (!spilling && (long) (offsets.size() + 1) * ENTRY_BYTES <= maxBytes && memoryBudget.tryReserve(ENTRY_BYTES)) {
+                    offsets.add(message.getOffset());
+                } else {
+                    if (!spilling) {
+                        spillStart = message.getOffset();
+                    }
+                    spillEnd = message.getOffset() + 1;
+                }
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        // 等待者已从集合中移除，不会再超时或被取消；在锁外完成，避免在锁内执行它的回调
+        waiter.deliver(Collections.singletonList(message));
+    }
+
+    /**
+     * Hands a message that was delivered before, or became due, to the longest waiting consumer,
+     * or queues it if nobody is waiting. Such messages are queued even beyond the limits.
+     */
+    void offer(Message message) {
+        Waiter waiter;
+        lock.lock();
+        try {
+            lastUsedAt = System.currentTimeMillis();
+            waiter = nextWaiter();
+            if (waiter == null) {
+                enqueue(message.getOffset());
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        waiter.deliver(Collections.singletonList(message));
+    }
+
+    /**
+     * Like {@link #offer}, for a delayed message that became due, by its offset in the log.
+     *
+     * @return false if the message could not be read back from the log.
+     */
+    boolean release(long offset) {
+        List<Message> read = new ArrayList<>(1);
+        messageStore.read(topic, offset, offset + 1, 1, includeAcknowledged, read::add);
+        if (read.isEmpty()) {
+            return false;
+        }
+        offer(read.get(0));
+        return true;
+    }
+
+    // 调用方持有锁
+    private Waiter nextWaiter() {
+        Iterator<Waiter> it = waiters.iterator();
+        if (!it.hasNext()) {
+            return null;
+        }
+        Waiter waiter = it.next();
+        it.remove();
+        return waiter;
+    }
+
+    // 调用方持有锁
+    private void enqueue(long offset) {
+        memoryBudget.reserve(ENTRY_BYTES);
+        offsets.add(offset);
+    }
+
+    // 调用方持有锁。取出最多 maxCount 个偏移量，队列为空时先从溢出范围收集下一批；延迟消息由定时器单独投递，收集时跳过
+    private long[] dequeue(int maxCount) {
+        while (offsets.isEmpty() && spillStart < spillEnd) {
+            spillStart = messageStore.readOffsets(topic, spillStart, spillEnd, PAGE_IN_BATCH, includeAcknowledged, this::enqueue);
+        }
+        long[] batch = new long[Math.min(maxCount, offsets.size())];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = offsets.poll();
+        }
+        memoryBudget.release((long) batch.length * ENTRY_BYTES);
+        return batch;
+    }
+
+    // 在锁外从日志解码消息，连续的偏移量一次读取。已被保留策略删除的消息不再返回
+    private List<Message> load(long[] batch) {
+        List<Message> loaded = new ArrayList<>(batch.length);
+        int from = 0;
+        while (from < batch.length) {
+            int to = from + 1;
+            while (to < batch.length && batch[to] == batch[to - 1] + 1) {
+                to++;
+            }
+            int before = loaded.size();
+            messageStore.read(topic, batch[from], batch[to - 1] + 1, to - from, includeAcknowledged, loaded::add);
+            if (skippedListener != null && loaded.size() - before < to - from) {
+                reportSkipped(batch, from, to, loaded.subList(before, loaded.size()));
+            }
+            from = to;
+        }
+        return loaded;
+    }
+
+    // batch[from, to) 是连续的偏移量，read 按顺序返回其中仍能读到的消息
+    private void reportSkipped(long[] batch, int from, int to, List<Message> read) {
+        Iterator<Message> it = read.iterator();
+        Message next = it.hasNext() ? it.next() : null;
+        for (int i = from; i < to; i++) {
+            if (next != null && next.getOffset() == batch[i]) {
+                next = it.hasNext() ? it.next() : null;
+            } else {
+                skippedListener.accept(batch[i]);
+            }
+        }
+    }
+
+    /**
+     * Takes up to {@code maxCount} messages, waiting up to {@code maxWaitMs} for the first one.
+     * <p>
+     * Cancelling the returned future gives up the wait. It has no effect once messages were handed out.
+     *
+     * @param dispatchListener Called for every message handed to this consumer.
+     * @return A future completed with the messages, or with an empty list once the wait times out; null if the
+     *         queue was {@link #retireIfIdle retired}, and the consumer has to poll the new queue of the topic.
+     */
+    CompletableFuture<List<Message>> poll(int maxCount, long maxWaitMs, Consumer<Message> dispatchListener) {
+        Waiter waiter = new Waiter(dispatchListener);
+        List<Message> batch;
+        do {
+            long[] dequeued;
+            lock.lock();
+            try {
+                if (retired) {
+                    return null;
+                }
+                lastUsedAt = System.currentTimeMillis();
+                dequeued = dequeue(maxCount);
+                if (dequeued.length == 0 && maxWaitMs > 0) {
+                    waiters.add(waiter);
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (dequeued.length == 0) {
+                batch = Collections.emptyList();
+                break;
+            }
+            // 取出的消息可能恰好全部被保留策略删除，此时再取一次
+            batch = load(dequeued);
+        } while (batch.isEmpty());
+        if (!batch.isEmpty() || maxWaitMs <= 0) {
+            waiter.deliver(batch);
+            return waiter;
+        }
+        ScheduledFuture<?> timeout = timer.schedule(() -> withdraw(waiter), maxWaitMs, TimeUnit.MILLISECONDS);
+        waiter.whenComplete((result, error) -> timeout.cancel(false));
+        return waiter;
+    }
+
+    // 等待者仍在排队时才能撤回，已经拿到消息的等待者不受影响
+    private boolean withdraw(Waiter waiter) {
+        lock.lock();
+        try {
+            if (!waiters.remove(waiter)) {
+                return false;
+            }
+        } finally {
+            lock.unlock();
+        }
+        waiter.deliver(Collections.emptyList());
+        return true;
+    }
+
+    /**
+     * @return The number of messages waiting to be consumed. Messages in the spilled range are counted by
+     *         their offsets, so the count also includes delayed messages stored in that range.
+     */
+    long depth() {
+        lock.lock();
+        try {
+            return offsets.size() + (spillEnd - spillStart);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retires the queue if no message is queued, no consumer is waiting, and it was last used before
+     * {@code idleSince}. A retired queue turns consumers away, so that it can be dropped; the caller must
+     * make sure that no more messages are added to it.
+     *
+     * @return true if the queue was retired.
+     */
+    boolean retireIfIdle(long idleSince) {
+        lock.lock();
+        try {
+            if (!retired && lastUsedAt < idleSince && waiters.isEmpty() && offsets.isEmpty() && spillStart >= spillEnd) {
+                retired = true;
+            }
+            return retired;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops every queued message below the given offset, after retention deleted their log segments.
+     *
+     * @return The number of queued offsets removed, not counting the spilled range.
+     */
+    int evictBefore(long startOffset) {
+        lock.lock();
+        try {
+            int removed = offsets.removeBelow(startOffset);
+            memoryBudget.release((long) removed * ENTRY_BYTES);
+            spillStart = Math.max(spillStart, Math.min(startOffset, spillEnd));
+            return removed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private final class Waiter extends CompletableFuture<List<Message>> {
+
+        private final Consumer<Message> dispatchListener;
+
+        private Waiter(Consumer<Message> dispatchListener) {
+            this.dispatchListener = dispatchListener;
+        }
+
+        private void deliver(List<Message> batch) {
+            batch.forEach(dispatchListener);
+            super.complete(batch);
+        }
+
+        /**
+         * Gives up the wait, completing this future with an empty list if it was still waiting.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return withdraw(this);
+        }
+
+        // 只能由所属队列完成，保证出队的消息一定会交给这个等待者
+        @Override
+        public boolean complete(List<Message> value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean completeExceptionally(Throwable ex) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package io.github.jameswang777.minimq;
+
+import io.github.jameswang777.minimq.model.Message;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * The messages delivered to consumers and not acknowledged yet, indexed by message ID, with their ACK timeouts.
+ * <p>
+ * Messages stored by this broker have numeric IDs and are indexed by a {@link ConcurrentLongMap}, so an ACK
+ * parses the ID once and looks it up without hashing or comparing strings. Messages stored by earlier
+ * versions keep their string IDs and are indexed separately.
+ */
+class UnackedMessages {
+
+    private final ConcurrentLongMap<TimingWheel.Timeout<Message>> byNumericId = new ConcurrentLongMap<>();
+    private final ConcurrentHashMap<String, TimingWheel.Timeout<Message>> byLegacyId = new ConcurrentHashMap<>();
+
+    /**
+     * @return The timeout of an earlier delivery of the same message, or null if there was none.
+     */
+    TimingWheel.Timeout<Message> put(TimingWheel.Timeout<Message> timeout) {
+        Message message = timeout.getItem();
+        return message.getNumericId() >= 0
+                ? byNumericId.put(message.getNumericId(), timeout)
+                : byLegacyId.put(message.getId(), timeout);
+    }
+
+    /**
+     * @return The timeout of the message with the given ID, or null if it is not awaiting an ACK.
+     */
+    TimingWheel.Timeout<Message> remove(String messageId) {
+        long numericId = Message.parseNumericId(messageId);
+        return numericId >= 0 ? byNumericId.remove(numericId) : byLegacyId.remove(messageId);
+    }
+
+    /**
+     * Removes the message of the timeout only if it is still tracked with this timeout.
+     *
+     * @return true if it was removed.
+     */
+    boolean remove(TimingWheel.Timeout<Message> timeout) {
+        Message message = timeout.getItem();
+        return message.getNumericId() >= 0
+                ? byNumericId.remove(message.getNumericId(), timeout)
+                : byLegacyId.remove(message.getId(), timeout);
+    }
+
+    /**
+     * Removes the messages whose timeouts match the filter, see {@link ConcurrentLongMap#removeIf}.
+     *
+     * @return The number of messages removed.
+     */
+    int removeIf(Predicate<TimingWheel.Timeout<Message>> filter) {
+        int removed = byNumericId.removeIf(filter);
+        for (Map.Entry<String, TimingWheel.Timeout<Message>> entry : byLegacyId.entrySet()) {
+            if (filter.test(entry.getValue()) && byLegacyId.remove(entry.getKey(), entry.getValue())) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    int size() {
+        return byNumericId.size() + byLegacyId.size();
+    }
+}
@@ -0,0 +1,48 @@
+package io.github.jameswang777.minimq;
+
+import io.github.jameswang777.minimq.model.Compression;
+import io.github.jameswang777.minimq.model.Message;
+import io.github.jameswang777.minimq.network.Response;
+
+import java.util.List;
+
+/**
+ * Encodes the responses of one connection, in the protocol the client chose: text lines or binary frames.
+ */
+interface WireFormat {
+
+    WireFormat TEXT = new TextWireFormat();
+    WireFormat BINARY = new BinaryWireFormat(Compression.NONE);
+
+    /**
+     * The IDs of stored messages, in the order they were produced.
+     */
+    Response ids(List<String> messageIds);
+
+    /**
+     * @param retryAfterMs How long the client should wait before retrying; only sent with code 503.
+     */
+    Response error(int code, long retryAfterMs, String description);
+
+    /**
+     * The answer to a consume request.
+     *
+     * @param batch Whether a text client asked for up to a maximum count, and therefore expects a {@code BATCH:<n>} answer.
+     */
+    Response messages(List<Message> messages, boolean batch);
+
+    /**
+     * Messages pushed to a subscriber.
+     */
+    Response push(List<Message> messages);
+
+    /**
+     * The answer to a partitions request: the number of partitions of the topic.
+     */
+    Response partitions(int count);
+
+    /**
+     * The answer to a stats request: metric samples in the Prometheus text format, one per line.
+     */
+    Response stats(List<String> samples);
+}
@@ -0,0 +1,210 @@
+package io.github.jameswang777.minimq.metrics;
+
+import io.github.jameswang777.minimq.network.Connection;
+import io.github.jameswang777.minimq.protocol.Partitions;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * The metrics of a broker: the {@link TopicMetrics} of every topic, the bytes sent and received on every open
+ * connection, and gauges that the broker computes when the metrics are read, like queue depths.
+ * <p>
+ * Metrics are rendered as samples in the Prometheus text format, for {@link MetricsHttpServer} and the
+ * STATS command. Latencies are summaries with the quantiles 0.5, 0.9, 0.99 and 0.999, in seconds.
+ */
+public class BrokerMetrics {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final ConcurrentHashMap<String, TopicMetrics> topics = new ConcurrentHashMap<>();
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final List<Gauge<LongSupplier>> gauges = new CopyOnWriteArrayList<>();
+    private final List<Gauge<ToLongFunction<String>>> topicGauges = new CopyOnWriteArrayList<>();
+
+    /**
+     * @return The metrics of the topic, created on first use.
+     */
+    public TopicMetrics topic(String topic) {
+        TopicMetrics metrics = topics.get(topic);
+        return metrics != null ? metrics : topics.computeIfAbsent(topic, k -> new TopicMetrics());
+    }
+
+    /**
+     * Stops reporting the topic, once the broker dropped it as unused. Its counters start from zero if it is used again.
+     */
+    public void removeTopic(String topic) {
+        topics.remove(topic);
+    }
+
+    /**
+     * Reports the bytes of the connection until it is {@link #removeConnection removed}.
+     */
+    public void addConnection(Connection connection) {
+        connections.add(connection);
+    }
+
+    public void removeConnection(Connection connection) {
+        connections.remove(connection);
+    }
+
+    /**
+     * Adds a broker-wide gauge, read whenever the metrics are rendered.
+     */
+    public void gauge(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge<>(name, help, value));
+    }
+
+    /**
+     * Adds a gauge with a value per topic, read for every topic whenever the metrics are rendered.
+     */
+    public void topicGauge(String name, String help, ToLongFunction<String> value) {
+        topicGauges.add(new Gauge<>(name, help, value));
+    }
+
+    /**
+     * @return Every metric in the Prometheus text exposition format, with HELP and TYPE comments.
+     */
+    public String toPrometheusText() {
+        Output out = new Output(null, true);
+        write(out);
+        StringBuilder text = new StringBuilder();
+        out.lines.forEach(line -> text.append(line).append('\n'));
+        return text.toString();
+    }
+
+    /**
+     * @param topic Only return the samples of this topic, and of its partitions if it is partitioned,
+     *              or null for all samples.
+     * @return The samples in the Prometheus text format, one per line, without comments.
+     */
+    public List<String> samples(String topic) {
+        Output out = new Output(topic, false);
+        write(out);
+        return out.lines;
+    }
+
+    private void write(Output out) {
+        out.family("minimq_connections", "gauge", "Open client connections.");
+        out.sample("minimq_connections", null, null, connections.size());
+        for (Gauge<LongSupplier> gauge : gauges) {
+            out.family(gauge.name, "gauge", gauge.help);
+            out.sample(gauge.name, null, null, gauge.value.getAsLong());
+        }
+
+        // 按主题名排序，输出稳定，便于对比
+        Map<String, TopicMetrics> byTopic = new TreeMap<>(topics);
+        counter(out, byTopic, "minimq_topic_messages_in_total", "Messages stored.", TopicMetrics::messagesIn);
+        counter(out, byTopic, "minimq_topic_bytes_in_total", "Bytes of messages stored.", TopicMetrics::bytesIn);
+        counter(out, byTopic, "minimq_topic_messages_out_total", "Messages delivered to consumers, including redeliveries.", TopicMetrics::messagesOut);
+        counter(out, byTopic, "minimq_topic_bytes_out_total", "Bytes of messages sent to consumers.", TopicMetrics::bytesOut);
+        counter(out, byTopic, "minimq_topic_acknowledged_total", "Messages acknowledged.", TopicMetrics::acknowledged);
+        counter(out, byTopic, "minimq_topic_redeliveries_total", "Messages re-queued after their ACK timeout.", TopicMetrics::redelivered);
+        out.family("minimq_topic_unacked", "gauge", "Messages delivered and not acknowledged yet.");
+        byTopic.forEach((topic, metrics) -> out.sample("minimq_topic_unacked", topic, null, metrics.unacked()));
+        for (Gauge<ToLongFunction<String>> gauge : topicGauges) {
+            out.family(gauge.name, "gauge", gauge.help);
+            byTopic.keySet().forEach(topic -> out.sample(gauge.name, topic, null, gauge.value.applyAsLong(topic)));
+        }
+        summary(out, byTopic, "minimq_topic_produce_latency_seconds",
+                "Time from receiving a produce request until its messages are durable.", TopicMetrics::produceLatency, 1e6);
+        summary(out, byTopic, "minimq_topic_end_to_end_latency_seconds",
+                "Time from receiving a message until it is delivered to a consumer.", TopicMetrics::endToEndLatency, 1e3);
+
+        List<Connection> open = new ArrayList<>(connections);
+        open.sort(Comparator.comparing(Connection::getRemoteAddress));
+        out.family("minimq_connection_bytes_in_total", "counter", "Bytes received from the client.");
+        open.forEach(c -> out.sample("minimq_connection_bytes_in_total", null, connectionLabel(c), c.getBytesReceived()));
+        out.family("minimq_connection_bytes_out_total", "counter", "Bytes sent to the client.");
+        open.forEach(c -> out.sample("minimq_connection_bytes_out_total", null, connectionLabel(c), c.getBytesSent()));
+    }
+
+    private static void counter(Output out, Map<String, TopicMetrics> byTopic, String name, String help,
+                                ToLongFunction<TopicMetrics> value) {
+        out.family(name, "counter", help);
+        byTopic.forEach((topic, metrics) -> out.sample(name, topic, null, value.applyAsLong(metrics)));
+    }
+
+    // Prometheus 约定以秒为单位；unitsPerSecond 是直方图的单位与秒的换算
+    private static void summary(Output out, Map<String, TopicMetrics> byTopic, String name, String help,
+                                Function<TopicMetrics, Histogram> histogram, double unitsPerSecond) {
+        out.family(name, "summary", help);
+        byTopic.forEach((topic, metrics) -> {
+            Histogram.Snapshot snapshot = histogram.apply(metrics).snapshot();
+            for (double quantile : QUANTILES) {
+                out.sample(name, topic, "quantile=\"" + quantile + "\"", snapshot.valueAt(quantile) / unitsPerSecond);
+            }
+            out.sample(name + "_sum", topic, null, snapshot.sum() / unitsPerSecond);
+            out.sample(name + "_count", topic, null, snapshot.count());
+        });
+    }
+
+    private static String connectionLabel(Connection connection) {
+        return "connection=\"" + escape(connection.getRemoteAddress()) + "\"";
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static final class Gauge<F> {
+
+        private final String name;
+        private final String help;
+        private final F value;
+
+        private Gauge(String name, String help, F value) {
+            this.name = name;
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+    // 收集输出的行；按主题过滤时只保留带有该主题（或它的分区）标签的样本
+    private static final class Output {
+
+        private final String topic;
+        private final boolean comments;
+        private final List<String> lines = new ArrayList<>();
+
+        private Output(String topic, boolean comments) {
+            this.topic = topic;
+            this.comments = comments;
+        }
+
+        private void family(String name, String type, String help) {
+            if (comments) {
+                lines.add("# HELP " + name + " " + help);
+                lines.add("# TYPE " + name + " " + type);
+            }
+        }
+
+        private void sample(String name, String sampleTopic, String labels, Object value) {
+            if (topic != null && (sampleTopic == null
+                    || !(sampleTopic.equals(topic) || Partitions.baseTopic(sampleTopic).equals(topic)))) {
+                return;
+            }
+            StringBuilder line = new StringBuilder(name);
+            if (sampleTopic != null || labels != null) {
+                line.append('{');
+                if (sampleTopic != null) {
+                    line.append("topic=\"").append(escape(sampleTopic)).append('"');
+                }
+                if (labels != null) {
+                    line.append(sampleTopic != null ? "," : "").append(labels);
+                }
+                line.append('}');
+            }
+            lines.add(line.append(' ').append(value).toString());
+        }
+    }
+}
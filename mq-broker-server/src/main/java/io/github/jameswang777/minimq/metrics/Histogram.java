@@ -0,0 +1,113 @@
+package io.github.jameswang777.minimq.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative values in the style of HdrHistogram: every power of two is split into
+ * {@value #SUB_BUCKETS} equally wide buckets, so a quantile is known to within 1/{@value #SUB_BUCKETS} of its
+ * value over the whole range, from 0 up to {@value #MAX_MAGNITUDE} powers of two.
+ * <p>
+ * Recording is lock-free and allocates nothing: it increments one counter of a fixed array.
+ * Larger values are counted as the maximum of the range.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // 每个 2 的幂分为 16 个桶，误差不超过 6.25%
+    private static final int MAX_MAGNITUDE = 36; // 以微秒计约 19 小时
+    private static final long MAX_VALUE = (1L << (MAX_MAGNITUDE + 1)) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(indexOf(MAX_VALUE) + 1);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        long clamped = Math.max(0, Math.min(value, MAX_VALUE));
+        counts.incrementAndGet(indexOf(clamped));
+        sum.add(clamped);
+        // 最大值很少变化，先读再比较，避免每次都写同一个缓存行
+        if (clamped > max.get()) {
+            max.accumulateAndGet(clamped, Math::max);
+        }
+    }
+
+    // 小于 16 的值各占一个桶；更大的值按最高位所在的幂和其后 4 位定位
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return ((magnitude - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    // 桶中最大的值
+    private static long highestValueAt(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int magnitude = (index >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+        int shift = magnitude - SUB_BUCKET_BITS;
+        long lowest = (long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1))) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * @return A copy of the current counts. Values recorded while it is taken may or may not be included.
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[counts.length()];
+        long count = 0;
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        return new Snapshot(copy, count, sum.sum(), max.get());
+    }
+
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public long sum() {
+            return sum;
+        }
+
+        public long max() {
+            return max;
+        }
+
+        /**
+         * @param quantile Between 0 and 1, e.g. 0.99.
+         * @return The smallest value that at least the given fraction of the recorded values do not exceed,
+         *         rounded up to the end of its bucket; 0 if nothing was recorded.
+         */
+        public long valueAt(double quantile) {
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValueAt(i), max);
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package io.github.jameswang777.minimq.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves the {@link BrokerMetrics} in the Prometheus text format at {@code GET /metrics}, using the HTTP
+ * server built into the JDK. Requests are answered on the server's single dispatcher thread, which is
+ * enough for a scraper polling every few seconds.
+ */
+@Slf4j
+public class MetricsHttpServer implements Closeable {
+
+    private static final String PATH = "/metrics";
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer server;
+    private final BrokerMetrics metrics;
+
+    public MetricsHttpServer(InetSocketAddress address, BrokerMetrics metrics) throws IOException {
+        this.metrics = metrics;
+        this.server = HttpServer.create(address, 0);
+        server.createContext(PATH, this::handle);
+        server.start();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "GET");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body;
+            try {
+                body = metrics.toPrometheusText().getBytes(StandardCharsets.UTF_8);
+            } catch (RuntimeException e) {
+                log.error("Could not render metrics", e);
+                exchange.sendResponseHeaders(500, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
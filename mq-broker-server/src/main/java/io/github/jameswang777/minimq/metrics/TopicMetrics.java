@@ -0,0 +1,113 @@
+package io.github.jameswang777.minimq.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters and latency histograms of one topic, including its consumer groups.
+ * <p>
+ * Every method only adds to a {@link LongAdder} or a {@link Histogram}, so producers and consumers
+ * of the same topic update the metrics without contending for a lock.
+ */
+public class TopicMetrics {
+
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder acknowledged = new LongAdder();
+    private final LongAdder redelivered = new LongAdder();
+    private final LongAdder unacked = new LongAdder();
+    // 从收到 PRODUCE 到消息按刷盘策略落盘，单位微秒
+    private final Histogram produceLatency = new Histogram();
+    // 从 Broker 收到消息到投递给消费者，单位毫秒
+    private final Histogram endToEndLatency = new Histogram();
+
+    /**
+     * A message of the given size in the log was stored.
+     */
+    public void recordStored(int bytes) {
+        messagesIn.increment();
+        bytesIn.add(bytes);
+    }
+
+    /**
+     * A produce request became durable after the given time.
+     */
+    public void recordProduceLatency(long nanos) {
+        produceLatency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /**
+     * A message the broker received at the given time was delivered and now awaits an ACK.
+     */
+    public void recordDelivered(long receivedAtMs) {
+        messagesOut.increment();
+        unacked.increment();
+        endToEndLatency.record(System.currentTimeMillis() - receivedAtMs);
+    }
+
+    /**
+     * Messages were sent to consumers in a response of the given size.
+     */
+    public void recordSent(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    public void recordAcknowledged(int count) {
+        acknowledged.add(count);
+        unacked.add(-count);
+    }
+
+    /**
+     * A message was not acknowledged in time and goes back to the queue.
+     */
+    public void recordRedelivered() {
+        redelivered.increment();
+        unacked.decrement();
+    }
+
+    /**
+     * Messages no longer await an ACK without being acknowledged: they were delivered again before their
+     * timeout, or removed by retention.
+     */
+    public void recordForgotten(int count) {
+        unacked.add(-count);
+    }
+
+    long messagesIn() {
+        return messagesIn.sum();
+    }
+
+    long bytesIn() {
+        return bytesIn.sum();
+    }
+
+    long messagesOut() {
+        return messagesOut.sum();
+    }
+
+    long bytesOut() {
+        return bytesOut.sum();
+    }
+
+    long acknowledged() {
+        return acknowledged.sum();
+    }
+
+    long redelivered() {
+        return redelivered.sum();
+    }
+
+    long unacked() {
+        return unacked.sum();
+    }
+
+    Histogram produceLatency() {
+        return produceLatency;
+    }
+
+    Histogram endToEndLatency() {
+        return endToEndLatency;
+    }
+}
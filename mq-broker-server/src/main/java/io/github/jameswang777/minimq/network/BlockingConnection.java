@@ -0,0 +1,248 @@
+package io.github.jameswang777.minimq.network;
+
+import io.github.jameswang777.minimq.protocol.BinaryProtocol;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * A client connection served by its own thread, which blocks reading the socket and runs every
+ * command inline. Meant to run on a virtual thread, where blocking is cheap. A connection that
+ * starts with the {@link BinaryProtocol} handshake is read as length-prefixed frames instead of lines.
+ * <p>
+ * A command that completes later, like a CONSUME waiting for a message or a PRODUCE waiting for its
+ * flush, does not hold up the reader: it keeps reading and running the following commands, so
+ * pipelined requests are served together and a client that disconnects meanwhile is noticed right away.
+ * Responses are still written in request order.
+ * <p>
+ * Only {@link ReentrantLock}s are used, so a virtual thread never pins its carrier while it waits.
+ */
+@Slf4j
+class BlockingConnection implements Connection, Runnable {
+
+    // 命令通常只有几百字节；默认的 8K 缓冲区在上万个连接时会占用数百 MB 堆内存
+    private static final int BUFFER_CHARS = 1024;
+    private static final int BUFFER_BYTES = 1024;
+    // 单个连接上允许等待响应的命令数，超过后暂停读取，直到最早的响应写出
+    private static final int MAX_PENDING_COMMANDS = 1024;
+
+    private final Socket socket;
+    private final String remoteAddress;
+    private final CommandHandler handler;
+    // 写出稍后才完成的命令的响应，不占用完成它的线程（那个线程可能持有主题锁）
+    private final Executor lateResponses;
+    // 上一条命令的响应写出，响应总是接在它后面写出，从而保证响应顺序
+    private CompletableFuture<Void> lastResponse = CompletableFuture.completedFuture(null);
+    private final AtomicInteger pendingCommands = new AtomicInteger();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final BufferedOutputStream out;
+    private final WritableByteChannel outChannel;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // 只由读取线程和持有 writeLock 的线程分别修改，其他线程只读取
+    private volatile long bytesReceived;
+    private volatile long bytesSent;
+
+    BlockingConnection(Socket socket, ThreadFactory threads, Function<Connection, CommandHandler> handlerFactory) throws IOException {
+        this.socket = socket;
+        this.lateResponses = task -> threads.newThread(task).start();
+        this.remoteAddress = String.valueOf(socket.getRemoteSocketAddress());
+        this.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_BYTES);
+        this.outChannel = Channels.newChannel(out);
+        this.handler = handlerFactory.apply(this);
+    }
+
+    @Override
+    public void run() {
+        try (InputStream in = new BufferedInputStream(new CountingInputStream(socket.getInputStream()), BUFFER_BYTES)) {
+            // 第一个字节决定使用文本协议还是二进制协议
+            in.mark(1);
+            int first = in.read();
+            in.reset();
+            if (first >= 0 && BinaryProtocol.startsHandshake((byte) first)) {
+                readFrames(new DataInputStream(in));
+            } else {
+                readLines(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), BUFFER_CHARS));
+            }
+        } catch (SocketException | EOFException e) {
+            // This is a common exception when a client abruptly disconnects. Log as INFO.
+            if (!closed.get()) {
+                log.info("Client [{}] disconnected abruptly: {}", remoteAddress, e.getMessage());
+            }
+        } catch (IOException e) {
+            log.error("An I/O error occurred while handling client [{}]:", remoteAddress, e);
+        } finally {
+            close();
+        }
+    }
+
+    private void readLines(BufferedReader in) throws IOException {
+        String inputLine;
+        while ((inputLine = in.readLine()) != null) {
+            String line = inputLine;
+            execute(handler -> handler.handle(line));
+        }
+    }
+
+    private void readFrames(DataInputStream in) throws IOException {
+        byte[] magic = new byte[BinaryProtocol.MAGIC_LENGTH];
+        in.readFully(magic);
+        if (!BinaryProtocol.isMagic(magic, 0)) {
+            log.warn("Closing connection [{}]: unsupported protocol handshake", remoteAddress);
+            return;
+        }
+        send(new Response().add(ByteBuffer.wrap(BinaryProtocol.magic())));
+        while (true) {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return; // 客户端在两帧之间关闭了连接
+            }
+            if (length < 1 || length > BinaryProtocol.MAX_FRAME_BYTES) {
+                log.warn("Closing connection [{}]: invalid frame length {}", remoteAddress, length);
+                return;
+            }
+            byte[] frame = new byte[length];
+            in.readFully(frame);
+            execute(handler -> handler.handleFrame(ByteBuffer.wrap(frame)));
+        }
+    }
+
+    private void execute(Function<CommandHandler, CompletableFuture<Response>> command) {
+        // 命令立即执行，不等待前一条命令的响应；积压过多时才等待
+        if (pendingCommands.get() >= MAX_PENDING_COMMANDS) {
+            lastResponse.join();
+        }
+        CompletableFuture<Response> response;
+        try {
+            response = command.apply(handler);
+        } catch (RuntimeException e) {
+            log.error("Failed to handle command from [{}]", remoteAddress, e);
+            return;
+        }
+        if (lastResponse.isDone() && response.isDone()) {
+            lastResponse = response.handle(this::respond);
+        } else {
+            pendingCommands.incrementAndGet();
+            lastResponse = lastResponse
+                    .thenCompose(ignored -> response)
+                    .handleAsync(this::respondLate, lateResponses);
+        }
+    }
+
+    private Void respondLate(Response response, Throwable error) {
+        pendingCommands.decrementAndGet();
+        return respond(response, error);
+    }
+
+    private Void respond(Response response, Throwable error) {
+        if (error != null) {
+            log.error("Failed to handle command from [{}]", remoteAddress, error);
+        } else if (response != null) {
+            send(response);
+        }
+        return null;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    @Override
+    public void send(Response response) {
+        if (closed.get()) {
+            return;
+        }
+        writeLock.lock();
+        try {
+            for (ByteBuffer buffer : response.buffers()) {
+                while (buffer.hasRemaining()) {
+                    bytesSent += outChannel.write(buffer);
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            log.debug("Write to client [{}] failed: {}", remoteAddress, e.toString());
+            close();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.error("Error while closing socket for client [{}]:", remoteAddress, e);
+        }
+        handler.onClose();
+        log.info("Connection with client [{}] closed.", remoteAddress);
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    // 统计从 socket 读取的字节数，位于缓冲层之下
+    private final class CountingInputStream extends FilterInputStream {
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                bytesReceived++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                bytesReceived += n;
+            }
+            return n;
+        }
+    }
+}
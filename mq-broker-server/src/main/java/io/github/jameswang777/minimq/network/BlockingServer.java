@@ -0,0 +1,105 @@
+package io.github.jameswang777.minimq.network;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Function;
+
+/**
+ * A thread-per-connection server: every accepted socket is served by a {@link BlockingConnection}
+ * running on a thread from the given factory.
+ * <p>
+ * With a virtual thread factory this scales to many thousands of connections while keeping the
+ * simple blocking model; with platform threads it is the classic model, kept for comparison.
+ */
+@Slf4j
+public class BlockingServer implements NetworkServer {
+
+    private static final int ACCEPT_BACKLOG = 1024;
+
+    private final ThreadFactory connectionThreads;
+    private final Function<Connection, CommandHandler> handlerFactory;
+    private final List<ServerSocket> serverSockets = new CopyOnWriteArrayList<>();
+    private final List<Thread> acceptors = new CopyOnWriteArrayList<>();
+    private final Set<BlockingConnection> connections = ConcurrentHashMap.newKeySet();
+    private volatile boolean running = true;
+
+    public BlockingServer(ThreadFactory connectionThreads, Function<Connection, CommandHandler> handlerFactory) {
+        this.connectionThreads = connectionThreads;
+        this.handlerFactory = handlerFactory;
+    }
+
+    @Override
+    public void listen(int port, SSLContext sslContext, String type) throws IOException {
+        ServerSocket serverSocket = sslContext == null
+                ? new ServerSocket()
+                : sslContext.getServerSocketFactory().createServerSocket();
+        try {
+            serverSocket.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+        serverSockets.add(serverSocket);
+        acceptors.add(new Thread(() -> acceptLoop(serverSocket, type), "minimq-acceptor-" + port));
+    }
+
+    @Override
+    public void start() {
+        acceptors.forEach(Thread::start);
+    }
+
+    private void acceptLoop(ServerSocket serverSocket, String type) {
+        while (running) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (running) {
+                    log.error("Error accepting new {} connection", type, e);
+                }
+                continue;
+            }
+            try {
+                socket.setTcpNoDelay(true);
+                BlockingConnection connection = new BlockingConnection(socket, connectionThreads, handlerFactory);
+                log.info("Accepted new {} client connection from {}", type, connection.getRemoteAddress());
+                connections.add(connection);
+                connectionThreads.newThread(() -> {
+                    try {
+                        connection.run();
+                    } finally {
+                        connections.remove(connection);
+                    }
+                }).start();
+            } catch (IOException e) {
+                log.error("Could not set up new {} connection", type, e);
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // 连接尚未建立，忽略关闭时的错误
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        for (ServerSocket serverSocket : serverSockets) {
+            serverSocket.close();
+        }
+        for (BlockingConnection connection : connections) {
+            connection.close();
+        }
+    }
+}
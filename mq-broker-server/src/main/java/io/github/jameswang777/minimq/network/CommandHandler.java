@@ -0,0 +1,35 @@
+package io.github.jameswang777.minimq.network;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Executes the commands received on one {@link Connection}.
+ * <p>
+ * Commands of a connection are handled one after another on the command executor, never on an
+ * I/O thread, so implementations may block briefly. The next command is handled without waiting
+ * for the future returned for the previous one, so a client can pipeline requests; the responses
+ * are still written in request order.
+ */
+public interface CommandHandler {
+
+    /**
+     * @param line A complete command line, without its line terminator.
+     * @return A future of the response, completed with {@code null} if the command has no response.
+     */
+    CompletableFuture<Response> handle(String line);
+
+    /**
+     * Handles a frame of the binary protocol, once the client negotiated it with a handshake.
+     *
+     * @param frame The opcode followed by the body, without the length prefix.
+     * @return A future of the response, completed with {@code null} if the command has no response.
+     */
+    CompletableFuture<Response> handleFrame(ByteBuffer frame);
+
+    /**
+     * Called once after the connection was closed.
+     */
+    default void onClose() {
+    }
+}
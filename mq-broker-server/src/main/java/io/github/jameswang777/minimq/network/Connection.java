@@ -0,0 +1,39 @@
+package io.github.jameswang777.minimq.network;
+
+/**
+ * A connected client, as seen by its {@link CommandHandler}.
+ */
+public interface Connection {
+
+    String getRemoteAddress();
+
+    /**
+     * @return The number of bytes received from the client so far. May be called from any thread.
+     */
+    long getBytesReceived();
+
+    /**
+     * @return The number of bytes written to the client so far. May be called from any thread.
+     */
+    long getBytesSent();
+
+    /**
+     * Sends a line to the client. May be called from any thread; lines are written in the order they were sent.
+     */
+    default void send(String line) {
+        send(Response.of(line));
+    }
+
+    /**
+     * Sends the lines of a response to the client, without interleaving them with other lines.
+     * May be called from any thread; responses are written in the order they were sent.
+     */
+    void send(Response response);
+
+    /**
+     * Closes the connection. May be called from any thread.
+     */
+    void close();
+
+    boolean isClosed();
+}
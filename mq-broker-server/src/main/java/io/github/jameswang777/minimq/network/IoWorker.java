@@ -0,0 +1,145 @@
+package io.github.jameswang777.minimq.network;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An event loop owning a {@link Selector} and every {@link NioConnection} registered with it.
+ * <p>
+ * Connections are only touched from this thread; other threads hand work over with {@link #execute}.
+ */
+@Slf4j
+class IoWorker implements Runnable {
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    // 同一个 I/O 线程上的所有连接共用一个读缓冲区，数据会立即被拆分成行并拷贝走
+    private final ByteBuffer readBuffer;
+    private volatile boolean running = true;
+
+    IoWorker(String name, BufferPool pool) throws IOException {
+        this.selector = Selector.open();
+        this.readBuffer = pool.acquire();
+        this.thread = new Thread(this, name);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    ByteBuffer readBuffer() {
+        return readBuffer;
+    }
+
+    /**
+     * Runs the task on this event loop.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop() && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    void register(NioConnection connection) {
+        execute(() -> {
+            try {
+                connection.register(selector);
+            } catch (IOException e) {
+                log.error("Could not register connection [{}]", connection.getRemoteAddress(), e);
+                connection.close();
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                // 事件循环自己提交的任务不会唤醒 selector，有待执行的任务时不能阻塞在 select 上
+                if (tasks.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+            } catch (IOException e) {
+                log.error("Selector of {} failed", thread.getName(), e);
+                break;
+            }
+            wakeupPending.set(false);
+            runTasks();
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                NioConnection connection = (NioConnection) key.attachment();
+                try {
+                    if (key.isValid() && key.isWritable()) {
+                        connection.onWritable();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        connection.onReadable(readBuffer);
+                    }
+                } catch (CancelledKeyException e) {
+                    connection.close();
+                } catch (IOException e) {
+                    log.info("Client [{}] disconnected abruptly: {}", connection.getRemoteAddress(), e.getMessage());
+                    connection.close();
+                } catch (RuntimeException e) {
+                    log.error("Unexpected error on connection [{}]", connection.getRemoteAddress(), e);
+                    connection.close();
+                }
+            }
+        }
+        closeAll();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("Task failed on {}", thread.getName(), e);
+            }
+        }
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            ((NioConnection) key.attachment()).close();
+        }
+        runTasks();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.warn("Could not close selector of {}", thread.getName(), e);
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
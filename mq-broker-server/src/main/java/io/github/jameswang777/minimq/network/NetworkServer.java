@@ -0,0 +1,27 @@
+package io.github.jameswang777.minimq.network;
+
+import javax.net.ssl.SSLContext;
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Accepts client connections on one or more ports and feeds their commands to a {@link CommandHandler}.
+ */
+public interface NetworkServer extends Closeable {
+
+    /**
+     * Starts listening on the given port. Must be called before {@link #start()}.
+     *
+     * @param sslContext The context used to secure connections on this port, or {@code null} for plain TCP.
+     * @param type       A label for log messages.
+     */
+    void listen(int port, SSLContext sslContext, String type) throws IOException;
+
+    void start();
+
+    /**
+     * Stops accepting connections and closes every open connection.
+     */
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,387 @@
+package io.github.jameswang777.minimq.network;
+
+import io.github.jameswang777.minimq.protocol.BinaryProtocol;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * A client connection served by an {@link IoWorker}.
+ * <p>
+ * Incoming bytes are split into {@code '\n'} terminated lines, however they were fragmented by the
+ * network, and every line is passed to the connection's {@link CommandHandler}. A connection that
+ * starts with the {@link BinaryProtocol} handshake is split into length-prefixed frames instead.
+ * Responses can be {@link #send sent} from any thread; they are queued and written by the I/O thread.
+ */
+@Slf4j
+class NioConnection implements Connection {
+
+    private static final int MAX_LINE_BYTES = 16 * 1024 * 1024;
+    // 单个连接上允许排队的命令数，超过后暂停读取，直到积压降到一半以下
+    private static final int MAX_PENDING_COMMANDS = 1024;
+    private static final int RESUME_PENDING_COMMANDS = MAX_PENDING_COMMANDS / 2;
+    private static final int MAX_WRITE_BATCH = 64;
+    // 连接的第一个字节决定使用文本协议还是二进制协议
+    private static final int PROTOCOL_UNKNOWN = 0;
+    private static final int PROTOCOL_TEXT = 1;
+    private static final int PROTOCOL_BINARY = 2;
+
+    private final SocketChannel channel;
+    private final Transport transport;
+    private final IoWorker worker;
+    private final Executor commandExecutor;
+    private final String remoteAddress;
+    private final CommandHandler handler;
+
+    private SelectionKey key;
+    // 当前未读完的行，只在 I/O 线程中访问
+    private byte[] lineBuffer = new byte[256];
+    private int lineLength;
+    private int protocol = PROTOCOL_UNKNOWN;
+    private boolean handshakeReceived;
+    // 二进制协议中正在读取的帧的长度，-1 表示正在读取长度字段
+    private int frameLength = -1;
+    private boolean readPaused;
+    // 上一条命令的执行：命令依次执行，但不等待前一条命令的响应，流水线中的命令因此可以同时等待刷盘
+    private CompletableFuture<Void> lastHandled = CompletableFuture.completedFuture(null);
+    // 上一条命令的响应写出：响应总是接在它后面写出，从而保证响应顺序
+    private CompletableFuture<Void> lastResponse = CompletableFuture.completedFuture(null);
+    private final AtomicInteger pendingCommands = new AtomicInteger();
+
+    // 每个元素是一个响应的全部缓冲区，整体入队，不同线程发送的响应不会交错
+    private final ConcurrentLinkedQueue<ByteBuffer[]> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final ByteBuffer[] writeBatch = new ByteBuffer[MAX_WRITE_BATCH];
+    private volatile boolean closed;
+    // 只在 I/O 线程中修改，其他线程只读取
+    private volatile long bytesReceived;
+    private volatile long bytesSent;
+
+    NioConnection(SocketChannel channel, Transport transport, IoWorker worker, Executor commandExecutor,
+               Function<Connection, CommandHandler> handlerFactory) throws IOException {
+        this.channel = channel;
+        this.transport = transport;
+        this.worker = worker;
+        this.commandExecutor = commandExecutor;
+        this.remoteAddress = String.valueOf(channel.getRemoteAddress());
+        this.handler = handlerFactory.apply(this);
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    // 在 I/O 线程中调用
+    void register(Selector selector) throws IOException {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    /**
+     * Reads everything currently available and dispatches every complete line.
+     */
+    void onReadable(ByteBuffer readBuffer) throws IOException {
+        while (!readPaused && !closed) {
+            readBuffer.clear();
+            int n = transport.read(readBuffer);
+            if (n < 0) {
+                close();
+                return;
+            }
+            if (n == 0) {
+                break;
+            }
+            bytesReceived += n;
+            readBuffer.flip();
+            frame(readBuffer);
+            if (n < readBuffer.capacity() && !transport.hasBufferedInput()) {
+                break; // 没有读满，说明 socket 中暂时没有更多数据，省掉一次返回 0 的 read
+            }
+        }
+        if (!closed && !flushAfterRead()) {
+            close();
+        }
+    }
+
+    // TLS 握手消息可能在读取时产生，需要写出
+    private boolean flushAfterRead() {
+        try {
+            if (!transport.flush()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            } else if (!outbound.isEmpty()) {
+                flushOutbound();
+            }
+            return true;
+        } catch (IOException e) {
+            log.debug("Write to client [{}] failed: {}", remoteAddress, e.toString());
+            return false;
+        }
+    }
+
+    private void frame(ByteBuffer buffer) {
+        if (protocol == PROTOCOL_UNKNOWN && buffer.hasRemaining()) {
+            protocol = BinaryProtocol.startsHandshake(buffer.get(buffer.position())) ? PROTOCOL_BINARY : PROTOCOL_TEXT;
+        }
+        if (protocol == PROTOCOL_BINARY) {
+            frameBinary(buffer);
+        } else {
+            frameLines(buffer);
+        }
+    }
+
+    private void frameLines(ByteBuffer buffer) {
+        while (buffer.hasRemaining() && !closed) {
+            int start = buffer.position();
+            int end = indexOf(buffer, (byte) '\n', start, buffer.limit());
+            int chunk = (end < 0 ? buffer.limit() : end) - start;
+            if (lineLength + chunk > MAX_LINE_BYTES) {
+                log.warn("Closing connection [{}]: command exceeds {} bytes", remoteAddress, MAX_LINE_BYTES);
+                close();
+                return;
+            }
+            ensureLineCapacity(lineLength + chunk);
+            buffer.get(lineBuffer, lineLength, chunk);
+            lineLength += chunk;
+            if (end < 0) {
+                return; // 行还不完整，等待下一次读取
+            }
+            buffer.get(); // 跳过 '\n'
+            int length = lineLength;
+            if (length > 0 && lineBuffer[length - 1] == '\r') {
+                length--;
+            }
+            String line = new String(lineBuffer, 0, length, StandardCharsets.UTF_8);
+            dispatch(handler -> handler.handle(line));
+            lineLength = 0;
+            if (lineBuffer.length > 64 * 1024) {
+                lineBuffer = new byte[256]; // 不长期占用为超长行分配的缓冲区
+            }
+        }
+    }
+
+    // 二进制协议：先是握手魔数，之后每一帧为 [int 长度][长度个字节]
+    private void frameBinary(ByteBuffer buffer) {
+        while (buffer.hasRemaining() && !closed) {
+            int needed = !handshakeReceived ? BinaryProtocol.MAGIC_LENGTH : frameLength < 0 ? Integer.BYTES : frameLength;
+            int chunk = Math.min(needed - lineLength, buffer.remaining());
+            ensureLineCapacity(lineLength + chunk);
+            buffer.get(lineBuffer, lineLength, chunk);
+            lineLength += chunk;
+            if (lineLength < needed) {
+                return; // 等待下一次读取
+            }
+            lineLength = 0;
+            if (!handshakeReceived) {
+                if (!BinaryProtocol.isMagic(lineBuffer, 0)) {
+                    log.warn("Closing connection [{}]: unsupported protocol handshake", remoteAddress);
+                    close();
+                    return;
+                }
+                handshakeReceived = true;
+                send(new Response().add(ByteBuffer.wrap(BinaryProtocol.magic())));
+            } else if (frameLength < 0) {
+                frameLength = ByteBuffer.wrap(lineBuffer, 0, Integer.BYTES).getInt();
+                if (frameLength < 1 || frameLength > BinaryProtocol.MAX_FRAME_BYTES) {
+                    log.warn("Closing connection [{}]: invalid frame length {}", remoteAddress, frameLength);
+                    close();
+                    return;
+                }
+            } else {
+                ByteBuffer frame;
+                if (lineBuffer.length > 64 * 1024) {
+                    // 大帧直接交出缓冲区，不再复制，也不长期占用它
+                    frame = ByteBuffer.wrap(lineBuffer, 0, frameLength);
+                    lineBuffer = new byte[256];
+                } else {
+                    frame = ByteBuffer.wrap(Arrays.copyOf(lineBuffer, frameLength));
+                }
+                frameLength = -1;
+                dispatch(handler -> handler.handleFrame(frame));
+            }
+        }
+    }
+
+    private static int indexOf(ByteBuffer buffer, byte value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void ensureLineCapacity(int capacity) {
+        if (capacity > lineBuffer.length) {
+            lineBuffer = Arrays.copyOf(lineBuffer, Math.max(capacity, lineBuffer.length * 2));
+        }
+    }
+
+    private void dispatch(Function<CommandHandler, CompletableFuture<Response>> command) {
+        if (pendingCommands.incrementAndGet() >= MAX_PENDING_COMMANDS) {
+            readPaused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+        CompletableFuture<CompletableFuture<Response>> handled = lastHandled.thenApplyAsync(ignored -> handle(command), commandExecutor);
+        lastHandled = handled.thenAccept(response -> { });
+        lastResponse = lastResponse
+                .thenCompose(ignored -> handled.thenCompose(Function.identity()))
+                .handle((response, error) -> {
+                    if (error != null) {
+                        log.error("Failed to handle command from [{}]", remoteAddress, error);
+                    } else if (response != null) {
+                        send(response);
+                    }
+                    if (pendingCommands.decrementAndGet() == RESUME_PENDING_COMMANDS) {
+                        worker.execute(this::resumeReading);
+                    }
+                    return null;
+                });
+    }
+
+    private CompletableFuture<Response> handle(Function<CommandHandler, CompletableFuture<Response>> command) {
+        try {
+            return command.apply(handler);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private void resumeReading() {
+        if (!readPaused || closed) {
+            return;
+        }
+        readPaused = false;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        if (transport.hasBufferedInput()) {
+            try {
+                onReadable(worker.readBuffer());
+            } catch (IOException e) {
+                log.debug("Read from client [{}] failed: {}", remoteAddress, e.toString());
+                close();
+            }
+        }
+    }
+
+    /**
+     * Queues a response. May be called from any thread; responses are written in the order they were sent.
+     */
+    @Override
+    public void send(Response response) {
+        ByteBuffer[] buffers = response.buffers();
+        if (closed || buffers.length == 0) {
+            return;
+        }
+        outbound.add(buffers);
+        if (flushScheduled.compareAndSet(false, true)) {
+            worker.execute(() -> {
+                flushScheduled.set(false);
+                if (!closed) {
+                    try {
+                        flushOutbound();
+                    } catch (IOException e) {
+                        log.debug("Write to client [{}] failed: {}", remoteAddress, e.toString());
+                        close();
+                    }
+                }
+            });
+        }
+    }
+
+    void onWritable() throws IOException {
+        if (!transport.flush()) {
+            return;
+        }
+        flushOutbound();
+        if (transport.hasBufferedInput() && !readPaused) {
+            onReadable(worker.readBuffer()); // 握手期间缓存的数据现在可以继续处理
+        }
+    }
+
+    // 在 I/O 线程中调用：把排队响应的缓冲区（包括日志分段的视图）合并为一次 gathering write 写出，写不完时注册 OP_WRITE
+    private void flushOutbound() throws IOException {
+        while (true) {
+            int count = 0;
+            long queued = 0;
+            Iterator<ByteBuffer[]> it = outbound.iterator();
+            while (count < MAX_WRITE_BATCH && it.hasNext()) {
+                for (ByteBuffer buffer : it.next()) {
+                    // 跳过上次已写完的缓冲区；单个响应的缓冲区超过一批时，剩余部分留到下一轮
+                    if (buffer.hasRemaining() && count < MAX_WRITE_BATCH) {
+                        queued += buffer.remaining();
+                        writeBatch[count++] = buffer;
+                    }
+                }
+            }
+            if (count == 0) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                return;
+            }
+            boolean complete = transport.write(writeBatch, count);
+            for (int i = 0; i < count; i++) {
+                queued -= writeBatch[i].remaining();
+            }
+            bytesSent += queued;
+            ByteBuffer[] head;
+            while ((head = outbound.peek()) != null && !head[head.length - 1].hasRemaining()) {
+                outbound.poll();
+            }
+            Arrays.fill(writeBatch, 0, count, null);
+            if (!complete) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!worker.inEventLoop()) {
+            worker.execute(this::close);
+            return;
+        }
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (key != null) {
+            key.cancel();
+        }
+        transport.close();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.error("Error while closing socket for client [{}]:", remoteAddress, e);
+        }
+        outbound.clear();
+        handler.onClose();
+        log.info("Connection with client [{}] closed.", remoteAddress);
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+}
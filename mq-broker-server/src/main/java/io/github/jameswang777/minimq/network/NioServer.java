@@ -0,0 +1,162 @@
+package io.github.jameswang777.minimq.network;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+
+/**
+ * A non-blocking, selector based server for the line based broker protocol.
+ * <p>
+ * One acceptor thread accepts connections on every listening port and hands them round-robin to
+ * a small, fixed number of {@link IoWorker}s, which do all socket reads and writes. Commands are
+ * executed on the given command executor, so a slow command never stalls other connections.
+ */
+@Slf4j
+public class NioServer implements NetworkServer {
+
+    private static final int BUFFER_SIZE = 32 * 1024; // 大于 TLS 记录的最大长度，TLS 缓冲区也可以复用
+    private static final int MAX_POOLED_BUFFERS = 1024;
+    private static final int ACCEPT_BACKLOG = 1024; // 默认的 50 在大量客户端同时连接时会丢弃 SYN，导致连接重试
+
+    private final Selector acceptSelector;
+    private final IoWorker[] workers;
+    private final Executor commandExecutor;
+    private final Function<Connection, CommandHandler> handlerFactory;
+    private final BufferPool bufferPool = new BufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+    private final Thread acceptor;
+    private volatile boolean running = true;
+    private int nextWorker;
+
+    /**
+     * @param ioThreads       The number of I/O threads.
+     * @param commandExecutor Executes the commands received on every connection.
+     * @param handlerFactory  Creates the handler for a newly accepted connection.
+     */
+    public NioServer(int ioThreads, Executor commandExecutor, Function<Connection, CommandHandler> handlerFactory) throws IOException {
+        this.acceptSelector = Selector.open();
+        this.commandExecutor = commandExecutor;
+        this.handlerFactory = handlerFactory;
+        this.workers = new IoWorker[Math.max(1, ioThreads)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new IoWorker("minimq-io-" + i, bufferPool);
+        }
+        this.acceptor = new Thread(this::acceptLoop, "minimq-acceptor");
+    }
+
+    @Override
+    public void listen(int port, SSLContext sslContext, String type) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT, new Listener(sslContext, type));
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void start() {
+        for (IoWorker worker : workers) {
+            worker.start();
+        }
+        acceptor.start();
+        log.info("Network server started with {} I/O thread(s).", workers.length);
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                acceptSelector.select();
+            } catch (IOException e) {
+                log.error("Acceptor selector failed", e);
+                return;
+            }
+            Iterator<SelectionKey> keys = acceptSelector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (key.isValid() && key.isAcceptable()) {
+                    accept((ServerSocketChannel) key.channel(), (Listener) key.attachment());
+                }
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel, Listener listener) {
+        SocketChannel channel;
+        while (true) {
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                log.error("Error accepting new {} connection", listener.type, e);
+                return;
+            }
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                IoWorker worker = workers[nextWorker++ % workers.length];
+                Transport transport;
+                if (listener.sslContext == null) {
+                    transport = new PlainTransport(channel);
+                } else {
+                    SSLEngine engine = listener.sslContext.createSSLEngine();
+                    engine.setUseClientMode(false);
+                    transport = new TlsTransport(channel, engine, bufferPool);
+                }
+                NioConnection connection = new NioConnection(channel, transport, worker, commandExecutor, handlerFactory);
+                log.info("Accepted new {} client connection from {}", listener.type, connection.getRemoteAddress());
+                worker.register(connection);
+            } catch (IOException e) {
+                log.error("Could not set up new {} connection", listener.type, e);
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // 连接尚未建立，忽略关闭时的错误
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        acceptSelector.wakeup();
+        try {
+            acceptor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : acceptSelector.keys()) {
+            key.channel().close();
+        }
+        acceptSelector.close();
+        for (IoWorker worker : workers) {
+            worker.shutdown();
+        }
+    }
+
+    private static final class Listener {
+        private final SSLContext sslContext;
+        private final String type;
+
+        private Listener(SSLContext sslContext, String type) {
+            this.sslContext = sslContext;
+            this.type = type;
+        }
+    }
+}
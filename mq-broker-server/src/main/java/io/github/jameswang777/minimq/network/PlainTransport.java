@@ -0,0 +1,43 @@
+package io.github.jameswang777.minimq.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Reads and writes the socket directly.
+ */
+class PlainTransport implements Transport {
+
+    private final SocketChannel channel;
+
+    PlainTransport(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        return channel.read(dst);
+    }
+
+    @Override
+    public boolean write(ByteBuffer[] srcs, int length) throws IOException {
+        // 一次 gathering write 发送多个响应，减少系统调用
+        channel.write(srcs, 0, length);
+        return !srcs[length - 1].hasRemaining();
+    }
+
+    @Override
+    public boolean flush() {
+        return true;
+    }
+
+    @Override
+    public boolean hasBufferedInput() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+    }
+}
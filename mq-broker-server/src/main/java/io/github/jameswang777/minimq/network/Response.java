@@ -0,0 +1,77 @@
+package io.github.jameswang777.minimq.network;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One or more complete lines, or binary frames, written to a client as a unit, e.g. the answer to a command.
+ * <p>
+ * A line or frame can be assembled from several buffers, which are written with gathering writes and never
+ * copied into one: a message read from the commit log is sent straight from its memory-mapped
+ * segment, without decoding its content into a String and encoding it again.
+ * A response is written once; writing it consumes its buffers.
+ */
+public final class Response {
+
+    private static final byte LINE_TERMINATOR = '\n';
+
+    private final List<ByteBuffer> buffers;
+
+    public Response() {
+        this.buffers = new ArrayList<>();
+    }
+
+    private Response(List<ByteBuffer> buffers) {
+        this.buffers = buffers;
+    }
+
+    /**
+     * @return A response consisting of the given line.
+     */
+    public static Response of(String line) {
+        List<ByteBuffer> buffers = new ArrayList<>(1);
+        buffers.add(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+        return new Response(buffers);
+    }
+
+    public Response addLine(String line) {
+        buffers.add(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+        return this;
+    }
+
+    /**
+     * Adds a line made of the remaining bytes of the given buffers, which must not contain a line terminator.
+     */
+    public Response addLine(ByteBuffer... parts) {
+        add(parts);
+        buffers.add(ByteBuffer.wrap(new byte[]{LINE_TERMINATOR}));
+        return this;
+    }
+
+    /**
+     * Adds the remaining bytes of the given buffers as they are, e.g. the parts of a binary frame.
+     */
+    public Response add(ByteBuffer... parts) {
+        for (ByteBuffer part : parts) {
+            buffers.add(part);
+        }
+        return this;
+    }
+
+    /**
+     * @return The number of bytes still to be written.
+     */
+    public long size() {
+        long size = 0;
+        for (ByteBuffer buffer : buffers) {
+            size += buffer.remaining();
+        }
+        return size;
+    }
+
+    ByteBuffer[] buffers() {
+        return buffers.toArray(new ByteBuffer[0]);
+    }
+}
@@ -0,0 +1,225 @@
+package io.github.jameswang777.minimq.network;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Runs TLS over a non-blocking socket with an {@link SSLEngine}.
+ * <p>
+ * Network data is unwrapped into {@code appIn} and handed out by {@link #read}; application data
+ * is wrapped into {@code netOut} by {@link #write}. Handshake messages are produced on demand from
+ * either direction, and delegated tasks run inline on the I/O thread.
+ */
+@Slf4j
+class TlsTransport implements Transport {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final BufferPool pool;
+    private ByteBuffer netIn;  // 已从 socket 读取、尚未解密的数据（写模式）
+    private ByteBuffer netOut; // 已加密、尚未写入 socket 的数据（读模式）
+    private ByteBuffer appIn;  // 已解密、尚未交给上层的数据（写模式）
+    private boolean inboundClosed;
+
+    TlsTransport(SocketChannel channel, SSLEngine engine, BufferPool pool) throws SSLException {
+        this.channel = channel;
+        this.engine = engine;
+        this.pool = pool;
+        int packetSize = engine.getSession().getPacketBufferSize();
+        int applicationSize = engine.getSession().getApplicationBufferSize();
+        this.netIn = allocate(packetSize);
+        this.netOut = allocate(packetSize);
+        this.netOut.flip();
+        this.appIn = allocate(applicationSize);
+        engine.beginHandshake();
+    }
+
+    private ByteBuffer allocate(int size) {
+        return pool.bufferSize() >= size ? pool.acquire() : ByteBuffer.allocateDirect(size);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!inboundClosed && channel.read(netIn) < 0) {
+            inboundClosed = true;
+        }
+        unwrap();
+        appIn.flip();
+        int count = Math.min(appIn.remaining(), dst.remaining());
+        if (count > 0) {
+            ByteBuffer chunk = appIn.duplicate();
+            chunk.limit(chunk.position() + count);
+            dst.put(chunk);
+            appIn.position(appIn.position() + count);
+        }
+        appIn.compact();
+        if (count == 0 && (inboundClosed || engine.isInboundDone())) {
+            return -1;
+        }
+        return count;
+    }
+
+    // 尽可能多地解密 netIn 中的数据，并处理握手过程中需要的任务和回写
+    private void unwrap() throws IOException {
+        netIn.flip();
+        try {
+            while (true) {
+                SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+                if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                    continue;
+                }
+                if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    if (engine.isOutboundDone() || !wrapHandshake()) {
+                        return; // socket 暂时不可写，等待 OP_WRITE 后继续
+                    }
+                    continue;
+                }
+                if (!netIn.hasRemaining()) {
+                    return;
+                }
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+                switch (result.getStatus()) {
+                    case BUFFER_UNDERFLOW:
+                        if (netIn.position() == 0 && netIn.limit() == netIn.capacity()) {
+                            netIn = grow(netIn, engine.getSession().getPacketBufferSize(), true);
+                        }
+                        return;
+                    case BUFFER_OVERFLOW:
+                        appIn = grow(appIn, engine.getSession().getApplicationBufferSize(), false);
+                        break;
+                    case CLOSED:
+                        inboundClosed = true;
+                        return;
+                    default:
+                        if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+                                && result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                            return;
+                        }
+                }
+            }
+        } finally {
+            netIn.compact();
+        }
+    }
+
+    // 扩容缓冲区；netIn 处于读模式（flip 之后），其余缓冲区处于写模式
+    private ByteBuffer grow(ByteBuffer buffer, int minExtra, boolean readMode) {
+        ByteBuffer larger = ByteBuffer.allocateDirect(buffer.capacity() + minExtra);
+        if (readMode) {
+            larger.put(buffer);
+            larger.flip();
+        } else {
+            buffer.flip();
+            larger.put(buffer);
+        }
+        pool.release(buffer);
+        return larger;
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private boolean wrapHandshake() throws IOException {
+        if (!flushNetOut()) {
+            return false;
+        }
+        netOut.compact();
+        try {
+            SSLEngineResult result = engine.wrap(EMPTY, netOut);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                netOut = grow(netOut, engine.getSession().getPacketBufferSize(), false);
+            }
+        } finally {
+            netOut.flip();
+        }
+        return flushNetOut();
+    }
+
+    private boolean flushNetOut() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (channel.write(netOut) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean write(ByteBuffer[] srcs, int length) throws IOException {
+        if (!flush()) {
+            return false;
+        }
+        while (srcs[length - 1].hasRemaining()) {
+            netOut.compact();
+            SSLEngineResult result;
+            try {
+                result = engine.wrap(srcs, 0, length, netOut);
+            } finally {
+                netOut.flip();
+            }
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                netOut.compact();
+                netOut = grow(netOut, engine.getSession().getPacketBufferSize(), false);
+                netOut.flip();
+            } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new IOException("TLS engine closed");
+            }
+            if (!flushNetOut()) {
+                return false;
+            }
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_UNWRAP
+                    && result.bytesConsumed() == 0) {
+                return false; // 握手还未完成，等待对端数据后再写应用数据
+            }
+        }
+        return flush();
+    }
+
+    @Override
+    public boolean flush() throws IOException {
+        if (!flushNetOut()) {
+            return false;
+        }
+        SSLEngineResult.HandshakeStatus status;
+        while (!engine.isOutboundDone() && ((status = engine.getHandshakeStatus()) == SSLEngineResult.HandshakeStatus.NEED_WRAP
+                || status == SSLEngineResult.HandshakeStatus.NEED_TASK)) {
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+            } else if (!wrapHandshake()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean hasBufferedInput() {
+        return netIn.position() > 0 || appIn.position() > 0;
+    }
+
+    @Override
+    public void close() {
+        try {
+            engine.closeOutbound();
+            flush(); // 尽力发送 close_notify，不等待对端回应
+        } catch (IOException e) {
+            log.trace("Could not send TLS close_notify: {}", e.toString());
+        }
+        pool.release(netIn);
+        pool.release(netOut);
+        pool.release(appIn);
+    }
+}
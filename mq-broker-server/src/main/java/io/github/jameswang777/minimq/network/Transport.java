@@ -0,0 +1,40 @@
+package io.github.jameswang777.minimq.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The byte stream of a single non-blocking connection, either plain TCP or TLS.
+ * <p>
+ * All methods are only called from the I/O thread that owns the connection.
+ */
+interface Transport {
+
+    /**
+     * Reads application data into the given buffer without blocking.
+     *
+     * @return The number of bytes read, possibly 0, or -1 once the peer closed the connection.
+     */
+    int read(ByteBuffer dst) throws IOException;
+
+    /**
+     * Writes as much application data from the given buffers as possible without blocking.
+     *
+     * @return true if every buffer was consumed and everything was handed to the socket.
+     */
+    boolean write(ByteBuffer[] srcs, int length) throws IOException;
+
+    /**
+     * Writes data the transport produced on its own, e.g. TLS handshake messages.
+     *
+     * @return true if nothing is left to write.
+     */
+    boolean flush() throws IOException;
+
+    /**
+     * @return true if data was already received from the socket but not returned by {@link #read} yet.
+     */
+    boolean hasBufferedInput();
+
+    void close();
+}
@@ -0,0 +1,587 @@
+package io.github.jameswang777.minimq.store;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An append-only log made of {@link LogSegment}s stored in a single directory.
+ * <p>
+ * The first segment of a new log is {@value #INITIAL_SEGMENT_BYTES} bytes, and every segment rolled
+ * because the previous one was full is twice as large, up to {@code segmentBytes}. A topic that only
+ * ever holds a few messages therefore does not pre-allocate a whole segment.
+ * <p>
+ * Every record is addressed by a monotonically increasing offset. Segment files are named
+ * after the offset of their first record, so the segment holding any offset can be found
+ * with a floor lookup.
+ * <p>
+ * Consumer groups read the log independently of the tombstones. Each one commits its own offset,
+ * stored in the {@value #GROUPS_DIR} subdirectory, and a segment is only reclaimed once every group
+ * has committed past it.
+ */
+@Slf4j
+public class CommitLog implements Closeable {
+
+    static final String GROUPS_DIR = "groups";
+    static final int INITIAL_SEGMENT_BYTES = 1024 * 1024;
+
+    @Getter
+    private final File directory;
+    private final int segmentBytes;
+    private final int indexIntervalBytes;
+    private final ConcurrentSkipListMap<Long, LogSegment> segments = new ConcurrentSkipListMap<>();
+    private final ConcurrentHashMap<String, GroupOffsetFile> groups = new ConcurrentHashMap<>();
+    private volatile LogSegment activeSegment;
+    // 所有分段已写入的字节数，不含活动分段预分配而未使用的部分
+    private final AtomicLong sizeInBytes = new AtomicLong();
+    // 自上次刷盘以来是否有新的记录或确认写入
+    private volatile boolean dirty;
+    // 日志已被删除，之后的刷盘和检查点什么也不做
+    private volatile boolean deleted;
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final ReentrantLock checkpointLock = new ReentrantLock();
+
+    public CommitLog(File directory, int segmentBytes, int indexIntervalBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.indexIntervalBytes = indexIntervalBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create log directory " + directory);
+        }
+        loadSegments();
+        loadGroups();
+    }
+
+    // 分段之间相互独立，并行打开；在 ForkJoinPool 中调用时使用调用方所在的线程池
+    private void loadSegments() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(LogSegment.LOG_SUFFIX));
+        if (files != null) {
+            LogCheckpoint checkpoint = LogCheckpoint.read(directory);
+            try {
+                Arrays.stream(files).parallel().forEach(file -> {
+                    String name = file.getName();
+                    long baseOffset = Long.parseLong(name.substring(0, name.length() - LogSegment.LOG_SUFFIX.length()));
+                    LogCheckpoint.SegmentState state = checkpoint == null ? null : checkpoint.segment(baseOffset);
+                    try {
+                        segments.put(baseOffset, new LogSegment(directory, baseOffset, segmentBytes, indexIntervalBytes, state));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                closeSegments();
+                throw e.getCause();
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.put(0L, new LogSegment(directory, 0L, Math.min(segmentBytes, INITIAL_SEGMENT_BYTES), indexIntervalBytes));
+        }
+        activeSegment = segments.lastEntry().getValue();
+        for (LogSegment segment : segments.values()) {
+            sizeInBytes.addAndGet(segment.size());
+        }
+    }
+
+    private void loadGroups() throws IOException {
+        File[] files = new File(directory, GROUPS_DIR).listFiles((dir, name) -> name.endsWith(GroupOffsetFile.SUFFIX));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            String group = MessageStore.topicName(name.substring(0, name.length() - GroupOffsetFile.SUFFIX.length()));
+            groups.put(group, new GroupOffsetFile(file, group, 0));
+        }
+    }
+
+    /**
+     * Appends a record to the end of the log, rolling to a new segment when the active one is full.
+     *
+     * @return The offset assigned to the record.
+     */
+    public long append(long timestamp, byte[] payload) throws IOException {
+        appendLock.lock();
+        try {
+            long offset = activeSegment.append(timestamp, payload);
+            if (offset >= 0) {
+                // 必须在记录写入之后再标记，保证刷盘线程看到 dirty 时也能看到这条记录
+                dirty = true;
+                sizeInBytes.addAndGet(LogRecord.frameLength(payload.length));
+                return offset;
+            }
+            int frameLength = LogRecord.frameLength(payload.length);
+            if (frameLength > segmentBytes) {
+                throw new IOException("Record of " + payload.length + " bytes does not fit into a segment of " + segmentBytes + " bytes");
+            }
+            // 下一个分段的容量翻倍，并且至少能放下这条记录
+            int capacity = (int) Math.min(segmentBytes, Math.max(2L * activeSegment.capacity(), frameLength));
+            if (activeSegment.recordCount() == 0) {
+                replaceEmptyActiveSegment(capacity);
+            } else {
+                roll(capacity);
+            }
+            offset = activeSegment.append(timestamp, payload);
+            if (offset < 0) {
+                throw new IOException("Record of " + payload.length + " bytes does not fit into a segment of " + segmentBytes + " bytes");
+            }
+            dirty = true;
+            sizeInBytes.addAndGet(LogRecord.frameLength(payload.length));
+            return offset;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    // 调用方持有 appendLock
+    private void roll(int capacity) throws IOException {
+        LogSegment previous = activeSegment;
+        previous.flush();
+        long baseOffset = previous.nextOffset();
+        LogSegment segment = new LogSegment(directory, baseOffset, capacity, indexIntervalBytes);
+        segments.put(baseOffset, segment);
+        activeSegment = segment;
+        log.debug("Rolled log {} to new segment of {} bytes at offset {}", directory.getName(), capacity, baseOffset);
+    }
+
+    // 调用方持有 appendLock。空的活动分段放不下第一条记录时，换成同一起始偏移量上更大的分段
+    private void replaceEmptyActiveSegment(int capacity) throws IOException {
+        LogSegment previous = activeSegment;
+        long baseOffset = previous.getBaseOffset();
+        previous.delete();
+        LogSegment segment = new LogSegment(directory, baseOffset, capacity, indexIntervalBytes);
+        segments.put(baseOffset, segment);
+        activeSegment = segment;
+        log.debug("Replaced the empty active segment of log {} with one of {} bytes", directory.getName(), capacity);
+    }
+
+    public LogRecord read(long offset) {
+        LogSegment segment = segmentFor(offset);
+        return segment == null ? null : segment.read(offset);
+    }
+
+    /**
+     * Visits up to {@code maxRecords} unacknowledged records with offsets in {@code [fromOffset, toOffset)},
+     * in offset order. Records deleted in the meantime are skipped.
+     *
+     * @return The offset to continue from.
+     */
+    public long read(long fromOffset, long toOffset, int maxRecords, RecordVisitor visitor) {
+        return read(fromOffset, toOffset, maxRecords, false, visitor);
+    }
+
+    /**
+     * Like {@link #read(long, long, int, RecordVisitor)}, but with {@code includeAcknowledged} also visits
+     * the records that were acknowledged.
+     */
+    public long read(long fromOffset, long toOffset, int maxRecords, boolean includeAcknowledged, RecordVisitor visitor) {
+        long next = Math.max(fromOffset, startOffset());
+        Long first = segments.floorKey(next);
+        int[] visited = {0};
+        for (LogSegment segment : segments.tailMap(first == null ? next : first).values()) {
+            if (next >= toOffset || visited[0] >= maxRecords) {
+                break;
+            }
+            next = segment.forEach(next, toOffset, maxRecords - visited[0], includeAcknowledged, record -> {
+                visited[0]++;
+                visitor.visit(record);
+            });
+        }
+        return next;
+    }
+
+    /**
+     * Appends a tombstone for the record with the given offset.
+     */
+    public boolean acknowledge(long offset) throws IOException {
+        LogSegment segment = segmentFor(offset);
+        if (segment == null || !segment.acknowledge(offset)) {
+            return false;
+        }
+        dirty = true;
+        return true;
+    }
+
+    /**
+     * Appends tombstones for all given offsets, with one write per affected segment.
+     * The array is sorted in place.
+     *
+     * @return The number of offsets newly acknowledged.
+     */
+    public int acknowledge(long[] offsets) throws IOException {
+        Arrays.sort(offsets);
+        int acknowledged = 0;
+        int from = 0;
+        while (from < offsets.length) {
+            LogSegment segment = segmentFor(offsets[from]);
+            int to = from + 1;
+            if (segment == null) {
+                from = to;
+                continue;
+            }
+            // 同一分段的 offset 在排序后是连续的一段
+            Long nextBase = segments.higherKey(segment.getBaseOffset());
+            while (to < offsets.length && (nextBase == null || offsets[to] < nextBase)) {
+                to++;
+            }
+            acknowledged += segment.acknowledge(offsets, from, to);
+            from = to;
+        }
+        if (acknowledged > 0) {
+            dirty = true;
+        }
+        return acknowledged;
+    }
+
+    /**
+     * Registers a consumer group that starts reading at the end of the log, unless it exists already.
+     * The caller must make sure that no record is appended concurrently.
+     *
+     * @return The committed offset of the group.
+     */
+    public long joinGroup(String group) throws IOException {
+        GroupOffsetFile offsets = groups.get(group);
+        if (offsets == null) {
+            File dir = new File(directory, GROUPS_DIR);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Could not create consumer group directory " + dir);
+            }
+            offsets = new GroupOffsetFile(new File(dir, MessageStore.directoryName(group) + GroupOffsetFile.SUFFIX), group, nextOffset());
+            groups.put(group, offsets);
+            dirty = true;
+        }
+        return offsets.committedOffset();
+    }
+
+    /**
+     * Moves the committed offset of the group forward: every record below the offset was acknowledged by it.
+     */
+    public void commitGroup(String group, long offset) throws IOException {
+        GroupOffsetFile offsets = groups.get(group);
+        if (offsets != null && offsets.commit(offset)) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * @return The committed offset of every consumer group of this log.
+     */
+    public Map<String, Long> groupOffsets() {
+        Map<String, Long> offsets = new HashMap<>();
+        groups.forEach((group, file) -> offsets.put(group, file.committedOffset()));
+        return offsets;
+    }
+
+    /**
+     * Deletes every sealed segment whose records have all been acknowledged, and that every consumer
+     * group has committed past. An active segment that meets the same conditions is rolled first,
+     * so that acknowledged records do not keep taking space until the segment is full.
+     *
+     * @return The number of segments deleted.
+     */
+    public int compact() {
+        long groupOffset = Long.MAX_VALUE;
+        for (GroupOffsetFile offsets : groups.values()) {
+            groupOffset = Math.min(groupOffset, offsets.committedOffset());
+        }
+        try {
+            rollIfReclaimable(groupOffset);
+        } catch (IOException e) {
+            log.error("Failed to roll the active segment of log {}", directory.getName(), e);
+        }
+        int deleted = 0;
+        for (LogSegment segment : segments.values()) {
+            if (segment == activeSegment || segment.nextOffset() > groupOffset || !segment.isFullyAcknowledged()) {
+                continue;
+            }
+            if (deleteSegment(segment)) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * @return true if the log has consumer groups and a sealed segment that every group committed past is
+     *         kept only because consumers without a group have not acknowledged all of its records.
+     */
+    public boolean isHeldForUngroupedConsumers() {
+        if (groups.isEmpty()) {
+            return false;
+        }
+        long groupOffset = Long.MAX_VALUE;
+        for (GroupOffsetFile offsets : groups.values()) {
+            groupOffset = Math.min(groupOffset, offsets.committedOffset());
+        }
+        for (LogSegment segment : segments.values()) {
+            if (segment != activeSegment && segment.nextOffset() <= groupOffset && !segment.isFullyAcknowledged()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the log has no consumer groups and every record in it was acknowledged.
+     */
+    public boolean isDrained() {
+        if (!groups.isEmpty()) {
+            return false;
+        }
+        for (LogSegment segment : segments.values()) {
+            if (!segment.isFullyAcknowledged()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Deletes the oldest segments that fall outside the given retention policy, whether or not
+     * their records were acknowledged. An active segment whose newest record has expired is
+     * rolled first so that it can be deleted as well.
+     *
+     * @return The number of segments deleted. Every record below {@link #startOffset()} is gone afterwards.
+     */
+    public int enforceRetention(RetentionPolicy policy, long now) throws IOException {
+        if (policy.isUnlimited()) {
+            return 0;
+        }
+        if (policy.getMaxAgeMs() >= 0) {
+            rollIfExpired(policy.getMaxAgeMs(), now);
+        }
+        long totalBytes = 0;
+        long totalMessages = 0;
+        for (LogSegment segment : segments.values()) {
+            totalBytes += segment.size();
+            totalMessages += segment.recordCount();
+        }
+        int deleted = 0;
+        // 只从最旧的分段开始删除，遇到第一个仍需保留的分段即停止，保证日志始终是连续的
+        for (LogSegment segment : segments.values()) {
+            if (segment == activeSegment) {
+                break;
+            }
+            boolean expired = policy.getMaxAgeMs() >= 0 && now - segment.largestTimestamp() > policy.getMaxAgeMs();
+            boolean tooLarge = policy.getMaxBytes() >= 0 && totalBytes > policy.getMaxBytes();
+            boolean tooMany = policy.getMaxMessages() >= 0 && totalMessages > policy.getMaxMessages();
+            if (!expired && !tooLarge && !tooMany) {
+                break;
+            }
+            totalBytes -= segment.size();
+            totalMessages -= segment.recordCount();
+            if (deleteSegment(segment)) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    private void rollIfReclaimable(long groupOffset) throws IOException {
+        appendLock.lock();
+        try {
+            if (activeSegment.recordCount() > 0 && activeSegment.nextOffset() <= groupOffset && activeSegment.isFullyAcknowledged()) {
+                roll(activeSegment.capacity());
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private void rollIfExpired(long maxAgeMs, long now) throws IOException {
+        appendLock.lock();
+        try {
+            if (activeSegment.recordCount() > 0 && now - activeSegment.largestTimestamp() > maxAgeMs) {
+                roll(activeSegment.capacity());
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private boolean deleteSegment(LogSegment segment) {
+        segments.remove(segment.getBaseOffset());
+        sizeInBytes.addAndGet(-segment.size());
+        try {
+            segment.delete();
+            return true;
+        } catch (IOException e) {
+            log.error("Failed to delete segment {} of log {}", segment.getBaseOffset(), directory.getName(), e);
+            return false;
+        }
+    }
+
+    private LogSegment segmentFor(long offset) {
+        Map.Entry<Long, LogSegment> entry = segments.floorEntry(offset);
+        return entry == null ? null : entry.getValue();
+    }
+
+    /**
+     * Replays every record of the log in offset order.
+     */
+    public void replay(RecordVisitor visitor) {
+        for (LogSegment segment : segments.values()) {
+            segment.forEach(visitor);
+        }
+    }
+
+    /**
+     * @return The segments of this log in offset order, as of the time of the call.
+     */
+    Collection<LogSegment> segments() {
+        return new ArrayList<>(segments.values());
+    }
+
+    public long nextOffset() {
+        return activeSegment.nextOffset();
+    }
+
+    /**
+     * @return The offset of the oldest record still stored in this log.
+     */
+    public long startOffset() {
+        return segments.firstKey();
+    }
+
+    /**
+     * @return The time of the newest record in the log, or the time the active segment was created if it is empty.
+     */
+    public long lastAppendTime() {
+        return activeSegment.largestTimestamp();
+    }
+
+    public int segmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return The bytes of the records stored in this log. The unused, preallocated tail of the active segment is not counted.
+     */
+    public long sizeInBytes() {
+        return sizeInBytes.get();
+    }
+
+    /**
+     * Forces pending records and tombstones to disk. Does nothing if nothing was written since the last flush.
+     */
+    public void flush() throws IOException {
+        if (!dirty || deleted) {
+            return;
+        }
+        dirty = false;
+        try {
+            for (LogSegment segment : segments.values()) {
+                if (segment == activeSegment) {
+                    segment.flush();
+                } else {
+                    segment.flushTombstones();
+                }
+            }
+            for (GroupOffsetFile offsets : groups.values()) {
+                offsets.flush();
+            }
+        } catch (IOException | RuntimeException e) {
+            dirty = true; // 下一次刷盘重试
+            throw e;
+        }
+    }
+
+    /**
+     * Forces every segment to disk and records how far each one was written, and which of its
+     * records were acknowledged, in a {@link LogCheckpoint}. The next start only has to scan
+     * what was written after the checkpoint.
+     */
+    public void checkpoint() throws IOException {
+        checkpointLock.lock();
+        try {
+            if (deleted) {
+                return;
+            }
+            List<LogCheckpoint.SegmentState> states = new ArrayList<>();
+            for (LogSegment segment : segments.values()) {
+                // 先取快照再刷盘，保证检查点描述的内容都已落盘；与刷盘线程同时刷盘时，flush 也会等到这些内容落盘才返回
+                LogCheckpoint.SegmentState state = segment.snapshot();
+                segment.flush(true);
+                states.add(state);
+            }
+            new LogCheckpoint(states).write(directory);
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        appendLock.lock();
+        try {
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                log.error("Failed to write checkpoint for log {}", directory.getName(), e);
+            }
+            closeSegments();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Closes the log and deletes its directory with every segment, checkpoint and group offset in it.
+     * The log must not be used afterwards.
+     */
+    public void delete() throws IOException {
+        appendLock.lock();
+        checkpointLock.lock();
+        try {
+            deleted = true;
+            dirty = false;
+            for (LogSegment segment : segments.values()) {
+                segment.delete();
+            }
+            sizeInBytes.set(0);
+            for (GroupOffsetFile offsets : groups.values()) {
+                offsets.close();
+            }
+            deleteRecursively(directory);
+        } finally {
+            checkpointLock.unlock();
+            appendLock.unlock();
+        }
+    }
+
+    private static void deleteRecursively(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (!file.delete() && file.exists()) {
+            throw new IOException("Could not delete " + file);
+        }
+    }
+
+    private void closeSegments() throws IOException {
+        for (LogSegment segment : segments.values()) {
+            segment.flush();
+            segment.close();
+        }
+        for (GroupOffsetFile offsets : groups.values()) {
+            offsets.flush();
+            offsets.close();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package io.github.jameswang777.minimq.store;
+
+import lombok.Getter;
+
+import java.util.Locale;
+
+/**
+ * Controls when produced messages are forced to disk and therefore when a PRODUCE is acknowledged.
+ * <ul>
+ *     <li>{@code none} - never force explicitly, acknowledge immediately and leave write-back to the OS.</li>
+ *     <li>{@code interval:<ms>} - force once every interval, acknowledging everything written since the previous force.</li>
+ *     <li>{@code every-batch} - force as soon as there is pending data; producers arriving during a force form the next batch.</li>
+ * </ul>
+ */
+@Getter
+public class FlushPolicy {
+
+    public enum Mode {
+        NONE, INTERVAL, EVERY_BATCH
+    }
+
+    private final Mode mode;
+    private final long intervalMs;
+
+    private FlushPolicy(Mode mode, long intervalMs) {
+        this.mode = mode;
+        this.intervalMs = intervalMs;
+    }
+
+    public static FlushPolicy none() {
+        return new FlushPolicy(Mode.NONE, 0);
+    }
+
+    public static FlushPolicy interval(long intervalMs) {
+        if (intervalMs <= 0) {
+            throw new IllegalArgumentException("Flush interval must be positive: " + intervalMs);
+        }
+        return new FlushPolicy(Mode.INTERVAL, intervalMs);
+    }
+
+    public static FlushPolicy everyBatch() {
+        return new FlushPolicy(Mode.EVERY_BATCH, 0);
+    }
+
+    /**
+     * Parses {@code none}, {@code every-batch}, {@code interval:<ms>} or {@code interval(<ms>)}.
+     * A {@code null} or blank value yields {@link #none()}.
+     */
+    public static FlushPolicy parse(String value) {
+        if (value == null || value.isBlank()) {
+            return none();
+        }
+        String normalized = value.trim().toLowerCase(Locale.ROOT);
+        if (normalized.equals("none")) {
+            return none();
+        }
+        if (normalized.equals("every-batch")) {
+            return everyBatch();
+        }
+        if (normalized.startsWith("interval")) {
+            String millis = normalized.substring("interval".length()).replaceAll("[:()\\s]", "");
+            try {
+                return interval(Long.parseLong(millis));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid flush interval in '" + value + "'", e);
+            }
+        }
+        throw new IllegalArgumentException("Unknown flush mode '" + value + "'. Expected none, every-batch or interval:<ms>");
+    }
+
+    @Override
+    public String toString() {
+        return mode == Mode.INTERVAL ? "interval:" + intervalMs : mode.name().toLowerCase(Locale.ROOT).replace('_', '-');
+    }
+}
@@ -0,0 +1,142 @@
+package io.github.jameswang777.minimq.store;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Batches the durability requests of concurrent producers so that a single {@code force()}
+ * acknowledges every message appended before it.
+ * <p>
+ * Producers append to the {@link MessageStore} first and then call {@link #commit()}; the returned
+ * future completes once the data is durable according to the configured {@link FlushPolicy}.
+ */
+@Slf4j
+public class GroupCommitService implements Closeable {
+
+    private static final CompletableFuture<Void> COMPLETED = CompletableFuture.completedFuture(null);
+
+    private final MessageStore store;
+    private final FlushPolicy policy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushRequested = lock.newCondition();
+    private final Thread flusher;
+    private List<CompletableFuture<Void>> pending = new ArrayList<>();
+    private boolean running = true;
+
+    public GroupCommitService(MessageStore store, FlushPolicy policy) {
+        this.store = store;
+        this.policy = policy;
+        if (policy.getMode() == FlushPolicy.Mode.NONE) {
+            this.flusher = null;
+        } else {
+            this.flusher = new Thread(this::runFlushLoop, "minimq-group-commit");
+            this.flusher.setDaemon(true);
+            this.flusher.start();
+        }
+        log.info("Group commit started with flush policy [{}]", policy);
+    }
+
+    /**
+     * Must be called after the message has been appended to the store.
+     *
+     * @return A future completed once everything appended before this call is durable.
+     */
+    public CompletableFuture<Void> commit() {
+        if (flusher == null) {
+            return COMPLETED;
+        }
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        lock.lock();
+        try {
+            if (!running) {
+                future.completeExceptionally(new IOException("Group commit service is closed"));
+                return future;
+            }
+            pending.add(future);
+            if (policy.getMode() == FlushPolicy.Mode.EVERY_BATCH) {
+                flushRequested.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return future;
+    }
+
+    private void runFlushLoop() {
+        while (true) {
+            List<CompletableFuture<Void>> batch;
+            lock.lock();
+            try {
+                try {
+                    awaitNextFlush();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    running = false;
+                }
+                if (!running && pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                pending = new ArrayList<>();
+            } finally {
+                lock.unlock();
+            }
+            flush(batch);
+        }
+    }
+
+    // 调用时已持有 lock
+    private void awaitNextFlush() throws InterruptedException {
+        if (policy.getMode() == FlushPolicy.Mode.EVERY_BATCH) {
+            while (running && pending.isEmpty()) {
+                flushRequested.await();
+            }
+            return;
+        }
+        long remaining = TimeUnit.MILLISECONDS.toNanos(policy.getIntervalMs());
+        while (running && remaining > 0) {
+            remaining = flushRequested.awaitNanos(remaining);
+        }
+    }
+
+    private void flush(List<CompletableFuture<Void>> batch) {
+        try {
+            store.flush();
+            batch.forEach(future -> future.complete(null));
+            log.trace("Group commit flushed a batch of {} produce request(s).", batch.size());
+        } catch (IOException e) {
+            log.error("Failed to flush message store, failing {} produce request(s).", batch.size(), e);
+            batch.forEach(future -> future.completeExceptionally(e));
+        }
+    }
+
+    /**
+     * Stops the flusher after completing every pending request.
+     */
+    @Override
+    public void close() {
+        if (flusher == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            running = false;
+            flushRequested.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package io.github.jameswang777.minimq.store;
+
+import lombok.Getter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The committed offset of one consumer group on one {@link CommitLog}: every record below it was
+ * acknowledged by the group.
+ * <p>
+ * Committing appends the new offset, so it costs a single 8-byte write like a tombstone; the last
+ * complete entry is the current offset. Once the file grows beyond {@value #MAX_BYTES} bytes it is
+ * replaced by a file holding only the current offset.
+ */
+public class GroupOffsetFile implements Closeable {
+
+    public static final String SUFFIX = ".offset";
+    private static final int ENTRY_SIZE = 8;
+    private static final long MAX_BYTES = 64 * 1024;
+
+    @Getter
+    private final String group;
+    private final File file;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(ENTRY_SIZE);
+    private final ReentrantLock lock = new ReentrantLock();
+    private FileChannel channel;
+    private long writePosition;
+    private volatile long committedOffset;
+    private volatile boolean dirty;
+
+    /**
+     * Opens the offset file of the group, creating it with the given offset if it does not exist.
+     */
+    public GroupOffsetFile(File file, String group, long initialOffset) throws IOException {
+        this.group = group;
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // 截掉崩溃时可能残留的半个条目，最后一个完整的条目就是当前的提交位置
+        this.writePosition = channel.size() - channel.size() % ENTRY_SIZE;
+        if (writePosition != channel.size()) {
+            channel.truncate(writePosition);
+        }
+        if (writePosition == 0) {
+            committedOffset = initialOffset;
+            append(initialOffset);
+        } else {
+            ByteBuffer last = ByteBuffer.allocate(ENTRY_SIZE);
+            while (last.hasRemaining()) {
+                if (channel.read(last, writePosition - ENTRY_SIZE + last.position()) < 0) {
+                    throw new IOException("Could not read committed offset from " + file);
+                }
+            }
+            committedOffset = last.flip().getLong();
+        }
+    }
+
+    /**
+     * @return The offset of the first record the group has not acknowledged yet, as far as is known.
+     */
+    public long committedOffset() {
+        return committedOffset;
+    }
+
+    /**
+     * Moves the committed offset forward. A lower offset than the current one is ignored.
+     *
+     * @return true if the committed offset moved.
+     */
+    public boolean commit(long offset) throws IOException {
+        lock.lock();
+        try {
+            if (offset <= committedOffset) {
+                return false;
+            }
+            if (writePosition >= MAX_BYTES) {
+                rewrite(offset);
+            } else {
+                append(offset);
+            }
+            committedOffset = offset;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 调用方持有锁，或者在构造期间调用
+    private void append(long offset) throws IOException {
+        writeBuffer.clear();
+        writeBuffer.putLong(offset).flip();
+        while (writeBuffer.hasRemaining()) {
+            writePosition += channel.write(writeBuffer, writePosition);
+        }
+        dirty = true;
+    }
+
+    // 调用方持有锁。先把只含当前位置的新文件落盘，再原子地替换旧文件，崩溃时总有一个完整的文件
+    private void rewrite(long offset) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel tmpChannel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE).putLong(offset).flip();
+            while (entry.hasRemaining()) {
+                tmpChannel.write(entry);
+            }
+            tmpChannel.force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LogCheckpoint.syncDirectory(file.getParentFile());
+        channel.close();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        writePosition = ENTRY_SIZE;
+        dirty = false;
+    }
+
+    public void flush() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (dirty && channel.isOpen()) {
+                channel.force(false);
+                // 持有锁时没有新的提交，force 成功后才清除标记，失败时下次重试
+                dirty = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            channel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
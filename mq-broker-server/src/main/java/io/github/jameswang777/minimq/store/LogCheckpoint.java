@@ -0,0 +1,158 @@
+package io.github.jameswang777.minimq.store;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * A point-in-time snapshot of a {@link CommitLog}: for every segment, how far it was written
+ * and which of its records were already acknowledged (the complement being the unacked set).
+ * <p>
+ * Everything described by a checkpoint has been forced to disk before the checkpoint itself is
+ * written, so recovery can trust it and only validate the part of the log written afterwards.
+ */
+@Slf4j
+public class LogCheckpoint {
+
+    public static final String FILE_NAME = "recovery.checkpoint";
+    private static final int VERSION = 2;
+
+    /**
+     * The state of one segment at checkpoint time.
+     */
+    @Value
+    public static class SegmentState {
+        long baseOffset;
+        long nextOffset;
+        int writePosition;
+        int recordCount;
+        long largestTimestamp;
+        long tombstoneBytes;
+        BitSet acked;
+    }
+
+    private final Map<Long, SegmentState> segments;
+
+    public LogCheckpoint(List<SegmentState> states) {
+        Map<Long, SegmentState> map = new HashMap<>();
+        for (SegmentState state : states) {
+            map.put(state.getBaseOffset(), state);
+        }
+        this.segments = Collections.unmodifiableMap(map);
+    }
+
+    public SegmentState segment(long baseOffset) {
+        return segments.get(baseOffset);
+    }
+
+    /**
+     * Reads the checkpoint stored in the given log directory.
+     *
+     * @return The checkpoint, or {@code null} if none exists or it is unreadable.
+     */
+    public static LogCheckpoint read(File directory) {
+        File file = new File(directory, FILE_NAME);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            if (buffer.remaining() < 4) {
+                throw new IOException("truncated file");
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(buffer.array(), 0, buffer.remaining() - 4);
+            if ((int) crc.getValue() != buffer.getInt(buffer.remaining() - 4)) {
+                throw new IOException("checksum mismatch");
+            }
+            if (buffer.getInt() != VERSION) {
+                throw new IOException("unsupported version");
+            }
+            int count = buffer.getInt();
+            List<SegmentState> states = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                long baseOffset = buffer.getLong();
+                long nextOffset = buffer.getLong();
+                int writePosition = buffer.getInt();
+                int recordCount = buffer.getInt();
+                long largestTimestamp = buffer.getLong();
+                long tombstoneBytes = buffer.getLong();
+                byte[] bits = new byte[buffer.getInt()];
+                buffer.get(bits);
+                states.add(new SegmentState(baseOffset, nextOffset, writePosition, recordCount, largestTimestamp,
+                        tombstoneBytes, BitSet.valueOf(bits)));
+            }
+            return new LogCheckpoint(states);
+        } catch (IOException | BufferUnderflowException | NegativeArraySizeException e) {
+            log.warn("Ignoring unreadable checkpoint {}: {}", file, e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Atomically replaces the checkpoint stored in the given log directory.
+     */
+    public void write(File directory) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(VERSION);
+        out.writeInt(segments.size());
+        for (SegmentState state : segments.values()) {
+            out.writeLong(state.getBaseOffset());
+            out.writeLong(state.getNextOffset());
+            out.writeInt(state.getWritePosition());
+            out.writeInt(state.getRecordCount());
+            out.writeLong(state.getLargestTimestamp());
+            out.writeLong(state.getTombstoneBytes());
+            byte[] bits = state.getAcked().toByteArray();
+            out.writeInt(bits.length);
+            out.write(bits);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+
+        File tmp = new File(directory, FILE_NAME + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp.toPath(), new File(directory, FILE_NAME).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(directory);
+    }
+
+    /**
+     * Forces the entries of a directory to disk, so that a file renamed into it survives a crash.
+     * Not supported on every platform, e.g. Windows, where renames are then only as durable as the OS makes them.
+     */
+    static void syncDirectory(File directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (AccessDeniedException | UnsupportedOperationException e) {
+            log.debug("Cannot sync directory {}: {}", directory, e.toString());
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package io.github.jameswang777.minimq.store;
+
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * A single record read from a {@link LogSegment}, together with the on-disk layout of records.
+ * <p>
+ * Every record starts with a 4-byte size (the number of bytes that follow it), a magic byte
+ * identifying the format version and the 8-byte offset:
+ * <pre>
+ * v0: [int size][byte magic=0][long offset][payload: Message.toString() as UTF-8]
+ * v1: [int size][byte magic=1][long offset][int crc32c][byte attributes][long timestamp][payload: Message.toBinary()]
+ * </pre>
+ * The v1 checksum covers the offset and every byte after the checksum field, so a torn or
+ * corrupted write is detected during recovery. v0 records are still readable but no longer written.
+ */
+@Getter
+public final class LogRecord {
+
+    public static final byte MAGIC_V0 = 0;
+    public static final byte MAGIC_V1 = 1;
+
+    static final int SIZE_FIELD_LENGTH = 4;
+    private static final int MAGIC_POSITION = SIZE_FIELD_LENGTH;
+    private static final int OFFSET_POSITION = MAGIC_POSITION + 1;
+    private static final int CRC_POSITION = OFFSET_POSITION + 8;
+    private static final int ATTRIBUTES_POSITION = CRC_POSITION + 4;
+    private static final int TIMESTAMP_POSITION = ATTRIBUTES_POSITION + 1;
+    private static final int V0_HEADER_LENGTH = 1 + 8;
+    private static final int V1_HEADER_LENGTH = 1 + 8 + 4 + 1 + 8;
+
+    private final long offset;
+    private final byte magic;
+    private final byte attributes;
+    private final long timestamp; // v0 记录没有时间戳，为 -1
+    private final ByteBuffer payload;
+
+    private LogRecord(long offset, byte magic, byte attributes, long timestamp, ByteBuffer payload) {
+        this.offset = offset;
+        this.magic = magic;
+        this.attributes = attributes;
+        this.timestamp = timestamp;
+        this.payload = payload;
+    }
+
+    /**
+     * @return The total number of bytes a v1 record with the given payload occupies in a segment.
+     */
+    static int frameLength(int payloadLength) {
+        return SIZE_FIELD_LENGTH + V1_HEADER_LENGTH + payloadLength;
+    }
+
+    /**
+     * Writes a v1 record at the given position. The size field is written last so that a
+     * partially written record is never mistaken for a complete one.
+     */
+    static void write(ByteBuffer buffer, int position, long offset, byte attributes, long timestamp, byte[] payload) {
+        int size = V1_HEADER_LENGTH + payload.length;
+        buffer.put(position + MAGIC_POSITION, MAGIC_V1);
+        buffer.putLong(position + OFFSET_POSITION, offset);
+        buffer.put(position + ATTRIBUTES_POSITION, attributes);
+        buffer.putLong(position + TIMESTAMP_POSITION, timestamp);
+        buffer.put(position + SIZE_FIELD_LENGTH + V1_HEADER_LENGTH, payload);
+        buffer.putInt(position + CRC_POSITION, checksum(buffer, position, size));
+        buffer.putInt(position, size);
+    }
+
+    /**
+     * Checks that a complete, uncorrupted record starts at the given position.
+     *
+     * @return The frame length of the record, or -1 if the bytes do not form a valid record.
+     */
+    static int validate(ByteBuffer buffer, int position, int limit) {
+        if (position + SIZE_FIELD_LENGTH > limit) {
+            return -1;
+        }
+        int size = buffer.getInt(position);
+        if (size < V0_HEADER_LENGTH || position + SIZE_FIELD_LENGTH + size > limit) {
+            return -1;
+        }
+        byte magic = buffer.get(position + MAGIC_POSITION);
+        if (magic == MAGIC_V0) {
+            return SIZE_FIELD_LENGTH + size;
+        }
+        if (magic != MAGIC_V1 || size < V1_HEADER_LENGTH) {
+            return -1;
+        }
+        if (buffer.getInt(position + CRC_POSITION) != checksum(buffer, position, size)) {
+            return -1;
+        }
+        return SIZE_FIELD_LENGTH + size;
+    }
+
+    private static int checksum(ByteBuffer buffer, int position, int size) {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.slice(position + OFFSET_POSITION, 8));
+        crc.update(buffer.slice(position + ATTRIBUTES_POSITION, SIZE_FIELD_LENGTH + size - ATTRIBUTES_POSITION));
+        return (int) crc.getValue();
+    }
+
+    static int frameLengthAt(ByteBuffer buffer, int position) {
+        return SIZE_FIELD_LENGTH + buffer.getInt(position);
+    }
+
+    static long offsetAt(ByteBuffer buffer, int position) {
+        return buffer.getLong(position + OFFSET_POSITION);
+    }
+
+    /**
+     * @return The timestamp of the record at the given position, or -1 for v0 records.
+     */
+    static long timestampAt(ByteBuffer buffer, int position) {
+        return buffer.get(position + MAGIC_POSITION) == MAGIC_V0 ? -1L : buffer.getLong(position + TIMESTAMP_POSITION);
+    }
+
+    /**
+     * Reads the record at the given position without copying its payload.
+     * The returned payload is a read-only view of the segment buffer.
+     */
+    static LogRecord read(ByteBuffer buffer, int position) {
+        int size = buffer.getInt(position);
+        byte magic = buffer.get(position + MAGIC_POSITION);
+        long offset = buffer.getLong(position + OFFSET_POSITION);
+        if (magic == MAGIC_V0) {
+            ByteBuffer payload = buffer.slice(position + SIZE_FIELD_LENGTH + V0_HEADER_LENGTH, size - V0_HEADER_LENGTH);
+            return new LogRecord(offset, magic, (byte) 0, -1L, payload.asReadOnlyBuffer());
+        }
+        ByteBuffer payload = buffer.slice(position + SIZE_FIELD_LENGTH + V1_HEADER_LENGTH, size - V1_HEADER_LENGTH);
+        return new LogRecord(offset, magic, buffer.get(position + ATTRIBUTES_POSITION),
+                buffer.getLong(position + TIMESTAMP_POSITION), payload.asReadOnlyBuffer());
+    }
+}
@@ -0,0 +1,484 @@
+package io.github.jameswang777.minimq.store;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed-size, memory-mapped slice of a {@link CommitLog}.
+ * <p>
+ * The segment file is pre-allocated to its capacity and records are appended
+ * sequentially using the layout described in {@link LogRecord}. A size of 0 marks the end of
+ * the written region, since the pre-allocated file is zero-filled.
+ * <p>
+ * Records are never modified once written. Acknowledgements are kept in a sidecar
+ * {@link TombstoneFile}, and a segment whose records are all acknowledged can be deleted as a whole.
+ */
+@Slf4j
+public class LogSegment implements Closeable {
+
+    public static final String LOG_SUFFIX = ".log";
+    public static final String INDEX_SUFFIX = ".index";
+    public static final String TOMBSTONE_SUFFIX = ".ack";
+
+    @Getter
+    private final long baseOffset;
+    private final File logFile;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer buffer;
+    private final OffsetIndex index;
+    private final TombstoneFile tombstones;
+    // 已确认记录的相对偏移量，用于重放时跳过以及判断分段能否被回收
+    private final BitSet acked = new BitSet();
+    private final int capacity;
+    private final int indexIntervalBytes;
+    // 用 ReentrantLock 而不是 synchronized，虚拟线程等待时不会钉住载体线程
+    private final ReentrantLock lock = new ReentrantLock();
+    // 同一分段的刷盘依次进行：刷盘线程、检查点和滚动可能同时刷盘，后来者必须等前一次 force 完成才能返回
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    private int writePosition;
+    private int flushedPosition; // 只在持有 flushLock 时访问（打开分段时除外）
+    private long nextOffset;
+    private int bytesSinceLastIndexEntry;
+    private int recordCount;
+    private int ackedCount;
+    private long largestTimestamp = -1L; // 分段内最新一条记录的时间戳，用于按时间保留
+
+    public LogSegment(File dir, long baseOffset, int segmentBytes, int indexIntervalBytes) throws IOException {
+        this(dir, baseOffset, segmentBytes, indexIntervalBytes, null);
+    }
+
+    /**
+     * Opens a segment. A new segment file is pre-allocated to {@code segmentBytes}, while an existing
+     * one keeps the capacity it was created with. When a checkpoint state is given, the region it
+     * covers is trusted and only the records and tombstones written after the checkpoint are scanned.
+     */
+    public LogSegment(File dir, long baseOffset, int segmentBytes, int indexIntervalBytes,
+                      LogCheckpoint.SegmentState checkpoint) throws IOException {
+        this.baseOffset = baseOffset;
+        this.indexIntervalBytes = indexIntervalBytes;
+        this.logFile = new File(dir, fileName(baseOffset, LOG_SUFFIX));
+        this.raf = new RandomAccessFile(logFile, "rw");
+        // 分段的容量不一定相同（见 CommitLog），已有的文件按它自己的长度打开
+        long length = raf.length();
+        this.capacity = length > 0 ? (int) Math.min(length, Integer.MAX_VALUE) : segmentBytes;
+        this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        int maxIndexEntries = capacity / indexIntervalBytes + 1;
+        this.index = new OffsetIndex(new File(dir, fileName(baseOffset, INDEX_SUFFIX)), baseOffset, maxIndexEntries);
+        this.tombstones = new TombstoneFile(new File(dir, fileName(baseOffset, TOMBSTONE_SUFFIX)));
+        if (!restoreFrom(checkpoint)) {
+            checkpoint = null;
+            recover(0);
+        }
+        loadTombstones(checkpoint);
+    }
+
+    public static String fileName(long baseOffset, String suffix) {
+        return String.format("%020d%s", baseOffset, suffix);
+    }
+
+    // 从检查点恢复写入位置、记录数和索引状态，随后只校验检查点之后写入的部分
+    private boolean restoreFrom(LogCheckpoint.SegmentState checkpoint) {
+        if (checkpoint == null || checkpoint.getWritePosition() > capacity || checkpoint.getNextOffset() < baseOffset) {
+            return false;
+        }
+        int position = checkpoint.getWritePosition();
+        index.truncateTo(position);
+        int lastIndexedPosition = index.lastPosition();
+        if (position > 0 && lastIndexedPosition < 0) {
+            return false; // 索引文件缺失或损坏，退回全量扫描
+        }
+        writePosition = position;
+        nextOffset = checkpoint.getNextOffset();
+        recordCount = checkpoint.getRecordCount();
+        largestTimestamp = checkpoint.getLargestTimestamp();
+        bytesSinceLastIndexEntry = position - Math.max(lastIndexedPosition, 0);
+        recover(position);
+        return true;
+    }
+
+    /**
+     * 从给定位置开始扫描分段，确定写入位置并重建稀疏索引。遇到不完整或校验失败的记录（例如进程崩溃导致的半写）即截断。
+     */
+    private void recover(int position) {
+        if (position == 0) {
+            index.truncateTo(0);
+            writePosition = 0;
+            nextOffset = baseOffset;
+            bytesSinceLastIndexEntry = 0;
+            recordCount = 0;
+            largestTimestamp = -1L;
+        }
+
+        int frameLength;
+        while ((frameLength = LogRecord.validate(buffer, position, capacity)) > 0) {
+            long offset = LogRecord.offsetAt(buffer, position);
+            if (offset < nextOffset) {
+                break;
+            }
+            maybeAppendIndexEntry(offset, position, frameLength);
+            largestTimestamp = Math.max(largestTimestamp, LogRecord.timestampAt(buffer, position));
+            position += frameLength;
+            nextOffset = offset + 1;
+            recordCount++;
+        }
+        writePosition = position;
+        flushedPosition = position;
+
+        if (position + LogRecord.SIZE_FIELD_LENGTH <= capacity && buffer.getInt(position) != 0) {
+            log.warn("Truncating torn tail of segment {} at position {}", logFile.getName(), position);
+            zero(position, capacity);
+        }
+    }
+
+    private void loadTombstones(LogCheckpoint.SegmentState checkpoint) throws IOException {
+        long position = 0;
+        if (checkpoint != null) {
+            acked.or(checkpoint.getAcked());
+            acked.clear((int) (nextOffset - baseOffset), Math.max(acked.length(), (int) (nextOffset - baseOffset)));
+            ackedCount = acked.cardinality();
+            position = checkpoint.getTombstoneBytes();
+        }
+        for (long offset : tombstones.readFrom(position)) {
+            if (offset >= baseOffset && offset < nextOffset && !acked.get((int) (offset - baseOffset))) {
+                acked.set((int) (offset - baseOffset));
+                ackedCount++;
+            }
+        }
+    }
+
+    private void maybeAppendIndexEntry(long offset, int position, int frameLength) {
+        if (index.entries() == 0 || bytesSinceLastIndexEntry >= indexIntervalBytes) {
+            index.append(offset, position);
+            bytesSinceLastIndexEntry = 0;
+        }
+        bytesSinceLastIndexEntry += frameLength;
+    }
+
+    private void zero(int from, int to) {
+        byte[] zeros = new byte[Math.min(64 * 1024, Math.max(to - from, 0))];
+        for (int position = from; position < to; position += zeros.length) {
+            buffer.put(position, zeros, 0, Math.min(zeros.length, to - position));
+        }
+    }
+
+    /**
+     * Appends a record to this segment.
+     *
+     * @return The offset assigned to the record, or -1 if the segment has no room left for it.
+     */
+    public long append(long timestamp, byte[] payload) {
+        lock.lock();
+        try {
+            int frameLength = LogRecord.frameLength(payload.length);
+            if (writePosition + frameLength > capacity) {
+                return -1;
+            }
+            long offset = nextOffset;
+            maybeAppendIndexEntry(offset, writePosition, frameLength);
+            LogRecord.write(buffer, writePosition, offset, (byte) 0, timestamp, payload);
+
+            writePosition += frameLength;
+            nextOffset = offset + 1;
+            recordCount++;
+            largestTimestamp = Math.max(largestTimestamp, timestamp);
+            return offset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the record with the given offset.
+     *
+     * @return The record, or {@code null} if it does not exist in this segment.
+     */
+    public LogRecord read(long offset) {
+        lock.lock();
+        try {
+            int position = find(offset);
+            if (position < 0) {
+                return null;
+            }
+            return LogRecord.read(buffer, position);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records a tombstone for the given offset. The record itself stays in place until the
+     * whole segment is reclaimed.
+     *
+     * @return true if the offset belongs to this segment and was not acknowledged before.
+     */
+    public boolean acknowledge(long offset) throws IOException {
+        lock.lock();
+        try {
+            if (offset < baseOffset || offset >= nextOffset) {
+                return false;
+            }
+            int relativeOffset = (int) (offset - baseOffset);
+            if (acked.get(relativeOffset)) {
+                return false;
+            }
+            tombstones.append(offset);
+            acked.set(relativeOffset);
+            ackedCount++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records tombstones for every offset in {@code offsets[from, to)} that belongs to this segment
+     * and was not acknowledged before, with a single write to the tombstone file.
+     *
+     * @return The number of offsets newly acknowledged.
+     */
+    public int acknowledge(long[] offsets, int from, int to) throws IOException {
+        lock.lock();
+        try {
+            long[] accepted = new long[to - from];
+            int count = 0;
+            for (int i = from; i < to; i++) {
+                long offset = offsets[i];
+                if (offset < baseOffset || offset >= nextOffset) {
+                    continue;
+                }
+                int relativeOffset = (int) (offset - baseOffset);
+                if (!acked.get(relativeOffset)) {
+                    acked.set(relativeOffset); // 同一批次中的重复 offset 只记录一次
+                    accepted[count++] = offset;
+                }
+            }
+            try {
+                tombstones.append(accepted, count);
+            } catch (IOException e) {
+                for (int i = 0; i < count; i++) {
+                    acked.clear((int) (accepted[i] - baseOffset));
+                }
+                throw e;
+            }
+            ackedCount += count;
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if every record in this segment has been acknowledged.
+     */
+    public boolean isFullyAcknowledged() {
+        lock.lock();
+        try {
+            return ackedCount >= recordCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int find(long offset) {
+        if (offset < baseOffset || offset >= nextOffset) {
+            return -1;
+        }
+        int position = index.lookup(offset);
+        while (position < writePosition) {
+            long recordOffset = LogRecord.offsetAt(buffer, position);
+            if (recordOffset == offset) {
+                return position;
+            }
+            if (recordOffset > offset) {
+                return -1;
+            }
+            position += LogRecord.frameLengthAt(buffer, position);
+        }
+        return -1;
+    }
+
+    /**
+     * Visits every record in this segment that has not been acknowledged, in offset order.
+     */
+    public void forEach(RecordVisitor visitor) {
+        lock.lock();
+        try {
+            for (int position = 0; position < writePosition; ) {
+                long offset = LogRecord.offsetAt(buffer, position);
+                if (!acked.get((int) (offset - baseOffset))) {
+                    visitor.visit(LogRecord.read(buffer, position));
+                }
+                position += LogRecord.frameLengthAt(buffer, position);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Visits the unacknowledged records with offsets in {@code [fromOffset, toOffset)}, in offset order,
+     * stopping after {@code maxRecords} of them.
+     *
+     * @return The offset to continue from: the record after the last one visited, or the end of the
+     *         range covered by this segment.
+     */
+    public long forEach(long fromOffset, long toOffset, int maxRecords, RecordVisitor visitor) {
+        return forEach(fromOffset, toOffset, maxRecords, false, visitor);
+    }
+
+    /**
+     * Like {@link #forEach(long, long, int, RecordVisitor)}, but with {@code includeAcknowledged} also visits
+     * the records that were acknowledged.
+     */
+    public long forEach(long fromOffset, long toOffset, int maxRecords, boolean includeAcknowledged, RecordVisitor visitor) {
+        lock.lock();
+        try {
+            long end = Math.max(fromOffset, Math.min(toOffset, nextOffset));
+            int visited = 0;
+            for (int position = fromOffset <= baseOffset ? 0 : index.lookup(fromOffset); position < writePosition; ) {
+                long offset = LogRecord.offsetAt(buffer, position);
+                if (offset >= end) {
+                    break;
+                }
+                if (offset >= fromOffset && (includeAcknowledged || !acked.get((int) (offset - baseOffset)))) {
+                    if (visited == maxRecords) {
+                        return offset;
+                    }
+                    visitor.visit(LogRecord.read(buffer, position));
+                    visited++;
+                }
+                position += LogRecord.frameLengthAt(buffer, position);
+            }
+            return end;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Captures the current state of this segment for a {@link LogCheckpoint}. The caller must
+     * {@link #flush()} the segment before persisting the returned state.
+     */
+    public LogCheckpoint.SegmentState snapshot() {
+        lock.lock();
+        try {
+            return new LogCheckpoint.SegmentState(baseOffset, nextOffset, writePosition, recordCount,
+                    largestTimestamp, tombstones.size(), (BitSet) acked.clone());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long nextOffset() {
+        lock.lock();
+        try {
+            return nextOffset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return writePosition;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of bytes the segment file was pre-allocated to.
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    public int recordCount() {
+        lock.lock();
+        try {
+            return recordCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The newest timestamp of any record in this segment. Segments holding only legacy
+     *         v0 records, which carry no timestamp, fall back to the modification time of the file.
+     */
+    public long largestTimestamp() {
+        lock.lock();
+        try {
+            return largestTimestamp >= 0 ? largestTimestamp : logFile.lastModified();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces the records appended since the last flush, and any new tombstones, to disk.
+     */
+    public void flush() throws IOException {
+        flush(false);
+    }
+
+    /**
+     * Returns once every record appended before the call is on disk, also when another thread is
+     * flushing the segment at the same time.
+     *
+     * @param includeIndex Whether the sparse index should be forced as well, as required before a checkpoint.
+     */
+    public void flush(boolean includeIndex) throws IOException {
+        flushLock.lock();
+        try {
+            int to;
+            lock.lock();
+            try {
+                to = writePosition;
+            } finally {
+                lock.unlock();
+            }
+            if (to > flushedPosition) {
+                buffer.force(flushedPosition, to - flushedPosition);
+                // force 成功后才前移，失败的范围下次重试
+                flushedPosition = to;
+            }
+            if (includeIndex) {
+                index.flush();
+            }
+            tombstones.flush();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    public void flushTombstones() throws IOException {
+        tombstones.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        index.flush();
+        index.close();
+        tombstones.close();
+        raf.close();
+    }
+
+    public void delete() throws IOException {
+        close();
+        if (!logFile.delete() | !index.delete() | !tombstones.delete()) {
+            log.warn("Failed to delete files of segment {}", logFile.getName());
+        }
+    }
+}
@@ -0,0 +1,510 @@
+package io.github.jameswang777.minimq.store;
+
+import io.github.jameswang777.minimq.model.Message;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.stream.Collectors;
+
+/**
+ * Persists messages into one {@link CommitLog} per topic, stored under {@code <dataDir>/<topic>/}.
+ * <p>
+ * Opening the store and {@link #recover(Consumer) recovering} it work on all topics and segments
+ * in parallel, using a dedicated pool of {@code recoveryThreads} threads.
+ */
+@Slf4j
+public class MessageStore implements Closeable {
+
+    private final File dataDir;
+    private final int segmentBytes;
+    private final int indexIntervalBytes;
+    private final int recoveryThreads;
+    private final ConcurrentHashMap<String, CommitLog> logs = new ConcurrentHashMap<>();
+
+    public MessageStore(File dataDir, int segmentBytes, int indexIntervalBytes) throws IOException {
+        this(dataDir, segmentBytes, indexIntervalBytes, Runtime.getRuntime().availableProcessors());
+    }
+
+    public MessageStore(File dataDir, int segmentBytes, int indexIntervalBytes, int recoveryThreads) throws IOException {
+        this.dataDir = dataDir;
+        this.segmentBytes = segmentBytes;
+        this.indexIntervalBytes = indexIntervalBytes;
+        this.recoveryThreads = Math.max(1, recoveryThreads);
+        if (!dataDir.isDirectory() && !dataDir.mkdirs()) {
+            throw new IOException("Could not create data directory " + dataDir);
+        }
+        File[] topicDirs = dataDir.listFiles(File::isDirectory);
+        if (topicDirs != null) {
+            runInRecoveryPool(() -> {
+                Arrays.stream(topicDirs).parallel().forEach(topicDir -> {
+                    try {
+                        logs.put(topicName(topicDir.getName()), new CommitLog(topicDir, segmentBytes, indexIntervalBytes));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                return null;
+            });
+        }
+    }
+
+    // 在 ForkJoinPool 中提交的任务，其内部的并行流也会使用这个线程池，而不是公共池
+    private <T> T runInRecoveryPool(Callable<T> task) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(recoveryThreads);
+        try {
+            return pool.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while recovering message store", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Appends the message to its topic log and records the assigned offset on the message.
+     *
+     * @return The size of the stored message in bytes.
+     */
+    public int append(Message message) throws IOException {
+        CommitLog commitLog = logFor(message.getTopic());
+        byte[] payload = message.toBinary();
+        long offset = commitLog.append(message.getTimestamp(), payload);
+        message.setOffset(offset);
+        return payload.length;
+    }
+
+    /**
+     * Records an acknowledgement for the message as a tombstone in its topic log.
+     */
+    public void acknowledge(Message message) throws IOException {
+        CommitLog commitLog = logs.get(message.getTopic());
+        if (commitLog != null && message.getOffset() >= 0) {
+            commitLog.acknowledge(message.getOffset());
+        }
+    }
+
+    /**
+     * Records acknowledgements for many messages at once, with one tombstone write per topic segment.
+     */
+    public void acknowledge(Collection<Message> messages) throws IOException {
+        Map<String, List<Message>> byTopic = messages.stream()
+                .filter(message -> message.getOffset() >= 0)
+                .collect(Collectors.groupingBy(Message::getTopic));
+        for (Map.Entry<String, List<Message>> entry : byTopic.entrySet()) {
+            CommitLog commitLog = logs.get(entry.getKey());
+            if (commitLog != null) {
+                commitLog.acknowledge(entry.getValue().stream().mapToLong(Message::getOffset).toArray());
+            }
+        }
+    }
+
+    /**
+     * Reads up to {@code maxCount} unacknowledged messages of the topic with offsets in {@code [fromOffset, toOffset)},
+     * in offset order.
+     *
+     * @return The offset to continue reading from.
+     */
+    public long read(String topic, long fromOffset, long toOffset, int maxCount, Consumer<Message> consumer) {
+        return read(topic, fromOffset, toOffset, maxCount, false, consumer);
+    }
+
+    /**
+     * Like {@link #read(String, long, long, int, Consumer)}, but with {@code includeAcknowledged} also reads
+     * the messages that were acknowledged, as consumer groups do.
+     */
+    public long read(String topic, long fromOffset, long toOffset, int maxCount, boolean includeAcknowledged, Consumer<Message> consumer) {
+        CommitLog commitLog = logs.get(topic);
+        if (commitLog == null) {
+            return toOffset;
+        }
+        return commitLog.read(fromOffset, toOffset, maxCount, includeAcknowledged, record -> {
+            Message message = decode(record);
+            if (message == null) {
+                log.warn("Skipping unreadable record at offset {} of topic [{}]", record.getOffset(), topic);
+                return;
+            }
+            consumer.accept(message);
+        });
+    }
+
+    /**
+     * Collects the offsets of up to {@code maxCount} unacknowledged messages of the topic in {@code [fromOffset, toOffset)},
+     * in offset order, without decoding them. Delayed messages are skipped, since the broker delivers them on its own timer.
+     *
+     * @return The offset to continue reading from.
+     */
+    public long readOffsets(String topic, long fromOffset, long toOffset, int maxCount, LongConsumer consumer) {
+        return readOffsets(topic, fromOffset, toOffset, maxCount, false, consumer);
+    }
+
+    /**
+     * Like {@link #readOffsets(String, long, long, int, LongConsumer)}, but with {@code includeAcknowledged} also
+     * collects the messages that were acknowledged, as consumer groups do.
+     */
+    public long readOffsets(String topic, long fromOffset, long toOffset, int maxCount, boolean includeAcknowledged, LongConsumer consumer) {
+        CommitLog commitLog = logs.get(topic);
+        if (commitLog == null) {
+            return toOffset;
+        }
+        return commitLog.read(fromOffset, toOffset, maxCount, includeAcknowledged, record -> {
+            if (record.getMagic() == LogRecord.MAGIC_V0 || Message.deliverAtOf(record.getPayload()) == 0) {
+                consumer.accept(record.getOffset());
+            }
+        });
+    }
+
+    /**
+     * Reads every delayed message of the topic with an offset in {@code [fromOffset, toOffset)}, acknowledged
+     * or not, in offset order. Consumer groups skip delayed messages when reading the log and schedule them
+     * with this on recovery.
+     */
+    public void readDelayed(String topic, long fromOffset, long toOffset, Consumer<Message> consumer) {
+        CommitLog commitLog = logs.get(topic);
+        if (commitLog == null) {
+            return;
+        }
+        commitLog.read(fromOffset, toOffset, Integer.MAX_VALUE, true, record -> {
+            if (record.getMagic() != LogRecord.MAGIC_V0 && Message.deliverAtOf(record.getPayload()) > 0) {
+                Message message = decode(record);
+                if (message != null) {
+                    consumer.accept(message);
+                }
+            }
+        });
+    }
+
+    /**
+     * Registers a consumer group of the topic that starts reading at the end of its log, unless it exists already.
+     * The caller must make sure that no message of the topic is appended concurrently.
+     *
+     * @return The committed offset of the group.
+     */
+    public long joinGroup(String topic, String group) throws IOException {
+        return logFor(topic).joinGroup(group);
+    }
+
+    /**
+     * Moves the committed offset of a consumer group forward: every message of the topic below the offset
+     * was acknowledged by the group. It is forced to disk with the next flush.
+     */
+    public void commitGroup(String topic, String group, long offset) throws IOException {
+        CommitLog commitLog = logs.get(topic);
+        if (commitLog != null) {
+            commitLog.commitGroup(group, offset);
+        }
+    }
+
+    /**
+     * @return For every topic with consumer groups, the committed offset of each group.
+     */
+    public Map<String, Map<String, Long>> groupOffsets() {
+        Map<String, Map<String, Long>> offsets = new HashMap<>();
+        logs.forEach((topic, commitLog) -> {
+            Map<String, Long> groups = commitLog.groupOffsets();
+            if (!groups.isEmpty()) {
+                offsets.put(topic, groups);
+            }
+        });
+        return offsets;
+    }
+
+    /**
+     * @return true if the topic has no consumer groups and every message of it was acknowledged, or nothing
+     *         was ever stored for it. No message of the topic is then in flight or scheduled for later delivery.
+     */
+    public boolean isDrained(String topic) {
+        CommitLog commitLog = logs.get(topic);
+        return commitLog == null || commitLog.isDrained();
+    }
+
+    /**
+     * Closes and deletes the log of the topic if it is {@link #isDrained drained} and nothing was appended to it
+     * since {@code idleSince}. The caller must make sure that no message of the topic is appended concurrently;
+     * the next one starts a new log at offset 0.
+     *
+     * @return true if the log was deleted.
+     */
+    public boolean deleteIfDrained(String topic, long idleSince) throws IOException {
+        CommitLog commitLog = logs.get(topic);
+        if (commitLog == null || !commitLog.isDrained() || commitLog.lastAppendTime() >= idleSince) {
+            return false;
+        }
+        logs.remove(topic, commitLog);
+        commitLog.delete();
+        return true;
+    }
+
+    /**
+     * @return The topics that have a log, as of the time of the call.
+     */
+    public Set<String> topics() {
+        return new HashSet<>(logs.keySet());
+    }
+
+    /**
+     * @return The offset the next message of the topic will be stored at.
+     */
+    public long endOffset(String topic) {
+        CommitLog commitLog = logs.get(topic);
+        return commitLog == null ? 0 : commitLog.nextOffset();
+    }
+
+    /**
+     * @return The bytes of the messages stored for all topics, acknowledged or not, until their segments are reclaimed.
+     *         The unused, preallocated tail of every active segment is not counted.
+     */
+    public long sizeInBytes() {
+        long bytes = 0;
+        for (CommitLog commitLog : logs.values()) {
+            bytes += commitLog.sizeInBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return The lowest offset still stored for the topic; messages below it were deleted by retention.
+     */
+    public long startOffset(String topic) {
+        CommitLog commitLog = logs.get(topic);
+        return commitLog == null ? 0 : commitLog.startOffset();
+    }
+
+    /**
+     * Reclaims every sealed segment whose messages have all been acknowledged, by consumers without
+     * a group through tombstones and by every consumer group through its committed offset.
+     *
+     * @return The number of segments deleted across all topics.
+     */
+    public int compact() {
+        int deleted = 0;
+        for (CommitLog commitLog : logs.values()) {
+            deleted += commitLog.compact();
+        }
+        return deleted;
+    }
+
+    /**
+     * @return The topics whose consumer groups acknowledged sealed segments that are still kept, because
+     *         consumers without a group have not acknowledged all of their messages.
+     */
+    public Set<String> topicsHeldForUngroupedConsumers() {
+        Set<String> topics = new HashSet<>();
+        logs.forEach((topic, commitLog) -> {
+            if (commitLog.isHeldForUngroupedConsumers()) {
+                topics.add(topic);
+            }
+        });
+        return topics;
+    }
+
+    /**
+     * Applies the retention policy of every topic.
+     *
+     * @return For each topic that lost segments, the offset of its oldest remaining message.
+     *         Every message of that topic with a lower offset was deleted.
+     */
+    public Map<String, Long> enforceRetention(Function<String, RetentionPolicy> policies, long now) {
+        Map<String, Long> truncated = new HashMap<>();
+        logs.forEach((topic, commitLog) -> {
+            try {
+                int deleted = commitLog.enforceRetention(policies.apply(topic), now);
+                if (deleted > 0) {
+                    log.info("Retention deleted {} segment(s) of topic [{}]", deleted, topic);
+                    truncated.put(topic, commitLog.startOffset());
+                }
+            } catch (IOException e) {
+                log.error("Failed to enforce retention for topic [{}]", topic, e);
+            }
+        });
+        return truncated;
+    }
+
+    /**
+     * Replays every unacknowledged message, topic by topic in offset order.
+     * <p>
+     * Segments are decoded in parallel; the consumer is always called from the calling thread.
+     *
+     * @return The number of recovered messages.
+     */
+    public int recover(Consumer<Message> consumer) throws IOException {
+        return recover(consumer, Long.MAX_VALUE);
+    }
+
+    /**
+     * Replays every unacknowledged message, topic by topic in offset order.
+     * <p>
+     * Segments are decoded in parallel, up to {@code recoveryThreads} at a time and at most
+     * {@code maxWindowBytes} of log data at a time (but always at least one segment), since their
+     * messages are held in memory until the consumer has seen them. The consumer is always called
+     * from the calling thread.
+     *
+     * @return The number of recovered messages.
+     */
+    public int recover(Consumer<Message> consumer, long maxWindowBytes) throws IOException {
+        List<Map.Entry<String, LogSegment>> segments = new ArrayList<>();
+        logs.forEach((topic, commitLog) -> commitLog.segments().forEach(segment -> segments.add(Map.entry(topic, segment))));
+
+        int count = 0;
+        for (int from = 0; from < segments.size(); ) {
+            int to = from + 1;
+            long windowBytes = segments.get(from).getValue().size();
+            while (to < segments.size() && to - from < recoveryThreads && windowBytes + segments.get(to).getValue().size() <= maxWindowBytes) {
+                windowBytes += segments.get(to).getValue().size();
+                to++;
+            }
+            List<Map.Entry<String, LogSegment>> window = segments.subList(from, to);
+            List<List<Message>> decoded = runInRecoveryPool(() -> window.parallelStream()
+                    .map(entry -> decodeSegment(entry.getKey(), entry.getValue()))
+                    .collect(Collectors.toList()));
+            for (List<Message> messages : decoded) {
+                messages.forEach(consumer);
+                count += messages.size();
+            }
+            from = to;
+        }
+        return count;
+    }
+
+    private static List<Message> decodeSegment(String topic, LogSegment segment) {
+        List<Message> messages = new ArrayList<>();
+        segment.forEach(record -> {
+            Message message = decode(record);
+            if (message == null) {
+                log.warn("Skipping unreadable record at offset {} of topic [{}]", record.getOffset(), topic);
+                return;
+            }
+            messages.add(message);
+        });
+        return messages;
+    }
+
+    /**
+     * Writes a checkpoint for every topic log, so that the next start only scans what was written afterwards.
+     */
+    public void checkpoint() throws IOException {
+        for (CommitLog commitLog : logs.values()) {
+            commitLog.checkpoint();
+        }
+    }
+
+    /**
+     * 将旧版本的文本日志（每行一个 Message.toString()）导入到分段日志中，导入完成后重命名旧文件。
+     *
+     * @return The number of imported messages.
+     */
+    public int importLegacyLog(File legacyLog) throws IOException {
+        if (!legacyLog.isFile()) {
+            return 0;
+        }
+        int count = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(legacyLog, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Message message = Message.fromString(line);
+                if (message != null) {
+                    append(message);
+                    count++;
+                }
+            }
+        }
+        flush();
+        File migrated = new File(legacyLog.getPath() + ".migrated");
+        if (!legacyLog.renameTo(migrated)) {
+            log.error("Imported legacy log {} but could not rename it to {}", legacyLog, migrated);
+        }
+        return count;
+    }
+
+    private CommitLog logFor(String topic) throws IOException {
+        CommitLog commitLog = logs.get(topic);
+        if (commitLog != null) {
+            return commitLog;
+        }
+        try {
+            return logs.computeIfAbsent(topic, t -> {
+                try {
+                    return new CommitLog(new File(dataDir, directoryName(t)), segmentBytes, indexIntervalBytes);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        } catch (IllegalStateException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    // 按记录的格式版本解码：v0 为旧的文本格式，v1 为二进制格式。
+    // v1 消息的内容保持为映射分段的视图：记录写入后不再改变，分段删除时也不会主动解除映射，视图在消息被引用期间始终可读
+    private static Message decode(LogRecord record) {
+        Message message = record.getMagic() == LogRecord.MAGIC_V0
+                ? Message.fromString(StandardCharsets.UTF_8.decode(record.getPayload()).toString())
+                : Message.viewBinary(record.getPayload());
+        if (message != null) {
+            message.setOffset(record.getOffset());
+            // 二进制格式不含时间戳，使用记录的时间戳，即 Broker 收到消息的时间；v0 记录没有时间戳
+            if (record.getTimestamp() >= 0) {
+                message.setTimestamp(record.getTimestamp());
+            }
+        }
+        return message;
+    }
+
+    // 主题名可能包含路径分隔符等字符，编码后再作为目录名使用
+    static String directoryName(String topic) {
+        String encoded = URLEncoder.encode(topic, StandardCharsets.UTF_8);
+        return encoded.startsWith(".") ? "%2E" + encoded.substring(1) : encoded;
+    }
+
+    static String topicName(String directoryName) {
+        return URLDecoder.decode(directoryName, StandardCharsets.UTF_8);
+    }
+
+    public void flush() throws IOException {
+        for (CommitLog commitLog : logs.values()) {
+            commitLog.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (CommitLog commitLog : logs.values()) {
+            commitLog.close();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package io.github.jameswang777.minimq.store;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A sparse offset index for a single {@link LogSegment}.
+ * <p>
+ * Each entry maps a relative offset (offset - baseOffset) to the byte position of that
+ * record inside the segment. Entries are only added every {@code indexIntervalBytes},
+ * so a lookup returns the closest preceding record and the caller scans forward from there.
+ */
+public class OffsetIndex implements Closeable {
+
+    static final int ENTRY_SIZE = 8; // int relativeOffset + int position
+
+    private final File file;
+    private final long baseOffset;
+    private final int maxEntries;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer buffer;
+    private final ReentrantLock lock = new ReentrantLock();
+    private int entries;
+
+    public OffsetIndex(File file, long baseOffset, int maxEntries) throws IOException {
+        this.file = file;
+        this.baseOffset = baseOffset;
+        this.maxEntries = maxEntries;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) maxEntries * ENTRY_SIZE);
+        this.entries = countEntries();
+    }
+
+    // 第一个条目可以是 (0, 0)，之后的条目 position 一定大于 0，遇到 0 即视为索引末尾
+    private int countEntries() {
+        int n = 0;
+        while (n < maxEntries) {
+            int position = buffer.getInt(n * ENTRY_SIZE + 4);
+            if (n > 0 && position == 0) {
+                break;
+            }
+            if (n == 0 && position != 0) {
+                return 0; // 索引文件已损坏，交给 LogSegment 重建
+            }
+            n++;
+        }
+        return n;
+    }
+
+    public void append(long offset, int position) {
+        lock.lock();
+        try {
+            if (entries >= maxEntries) {
+                return;
+            }
+            if (entries > 0 && buffer.getInt((entries - 1) * ENTRY_SIZE + 4) >= position) {
+                return;
+            }
+            int slot = entries * ENTRY_SIZE;
+            buffer.putInt(slot, (int) (offset - baseOffset));
+            buffer.putInt(slot + 4, position);
+            entries++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the byte position of the last indexed record whose offset is less than or equal
+     * to the target offset, or 0 if no such entry exists.
+     */
+    public int lookup(long offset) {
+        lock.lock();
+        try {
+            long relative = offset - baseOffset;
+            int low = 0;
+            int high = entries - 1;
+            int position = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int midOffset = buffer.getInt(mid * ENTRY_SIZE);
+                if (midOffset <= relative) {
+                    position = buffer.getInt(mid * ENTRY_SIZE + 4);
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return position;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops every entry pointing at or beyond the given byte position.
+     */
+    public void truncateTo(int position) {
+        lock.lock();
+        try {
+            int n = entries;
+            while (n > 0 && buffer.getInt((n - 1) * ENTRY_SIZE + 4) >= position) {
+                n--;
+            }
+            for (int i = n; i < entries; i++) {
+                buffer.putLong(i * ENTRY_SIZE, 0L);
+            }
+            entries = n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The position of the last indexed record, or -1 if the index is empty.
+     */
+    public int lastPosition() {
+        lock.lock();
+        try {
+            return entries == 0 ? -1 : buffer.getInt((entries - 1) * ENTRY_SIZE + 4);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int entries() {
+        lock.lock();
+        try {
+            return entries;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void flush() {
+        buffer.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+
+    public boolean delete() {
+        return file.delete();
+    }
+}
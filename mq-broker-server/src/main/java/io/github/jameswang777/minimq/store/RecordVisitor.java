@@ -0,0 +1,13 @@
+package io.github.jameswang777.minimq.store;
+
+/**
+ * Callback used when replaying records from a {@link CommitLog}.
+ */
+@FunctionalInterface
+public interface RecordVisitor {
+
+    /**
+     * @param record The record, whose payload is only valid for the duration of the call.
+     */
+    void visit(LogRecord record);
+}
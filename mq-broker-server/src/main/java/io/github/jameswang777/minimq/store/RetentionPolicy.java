@@ -0,0 +1,164 @@
+package io.github.jameswang777.minimq.store;
+
+import lombok.Getter;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Bounds how much data a topic keeps, whether or not its messages were consumed.
+ * <ul>
+ *     <li>{@code age:<duration>} - delete segments whose newest message is older than this, e.g. {@code age:7d}.</li>
+ *     <li>{@code bytes:<size>} - delete the oldest segments while the log is larger than this, e.g. {@code bytes:1g}.</li>
+ *     <li>{@code messages:<count>} - delete the oldest segments while the log holds more messages than this.</li>
+ * </ul>
+ * Limits are combined with commas, e.g. {@code age:24h,bytes:512m}. Data is always removed a whole
+ * segment at a time, so a log may exceed a size or count limit by up to one segment.
+ */
+@Getter
+public class RetentionPolicy {
+
+    public static final long UNLIMITED = -1;
+
+    private final long maxAgeMs;
+    private final long maxBytes;
+    private final long maxMessages;
+
+    public RetentionPolicy(long maxAgeMs, long maxBytes, long maxMessages) {
+        this.maxAgeMs = maxAgeMs;
+        this.maxBytes = maxBytes;
+        this.maxMessages = maxMessages;
+    }
+
+    public static RetentionPolicy unlimited() {
+        return new RetentionPolicy(UNLIMITED, UNLIMITED, UNLIMITED);
+    }
+
+    public boolean isUnlimited() {
+        return maxAgeMs < 0 && maxBytes < 0 && maxMessages < 0;
+    }
+
+    /**
+     * Parses a comma separated list of {@code age:<duration>}, {@code bytes:<size>} and
+     * {@code messages:<count>} limits. A {@code null}, blank or {@code unlimited} value yields {@link #unlimited()}.
+     */
+    public static RetentionPolicy parse(String value) {
+        if (value == null || value.isBlank() || value.trim().equalsIgnoreCase("unlimited")) {
+            return unlimited();
+        }
+        long maxAgeMs = UNLIMITED;
+        long maxBytes = UNLIMITED;
+        long maxMessages = UNLIMITED;
+        for (String limit : value.toLowerCase(Locale.ROOT).split(",")) {
+            String[] parts = limit.trim().split(":", 2);
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid retention limit '" + limit.trim() + "' in '" + value + "'");
+            }
+            String amount = parts[1].trim();
+            if (amount.isEmpty()) {
+                throw new IllegalArgumentException("Missing value for retention limit '" + parts[0].trim() + "'");
+            }
+            switch (parts[0].trim()) {
+                case "age":
+                    maxAgeMs = parseDuration(amount);
+                    break;
+                case "bytes":
+                    maxBytes = parseSize(amount);
+                    break;
+                case "messages":
+                    maxMessages = parseNumber(amount, 1);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown retention limit '" + parts[0].trim() + "'. Expected age, bytes or messages");
+            }
+        }
+        return new RetentionPolicy(maxAgeMs, maxBytes, maxMessages);
+    }
+
+    /**
+     * Parses per-topic policies of the form {@code <topic>=<policy>;<topic>=<policy>}, e.g.
+     * {@code orders=age:7d;metrics=bytes:1g,messages:1000000}.
+     */
+    public static Map<String, RetentionPolicy> parseTopicPolicies(String value) {
+        Map<String, RetentionPolicy> policies = new HashMap<>();
+        if (value == null || value.isBlank()) {
+            return policies;
+        }
+        for (String entry : value.split(";")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            int separator = entry.lastIndexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Invalid topic retention '" + entry.trim() + "'. Expected <topic>=<policy>");
+            }
+            policies.put(entry.substring(0, separator).trim(), parse(entry.substring(separator + 1)));
+        }
+        return policies;
+    }
+
+    private static long parseDuration(String amount) {
+        if (amount.endsWith("ms")) {
+            return parseNumber(amount.substring(0, amount.length() - 2), 1);
+        }
+        switch (amount.charAt(amount.length() - 1)) {
+            case 's':
+                return parseNumber(amount.substring(0, amount.length() - 1), 1000L);
+            case 'm':
+                return parseNumber(amount.substring(0, amount.length() - 1), 60_000L);
+            case 'h':
+                return parseNumber(amount.substring(0, amount.length() - 1), 3_600_000L);
+            case 'd':
+                return parseNumber(amount.substring(0, amount.length() - 1), 86_400_000L);
+            default:
+                return parseNumber(amount, 1); // 不带单位时按毫秒处理
+        }
+    }
+
+    /**
+     * Parses a lower case size with an optional {@code k}, {@code m} or {@code g} suffix, e.g. {@code 512m}.
+     */
+    public static long parseSize(String amount) {
+        switch (amount.charAt(amount.length() - 1)) {
+            case 'k':
+                return parseNumber(amount.substring(0, amount.length() - 1), 1L << 10);
+            case 'm':
+                return parseNumber(amount.substring(0, amount.length() - 1), 1L << 20);
+            case 'g':
+                return parseNumber(amount.substring(0, amount.length() - 1), 1L << 30);
+            default:
+                return parseNumber(amount, 1);
+        }
+    }
+
+    private static long parseNumber(String number, long unit) {
+        try {
+            long value = Long.parseLong(number.trim());
+            if (value < 0) {
+                throw new IllegalArgumentException("Retention limits must not be negative: " + number);
+            }
+            return Math.multiplyExact(value, unit);
+        } catch (NumberFormatException | ArithmeticException e) {
+            throw new IllegalArgumentException("Invalid retention limit value '" + number + "'", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (isUnlimited()) {
+            return "unlimited";
+        }
+        StringBuilder sb = new StringBuilder();
+        if (maxAgeMs >= 0) {
+            sb.append("age:").append(maxAgeMs).append("ms");
+        }
+        if (maxBytes >= 0) {
+            sb.append(sb.length() > 0 ? "," : "").append("bytes:").append(maxBytes);
+        }
+        if (maxMessages >= 0) {
+            sb.append(sb.length() > 0 ? "," : "").append("messages:").append(maxMessages);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,138 @@
+package io.github.jameswang777.minimq.store;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An append-only list of acknowledged offsets that belongs to a single {@link LogSegment}.
+ * <p>
+ * Acknowledging a message only appends 8 bytes here instead of touching the segment itself,
+ * which keeps ACKs O(1) regardless of how large the log grows.
+ */
+public class TombstoneFile implements Closeable {
+
+    private static final int ENTRY_SIZE = 8;
+
+    private final File file;
+    private final FileChannel channel;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(ENTRY_SIZE);
+    private final ReentrantLock lock = new ReentrantLock();
+    // 刷盘依次进行，不阻塞追加；后来者必须等前一次 force 完成才能返回
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private long writePosition;
+    private long flushedPosition; // 只在持有 flushLock 时访问（构造期间除外）
+
+    public TombstoneFile(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // 截掉崩溃时可能残留的半个条目
+        this.writePosition = channel.size() - channel.size() % ENTRY_SIZE;
+        if (writePosition != channel.size()) {
+            channel.truncate(writePosition);
+        }
+        this.flushedPosition = writePosition;
+    }
+
+    /**
+     * Reads every tombstone written at or after the given byte position.
+     */
+    public long[] readFrom(long position) throws IOException {
+        lock.lock();
+        try {
+            long start = Math.min(Math.max(position - position % ENTRY_SIZE, 0), writePosition);
+            ByteBuffer buffer = ByteBuffer.allocate((int) (writePosition - start));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, start + buffer.position()) < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+            long[] offsets = new long[buffer.remaining() / ENTRY_SIZE];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = buffer.getLong();
+            }
+            return offsets;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of bytes written to the file so far.
+     */
+    public long size() {
+        lock.lock();
+        try {
+            return writePosition;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void append(long offset) throws IOException {
+        lock.lock();
+        try {
+            writeBuffer.clear();
+            writeBuffer.putLong(offset).flip();
+            while (writeBuffer.hasRemaining()) {
+                writePosition += channel.write(writeBuffer, writePosition);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends several tombstones with a single write.
+     */
+    public void append(long[] offsets, int count) throws IOException {
+        if (count == 0) {
+            return;
+        }
+        ByteBuffer batch = ByteBuffer.allocate(count * ENTRY_SIZE);
+        for (int i = 0; i < count; i++) {
+            batch.putLong(offsets[i]);
+        }
+        batch.flip();
+        lock.lock();
+        try {
+            while (batch.hasRemaining()) {
+                writePosition += channel.write(batch, writePosition);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces the tombstones appended since the last flush to disk. Returns only once they are forced,
+     * even if another thread is flushing the file at the same time.
+     */
+    public void flush() throws IOException {
+        flushLock.lock();
+        try {
+            long to = size();
+            if (to > flushedPosition && channel.isOpen()) {
+                channel.force(false);
+                // force 成功后才前移，失败时下次重试
+                flushedPosition = to;
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public boolean delete() {
+        return file.delete();
+    }
+}
@@ -0,0 +1,137 @@
+package io.github.jameswang777.minimq;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConcurrentLongMapTest {
+
+    // 与 ConcurrentLongMap 相同的散列：高 6 位选分段，低位选槽；新分段有 16 个槽
+    private static long hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static int segment(long key) {
+        return (int) (hash(key) >>> 58);
+    }
+
+    private static int slot(long key) {
+        return (int) hash(key) & 15;
+    }
+
+    // 找出落在同一分段、起始槽依次为 slots[i] 的键，它们在表中排成一段连续的探测序列
+    private static long[] keysWithSlots(int... slots) {
+        long[] keys = new long[slots.length];
+        int found = 0;
+        int segment = -1;
+        for (long key = 0; found < slots.length; key++) {
+            if ((segment < 0 || segment(key) == segment) && slot(key) == slots[found]) {
+                segment = segment(key);
+                keys[found++] = key;
+            }
+        }
+        return keys;
+    }
+
+    @Test
+    void removingFromAProbeChainKeepsTheRestReachable() {
+        // 前四个键的起始槽都是 14，依次占用 14、15、0、1；最后一个键的起始槽是 0，被挤到 2
+        long[] keys = keysWithSlots(14, 14, 14, 14, 0);
+        for (int victim = 0; victim < keys.length; victim++) {
+            ConcurrentLongMap<String> map = new ConcurrentLongMap<>();
+            for (long key : keys) {
+                map.put(key, "v" + key);
+            }
+            assertEquals("v" + keys[victim], map.remove(keys[victim]));
+            for (long key : keys) {
+                assertEquals(key == keys[victim] ? null : "v" + key, map.get(key), "after removing key " + victim);
+            }
+            assertEquals(keys.length - 1, map.size());
+        }
+    }
+
+    @Test
+    void removingEveryKeyOfAChainInAnyOrderEmptiesTheMap() {
+        long[] keys = keysWithSlots(15, 15, 0, 15, 1, 0);
+        ConcurrentLongMap<Long> map = new ConcurrentLongMap<>();
+        for (long key : keys) {
+            map.put(key, key);
+        }
+        int[] order = {2, 0, 5, 3, 1, 4};
+        for (int i = 0; i < order.length; i++) {
+            assertEquals(keys[order[i]], map.remove(keys[order[i]]));
+            for (int j = i + 1; j < order.length; j++) {
+                assertEquals(keys[order[j]], map.get(keys[order[j]]));
+            }
+        }
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    void behavesLikeAHashMapUnderRandomOperations() {
+        ConcurrentLongMap<Long> map = new ConcurrentLongMap<>();
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(42);
+        // 键的范围较小，插入、删除和扩缩容交替发生
+        for (int i = 0; i < 200_000; i++) {
+            long key = random.nextInt(5_000);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                Long value = (long) i;
+                assertEquals(expected.put(key, value), map.put(key, value));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (long key = 0; key < 5_000; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+    }
+
+    @Test
+    void conditionalRemoveComparesByIdentity() {
+        ConcurrentLongMap<String> map = new ConcurrentLongMap<>();
+        String value = new String("value");
+        map.put(1, value);
+        assertFalse(map.remove(1, new String("value")));
+        assertTrue(map.remove(1, value));
+        assertNull(map.get(1));
+    }
+
+    @Test
+    void removeIfRemovesMatchingValues() {
+        ConcurrentLongMap<Long> map = new ConcurrentLongMap<>();
+        List<Long> kept = new ArrayList<>();
+        for (long key = 0; key < 1_000; key++) {
+            map.put(key, key);
+            if (key % 3 != 0) {
+                kept.add(key);
+            }
+        }
+        assertEquals(334, map.removeIf(value -> value % 3 == 0));
+        assertEquals(kept.size(), map.size());
+        for (long key : kept) {
+            assertEquals(key, map.get(key));
+        }
+    }
+
+    @Test
+    void nullValuesAreRejected() {
+        assertThrows(NullPointerException.class, () -> new ConcurrentLongMap<String>().put(1, null));
+    }
+}
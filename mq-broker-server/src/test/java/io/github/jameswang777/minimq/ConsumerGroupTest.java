@@ -0,0 +1,132 @@
+package io.github.jameswang777.minimq;
+
+import io.github.jameswang777.minimq.metrics.BrokerMetrics;
+import io.github.jameswang777.minimq.model.Message;
+import io.github.jameswang777.minimq.store.MessageStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ConsumerGroupTest {
+
+    private static final String TOPIC = "orders";
+    private static final String GROUP = "billing";
+    private static final int MESSAGES = 10;
+    private static final long ACK_TIMEOUT_MS = 60_000;
+
+    @TempDir
+    File dataDir;
+
+    private MessageStore store;
+    private ScheduledExecutorService timer;
+    private final List<Message> produced = new ArrayList<>();
+
+    @BeforeEach
+    void produce() throws IOException {
+        store = new MessageStore(dataDir, 64 * 1024, 256);
+        timer = Executors.newSingleThreadScheduledExecutor();
+        store.joinGroup(TOPIC, GROUP);
+        for (int i = 0; i < MESSAGES; i++) {
+            Message message = new Message(TOPIC, "message-" + i);
+            message.assignId(1000 + i);
+            store.append(message);
+            produced.add(message);
+        }
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        timer.shutdownNow();
+        store.close();
+    }
+
+    private ConsumerGroup group(long committedOffset) {
+        return new ConsumerGroup(TOPIC, GROUP, committedOffset, store.endOffset(TOPIC), 10, timer, store,
+                new MemoryBudget(1 << 20), new BrokerMetrics().topic(TOPIC));
+    }
+
+    private long committed() {
+        return store.groupOffsets().get(TOPIC).get(GROUP);
+    }
+
+    private static List<String> ids(List<Message> messages) {
+        List<String> ids = new ArrayList<>();
+        messages.forEach(message -> ids.add(message.getId()));
+        return ids;
+    }
+
+    private List<String> idsOf(int... indexes) {
+        List<String> ids = new ArrayList<>();
+        for (int index : indexes) {
+            ids.add(produced.get(index).getId());
+        }
+        return ids;
+    }
+
+    @Test
+    void committedOffsetOnlyMovesOverContiguousAcknowledgements() {
+        ConsumerGroup group = group(0);
+        assertEquals(ids(produced), ids(group.poll(MESSAGES, 0, ACK_TIMEOUT_MS).join()));
+
+        group.acknowledge(idsOf(2, 3));
+        assertEquals(0, committed());
+        group.acknowledge(idsOf(0));
+        assertEquals(1, committed());
+        group.acknowledge(idsOf(1));
+        assertEquals(4, committed());
+        group.acknowledge(idsOf(9, 5, 4));
+        assertEquals(6, committed());
+        group.acknowledge(idsOf(6, 7, 8));
+        assertEquals(MESSAGES, committed());
+    }
+
+    @Test
+    void unknownAndRepeatedAcknowledgementsAreIgnored() {
+        ConsumerGroup group = group(0);
+        group.poll(MESSAGES, 0, ACK_TIMEOUT_MS).join();
+
+        group.acknowledge(Arrays.asList("999999", "not-an-id"));
+        assertEquals(0, committed());
+        group.acknowledge(idsOf(0, 0));
+        group.acknowledge(idsOf(0));
+        assertEquals(1, committed());
+    }
+
+    @Test
+    void restartedGroupContinuesFromTheCommittedOffset() {
+        ConsumerGroup group = group(0);
+        group.poll(MESSAGES, 0, ACK_TIMEOUT_MS).join();
+        // 提交位置之上已确认的消息在重启后再次投递
+        group.acknowledge(idsOf(0, 1, 3));
+        assertEquals(2, committed());
+
+        ConsumerGroup restarted = group(committed());
+        List<Message> redelivered = restarted.poll(MESSAGES, 0, ACK_TIMEOUT_MS).join();
+        assertEquals(ids(produced.subList(2, MESSAGES)), ids(redelivered));
+        restarted.acknowledge(ids(redelivered));
+        assertEquals(MESSAGES, committed());
+    }
+
+    @Test
+    void evictionMovesTheCommittedOffsetPastDeletedMessages() {
+        ConsumerGroup group = group(0);
+        group.poll(MESSAGES, 0, ACK_TIMEOUT_MS).join();
+        group.acknowledge(idsOf(5, 6));
+
+        group.evictBefore(5);
+        assertEquals(7, committed());
+        group.acknowledge(idsOf(7));
+        assertEquals(8, committed());
+    }
+}
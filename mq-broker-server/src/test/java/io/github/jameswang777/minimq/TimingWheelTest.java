@@ -0,0 +1,79 @@
+package io.github.jameswang777.minimq;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimingWheelTest {
+
+    private static final long TICK_MS = 1;
+    // 定时器线程可能被调度延迟，只检查到期时间的下限和一个宽松的上限
+    private static final long LATENESS_MS = 1000;
+
+    private final Map<Long, Long> expiredAfterMs = new ConcurrentHashMap<>();
+    private final long startNanos = System.nanoTime();
+    private final TimingWheel<Long> wheel = new TimingWheel<>(TICK_MS, timeout ->
+            expiredAfterMs.put(timeout.getItem(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)));
+
+    private void advanceUntil(BooleanSupplier done, long maxWaitMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+        while (!done.getAsBoolean() && System.nanoTime() < deadline) {
+            wheel.advance();
+            Thread.sleep(TICK_MS);
+        }
+    }
+
+    @Test
+    void timeoutsCascadeDownAndExpireOnTime() throws InterruptedException {
+        // 1 ms 一个 tick 时，第一层覆盖 64 ms，第二层 4096 ms，更长的延迟放在第三层，逐层下移后到期
+        long[] delays = {2, 50, 200, 1000, 4500};
+        for (long delay : delays) {
+            wheel.schedule(delay, delay);
+        }
+        advanceUntil(() -> expiredAfterMs.size() == delays.length, 4500 + LATENESS_MS);
+        for (long delay : delays) {
+            Long expiredAfter = expiredAfterMs.get(delay);
+            assertNotNull(expiredAfter, "timeout of " + delay + " ms did not expire");
+            assertTrue(expiredAfter >= delay, "timeout of " + delay + " ms expired after " + expiredAfter + " ms");
+            assertTrue(expiredAfter < delay + LATENESS_MS, "timeout of " + delay + " ms expired after " + expiredAfter + " ms");
+        }
+    }
+
+    @Test
+    void cancelledTimeoutsDoNotExpire() throws InterruptedException {
+        TimingWheel.Timeout<Long> cancelled = wheel.schedule(1L, 150);
+        wheel.schedule(2L, 300);
+        advanceUntil(() -> false, 100);
+        assertTrue(wheel.cancel(cancelled));
+        assertFalse(wheel.cancel(cancelled));
+        advanceUntil(() -> expiredAfterMs.containsKey(2L), 300 + LATENESS_MS);
+        assertEquals(1, expiredAfterMs.size());
+        assertTrue(expiredAfterMs.containsKey(2L));
+    }
+
+    @Test
+    void expiredTimeoutCannotBeCancelled() throws InterruptedException {
+        TimingWheel.Timeout<Long> timeout = wheel.schedule(1L, 5);
+        advanceUntil(() -> expiredAfterMs.containsKey(1L), 5 + LATENESS_MS);
+        assertTrue(expiredAfterMs.containsKey(1L));
+        assertFalse(wheel.cancel(timeout));
+    }
+
+    @Test
+    void advanceCountsExpiredTimeouts() throws InterruptedException {
+        for (long i = 0; i < 100; i++) {
+            wheel.schedule(i, 0);
+        }
+        Thread.sleep(5 * TICK_MS);
+        assertEquals(100, wheel.advance());
+        assertEquals(0, wheel.advance());
+    }
+}
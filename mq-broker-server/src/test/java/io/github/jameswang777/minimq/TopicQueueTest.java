@@ -0,0 +1,179 @@
+package io.github.jameswang777.minimq;
+
+import io.github.jameswang777.minimq.model.Message;
+import io.github.jameswang777.minimq.store.MessageStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TopicQueueTest {
+
+    private static final String TOPIC = "orders";
+    private static final long ENTRY_BYTES = Long.BYTES;
+    private static final long WAIT_MS = 60_000;
+
+    @TempDir
+    File dataDir;
+
+    private MessageStore store;
+    private ScheduledExecutorService timer;
+    private long nextId = 1000;
+
+    @BeforeEach
+    void open() throws IOException {
+        store = new MessageStore(dataDir, 64 * 1024, 256);
+        timer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        timer.shutdownNow();
+        store.close();
+    }
+
+    private Message produce(TopicQueue queue, String topic, String content) throws IOException {
+        Message message = new Message(topic, content);
+        message.assignId(nextId++);
+        store.append(message);
+        queue.append(message);
+        return message;
+    }
+
+    private List<String> produce(TopicQueue queue, String topic, int count) throws IOException {
+        List<String> contents = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            contents.add(produce(queue, topic, topic + "-" + i).getContent());
+        }
+        return contents;
+    }
+
+    // 不等待地取出队列中的全部消息，按取出的顺序返回内容
+    private static List<String> drain(TopicQueue queue) {
+        List<String> contents = new ArrayList<>();
+        List<Message> batch;
+        while (!(batch = queue.poll(3, 0, message -> {
+        }).join()).isEmpty()) {
+            batch.forEach(message -> contents.add(message.getContent()));
+        }
+        return contents;
+    }
+
+    @Test
+    void messagesBeyondTheTopicLimitSpillAndAreReadBackInOrder() throws IOException {
+        MemoryBudget budget = new MemoryBudget(1 << 20);
+        TopicQueue queue = new TopicQueue(TOPIC, timer, store, budget, 4 * ENTRY_BYTES);
+        List<String> produced = produce(queue, TOPIC, 10);
+        // 只有前 4 条的偏移量留在内存中，其余的只记录日志范围
+        assertEquals(4 * ENTRY_BYTES, budget.getUsedBytes());
+        assertEquals(10, queue.depth());
+
+        assertEquals(produced, drain(queue));
+        assertEquals(0, queue.depth());
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    @Test
+    void messagesBeyondTheSharedBudgetSpill() throws IOException {
+        MemoryBudget budget = new MemoryBudget(3 * ENTRY_BYTES);
+        TopicQueue first = new TopicQueue(TOPIC, timer, store, budget, 1 << 20);
+        TopicQueue second = new TopicQueue("invoices", timer, store, budget, 1 << 20);
+        List<String> firstProduced = produce(first, TOPIC, 2);
+        List<String> secondProduced = produce(second, "invoices", 3);
+        assertEquals(3 * ENTRY_BYTES, budget.getUsedBytes());
+        assertEquals(3, second.depth());
+
+        assertEquals(secondProduced, drain(second));
+        assertEquals(firstProduced, drain(first));
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    @Test
+    void messagesStayInOrderWhileTheSpilledRangeIsDrained() throws IOException {
+        TopicQueue queue = new TopicQueue(TOPIC, timer, store, new MemoryBudget(1 << 20), 2 * ENTRY_BYTES);
+        List<String> produced = produce(queue, TOPIC, 5);
+        assertEquals(produced.subList(0, 1), contents(queue.poll(1, 0, message -> {
+        }).join()));
+        // 内存有了空位，但溢出范围还没读回，新消息必须排在它后面
+        produced.add(produce(queue, TOPIC, "late").getContent());
+
+        assertEquals(produced.subList(1, produced.size()), drain(queue));
+    }
+
+    @Test
+    void acknowledgedMessagesInTheSpilledRangeAreSkipped() throws IOException {
+        TopicQueue queue = new TopicQueue(TOPIC, timer, store, new MemoryBudget(1 << 20), ENTRY_BYTES);
+        List<Message> produced = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            produced.add(produce(queue, TOPIC, "message-" + i));
+        }
+        store.acknowledge(produced.get(2));
+
+        assertEquals(List.of("message-0", "message-1", "message-3", "message-4"), drain(queue));
+    }
+
+    @Test
+    void cancelledWaiterLeavesTheNextMessageToOthers() throws IOException {
+        TopicQueue queue = new TopicQueue(TOPIC, timer, store, new MemoryBudget(1 << 20), 1 << 20);
+        List<Message> dispatchedToCancelled = new ArrayList<>();
+        CompletableFuture<List<Message>> cancelled = queue.poll(1, WAIT_MS, dispatchedToCancelled::add);
+        CompletableFuture<List<Message>> waiting = queue.poll(1, WAIT_MS, message -> {
+        });
+        assertFalse(cancelled.isDone());
+
+        assertTrue(cancelled.cancel(false));
+        assertEquals(List.of(), cancelled.join());
+        Message first = produce(queue, TOPIC, "first");
+        assertEquals(List.of(first.getContent()), contents(waiting.join()));
+
+        // 没有等待者时，消息留在队列中
+        Message second = produce(queue, TOPIC, "second");
+        assertEquals(List.of(second.getContent()), drain(queue));
+        assertEquals(List.of(), dispatchedToCancelled);
+    }
+
+    @Test
+    void cancellingAfterDeliveryKeepsTheMessages() throws IOException {
+        TopicQueue queue = new TopicQueue(TOPIC, timer, store, new MemoryBudget(1 << 20), 1 << 20);
+        CompletableFuture<List<Message>> waiter = queue.poll(1, WAIT_MS, message -> {
+        });
+        Message message = produce(queue, TOPIC, "delivered");
+
+        assertFalse(waiter.cancel(false));
+        assertEquals(List.of(message.getContent()), contents(waiter.join()));
+        assertEquals(0, queue.depth());
+    }
+
+    @Test
+    void onlyAnEmptyIdleQueueIsRetired() throws IOException {
+        TopicQueue queue = new TopicQueue(TOPIC, timer, store, new MemoryBudget(1 << 20), 1 << 20);
+        produce(queue, TOPIC, 1);
+        long future = System.currentTimeMillis() + WAIT_MS;
+        assertFalse(queue.retireIfIdle(future));
+
+        drain(queue);
+        assertFalse(queue.retireIfIdle(System.currentTimeMillis() - WAIT_MS));
+        assertTrue(queue.retireIfIdle(future));
+        assertNull(queue.poll(1, 0, message -> {
+        }));
+    }
+
+    private static List<String> contents(List<Message> messages) {
+        List<String> contents = new ArrayList<>();
+        messages.forEach(message -> contents.add(message.getContent()));
+        return contents;
+    }
+}
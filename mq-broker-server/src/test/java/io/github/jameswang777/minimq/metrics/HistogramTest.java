@@ -0,0 +1,75 @@
+package io.github.jameswang777.minimq.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HistogramTest {
+
+    private static final long MAX_VALUE = (1L << 37) - 1;
+
+    private static void assertWithinBucket(long expected, long actual) {
+        // 每个 2 的幂分为 16 个桶，结果向上取到桶的末尾
+        assertTrue(actual >= expected && actual <= expected + expected / 16,
+                "expected " + expected + " rounded up by at most 1/16, was " + actual);
+    }
+
+    @Test
+    void emptyHistogramHasNoValues() {
+        Histogram.Snapshot snapshot = new Histogram().snapshot();
+        assertEquals(0, snapshot.count());
+        assertEquals(0, snapshot.valueAt(0.5));
+        assertEquals(0, snapshot.valueAt(1));
+    }
+
+    @Test
+    void smallValuesAreExact() {
+        Histogram histogram = new Histogram();
+        for (long value = 1; value <= 10; value++) {
+            histogram.record(value);
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(10, snapshot.count());
+        assertEquals(55, snapshot.sum());
+        assertEquals(1, snapshot.valueAt(0));
+        assertEquals(1, snapshot.valueAt(0.1));
+        assertEquals(5, snapshot.valueAt(0.5));
+        assertEquals(10, snapshot.valueAt(1));
+    }
+
+    @Test
+    void quantilesAreRoundedUpToTheirBucket() {
+        Histogram histogram = new Histogram();
+        for (long value = 1; value <= 100_000; value++) {
+            histogram.record(value);
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertWithinBucket(50_000, snapshot.valueAt(0.5));
+        assertWithinBucket(90_000, snapshot.valueAt(0.9));
+        assertWithinBucket(99_000, snapshot.valueAt(0.99));
+        // 不会超过记录到的最大值
+        assertEquals(100_000, snapshot.valueAt(0.999));
+        assertEquals(100_000, snapshot.valueAt(1));
+        assertEquals(100_000, snapshot.max());
+    }
+
+    @Test
+    void singleValueIsReportedExactly() {
+        Histogram histogram = new Histogram();
+        histogram.record(123_456_789);
+        assertEquals(123_456_789, histogram.snapshot().valueAt(0.5));
+    }
+
+    @Test
+    void valuesOutsideTheRangeAreClamped() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(0, snapshot.valueAt(0.5));
+        assertEquals(MAX_VALUE, snapshot.valueAt(1));
+        assertEquals(MAX_VALUE, snapshot.max());
+        assertEquals(MAX_VALUE, snapshot.sum());
+    }
+}
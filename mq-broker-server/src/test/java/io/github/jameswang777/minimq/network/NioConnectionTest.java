@@ -0,0 +1,245 @@
+package io.github.jameswang777.minimq.network;
+
+import io.github.jameswang777.minimq.protocol.BinaryProtocol;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NioConnectionTest {
+
+    // 与 NioConnection 中的限制相同
+    private static final int MAX_LINE_BYTES = 16 * 1024 * 1024;
+    private static final int MAX_PENDING_COMMANDS = 1024;
+    private static final long TIMEOUT_MS = 10_000;
+
+    private final List<String> lines = new CopyOnWriteArrayList<>();
+    private final List<byte[]> frames = new CopyOnWriteArrayList<>();
+    // 不为 null 时，命令的响应挂起到它完成为止
+    private volatile CompletableFuture<Void> release;
+
+    private ExecutorService commandExecutor;
+    private NioServer server;
+    private int port;
+
+    private class RecordingHandler implements CommandHandler {
+
+        @Override
+        public CompletableFuture<Response> handle(String line) {
+            lines.add(line);
+            Response response = Response.of("OK:" + line);
+            CompletableFuture<Void> held = release;
+            return held == null ? CompletableFuture.completedFuture(response) : held.thenApply(ignored -> response);
+        }
+
+        @Override
+        public CompletableFuture<Response> handleFrame(ByteBuffer frame) {
+            byte[] bytes = new byte[frame.remaining()];
+            frame.get(bytes);
+            frames.add(bytes);
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    @BeforeEach
+    void start() throws IOException {
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        commandExecutor = Executors.newCachedThreadPool();
+        server = new NioServer(1, commandExecutor, connection -> new RecordingHandler());
+        server.listen(port, null, "Test");
+        server.start();
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        server.close();
+        commandExecutor.shutdownNow();
+    }
+
+    private static void awaitUntil(BooleanSupplier done) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (!done.getAsBoolean() && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(done.getAsBoolean(), "timed out");
+    }
+
+    // 分多次写出，每次之后稍作停顿，让服务端分别读到每一段
+    private static void writeInPieces(OutputStream out, byte[]... pieces) throws Exception {
+        for (byte[] piece : pieces) {
+            out.write(piece);
+            out.flush();
+            Thread.sleep(20);
+        }
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // 跳过关闭前已写出的数据，服务端关闭连接后读取到流的末尾或连接被重置
+    private static boolean closedByServer(InputStream in) {
+        try {
+            while (in.read() >= 0) {
+                // 继续读取
+            }
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    @Test
+    void linesAreReassembledAcrossReads() throws Exception {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout((int) TIMEOUT_MS);
+            writeInPieces(socket.getOutputStream(), ascii("PRO"), ascii("DUCE:a\r\nSECOND\nTHI"), ascii("RD"), ascii("\n\n"));
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            assertEquals("OK:PRODUCE:a", in.readLine());
+            assertEquals("OK:SECOND", in.readLine());
+            assertEquals("OK:THIRD", in.readLine());
+            assertEquals("OK:", in.readLine());
+        }
+        assertEquals(List.of("PRODUCE:a", "SECOND", "THIRD", ""), lines);
+    }
+
+    @Test
+    void lineOfTheMaximumLengthIsAccepted() throws Exception {
+        byte[] line = new byte[MAX_LINE_BYTES + 1];
+        Arrays.fill(line, (byte) 'x');
+        line[MAX_LINE_BYTES] = '\n';
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout((int) TIMEOUT_MS);
+            socket.getOutputStream().write(line);
+            socket.getOutputStream().write(ascii("NEXT\n"));
+            awaitUntil(() -> lines.size() == 2);
+        }
+        assertEquals(MAX_LINE_BYTES, lines.get(0).length());
+        assertEquals("NEXT", lines.get(1));
+    }
+
+    @Test
+    void overlongLineClosesTheConnection() throws Exception {
+        byte[] chunk = new byte[1024 * 1024];
+        Arrays.fill(chunk, (byte) 'x');
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout((int) TIMEOUT_MS);
+            try {
+                for (int written = 0; written <= MAX_LINE_BYTES; written += chunk.length) {
+                    socket.getOutputStream().write(chunk);
+                }
+            } catch (IOException e) {
+                // 服务端可能在全部写完之前就关闭了连接
+            }
+            assertTrue(closedByServer(socket.getInputStream()));
+        }
+        assertEquals(List.of(), lines);
+    }
+
+    @Test
+    void binaryFramesAreReassembledAcrossReads() throws Exception {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout((int) TIMEOUT_MS);
+            byte[] magic = BinaryProtocol.magic();
+            byte[] first = {1, 2, 3, 4, 5};
+            byte[] second = {9};
+            ByteBuffer stream = ByteBuffer.allocate(magic.length + 2 * Integer.BYTES + first.length + second.length);
+            stream.put(magic).putInt(first.length).put(first).putInt(second.length).put(second);
+            byte[] bytes = stream.array();
+            // 握手、帧的长度字段和帧的内容都被拆开
+            int lengthField = magic.length + 2;
+            writeInPieces(socket.getOutputStream(), Arrays.copyOf(bytes, 2), Arrays.copyOfRange(bytes, 2, lengthField),
+                    Arrays.copyOfRange(bytes, lengthField, lengthField + 5), Arrays.copyOfRange(bytes, lengthField + 5, bytes.length));
+
+            byte[] answer = new byte[magic.length];
+            new DataInputStream(socket.getInputStream()).readFully(answer);
+            assertArrayEquals(magic, answer);
+            awaitUntil(() -> this.frames.size() == 2);
+        }
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5}, frames.get(0));
+        assertArrayEquals(new byte[]{9}, frames.get(1));
+    }
+
+    @Test
+    void invalidFrameLengthClosesTheConnection() throws Exception {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout((int) TIMEOUT_MS);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.write(BinaryProtocol.magic());
+            out.writeInt(BinaryProtocol.MAX_FRAME_BYTES + 1);
+            out.flush();
+            // 握手的应答可能来不及写出，连接就被关闭了
+            assertTrue(closedByServer(socket.getInputStream()));
+        }
+        assertEquals(List.of(), frames);
+    }
+
+    @Test
+    void readingPausesWhileTooManyCommandsArePendingAndResumes() throws Exception {
+        int commands = 3 * MAX_PENDING_COMMANDS;
+        String padding = "x".repeat(1000);
+        release = new CompletableFuture<>();
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout((int) TIMEOUT_MS);
+            // 写入可能因服务端暂停读取而阻塞，在另一个线程中写
+            Thread writer = new Thread(() -> {
+                try {
+                    OutputStream out = socket.getOutputStream();
+                    for (int i = 0; i < commands; i++) {
+                        out.write(ascii(i + ":" + padding + "\n"));
+                    }
+                    out.flush();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            writer.start();
+
+            awaitUntil(() -> lines.size() >= MAX_PENDING_COMMANDS);
+            Thread.sleep(200);
+            // 暂停时已读入的缓冲区仍会处理完，但不会再读取新的数据
+            int handledWhilePaused = lines.size();
+            assertTrue(handledWhilePaused < commands, "handled " + handledWhilePaused + " commands without pausing");
+            Thread.sleep(200);
+            assertEquals(handledWhilePaused, lines.size());
+
+            // 积压的响应写出后恢复读取，其余命令依次执行，响应保持请求的顺序
+            release.complete(null);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            for (int i = 0; i < commands; i++) {
+                String line = in.readLine();
+                assertTrue(line != null && line.startsWith("OK:" + i + ":"), "response " + i + " was " + line);
+            }
+            writer.join(TIMEOUT_MS);
+        }
+        assertEquals(commands, lines.size());
+    }
+}
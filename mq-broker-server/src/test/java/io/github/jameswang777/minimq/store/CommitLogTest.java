@@ -0,0 +1,131 @@
+package io.github.jameswang777.minimq.store;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CommitLogTest {
+
+    private static final int SEGMENT_BYTES = 1024;
+    private static final int INDEX_INTERVAL_BYTES = 256;
+    private static final byte[] PAYLOAD = "x".repeat(100).getBytes(StandardCharsets.UTF_8);
+    private static final int RECORDS_PER_SEGMENT = SEGMENT_BYTES / LogRecord.frameLength(PAYLOAD.length);
+    private static final long NOW = 1_000_000;
+
+    @TempDir
+    File dir;
+
+    private CommitLog log;
+
+    @BeforeEach
+    void open() throws IOException {
+        log = new CommitLog(dir, SEGMENT_BYTES, INDEX_INTERVAL_BYTES);
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        log.close();
+    }
+
+    private void append(int count, long timestamp) throws IOException {
+        for (int i = 0; i < count; i++) {
+            log.append(timestamp, PAYLOAD);
+        }
+    }
+
+    private long recordCount() {
+        long count = 0;
+        for (LogSegment segment : log.segments()) {
+            count += segment.recordCount();
+        }
+        return count;
+    }
+
+    // 保留策略只删除最旧的分段，剩下的记录仍是从 startOffset 开始的连续一段
+    private void assertContiguousFromStart() {
+        if (log.startOffset() > 0) {
+            assertNull(log.read(log.startOffset() - 1));
+        }
+        for (long offset = log.startOffset(); offset < log.nextOffset(); offset++) {
+            assertNotNull(log.read(offset), "offset " + offset);
+        }
+    }
+
+    @Test
+    void unlimitedPolicyKeepsEverything() throws IOException {
+        append(5 * RECORDS_PER_SEGMENT, 0);
+        assertEquals(0, log.enforceRetention(RetentionPolicy.unlimited(), NOW));
+        assertEquals(0, log.startOffset());
+        assertEquals(5 * RECORDS_PER_SEGMENT, recordCount());
+    }
+
+    @Test
+    void oldestSegmentsAreDeletedBeyondTheMessageLimit() throws IOException {
+        append(5 * RECORDS_PER_SEGMENT, NOW);
+        int deleted = log.enforceRetention(RetentionPolicy.parse("messages:" + 3 * RECORDS_PER_SEGMENT), NOW);
+
+        assertEquals(2, deleted);
+        assertEquals(3 * RECORDS_PER_SEGMENT, recordCount());
+        assertEquals(2 * RECORDS_PER_SEGMENT, log.startOffset());
+        assertContiguousFromStart();
+    }
+
+    @Test
+    void oldestSegmentsAreDeletedBeyondTheByteLimit() throws IOException {
+        append(5 * RECORDS_PER_SEGMENT, NOW);
+        long segmentSize = (long) RECORDS_PER_SEGMENT * LogRecord.frameLength(PAYLOAD.length);
+        long maxBytes = 2 * SEGMENT_BYTES;
+        assertTrue(log.enforceRetention(RetentionPolicy.parse("bytes:" + maxBytes), NOW) > 0);
+
+        // 整段删除，直到不再超出限制
+        assertTrue(log.sizeInBytes() <= maxBytes, "kept " + log.sizeInBytes() + " bytes");
+        assertTrue(log.sizeInBytes() + segmentSize > maxBytes, "kept " + log.sizeInBytes() + " bytes");
+        assertContiguousFromStart();
+    }
+
+    @Test
+    void segmentsAreDeletedOnceTheirNewestRecordExpired() throws IOException {
+        append(2 * RECORDS_PER_SEGMENT, NOW - 10_000);
+        append(RECORDS_PER_SEGMENT, NOW);
+        assertEquals(2, log.enforceRetention(RetentionPolicy.parse("age:5s"), NOW));
+
+        assertEquals(2 * RECORDS_PER_SEGMENT, log.startOffset());
+        assertEquals(RECORDS_PER_SEGMENT, recordCount());
+        assertContiguousFromStart();
+    }
+
+    @Test
+    void expiredActiveSegmentIsRolledAndDeleted() throws IOException {
+        append(RECORDS_PER_SEGMENT + 1, NOW - 10_000);
+        long nextOffset = log.nextOffset();
+        assertEquals(2, log.enforceRetention(RetentionPolicy.parse("age:5s"), NOW));
+
+        assertEquals(1, log.segmentCount());
+        assertEquals(nextOffset, log.startOffset());
+        assertEquals(nextOffset, log.nextOffset());
+        assertEquals(0, log.sizeInBytes());
+        // 新的活动分段照常接收记录
+        assertEquals(nextOffset, log.append(NOW, PAYLOAD));
+    }
+
+    @Test
+    void retentionStopsAtTheFirstKeptSegment() throws IOException {
+        append(RECORDS_PER_SEGMENT, NOW);
+        append(RECORDS_PER_SEGMENT, NOW - 10_000);
+        append(RECORDS_PER_SEGMENT, NOW);
+        // 第二个分段已过期，但排在一个仍需保留的分段之后，不会被删除
+        assertEquals(0, log.enforceRetention(RetentionPolicy.parse("age:5s"), NOW));
+        assertEquals(3 * RECORDS_PER_SEGMENT, recordCount());
+        assertEquals(0, log.startOffset());
+    }
+}
@@ -0,0 +1,158 @@
+package io.github.jameswang777.minimq.store;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GroupCommitServiceTest {
+
+    // 刷盘线程可能被调度延迟，只检查一个宽松的上限
+    private static final long LATENESS_MS = 5000;
+
+    @TempDir
+    File dataDir;
+
+    private CountingStore store;
+    private GroupCommitService service;
+
+    // 记录刷盘次数，可以让刷盘失败，或在刷盘中途停住
+    private static class CountingStore extends MessageStore {
+        final AtomicInteger flushes = new AtomicInteger();
+        volatile IOException failure;
+        volatile CountDownLatch entered;
+        volatile CountDownLatch release;
+
+        CountingStore(File dataDir) throws IOException {
+            super(dataDir, 64 * 1024, 256);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushes.incrementAndGet();
+            CountDownLatch latch = release;
+            if (latch != null) {
+                entered.countDown();
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            IOException e = failure;
+            if (e != null) {
+                throw e;
+            }
+            super.flush();
+        }
+    }
+
+    @BeforeEach
+    void open() throws IOException {
+        store = new CountingStore(dataDir);
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        if (service != null) {
+            service.close();
+        }
+        store.close();
+    }
+
+    private static void await(CompletableFuture<Void> future) throws Exception {
+        future.get(LATENESS_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    void noneAcknowledgesWithoutFlushing() {
+        service = new GroupCommitService(store, FlushPolicy.none());
+        assertTrue(service.commit().isDone());
+        assertEquals(0, store.flushes.get());
+    }
+
+    @Test
+    void everyBatchFlushesRequestsArrivingDuringAFlushTogether() throws Exception {
+        service = new GroupCommitService(store, FlushPolicy.everyBatch());
+        store.entered = new CountDownLatch(1);
+        store.release = new CountDownLatch(1);
+        CompletableFuture<Void> first = service.commit();
+        assertTrue(store.entered.await(LATENESS_MS, TimeUnit.MILLISECONDS));
+
+        // 第一次刷盘进行中到达的请求等它结束后一起刷盘
+        List<CompletableFuture<Void>> next = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            next.add(service.commit());
+        }
+        assertFalse(first.isDone());
+        CountDownLatch release = store.release;
+        store.release = null;
+        release.countDown();
+        await(first);
+        for (CompletableFuture<Void> future : next) {
+            await(future);
+        }
+        assertEquals(2, store.flushes.get());
+    }
+
+    @Test
+    void intervalAcknowledgesOnlyAfterTheNextFlush() throws Exception {
+        service = new GroupCommitService(store, FlushPolicy.interval(TimeUnit.HOURS.toMillis(1)));
+        CompletableFuture<Void> future = service.commit();
+        Thread.sleep(100);
+        assertFalse(future.isDone());
+        assertEquals(0, store.flushes.get());
+
+        // 关闭时刷掉等待中的请求
+        service.close();
+        await(future);
+        assertEquals(1, store.flushes.get());
+    }
+
+    @Test
+    void intervalFlushesPeriodically() throws Exception {
+        service = new GroupCommitService(store, FlushPolicy.interval(50));
+        // 每个请求都在上一次刷盘之后发出，只能由下一次定时刷盘确认
+        for (int i = 0; i < 3; i++) {
+            await(service.commit());
+        }
+        assertTrue(store.flushes.get() >= 3);
+    }
+
+    @Test
+    void failedFlushFailsItsBatchOnly() throws Exception {
+        service = new GroupCommitService(store, FlushPolicy.everyBatch());
+        IOException failure = new IOException("disk full");
+        store.failure = failure;
+        CompletionException thrown = assertThrows(CompletionException.class, () -> service.commit().join());
+        assertSame(failure, thrown.getCause());
+
+        store.failure = null;
+        await(service.commit());
+    }
+
+    @Test
+    void commitAfterCloseFails() {
+        service = new GroupCommitService(store, FlushPolicy.everyBatch());
+        service.close();
+        CompletionException thrown = assertThrows(CompletionException.class, () -> service.commit().join());
+        assertInstanceOf(IOException.class, thrown.getCause());
+    }
+}
@@ -0,0 +1,117 @@
+package io.github.jameswang777.minimq.store;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LogCheckpointTest {
+
+    private static final int SEGMENT_BYTES = 64 * 1024;
+    private static final int INDEX_INTERVAL_BYTES = 256;
+    private static final byte[] PAYLOAD = "x".repeat(100).getBytes(StandardCharsets.UTF_8);
+
+    @TempDir
+    File dir;
+
+    private static LogCheckpoint.SegmentState state(long baseOffset, int... acked) {
+        BitSet bits = new BitSet();
+        for (int relative : acked) {
+            bits.set(relative);
+        }
+        return new LogCheckpoint.SegmentState(baseOffset, baseOffset + 10, 1200, 10, 1234L, 16, bits);
+    }
+
+    @Test
+    void writtenCheckpointReadsBack() throws IOException {
+        LogCheckpoint.SegmentState first = state(0, 1, 3);
+        LogCheckpoint.SegmentState second = state(10);
+        new LogCheckpoint(Arrays.asList(first, second)).write(dir);
+
+        LogCheckpoint checkpoint = LogCheckpoint.read(dir);
+        assertNotNull(checkpoint);
+        assertEquals(first, checkpoint.segment(0));
+        assertEquals(second, checkpoint.segment(10));
+        assertNull(checkpoint.segment(20));
+        assertFalse(new File(dir, LogCheckpoint.FILE_NAME + ".tmp").exists());
+    }
+
+    @Test
+    void missingCheckpointIsNull() {
+        assertNull(LogCheckpoint.read(dir));
+    }
+
+    @Test
+    void corruptedCheckpointIsIgnored() throws IOException {
+        new LogCheckpoint(Collections.singletonList(state(0, 2))).write(dir);
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, LogCheckpoint.FILE_NAME), "rw")) {
+            file.seek(12);
+            file.write(file.read() ^ 1);
+        }
+        assertNull(LogCheckpoint.read(dir));
+    }
+
+    @Test
+    void truncatedCheckpointIsIgnored() throws IOException {
+        new LogCheckpoint(Collections.singletonList(state(0, 2))).write(dir);
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, LogCheckpoint.FILE_NAME), "rw")) {
+            file.setLength(file.length() - 5);
+        }
+        assertNull(LogCheckpoint.read(dir));
+    }
+
+    @Test
+    void segmentRecoversFromCheckpointAndLaterWrites() throws IOException {
+        LogCheckpoint.SegmentState state;
+        try (LogSegment segment = new LogSegment(dir, 0, SEGMENT_BYTES, INDEX_INTERVAL_BYTES)) {
+            for (int i = 0; i < 10; i++) {
+                segment.append(i, PAYLOAD);
+            }
+            segment.acknowledge(1);
+            segment.flush(true);
+            state = segment.snapshot();
+            // 检查点之后的写入和确认只能通过扫描恢复
+            for (int i = 10; i < 15; i++) {
+                segment.append(i, PAYLOAD);
+            }
+            segment.acknowledge(12);
+            segment.flush();
+        }
+        try (LogSegment segment = new LogSegment(dir, 0, SEGMENT_BYTES, INDEX_INTERVAL_BYTES, state)) {
+            assertEquals(15, segment.nextOffset());
+            assertEquals(15, segment.recordCount());
+            assertEquals(14, segment.largestTimestamp());
+            assertNotNull(segment.read(14));
+            assertFalse(segment.acknowledge(1));
+            assertFalse(segment.acknowledge(12));
+            assertTrue(segment.acknowledge(2));
+        }
+    }
+
+    @Test
+    void checkpointBeyondTheSegmentFallsBackToAScan() throws IOException {
+        try (LogSegment segment = new LogSegment(dir, 0, SEGMENT_BYTES, INDEX_INTERVAL_BYTES)) {
+            for (int i = 0; i < 5; i++) {
+                segment.append(i, PAYLOAD);
+            }
+            segment.flush();
+        }
+        LogCheckpoint.SegmentState invalid = new LogCheckpoint.SegmentState(0, 5, SEGMENT_BYTES + 1, 5, 4L, 0, new BitSet());
+        try (LogSegment segment = new LogSegment(dir, 0, SEGMENT_BYTES, INDEX_INTERVAL_BYTES, invalid)) {
+            assertEquals(5, segment.nextOffset());
+            assertEquals(5, segment.recordCount());
+        }
+    }
+}
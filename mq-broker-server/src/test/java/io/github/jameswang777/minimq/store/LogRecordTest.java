@@ -0,0 +1,70 @@
+package io.github.jameswang777.minimq.store;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class LogRecordTest {
+
+    private static final int POSITION = 16;
+    private static final byte[] PAYLOAD = "payload".getBytes(StandardCharsets.UTF_8);
+
+    private static ByteBuffer written() {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        LogRecord.write(buffer, POSITION, 42, (byte) 0, 1234L, PAYLOAD);
+        return buffer;
+    }
+
+    @Test
+    void writtenRecordIsValidAndReadsBack() {
+        ByteBuffer buffer = written();
+        assertEquals(LogRecord.frameLength(PAYLOAD.length), LogRecord.validate(buffer, POSITION, buffer.capacity()));
+        LogRecord record = LogRecord.read(buffer, POSITION);
+        assertEquals(42, record.getOffset());
+        assertEquals(LogRecord.MAGIC_V1, record.getMagic());
+        assertEquals(1234L, record.getTimestamp());
+        assertEquals(ByteBuffer.wrap(PAYLOAD), record.getPayload());
+        assertThrows(ReadOnlyBufferException.class, () -> record.getPayload().put(0, (byte) 0));
+    }
+
+    @Test
+    void changedPayloadFailsTheChecksum() {
+        ByteBuffer buffer = written();
+        int last = POSITION + LogRecord.frameLength(PAYLOAD.length) - 1;
+        buffer.put(last, (byte) (buffer.get(last) ^ 1));
+        assertEquals(-1, LogRecord.validate(buffer, POSITION, buffer.capacity()));
+    }
+
+    @Test
+    void changedOffsetFailsTheChecksum() {
+        ByteBuffer buffer = written();
+        buffer.putLong(POSITION + LogRecord.SIZE_FIELD_LENGTH + 1, 43);
+        assertEquals(-1, LogRecord.validate(buffer, POSITION, buffer.capacity()));
+    }
+
+    @Test
+    void recordBeyondTheLimitIsInvalid() {
+        ByteBuffer buffer = written();
+        int end = POSITION + LogRecord.frameLength(PAYLOAD.length);
+        assertEquals(-1, LogRecord.validate(buffer, POSITION, end - 1));
+        assertEquals(-1, LogRecord.validate(buffer, end - 2, end));
+    }
+
+    @Test
+    void unwrittenSpaceIsInvalid() {
+        ByteBuffer buffer = written();
+        assertEquals(-1, LogRecord.validate(buffer, POSITION + LogRecord.frameLength(PAYLOAD.length), buffer.capacity()));
+    }
+
+    @Test
+    void unknownMagicIsInvalid() {
+        ByteBuffer buffer = written();
+        buffer.put(POSITION + LogRecord.SIZE_FIELD_LENGTH, (byte) 7);
+        assertEquals(-1, LogRecord.validate(buffer, POSITION, buffer.capacity()));
+    }
+}
@@ -0,0 +1,101 @@
+package io.github.jameswang777.minimq.store;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class LogSegmentTest {
+
+    private static final long BASE_OFFSET = 1000;
+    private static final int SEGMENT_BYTES = 64 * 1024;
+    private static final int INDEX_INTERVAL_BYTES = 256;
+
+    @TempDir
+    File dir;
+
+    private LogSegment open() throws IOException {
+        return new LogSegment(dir, BASE_OFFSET, SEGMENT_BYTES, INDEX_INTERVAL_BYTES);
+    }
+
+    private static byte[] payload(int i) {
+        return ("message-" + i + "-" + "x".repeat(100)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    // 写入 count 条记录并关闭分段，返回最后一条记录的起始位置
+    private int writeRecords(int count) throws IOException {
+        try (LogSegment segment = open()) {
+            int lastPosition = 0;
+            for (int i = 0; i < count; i++) {
+                lastPosition = segment.size();
+                segment.append(i, payload(i));
+            }
+            segment.flush();
+            return lastPosition;
+        }
+    }
+
+    private void overwrite(int position, byte[] bytes) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, LogSegment.fileName(BASE_OFFSET, LogSegment.LOG_SUFFIX)), "rw")) {
+            file.seek(position);
+            file.write(bytes);
+        }
+    }
+
+    @Test
+    void reopenedSegmentRecoversItsRecords() throws IOException {
+        writeRecords(20);
+        try (LogSegment segment = open()) {
+            assertEquals(BASE_OFFSET + 20, segment.nextOffset());
+            assertEquals(20, segment.recordCount());
+            assertEquals(19, segment.largestTimestamp());
+            for (int i = 0; i < 20; i++) {
+                LogRecord record = segment.read(BASE_OFFSET + i);
+                assertNotNull(record);
+                assertEquals(ByteBuffer.wrap(payload(i)), record.getPayload());
+            }
+            assertNull(segment.read(BASE_OFFSET + 20));
+        }
+    }
+
+    @Test
+    void tornTailIsTruncated() throws IOException {
+        writeRecords(5);
+        int end;
+        try (LogSegment segment = open()) {
+            end = segment.size();
+        }
+        // 进程崩溃时最后一条记录只写了一部分：长度字段已写入，其余内容不完整
+        overwrite(end, new byte[]{0, 0, 0, 100, 1, 0, 0, 0});
+        try (LogSegment segment = open()) {
+            assertEquals(BASE_OFFSET + 5, segment.nextOffset());
+            assertEquals(end, segment.size());
+            assertEquals(BASE_OFFSET + 5, segment.append(5, payload(5)));
+            segment.flush();
+        }
+        try (LogSegment segment = open()) {
+            assertEquals(BASE_OFFSET + 6, segment.nextOffset());
+            assertEquals(ByteBuffer.wrap(payload(5)), segment.read(BASE_OFFSET + 5).getPayload());
+        }
+    }
+
+    @Test
+    void corruptedRecordEndsTheLog() throws IOException {
+        int lastPosition = writeRecords(5);
+        overwrite(lastPosition + LogRecord.frameLength(0) + 3, new byte[]{'!'});
+        try (LogSegment segment = open()) {
+            assertEquals(BASE_OFFSET + 4, segment.nextOffset());
+            assertEquals(4, segment.recordCount());
+            assertEquals(lastPosition, segment.size());
+            assertNull(segment.read(BASE_OFFSET + 4));
+        }
+    }
+}
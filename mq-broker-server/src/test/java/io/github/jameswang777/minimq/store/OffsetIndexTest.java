@@ -0,0 +1,105 @@
+package io.github.jameswang777.minimq.store;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class OffsetIndexTest {
+
+    private static final long BASE_OFFSET = 100;
+    private static final int MAX_ENTRIES = 16;
+
+    @TempDir
+    File dir;
+
+    private OffsetIndex open() throws IOException {
+        return new OffsetIndex(new File(dir, "index"), BASE_OFFSET, MAX_ENTRIES);
+    }
+
+    private static void appendEntries(OffsetIndex index) {
+        index.append(100, 0);
+        index.append(110, 500);
+        index.append(120, 1000);
+    }
+
+    @Test
+    void lookupReturnsTheClosestPrecedingEntry() throws IOException {
+        try (OffsetIndex index = open()) {
+            appendEntries(index);
+            assertEquals(0, index.lookup(99));
+            assertEquals(0, index.lookup(100));
+            assertEquals(0, index.lookup(109));
+            assertEquals(500, index.lookup(115));
+            assertEquals(1000, index.lookup(120));
+            assertEquals(1000, index.lookup(10_000));
+        }
+    }
+
+    @Test
+    void appendIgnoresEntriesThatDoNotMoveForward() throws IOException {
+        try (OffsetIndex index = open()) {
+            appendEntries(index);
+            index.append(130, 1000);
+            index.append(130, 800);
+            assertEquals(3, index.entries());
+            assertEquals(1000, index.lastPosition());
+        }
+    }
+
+    @Test
+    void appendStopsWhenTheIndexIsFull() throws IOException {
+        try (OffsetIndex index = open()) {
+            for (int i = 0; i < MAX_ENTRIES + 4; i++) {
+                index.append(BASE_OFFSET + i, i * 100);
+            }
+            assertEquals(MAX_ENTRIES, index.entries());
+            assertEquals((MAX_ENTRIES - 1) * 100, index.lastPosition());
+        }
+    }
+
+    @Test
+    void reopeningCountsTheWrittenEntries() throws IOException {
+        try (OffsetIndex index = open()) {
+            appendEntries(index);
+            index.flush();
+        }
+        try (OffsetIndex index = open()) {
+            assertEquals(3, index.entries());
+            assertEquals(1000, index.lastPosition());
+            assertEquals(500, index.lookup(115));
+        }
+    }
+
+    @Test
+    void truncateDropsEntriesAtOrBeyondThePosition() throws IOException {
+        try (OffsetIndex index = open()) {
+            appendEntries(index);
+            index.truncateTo(500);
+            assertEquals(1, index.entries());
+            assertEquals(0, index.lookup(120));
+            index.flush();
+        }
+        // 截断的条目已清零，重新打开后不会再被计入
+        try (OffsetIndex index = open()) {
+            assertEquals(1, index.entries());
+            assertEquals(0, index.lastPosition());
+        }
+    }
+
+    @Test
+    void corruptFirstEntryEmptiesTheIndex() throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, "index"), "rw")) {
+            file.writeInt(0);
+            file.writeInt(4096);
+        }
+        try (OffsetIndex index = open()) {
+            assertEquals(0, index.entries());
+            assertEquals(-1, index.lastPosition());
+        }
+    }
+}
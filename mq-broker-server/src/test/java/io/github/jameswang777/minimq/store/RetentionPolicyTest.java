@@ -0,0 +1,70 @@
+package io.github.jameswang777.minimq.store;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RetentionPolicyTest {
+
+    private static void assertLimits(long maxAgeMs, long maxBytes, long maxMessages, RetentionPolicy policy) {
+        assertEquals(maxAgeMs, policy.getMaxAgeMs(), "maxAgeMs");
+        assertEquals(maxBytes, policy.getMaxBytes(), "maxBytes");
+        assertEquals(maxMessages, policy.getMaxMessages(), "maxMessages");
+    }
+
+    @Test
+    void missingPolicyIsUnlimited() {
+        assertTrue(RetentionPolicy.parse(null).isUnlimited());
+        assertTrue(RetentionPolicy.parse(" ").isUnlimited());
+        assertTrue(RetentionPolicy.parse("Unlimited").isUnlimited());
+    }
+
+    @Test
+    void limitsAreCombined() {
+        assertLimits(7 * 86_400_000L, 512L << 20, 1000, RetentionPolicy.parse("age:7d,bytes:512m,messages:1000"));
+        assertLimits(RetentionPolicy.UNLIMITED, 1 << 10, RetentionPolicy.UNLIMITED, RetentionPolicy.parse("bytes:1k"));
+        // 大小写和空白不影响解析
+        assertLimits(3_600_000L, 1 << 10, RetentionPolicy.UNLIMITED, RetentionPolicy.parse(" AGE:1H , Bytes: 1K "));
+    }
+
+    @Test
+    void durationsAndSizesTakeUnits() {
+        assertEquals(1500, RetentionPolicy.parse("age:1500ms").getMaxAgeMs());
+        assertEquals(30_000, RetentionPolicy.parse("age:30s").getMaxAgeMs());
+        assertEquals(300_000, RetentionPolicy.parse("age:5m").getMaxAgeMs());
+        assertEquals(7_200_000, RetentionPolicy.parse("age:2h").getMaxAgeMs());
+        assertEquals(100, RetentionPolicy.parse("age:100").getMaxAgeMs());
+        assertEquals(123, RetentionPolicy.parseSize("123"));
+        assertEquals(3L << 30, RetentionPolicy.parseSize("3g"));
+    }
+
+    @Test
+    void invalidLimitsAreRejected() {
+        for (String invalid : new String[]{"age", "age:", "size:1", "age:-1s", "bytes:xm", "messages:1.5",
+                "bytes:99999999999999g", "age:7d,,bytes:1k"}) {
+            assertThrows(IllegalArgumentException.class, () -> RetentionPolicy.parse(invalid), invalid);
+        }
+    }
+
+    @Test
+    void policyReadsBackFromItsString() {
+        RetentionPolicy policy = RetentionPolicy.parse("age:1d,bytes:1g,messages:5");
+        assertLimits(policy.getMaxAgeMs(), policy.getMaxBytes(), policy.getMaxMessages(), RetentionPolicy.parse(policy.toString()));
+        assertEquals("unlimited", RetentionPolicy.unlimited().toString());
+    }
+
+    @Test
+    void topicPoliciesAreSplitAtTheLastEqualsSign() {
+        Map<String, RetentionPolicy> policies = RetentionPolicy.parseTopicPolicies("orders=age:7d; a=b=messages:10 ;");
+        assertEquals(2, policies.size());
+        assertEquals(7 * 86_400_000L, policies.get("orders").getMaxAgeMs());
+        assertEquals(10, policies.get("a=b").getMaxMessages());
+        assertTrue(RetentionPolicy.parseTopicPolicies(null).isEmpty());
+        assertThrows(IllegalArgumentException.class, () -> RetentionPolicy.parseTopicPolicies("=age:1s"));
+        assertThrows(IllegalArgumentException.class, () -> RetentionPolicy.parseTopicPolicies("orders"));
+    }
+}